@@ -29,7 +29,10 @@ import java.nio.file.attribute.AclEntryFlag;
 import java.nio.file.attribute.AclEntryPermission;
 import java.nio.file.attribute.AclEntryType;
 import java.nio.file.attribute.AclFileAttributeView;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -97,6 +100,14 @@ public class AclBuilder {
   private String builtinPrefix;
   private String namespace;
 
+  /**
+   * The permits and denies of each {@link Scope}, indexed by ordinal.
+   * Filled in a single pass over the entries the first time any of the
+   * ACLs is requested.
+   */
+  private List<Set<Principal>> permits;
+  private List<Set<Principal>> denies;
+
   public AclBuilder(Path doc, AclFileAttributeView aclView,
       Set<String> supportedWindowsAccounts, String builtinPrefix,
       String namespace) {
@@ -114,31 +125,89 @@ public class AclBuilder {
   }
 
   public Acl.Builder getAcl() throws IOException {
-    return getAcl(isDirectEntry);
+    return getAcl(Scope.DIRECT);
   }
 
   public Acl.Builder getInheritableByAllDescendentFoldersAcl()
       throws IOException {
-    return getAcl(isInheritableByAllDescendentFoldersEntry);
+    return getAcl(Scope.ALL_DESCENDENT_FOLDERS);
   }
 
   public Acl.Builder getInheritableByAllDescendentFilesAcl()
       throws IOException {
-    return getAcl(isInheritableByAllDescendentFilesEntry);
+    return getAcl(Scope.ALL_DESCENDENT_FILES);
   }
 
   public Acl.Builder getInheritableByChildFoldersOnlyAcl() throws IOException {
-    return getAcl(isInheritableByChildFoldersOnlyEntry);
+    return getAcl(Scope.CHILD_FOLDERS_ONLY);
   }
 
   public Acl.Builder getInheritableByChildFilesOnlyAcl() throws IOException {
-    return getAcl(isInheritableByChildFilesOnlyEntry);
+    return getAcl(Scope.CHILD_FILES_ONLY);
   }
 
   Acl.Builder getFlattenedAcl() throws IOException {
     return getAcl(Predicates.<Set<AclEntryFlag>>alwaysTrue());
   }
 
+  private Acl.Builder getAcl(Scope scope) throws IOException {
+    if (permits == null) {
+      classifyEntries();
+    }
+    return new Acl.Builder().setPermits(permits.get(scope.ordinal()))
+        .setDenies(denies.get(scope.ordinal())).setEverythingCaseInsensitive();
+  }
+
+  /**
+   * Fills the permits and denies of every {@link Scope} in a single pass,
+   * filtering each entry and creating its principal only once.
+   */
+  private void classifyEntries() throws IOException {
+    List<AclEntry> entries = aclView.getAcl();
+    if (entries.isEmpty()) {
+      // Files that only inherit their permissions have no direct entries,
+      // so all of their ACLs are empty.
+      List<Set<Principal>> empty =
+          Collections.nCopies(SCOPES.length, Collections.<Principal>emptySet());
+      permits = empty;
+      denies = empty;
+      return;
+    }
+    permits = newSets();
+    denies = newSets();
+    for (AclEntry entry : entries) {
+      List<Set<Principal>> sets;
+      if (entry.type() == AclEntryType.ALLOW) {
+        sets = permits;
+      } else if (entry.type() == AclEntryType.DENY) {
+        sets = denies;
+      } else {
+        continue;
+      }
+      if (filterOutAclEntry(entry)) {
+        continue;
+      }
+      Principal principal = newPrincipal(entry);
+      if (principal == null) {
+        continue;
+      }
+      Set<AclEntryFlag> flags = entry.flags();
+      for (Scope scope : SCOPES) {
+        if (scope.predicate.apply(flags)) {
+          sets.get(scope.ordinal()).add(principal);
+        }
+      }
+    }
+  }
+
+  private static List<Set<Principal>> newSets() {
+    List<Set<Principal>> sets = new ArrayList<Set<Principal>>(SCOPES.length);
+    for (int i = 0; i < SCOPES.length; i++) {
+      sets.add(new HashSet<Principal>());
+    }
+    return sets;
+  }
+
   private Acl.Builder getAcl(Predicate<Set<AclEntryFlag>> predicate)
       throws IOException {
     Set<Principal> permits = new HashSet<Principal>();
@@ -151,15 +220,8 @@ public class AclBuilder {
         continue;
       }
 
-      Principal principal;
-      if (entry.principal()
-          instanceof java.nio.file.attribute.GroupPrincipal) {
-        principal = new GroupPrincipal(entry.principal().getName(), namespace);
-      } else if (entry.principal() 
-          instanceof java.nio.file.attribute.UserPrincipal) {
-        principal = new UserPrincipal(entry.principal().getName(), namespace);
-      } else {
-        log.log(Level.WARNING, "Unsupported Acl entry found: {0}", entry);
+      Principal principal = newPrincipal(entry);
+      if (principal == null) {
         continue;
       }
 
@@ -174,6 +236,23 @@ public class AclBuilder {
         .setEverythingCaseInsensitive();
   }
 
+  /**
+   * Returns the principal of the entry, or {@code null} if the entry's
+   * principal is neither a user nor a group.
+   */
+  private Principal newPrincipal(AclEntry entry) {
+    if (entry.principal()
+        instanceof java.nio.file.attribute.GroupPrincipal) {
+      return new GroupPrincipal(entry.principal().getName(), namespace);
+    } else if (entry.principal() 
+        instanceof java.nio.file.attribute.UserPrincipal) {
+      return new UserPrincipal(entry.principal().getName(), namespace);
+    } else {
+      log.log(Level.WARNING, "Unsupported Acl entry found: {0}", entry);
+      return null;
+    }
+  }
+
   /**
    * Returns true if provided {@link AclEntry} should be excluded from Acl.
    *
@@ -219,7 +298,9 @@ public class AclBuilder {
    * Returns true if the passed in user name is a Windows builtin user.
    */
   private boolean isBuiltin(String name) {
-    return name.toUpperCase().startsWith(builtinPrefix);
+    // Compare in place, rather than upper casing a copy of each name.
+    return name.regionMatches(true, 0, builtinPrefix, 0,
+                              builtinPrefix.length());
   }
 
   /**
@@ -299,4 +380,25 @@ public class AclBuilder {
                   && !flags.contains(AclEntryFlag.NO_PROPAGATE_INHERIT);
             }
           };
+
+  /**
+   * The ACLs built from the entries of the view. Each entry contributes to
+   * the ACLs whose predicate accepts its flags.
+   */
+  private static enum Scope {
+    DIRECT(isDirectEntry),
+    ALL_DESCENDENT_FOLDERS(isInheritableByAllDescendentFoldersEntry),
+    ALL_DESCENDENT_FILES(isInheritableByAllDescendentFilesEntry),
+    CHILD_FOLDERS_ONLY(isInheritableByChildFoldersOnlyEntry),
+    CHILD_FILES_ONLY(isInheritableByChildFilesOnlyEntry);
+
+    private final Predicate<Set<AclEntryFlag>> predicate;
+
+    private Scope(Predicate<Set<AclEntryFlag>> predicate) {
+      this.predicate = predicate;
+    }
+  }
+
+  /** Declared after the predicates the scopes refer to. */
+  private static final Scope[] SCOPES = Scope.values();
 }
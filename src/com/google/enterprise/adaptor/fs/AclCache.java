@@ -0,0 +1,154 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.enterprise.adaptor.Acl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the {@link Acl}s built by {@link AclBuilder} for each distinct
+ * file system ACL.
+ * <p>
+ * Most files on a share carry one of a handful of distinct ACLs, so the
+ * ACL and the inheritable ACLs built from a file system ACL are built once
+ * and reused for every other file with the same ACL. The cached ACLs have
+ * no inheritance set, since that differs from file to file.
+ */
+class AclCache {
+  /** The maximum number of distinct file system ACLs cached. */
+  private static final int CACHE_SIZE = 10000;
+
+  private final Set<String> supportedWindowsAccounts;
+  private final String builtinPrefix;
+  private final String namespace;
+  private final Cache<List<AclEntry>, Acls> cache = CacheBuilder.newBuilder()
+      .maximumSize(CACHE_SIZE).expireAfterWrite(1, TimeUnit.HOURS).build();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  AclCache(Set<String> supportedWindowsAccounts, String builtinPrefix,
+      String namespace) {
+    Preconditions.checkNotNull(supportedWindowsAccounts,
+        "supportedWindowsAccounts may not be null");
+    Preconditions.checkNotNull(builtinPrefix, "builtinPrefix may not be null");
+    Preconditions.checkNotNull(namespace, "namespace may not be null");
+    this.supportedWindowsAccounts = supportedWindowsAccounts;
+    this.builtinPrefix = builtinPrefix;
+    this.namespace = namespace;
+  }
+
+  /**
+   * Returns the ACLs built from the file system ACL of a document.
+   *
+   * @param doc the document, used only for logging
+   * @param aclView the file system ACL of the document
+   */
+  Acls getAcls(final Path doc, final AclFileAttributeView aclView)
+      throws IOException {
+    final boolean[] built = new boolean[1];
+    Acls acls;
+    try {
+      acls = cache.get(aclView.getAcl(), new Callable<Acls>() {
+          @Override
+          public Acls call() throws IOException {
+            built[0] = true;
+            return new Acls(new AclBuilder(doc, aclView,
+                supportedWindowsAccounts, builtinPrefix, namespace));
+          }
+        });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    if (built[0]) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return acls;
+  }
+
+  @VisibleForTesting
+  long getHits() {
+    return hits.get();
+  }
+
+  @VisibleForTesting
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * The ACL of a document and the ACLs inheritable by its descendants,
+   * without any inheritance set.
+   */
+  static class Acls {
+    private final Acl acl;
+    private final Acl allFoldersAcl;
+    private final Acl allFilesAcl;
+    private final Acl childFoldersAcl;
+    private final Acl childFilesAcl;
+
+    Acls(AclBuilder builder) throws IOException {
+      acl = builder.getAcl().build();
+      allFoldersAcl = builder.getInheritableByAllDescendentFoldersAcl().build();
+      allFilesAcl = builder.getInheritableByAllDescendentFilesAcl().build();
+      childFoldersAcl = builder.getInheritableByChildFoldersOnlyAcl().build();
+      childFilesAcl = builder.getInheritableByChildFilesOnlyAcl().build();
+    }
+
+    /** Returns a builder for the ACL of the document. */
+    Acl.Builder getAcl() {
+      return new Acl.Builder(acl);
+    }
+
+    /** Returns a builder for the ACL inherited by all descendant folders. */
+    Acl.Builder getInheritableByAllDescendentFoldersAcl() {
+      return new Acl.Builder(allFoldersAcl);
+    }
+
+    /** Returns a builder for the ACL inherited by all descendant files. */
+    Acl.Builder getInheritableByAllDescendentFilesAcl() {
+      return new Acl.Builder(allFilesAcl);
+    }
+
+    /** Returns a builder for the ACL inherited by child folders. */
+    Acl.Builder getInheritableByChildFoldersOnlyAcl() {
+      return new Acl.Builder(childFoldersAcl);
+    }
+
+    /** Returns a builder for the ACL inherited by child files. */
+    Acl.Builder getInheritableByChildFilesOnlyAcl() {
+      return new Acl.Builder(childFilesAcl);
+    }
+  }
+}
@@ -0,0 +1,235 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.enterprise.adaptor.Acl;
+import com.google.enterprise.adaptor.Acl.InheritanceType;
+import com.google.enterprise.adaptor.AuthnIdentity;
+import com.google.enterprise.adaptor.AuthzStatus;
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates ACL chains the way {@link Acl#isAuthorized} does, but with
+ * the principals interned to integer ids.
+ * <p>
+ * Each {@link Acl} is compiled once to sparse bitsets of the ids of its
+ * permitted and denied principals, and the user and groups of a request
+ * are turned into a single bitset, so deciding whether an ACL permits or
+ * denies the user is a few word-wise ANDs, however many groups the user
+ * is a member of.
+ * <p>
+ * Case sensitive and case insensitive ACLs intern the names of their
+ * principals separately, the latter in lower case. A subject sets the bits
+ * of both forms of each of its principals.
+ */
+class AclEvaluator {
+  private final ConcurrentHashMap<String, Integer> ids =
+      new ConcurrentHashMap<String, Integer>();
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  /**
+   * Returns the subject for the user and groups of an identity. The ids of
+   * its principals are interned before the bitset is built, so ACLs
+   * compiled later find the subject's principals in it.
+   */
+  Subject newSubject(AuthnIdentity identity) {
+    Preconditions.checkNotNull(identity.getUser(), "user may not be null");
+    Collection<GroupPrincipal> groups = identity.getGroups();
+    int[] subjectIds = new int[2 * (1 + (groups == null ? 0 : groups.size()))];
+    int count = 0;
+    subjectIds[count++] = getId(identity.getUser(), true);
+    subjectIds[count++] = getId(identity.getUser(), false);
+    if (groups != null) {
+      for (GroupPrincipal group : groups) {
+        subjectIds[count++] = getId(group, true);
+        subjectIds[count++] = getId(group, false);
+      }
+    }
+    return new Subject(subjectIds);
+  }
+
+  /** Compiles an ACL, interning the ids of its principals. */
+  CompiledAcl compile(Acl acl) {
+    boolean caseSensitive = acl.isEverythingCaseSensitive();
+    return new CompiledAcl(acl.getInheritanceType(),
+        toBits(caseSensitive, acl.getPermitUsers(), acl.getPermitGroups()),
+        toBits(caseSensitive, acl.getDenyUsers(), acl.getDenyGroups()));
+  }
+
+  /**
+   * Returns whether the subject may access a document with the ACL chain,
+   * which lists the root ACL first and the document's own ACL last. Like
+   * {@link Acl#isAuthorized}, this never returns {@code INDETERMINATE}.
+   */
+  static AuthzStatus isAuthorized(Subject subject, List<CompiledAcl> chain) {
+    Preconditions.checkArgument(!chain.isEmpty(), "chain may not be empty");
+    AuthzStatus result = isAuthorized(subject, chain, chain.size());
+    return (result == AuthzStatus.INDETERMINATE) ? AuthzStatus.DENY : result;
+  }
+
+  /** Evaluates the first {@code length} ACLs of the chain. */
+  private static AuthzStatus isAuthorized(Subject subject,
+      List<CompiledAcl> chain, int length) {
+    CompiledAcl child = chain.get(length - 1);
+    if (length == 1) {
+      return child.isAuthorizedLocal(subject);
+    }
+    CompiledAcl parent = chain.get(length - 2);
+    switch (parent.inheritanceType) {
+      case CHILD_OVERRIDES: {
+        AuthzStatus result = child.isAuthorizedLocal(subject);
+        return (result == AuthzStatus.INDETERMINATE)
+            ? isAuthorized(subject, chain, length - 1) : result;
+      }
+      case PARENT_OVERRIDES: {
+        AuthzStatus result = isAuthorized(subject, chain, length - 1);
+        return (result == AuthzStatus.INDETERMINATE)
+            ? child.isAuthorizedLocal(subject) : result;
+      }
+      case AND_BOTH_PERMIT: {
+        return (isAuthorized(subject, chain, length - 1) == AuthzStatus.PERMIT
+            && child.isAuthorizedLocal(subject) == AuthzStatus.PERMIT)
+            ? AuthzStatus.PERMIT : AuthzStatus.DENY;
+      }
+      default:
+        throw new IllegalArgumentException(
+            "A LEAF_NODE ACL may only be the last in the chain");
+    }
+  }
+
+  private Bits toBits(boolean caseSensitive,
+      Collection<UserPrincipal> users, Collection<GroupPrincipal> groups) {
+    int[] aclIds = new int[users.size() + groups.size()];
+    int count = 0;
+    for (Principal user : users) {
+      aclIds[count++] = getId(user, caseSensitive);
+    }
+    for (Principal group : groups) {
+      aclIds[count++] = getId(group, caseSensitive);
+    }
+    return new Bits(aclIds);
+  }
+
+  /** Returns the id of the principal, interning it if it is new. */
+  private int getId(Principal principal, boolean caseSensitive) {
+    String name = principal.getName();
+    String key = (principal.isUser() ? "u" : "g")
+        + (caseSensitive ? "s" : "i") + principal.getNamespace() + '\0'
+        + (caseSensitive ? name : name.toLowerCase(Locale.ENGLISH));
+    Integer id = ids.get(key);
+    if (id == null) {
+      Integer newId = nextId.getAndIncrement();
+      id = ids.putIfAbsent(key, newId);
+      if (id == null) {
+        id = newId;
+      }
+    }
+    return id;
+  }
+
+  @VisibleForTesting
+  int getPrincipalCount() {
+    return ids.size();
+  }
+
+  /** The principals of a user, as a bitset of their ids. */
+  static class Subject {
+    private final long[] words;
+
+    private Subject(int[] subjectIds) {
+      int max = 0;
+      for (int id : subjectIds) {
+        max = Math.max(max, id);
+      }
+      words = new long[(max >>> 6) + 1];
+      for (int id : subjectIds) {
+        words[id >>> 6] |= 1L << id;
+      }
+    }
+  }
+
+  /** An ACL, with its principals as bitsets of their ids. */
+  static class CompiledAcl {
+    private final InheritanceType inheritanceType;
+    private final Bits permits;
+    private final Bits denies;
+
+    private CompiledAcl(InheritanceType inheritanceType, Bits permits,
+        Bits denies) {
+      this.inheritanceType = inheritanceType;
+      this.permits = permits;
+      this.denies = denies;
+    }
+
+    private AuthzStatus isAuthorizedLocal(Subject subject) {
+      if (denies.intersects(subject)) {
+        return AuthzStatus.DENY;
+      } else if (permits.intersects(subject)) {
+        return AuthzStatus.PERMIT;
+      } else {
+        return AuthzStatus.INDETERMINATE;
+      }
+    }
+  }
+
+  /**
+   * A sparse bitset, holding only its nonzero words and their indexes,
+   * since the few principals of an ACL are spread over a large range of
+   * ids.
+   */
+  private static class Bits {
+    private final int[] indexes;
+    private final long[] words;
+
+    Bits(int[] ids) {
+      Arrays.sort(ids);
+      int count = 0;
+      int[] indexes = new int[ids.length];
+      long[] words = new long[ids.length];
+      for (int id : ids) {
+        int index = id >>> 6;
+        if (count == 0 || indexes[count - 1] != index) {
+          indexes[count++] = index;
+        }
+        words[count - 1] |= 1L << id;
+      }
+      this.indexes = Arrays.copyOf(indexes, count);
+      this.words = Arrays.copyOf(words, count);
+    }
+
+    boolean intersects(Subject subject) {
+      long[] subjectWords = subject.words;
+      for (int i = 0; i < indexes.length; i++) {
+        int index = indexes[i];
+        if (index < subjectWords.length
+            && (subjectWords[index] & words[i]) != 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,176 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the start path and the ACL root of a path without any I/O, using a
+ * trie of the start paths and the known DFS links keyed by path component.
+ * <p>
+ * The ACL root of a path is the nearest start path or DFS link at or above
+ * it, whose share ACLs head the path's ACL chain. The links of a DFS
+ * namespace are known once they are enumerated, so for a path beneath a
+ * DFS namespace whose links are not known, or not among them, the index
+ * does not know the ACL root. A start path is known to be a DFS namespace
+ * once it is recorded as one, or its links are. Windows paths, including
+ * UNC paths, are compared case insensitively, as Windows does.
+ * <p>
+ * The trie is rebuilt whenever the known DFS links change, which is rare,
+ * so lookups never wait for updates.
+ */
+class AclRootIndex {
+  private final List<Path> startPaths;
+  /** The links of each DFS namespace start path, once enumerated. */
+  private final Map<Path, List<Path>> dfsLinks =
+      new HashMap<Path, List<Path>>();
+  private volatile Node root;
+
+  AclRootIndex(Collection<Path> startPaths) {
+    Preconditions.checkNotNull(startPaths, "startPaths may not be null");
+    this.startPaths = ImmutableList.copyOf(startPaths);
+    this.root = build();
+  }
+
+  /**
+   * Records that a start path is a DFS namespace, before its links are
+   * known or if they cannot be enumerated, so that no path beneath it
+   * has the namespace as its ACL root.
+   */
+  synchronized void setDfsNamespace(Path namespace) {
+    if (!dfsLinks.containsKey(namespace)) {
+      dfsLinks.put(namespace, ImmutableList.<Path>of());
+      root = build();
+    }
+  }
+
+  /**
+   * Records the links of a DFS namespace, replacing any links previously
+   * recorded for it.
+   */
+  synchronized void setDfsLinks(Path namespace, Collection<Path> links) {
+    List<Path> newLinks = ImmutableList.copyOf(links);
+    if (!newLinks.equals(dfsLinks.put(namespace, newLinks))) {
+      root = build();
+    }
+  }
+
+  /**
+   * Returns the deepest start path at or above the path, or null if the
+   * path is not under a start path.
+   */
+  Path getStartPath(Path path) {
+    Path startPath = null;
+    Node node = root;
+    for (String key : getKeys(path)) {
+      node = node.children.get(key);
+      if (node == null) {
+        break;
+      }
+      if (node.kind == Kind.START_PATH || node.kind == Kind.DFS_NAMESPACE) {
+        startPath = node.path;
+      }
+    }
+    return startPath;
+  }
+
+  /**
+   * Returns the nearest start path or DFS link at or above the path, or
+   * null if the path is not under a start path, or if it is beneath a DFS
+   * namespace and not beneath any of its known links.
+   */
+  Path getAclRoot(Path path) {
+    Node aclRoot = null;
+    Node node = root;
+    for (String key : getKeys(path)) {
+      node = node.children.get(key);
+      if (node == null) {
+        break;
+      }
+      if (node.kind != null) {
+        aclRoot = node;
+      }
+    }
+    return (aclRoot == null || aclRoot.kind == Kind.DFS_NAMESPACE)
+        ? null : aclRoot.path;
+  }
+
+  private Node build() {
+    Node newRoot = new Node();
+    for (Path startPath : startPaths) {
+      add(newRoot, startPath, dfsLinks.containsKey(startPath)
+          ? Kind.DFS_NAMESPACE : Kind.START_PATH);
+    }
+    for (List<Path> links : dfsLinks.values()) {
+      for (Path link : links) {
+        add(newRoot, link, Kind.DFS_LINK);
+      }
+    }
+    return newRoot;
+  }
+
+  private static void add(Node node, Path path, Kind kind) {
+    for (String key : getKeys(path)) {
+      Node child = node.children.get(key);
+      if (child == null) {
+        child = new Node();
+        node.children.put(key, child);
+      }
+      node = child;
+    }
+    // A start path that is also a DFS link stays a start path.
+    if (node.kind == null || node.kind == Kind.DFS_LINK) {
+      node.kind = kind;
+      node.path = path;
+    }
+  }
+
+  /** Returns the root and names of the path, in the case they compare in. */
+  private static String[] getKeys(Path path) {
+    boolean ignoreCase = "\\".equals(path.getFileSystem().getSeparator());
+    Path pathRoot = path.getRoot();
+    int offset = (pathRoot == null) ? 0 : 1;
+    String[] keys = new String[offset + path.getNameCount()];
+    if (pathRoot != null) {
+      keys[0] = pathRoot.toString();
+    }
+    for (int i = 0; i < path.getNameCount(); i++) {
+      keys[offset + i] = path.getName(i).toString();
+    }
+    if (ignoreCase) {
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = keys[i].toLowerCase(Locale.ENGLISH);
+      }
+    }
+    return keys;
+  }
+
+  private static enum Kind { START_PATH, DFS_NAMESPACE, DFS_LINK }
+
+  private static class Node {
+    private final Map<String, Node> children = new HashMap<String, Node>();
+    /** The kind of path ending at this node, or null if none. */
+    private Kind kind;
+    private Path path;
+  }
+}
@@ -0,0 +1,241 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.adaptor.AuthnIdentity;
+import com.google.enterprise.adaptor.AuthzStatus;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the late-binding authorization decisions made for each user and
+ * document, so that repeated searches by the same users do not read the
+ * same ACLs from the file server again.
+ * <p>
+ * A decision is keyed by the user and all of their groups, so a change in
+ * group membership is never answered with an old decision. Decisions
+ * expire after a while, and are also invalidated when a document, or any
+ * of its ancestors, is reported as changed, since a change to the ACL of a
+ * folder may change the access to everything beneath it.
+ * <p>
+ * Invalidating a folder does not search the cache for the decisions
+ * beneath it. Instead, each invalidation is recorded with a version
+ * number, and a cached decision is used only if it was made after the
+ * last invalidation of its document and of each of its ancestors.
+ */
+class AuthzCache {
+  /** The maximum number of decisions cached. */
+  private static final int CACHE_SIZE = 100000;
+
+  /**
+   * The maximum number of invalidated paths remembered. Beyond that, all
+   * decisions are invalidated.
+   */
+  private static final int INVALIDATIONS_SIZE = 10000;
+
+  private final Cache<Key, Decision> decisions;
+
+  /**
+   * The version of the last invalidation of each path. Kept for twice as
+   * long as decisions, so that a decision begun before an invalidation
+   * and cached after it never outlives the record of the invalidation.
+   */
+  private final Cache<Path, Long> invalidations;
+
+  private final AtomicLong version = new AtomicLong();
+
+  /** The version of the last invalidation of all decisions. */
+  private volatile long clearedVersion;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache.
+   *
+   * @param ttlMillis how long decisions are kept, in milliseconds, or zero
+   *     to cache nothing
+   */
+  AuthzCache(long ttlMillis) {
+    Preconditions.checkArgument(ttlMillis >= 0,
+        "ttlMillis may not be negative");
+    decisions = CacheBuilder.newBuilder()
+        .maximumSize(CACHE_SIZE)
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .build();
+    invalidations = CacheBuilder.newBuilder()
+        .expireAfterWrite(2 * ttlMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Returns the current version, to be passed to {@link #put} along with
+   * a decision made from ACLs read after this call.
+   */
+  long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Returns the cached decision for the subject and document, or null if
+   * there is none that is still valid.
+   */
+  AuthzStatus get(Subject subject, DocId id, Path doc) {
+    Decision decision = decisions.getIfPresent(new Key(subject, id));
+    if (decision == null || !isValid(doc, decision.version)) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return decision.status;
+  }
+
+  /**
+   * Caches a decision for the subject and document, unless the document
+   * has been invalidated since {@code version}.
+   *
+   * @param version the version returned by {@link #getVersion} before the
+   *     ACLs for the decision were read
+   */
+  void put(Subject subject, DocId id, Path doc, AuthzStatus status,
+      long version) {
+    if (isValid(doc, version)) {
+      decisions.put(new Key(subject, id), new Decision(status, version));
+    }
+  }
+
+  /**
+   * Invalidates the decisions made for the path and for everything
+   * beneath it.
+   */
+  void invalidate(Path path) {
+    if (invalidations.size() >= INVALIDATIONS_SIZE) {
+      invalidateAll();
+      return;
+    }
+    invalidations.put(path, version.incrementAndGet());
+  }
+
+  /** Invalidates all decisions. */
+  void invalidateAll() {
+    clearedVersion = version.incrementAndGet();
+    decisions.invalidateAll();
+    invalidations.invalidateAll();
+  }
+
+  /**
+   * Returns true if neither all decisions, nor the path, nor any of its
+   * ancestors were invalidated after {@code decisionVersion}.
+   */
+  private boolean isValid(Path doc, long decisionVersion) {
+    if (decisionVersion < clearedVersion) {
+      return false;
+    }
+    for (Path path = doc; path != null; path = path.getParent()) {
+      Long invalidated = invalidations.getIfPresent(path);
+      if (invalidated != null && decisionVersion < invalidated) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @VisibleForTesting
+  long getHits() {
+    return hits.get();
+  }
+
+  @VisibleForTesting
+  long getMisses() {
+    return misses.get();
+  }
+
+  /** The user and groups that a decision was made for. */
+  static class Subject {
+    private final UserPrincipal user;
+    private final Set<GroupPrincipal> groups;
+    private final int hashCode;
+
+    Subject(AuthnIdentity identity) {
+      Preconditions.checkNotNull(identity.getUser(), "user may not be null");
+      this.user = identity.getUser();
+      this.groups = (identity.getGroups() == null)
+          ? ImmutableSet.<GroupPrincipal>of()
+          : ImmutableSet.copyOf(identity.getGroups());
+      this.hashCode = Objects.hashCode(user, groups);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Subject)) {
+        return false;
+      }
+      Subject other = (Subject) o;
+      return hashCode == other.hashCode && user.equals(other.user)
+          && groups.equals(other.groups);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  private static class Key {
+    private final Subject subject;
+    private final DocId id;
+
+    Key(Subject subject, DocId id) {
+      this.subject = subject;
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return subject.equals(other.subject) && id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * subject.hashCode() + id.hashCode();
+    }
+  }
+
+  private static class Decision {
+    private final AuthzStatus status;
+    private final long version;
+
+    Decision(AuthzStatus status, long version) {
+      this.status = status;
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves canonical path names, avoiding a full canonicalization of every
+ * path. The canonical path of each directory is computed once and cached.
+ * The canonical path of a file within that directory is then derived by
+ * appending the file's name.
+ * <p>
+ * Deriving a canonical path is only correct if the file name is already in
+ * canonical form, and the file is not a symbolic link. Callers are
+ * responsible for using {@link #canonicalize} when that is not known to be
+ * the case.
+ */
+class CanonicalPathResolver {
+  /** The default maximum number of directories to cache. */
+  static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+  /** Canonical paths of directories. */
+  private final Cache<Path, String> directories;
+
+  CanonicalPathResolver() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  CanonicalPathResolver(int maximumSize) {
+    Preconditions.checkArgument(maximumSize > 0,
+        "maximumSize must be positive");
+    directories = CacheBuilder.newBuilder()
+        .initialCapacity(Math.min(maximumSize, 1000))
+        .maximumSize(maximumSize)
+        .expireAfterWrite(1, TimeUnit.HOURS) // Notice renamed directories.
+        .build();
+  }
+
+  /**
+   * Returns the canonical path of the supplied file, derived from the
+   * canonical path of its parent directory if possible.
+   *
+   * @param doc a file or directory whose name is in canonical form
+   * @return the canonical path name
+   * @throws IOException
+   */
+  String getCanonicalPath(Path doc) throws IOException {
+    Path parent = doc.getParent();
+    Path name = doc.getFileName();
+    if (parent == null || name == null || isRelativeName(name.toString())) {
+      return canonicalize(doc);
+    }
+    String dir = getCanonicalDirectory(parent);
+    String separator = doc.getFileSystem().getSeparator();
+    if (dir.endsWith(separator)) {
+      return dir + name;
+    } else {
+      return dir + separator + name;
+    }
+  }
+
+  /**
+   * Returns the canonical path of the supplied directory, computing and
+   * caching it if it is not already cached.
+   *
+   * @param dir a directory
+   * @return the canonical path name of the directory
+   * @throws IOException
+   */
+  String getCanonicalDirectory(final Path dir) throws IOException {
+    try {
+      return directories.get(dir, new Callable<String>() {
+          @Override
+          public String call() throws IOException {
+            return canonicalize(dir);
+          }
+        });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) (e.getCause());
+      } else {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /**
+   * Discards the cached canonical paths of the supplied directory and of
+   * the directories beneath it, whose canonical paths change with it when
+   * it is renamed.
+   */
+  void invalidate(Path dir) {
+    for (Iterator<Path> it = directories.asMap().keySet().iterator();
+         it.hasNext(); ) {
+      if (it.next().startsWith(dir)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Discards all cached canonical paths. */
+  void invalidateAll() {
+    directories.invalidateAll();
+  }
+
+  /** Returns the canonical path name, without consulting the cache. */
+  @VisibleForTesting
+  String canonicalize(Path doc) throws IOException {
+    return doc.toFile().getCanonicalPath();
+  }
+
+  private static boolean isRelativeName(String name) {
+    return name.equals(".") || name.equals("..");
+  }
+}
@@ -0,0 +1,286 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.adaptor.Acl;
+import com.google.enterprise.adaptor.AsyncDocIdPusher;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher;
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces the changes reported by the file system monitors before they
+ * are pushed. A single change to a file is often reported several times;
+ * saving a document, for instance, is reported as an addition followed by
+ * several modifications, spread over several notifications.
+ * <p>
+ * The latest change to each document replaces any earlier change that has
+ * not been pushed yet, so a deletion wins over the modifications before
+ * it, and a document that is deleted and then created again is pushed as
+ * modified. A change is pushed once its document has not changed again for
+ * the debounce window, together with the other such changes in batches of
+ * feed size. A document that keeps changing, such as a log file or a
+ * mailbox, is pushed anyway once it has waited for several windows.
+ * <p>
+ * Changes that could not be pushed are kept, and pushed again with the
+ * changes of the next window.
+ */
+class ChangeCoalescer implements AsyncDocIdPusher {
+  private static final Logger log
+      = Logger.getLogger(ChangeCoalescer.class.getName());
+
+  /**
+   * The maximum number of changes waiting to be pushed. Beyond that, new
+   * changes are refused, so the monitors pause.
+   */
+  private static final int MAX_PENDING = 100000;
+
+  /**
+   * The number of debounce windows after which a document that keeps
+   * changing is pushed anyway.
+   */
+  private static final int MAX_DELAY_WINDOWS = 5;
+
+  private final DocIdPusher pusher;
+  private final int batchSize;
+  private final long debounceNanos;
+  private final long maxDelayNanos;
+  private final int maxPending;
+  private final Ticker ticker;
+
+  /**
+   * The latest change to each document not pushed yet, in the order of
+   * their latest change, followed by any that could not be pushed.
+   */
+  private final LinkedHashMap<DocId, Change> pending =
+      new LinkedHashMap<DocId, Change>();
+  private long received;
+  private long pushed;
+
+  private ScheduledExecutorService flusher;
+
+  /**
+   * Creates a coalescer.
+   *
+   * @param pusher the pusher that receives the coalesced changes
+   * @param batchSize the maximum number of changes pushed at once
+   * @param debounceMillis how long a document must go unchanged before
+   *     its change is pushed, in milliseconds
+   */
+  ChangeCoalescer(DocIdPusher pusher, int batchSize, long debounceMillis) {
+    this(pusher, batchSize, debounceMillis, MAX_PENDING,
+        Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  ChangeCoalescer(DocIdPusher pusher, int batchSize, long debounceMillis,
+      int maxPending, Ticker ticker) {
+    Preconditions.checkNotNull(pusher, "pusher may not be null");
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    Preconditions.checkArgument(debounceMillis > 0,
+        "debounceMillis must be positive");
+    Preconditions.checkArgument(maxPending > 0,
+        "maxPending must be positive");
+    Preconditions.checkNotNull(ticker, "ticker may not be null");
+    this.pusher = pusher;
+    this.batchSize = batchSize;
+    this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+    this.maxDelayNanos = MAX_DELAY_WINDOWS * debounceNanos;
+    this.maxPending = maxPending;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Starts pushing the changes that have been quiet for the debounce
+   * window, checking for them once per window.
+   */
+  synchronized void start() {
+    Preconditions.checkState(flusher == null, "already started");
+    flusher = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("Change coalescer")
+        .setDaemon(true).build());
+    flusher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            pushQuietChanges();
+          } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to push changed documents.", e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Unable to push changed documents.", e);
+          }
+        }
+      }, debounceNanos, debounceNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Stops pushing changes. Changes not pushed yet are dropped; they will be
+   * noticed by the next crawl.
+   */
+  synchronized void shutdown() {
+    if (flusher != null) {
+      flusher.shutdownNow();
+    }
+    if (!pending.isEmpty()) {
+      log.log(Level.INFO, "Dropping {0} changed documents not pushed yet.",
+          pending.size());
+      pending.clear();
+    }
+  }
+
+  @Override
+  public boolean pushDocId(DocId docId) {
+    return pushRecord(new Record.Builder(docId).build());
+  }
+
+  @Override
+  public synchronized boolean pushRecord(Record record) {
+    DocId docId = record.getDocId();
+    Change previous = pending.remove(docId);
+    if (previous == null && pending.size() >= maxPending) {
+      log.log(Level.WARNING, "Too many changed documents waiting to be "
+          + "pushed. Refusing {0}.", docId);
+      return false;
+    }
+    if (previous != null) {
+      log.log(Level.FINEST, "Replacing pending change {0} with {1}",
+          new Object[] { previous.record, record });
+    }
+    long now = ticker.read();
+    pending.put(docId, new Change(record,
+        (previous == null) ? now : previous.firstSeen, now));
+    received++;
+    return true;
+  }
+
+  /** Pushes the named resource immediately. */
+  @Override
+  public boolean pushNamedResource(DocId docId, Acl acl) {
+    try {
+      return pusher.pushNamedResources(
+          Collections.singletonMap(docId, acl)) == null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Pushes the changes to documents that have not changed again for the
+   * debounce window, or that have waited too long already. If they could
+   * not be pushed, they are kept to be pushed again.
+   *
+   * @throws IOException if the changes could not be pushed
+   * @throws InterruptedException if interrupted while pushing
+   */
+  @VisibleForTesting
+  void pushQuietChanges() throws IOException, InterruptedException {
+    List<Change> due = new ArrayList<Change>();
+    long receivedSoFar;
+    synchronized (this) {
+      long now = ticker.read();
+      Iterator<Change> it = pending.values().iterator();
+      while (it.hasNext()) {
+        Change change = it.next();
+        if (now - change.time >= debounceNanos
+            || now - change.firstSeen >= maxDelayNanos) {
+          due.add(change);
+          it.remove();
+        }
+      }
+      receivedSoFar = received;
+    }
+    if (due.isEmpty()) {
+      return;
+    }
+    RecordBatcher batcher = new RecordBatcher(pusher, batchSize);
+    try {
+      for (Change change : due) {
+        log.log(Level.FINE, "Pushing docid {0}", change.record.getDocId());
+        batcher.add(change.record);
+      }
+      batcher.flush();
+    } catch (IOException e) {
+      // Some may have been pushed, but pushing those again does no harm.
+      restore(due);
+      throw e;
+    }
+    long pushedSoFar;
+    synchronized (this) {
+      pushed += due.size();
+      pushedSoFar = pushed;
+    }
+    log.log(Level.FINE, "Pushed {0} changed documents. {1} of {2} changes "
+        + "pushed so far.", new Object[] { due.size(), pushedSoFar,
+        receivedSoFar });
+  }
+
+  /**
+   * Returns changes that could not be pushed to those pending, unless
+   * their documents changed again since.
+   */
+  private synchronized void restore(List<Change> changes) {
+    int restored = 0;
+    for (Change change : changes) {
+      DocId docId = change.record.getDocId();
+      if (!pending.containsKey(docId)) {
+        pending.put(docId, change);
+        restored++;
+      }
+    }
+    log.log(Level.FINE, "Kept {0} changed documents that could not be "
+        + "pushed.", restored);
+  }
+
+  @VisibleForTesting
+  synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  private static class Change {
+    private final Record record;
+    /**
+     * The time the document's first change not pushed yet was reported, as
+     * read from the ticker.
+     */
+    private final long firstSeen;
+    /** The time of the change, as read from the ticker. */
+    private final long time;
+
+    Change(Record record, long firstSeen, long time) {
+      this.record = record;
+      this.firstSeen = firstSeen;
+      this.time = time;
+    }
+  }
+}
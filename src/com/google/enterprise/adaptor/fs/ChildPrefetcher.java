@@ -0,0 +1,242 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the attributes of the children of a folder in the background while
+ * the folder's listing is sent, anticipating that the GSA will soon fetch
+ * each of the children it links to.
+ * <p>
+ * The attributes are kept in a cache whose entries expire after a short
+ * time, and the attributes of a path are read from the {@link FileDelegate}
+ * if they were not prefetched. A read of a path whose prefetch is still
+ * queued runs the prefetch in the calling thread, and a read of a path
+ * whose prefetch is running waits for it, so the file server is never
+ * asked the same thing twice.
+ * <p>
+ * Prefetching is speculative, so prefetches that fail are forgotten, and
+ * prefetches are dropped when the queue of pending prefetches is full.
+ * A prefetcher with no threads prefetches nothing, and reads everything
+ * from the delegate.
+ */
+class ChildPrefetcher {
+  private static final Logger log
+      = Logger.getLogger(ChildPrefetcher.class.getName());
+
+  /** The maximum number of children whose attributes are cached. */
+  private static final int CACHE_SIZE = 10000;
+
+  /** The maximum number of prefetches waiting for a thread. */
+  private static final int QUEUE_SIZE = 10000;
+
+  private final FileDelegate delegate;
+  private final ThreadPoolExecutor executor;
+  private final Cache<Path, FutureTask<Attributes>> cache;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a prefetcher.
+   *
+   * @param delegate the delegate used to read attributes
+   * @param threads the number of threads reading attributes concurrently,
+   *     or zero to disable prefetching
+   * @param ttlMillis how long prefetched attributes are kept, in
+   *     milliseconds
+   */
+  ChildPrefetcher(FileDelegate delegate, int threads, long ttlMillis) {
+    Preconditions.checkNotNull(delegate, "delegate may not be null");
+    Preconditions.checkArgument(threads >= 0, "threads may not be negative");
+    Preconditions.checkArgument(ttlMillis > 0, "ttlMillis must be positive");
+    this.delegate = delegate;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(CACHE_SIZE)
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .build();
+    if (threads == 0) {
+      this.executor = null;
+    } else {
+      this.executor = new ThreadPoolExecutor(threads, threads,
+          60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+          new PrefetchThreadFactory(), new ThreadPoolExecutor.DiscardPolicy());
+      this.executor.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  /**
+   * Starts reading the attributes of a child found in a folder listing,
+   * unless they are already cached.
+   */
+  void prefetch(final DirectoryEntry entry) {
+    if (executor == null) {
+      return;
+    }
+    final Path path = entry.getPath();
+    FutureTask<Attributes> task = new FutureTask<Attributes>(
+        new Callable<Attributes>() {
+          @Override
+          public Attributes call() throws IOException {
+            return new Attributes(entry.getAttributes(), entry.isHidden(),
+                delegate.getAclViews(path), delegate.isDfsLink(path));
+          }
+        });
+    if (cache.asMap().putIfAbsent(path, task) == null) {
+      // If the queue is full, the task is discarded. It is then run by
+      // the first read of the path, if the path is read before it expires.
+      executor.execute(task);
+    }
+  }
+
+  BasicFileAttributes readBasicAttributes(Path doc) throws IOException {
+    Attributes attributes = getPrefetched(doc);
+    return (attributes == null)
+        ? delegate.readBasicAttributes(doc) : attributes.basicAttributes;
+  }
+
+  boolean isRegularFile(Path doc) throws IOException {
+    Attributes attributes = getPrefetched(doc);
+    return (attributes == null)
+        ? delegate.isRegularFile(doc)
+        : attributes.basicAttributes.isRegularFile();
+  }
+
+  boolean isDirectory(Path doc) throws IOException {
+    Attributes attributes = getPrefetched(doc);
+    return (attributes == null)
+        ? delegate.isDirectory(doc)
+        : attributes.basicAttributes.isDirectory();
+  }
+
+  boolean isHidden(Path doc) throws IOException {
+    Attributes attributes = getPrefetched(doc);
+    return (attributes == null) ? delegate.isHidden(doc) : attributes.hidden;
+  }
+
+  AclFileAttributeViews getAclViews(Path doc) throws IOException {
+    Attributes attributes = getPrefetched(doc);
+    return (attributes == null)
+        ? delegate.getAclViews(doc) : attributes.aclViews;
+  }
+
+  boolean isDfsLink(Path doc) throws IOException {
+    Attributes attributes = getPrefetched(doc);
+    return (attributes == null) ? delegate.isDfsLink(doc) : attributes.dfsLink;
+  }
+
+  /**
+   * Forgets the prefetched attributes of a path, so that later reads go to
+   * the file server. Called once a document has been served.
+   */
+  void invalidate(Path doc) {
+    cache.invalidate(doc);
+  }
+
+  /** Stops the prefetch threads, abandoning queued prefetches. */
+  void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    cache.invalidateAll();
+  }
+
+  /** Returns the prefetched attributes of the path, or null if none. */
+  private Attributes getPrefetched(Path doc) {
+    if (executor == null) {
+      return null;
+    }
+    FutureTask<Attributes> task = cache.getIfPresent(doc);
+    if (task == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    // Run the prefetch here if no thread has started it yet. This does
+    // nothing if the prefetch has already run, or is running.
+    task.run();
+    try {
+      Attributes attributes = task.get();
+      hits.incrementAndGet();
+      return attributes;
+    } catch (ExecutionException e) {
+      log.log(Level.FINEST, "Unable to prefetch attributes of " + doc,
+          e.getCause());
+      cache.asMap().remove(doc, task);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  @VisibleForTesting
+  long getHits() {
+    return hits.get();
+  }
+
+  @VisibleForTesting
+  long getMisses() {
+    return misses.get();
+  }
+
+  /** The attributes of a path read by a prefetch. */
+  private static class Attributes {
+    private final BasicFileAttributes basicAttributes;
+    private final boolean hidden;
+    private final AclFileAttributeViews aclViews;
+    private final boolean dfsLink;
+
+    Attributes(BasicFileAttributes basicAttributes, boolean hidden,
+        AclFileAttributeViews aclViews, boolean dfsLink) {
+      this.basicAttributes = basicAttributes;
+      this.hidden = hidden;
+      this.aclViews = aclViews;
+      this.dfsLink = dfsLink;
+    }
+  }
+
+  /** Creates daemon threads, so prefetches never keep the JVM running. */
+  private static class PrefetchThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread =
+          new Thread(runnable, "Prefetch-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
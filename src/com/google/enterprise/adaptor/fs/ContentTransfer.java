@@ -0,0 +1,187 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Copies the contents of files to responses without allocating a buffer
+ * for each file.
+ * <p>
+ * When both the file and the response are channels, the contents are
+ * transferred with {@link FileChannel#transferTo}, which lets the operating
+ * system move the bytes without copying them through the heap. Otherwise
+ * the contents are copied through a pooled buffer whose size is chosen
+ * from the size of the file, so small files use small buffers and large
+ * files are copied with few reads.
+ * <p>
+ * A {@link Destination} may look at the first buffer of content before the
+ * output is opened, for example to choose the content type of a response.
+ */
+class ContentTransfer {
+  /** The sizes of the pooled buffers, in increasing order. */
+  @VisibleForTesting
+  static final int[] BUFFER_SIZES = { 8 * 1024, 64 * 1024, 512 * 1024 };
+
+  /** The maximum number of idle buffers kept of each size. */
+  private static final int POOL_SIZE = 16;
+
+  private final List<BlockingQueue<byte[]>> pools;
+
+  ContentTransfer() {
+    ImmutableList.Builder<BlockingQueue<byte[]>> builder =
+        ImmutableList.builder();
+    for (int i = 0; i < BUFFER_SIZES.length; i++) {
+      builder.add(new ArrayBlockingQueue<byte[]>(POOL_SIZE));
+    }
+    pools = builder.build();
+  }
+
+  /**
+   * Supplies the output for a transfer once the first bytes of the content
+   * have been read, so that the headers of a response may be chosen based
+   * upon the content.
+   */
+  interface Destination {
+    /**
+     * Returns the stream the content is written to.
+     *
+     * @param head a buffer holding the start of the content
+     * @param length the number of valid bytes in {@code head}, which is zero
+     *     for empty content
+     */
+    OutputStream open(byte[] head, int length) throws IOException;
+  }
+
+  /**
+   * Copies the remaining contents of a file to the output, and flushes it.
+   *
+   * @param in the contents of the file
+   * @param size the size of the file, used to choose the buffer size
+   * @param out the destination of the contents
+   * @return the number of bytes copied
+   */
+  long transfer(ReadableByteChannel in, long size, final OutputStream out)
+      throws IOException {
+    if (in instanceof FileChannel && out instanceof WritableByteChannel) {
+      long total = transferTo((FileChannel) in, (WritableByteChannel) out);
+      out.flush();
+      return total;
+    }
+    return transfer(in, size, new Destination() {
+        @Override
+        public OutputStream open(byte[] head, int length) {
+          return out;
+        }
+      });
+  }
+
+  /**
+   * Copies the remaining contents of a file to the output opened by the
+   * destination after the first buffer of content is read, and flushes it.
+   *
+   * @param in the contents of the file
+   * @param size the size of the file, used to choose the buffer size
+   * @param destination supplies the destination of the contents
+   * @return the number of bytes copied
+   */
+  long transfer(ReadableByteChannel in, long size, Destination destination)
+      throws IOException {
+    int sizeClass = getSizeClass(size);
+    byte[] buffer = borrow(sizeClass);
+    try {
+      ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+      int read = in.read(byteBuffer);
+      OutputStream out = destination.open(buffer, Math.max(read, 0));
+      long total = 0;
+      if (read != -1) {
+        if (in instanceof FileChannel && out instanceof WritableByteChannel) {
+          // Write the first buffer, then let the channels move the rest.
+          WritableByteChannel channel = (WritableByteChannel) out;
+          byteBuffer.flip();
+          while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+          }
+          total = read + transferTo((FileChannel) in, channel);
+        } else {
+          out.write(buffer, 0, read);
+          byteBuffer.clear();
+          total = read + copy(in, out, buffer, byteBuffer);
+        }
+      }
+      out.flush();
+      return total;
+    } finally {
+      pools.get(sizeClass).offer(buffer);
+    }
+  }
+
+  private static long transferTo(FileChannel in, WritableByteChannel out)
+      throws IOException {
+    long position = in.position();
+    long end = in.size();
+    while (position < end) {
+      long transferred = in.transferTo(position, end - position, out);
+      if (transferred <= 0) {
+        break;
+      }
+      position += transferred;
+    }
+    long total = position - in.position();
+    in.position(position);
+    return total;
+  }
+
+  private static long copy(ReadableByteChannel in, OutputStream out,
+      byte[] buffer, ByteBuffer byteBuffer) throws IOException {
+    long total = 0;
+    int read;
+    while ((read = in.read(byteBuffer)) != -1) {
+      out.write(buffer, 0, read);
+      total += read;
+      byteBuffer.clear();
+    }
+    return total;
+  }
+
+  /** Returns the index of the smallest buffer size that fits the file. */
+  @VisibleForTesting
+  static int getSizeClass(long size) {
+    for (int i = 0; i < BUFFER_SIZES.length - 1; i++) {
+      if (size <= BUFFER_SIZES[i]) {
+        return i;
+      }
+    }
+    return BUFFER_SIZES.length - 1;
+  }
+
+  /** Takes an idle buffer of the size class, allocating one if none. */
+  @VisibleForTesting
+  byte[] borrow(int sizeClass) {
+    byte[] buffer = pools.get(sizeClass).poll();
+    return (buffer == null) ? new byte[BUFFER_SIZES[sizeClass]] : buffer;
+  }
+}
@@ -0,0 +1,311 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Determines the content type of files without opening them a second time.
+ * <p>
+ * The content type is looked up by file extension: first in a table of
+ * well-known types, then in a bounded cache of the types the
+ * {@link FileDelegate} reported for other extensions. The delegate is
+ * consulted at most once per extension while it stays in the cache. Files
+ * whose extension gives no answer have their type sniffed from the first
+ * bytes of their content, which are read anyway to send the content.
+ */
+class ContentTypeResolver {
+  /** The content types of well-known file extensions. */
+  @VisibleForTesting
+  static final ImmutableMap<String, String> EXTENSIONS =
+      ImmutableMap.<String, String>builder()
+      .put("bmp", "image/bmp")
+      .put("csv", "text/csv")
+      .put("doc", "application/msword")
+      .put("docm", "application/vnd.ms-word.document.macroEnabled.12")
+      .put("docx", "application/vnd.openxmlformats-officedocument"
+          + ".wordprocessingml.document")
+      .put("dot", "application/msword")
+      .put("dotx", "application/vnd.openxmlformats-officedocument"
+          + ".wordprocessingml.template")
+      .put("eml", "message/rfc822")
+      .put("gif", "image/gif")
+      .put("gz", "application/x-gzip")
+      .put("htm", "text/html")
+      .put("html", "text/html")
+      .put("jpeg", "image/jpeg")
+      .put("jpg", "image/jpeg")
+      .put("js", "application/javascript")
+      .put("json", "application/json")
+      .put("log", "text/plain")
+      .put("mp3", "audio/mpeg")
+      .put("mp4", "video/mp4")
+      .put("msg", "application/vnd.ms-outlook")
+      .put("odp", "application/vnd.oasis.opendocument.presentation")
+      .put("ods", "application/vnd.oasis.opendocument.spreadsheet")
+      .put("odt", "application/vnd.oasis.opendocument.text")
+      .put("pdf", "application/pdf")
+      .put("png", "image/png")
+      .put("pot", "application/vnd.ms-powerpoint")
+      .put("pps", "application/vnd.ms-powerpoint")
+      .put("ppt", "application/vnd.ms-powerpoint")
+      .put("pptm",
+          "application/vnd.ms-powerpoint.presentation.macroEnabled.12")
+      .put("pptx", "application/vnd.openxmlformats-officedocument"
+          + ".presentationml.presentation")
+      .put("ps", "application/postscript")
+      .put("rtf", "application/rtf")
+      .put("svg", "image/svg+xml")
+      .put("tar", "application/x-tar")
+      .put("tif", "image/tiff")
+      .put("tiff", "image/tiff")
+      .put("tsv", "text/tab-separated-values")
+      .put("txt", "text/plain")
+      .put("vsd", "application/vnd.visio")
+      .put("wav", "audio/x-wav")
+      .put("xls", "application/vnd.ms-excel")
+      .put("xlsm", "application/vnd.ms-excel.sheet.macroEnabled.12")
+      .put("xlsx", "application/vnd.openxmlformats-officedocument"
+          + ".spreadsheetml.sheet")
+      .put("xlt", "application/vnd.ms-excel")
+      .put("xml", "text/xml")
+      .put("zip", "application/zip")
+      .build();
+
+  /** The maximum number of extensions whose probed type is cached. */
+  private static final int CACHE_SIZE = 1000;
+
+  /** Cached for extensions the delegate knows nothing about. */
+  private static final String UNKNOWN = "";
+
+  private final FileDelegate delegate;
+  private final Cache<String, String> probedTypes =
+      CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+  private final AtomicLong tableHits = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong probes = new AtomicLong();
+  private final AtomicLong sniffs = new AtomicLong();
+  private final AtomicLong unresolved = new AtomicLong();
+
+  ContentTypeResolver(FileDelegate delegate) {
+    Preconditions.checkNotNull(delegate, "delegate may not be null");
+    this.delegate = delegate;
+  }
+
+  /**
+   * Returns the content type of the file based upon its name, or
+   * {@code null} if the name does not determine the type, in which case
+   * the caller should {@link #sniffContentType sniff} the content.
+   */
+  String getContentType(final Path doc) throws IOException {
+    String extension = getExtension(doc);
+    if (extension == null) {
+      return null;
+    }
+    String type = EXTENSIONS.get(extension);
+    if (type != null) {
+      tableHits.incrementAndGet();
+      return type;
+    }
+    final boolean[] probed = new boolean[1];
+    try {
+      type = probedTypes.get(extension, new Callable<String>() {
+          @Override
+          public String call() throws IOException {
+            probed[0] = true;
+            String probedType = delegate.probeContentType(doc);
+            return (probedType == null) ? UNKNOWN : probedType;
+          }
+        });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    if (probed[0]) {
+      probes.incrementAndGet();
+    } else {
+      cacheHits.incrementAndGet();
+    }
+    return UNKNOWN.equals(type) ? null : type;
+  }
+
+  /**
+   * Returns the content type recognized from the first bytes of a file's
+   * content, or {@code null} if the content is not recognized.
+   *
+   * @param head a buffer holding the start of the content
+   * @param length the number of valid bytes in {@code head}
+   */
+  String sniffContentType(byte[] head, int length) {
+    String type = sniff(head, length);
+    if (type == null) {
+      unresolved.incrementAndGet();
+    } else {
+      sniffs.incrementAndGet();
+    }
+    return type;
+  }
+
+  @VisibleForTesting
+  static String sniff(byte[] head, int length) {
+    if (startsWith(head, length, "%PDF-")) {
+      return "application/pdf";
+    } else if (startsWith(head, length, 0x50, 0x4b, 0x03, 0x04)) {
+      return "application/zip";
+    } else if (startsWith(head, length, 0xd0, 0xcf, 0x11, 0xe0,
+                          0xa1, 0xb1, 0x1a, 0xe1)) {
+      return "application/vnd.ms-office";
+    } else if (startsWith(head, length, 0x89, 'P', 'N', 'G')) {
+      return "image/png";
+    } else if (startsWith(head, length, 0xff, 0xd8, 0xff)) {
+      return "image/jpeg";
+    } else if (startsWith(head, length, "GIF87a")
+               || startsWith(head, length, "GIF89a")) {
+      return "image/gif";
+    } else if (startsWith(head, length, "II*\u0000")
+               || startsWith(head, length, "MM\u0000*")) {
+      return "image/tiff";
+    } else if (startsWith(head, length, 0x1f, 0x8b)) {
+      return "application/x-gzip";
+    } else if (startsWith(head, length, "{\\rtf")) {
+      return "application/rtf";
+    } else if (startsWith(head, length, "%!PS")) {
+      return "application/postscript";
+    }
+    String text = getLeadingText(head, length);
+    if (text == null) {
+      return null;
+    } else if (text.startsWith("<?xml")) {
+      return "text/xml";
+    } else if (text.startsWith("<!doctype html") || text.startsWith("<html")) {
+      return "text/html";
+    } else {
+      return "text/plain";
+    }
+  }
+
+  /**
+   * Returns the first bytes of the content, lowercased and with leading
+   * whitespace removed, or {@code null} if the content does not look
+   * like text.
+   */
+  private static String getLeadingText(byte[] head, int length) {
+    if (length == 0) {
+      return null;
+    }
+    int start = 0;
+    // Skip a UTF-8 byte order mark.
+    if (startsWith(head, length, 0xef, 0xbb, 0xbf)) {
+      start = 3;
+    }
+    StringBuilder builder = new StringBuilder(16);
+    for (int i = start; i < length; i++) {
+      int b = head[i] & 0xff;
+      if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f') {
+        return null;
+      }
+      if (builder.length() < 16
+          && (builder.length() > 0 || !Character.isWhitespace(b))) {
+        builder.append(Character.toLowerCase((char) b));
+      }
+    }
+    return builder.toString();
+  }
+
+  private static boolean startsWith(byte[] head, int length, String prefix) {
+    if (length < prefix.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (head[i] != (byte) prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean startsWith(byte[] head, int length, int... prefix) {
+    if (length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (head[i] != (byte) prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the lowercased extension of the file name, or null if none. */
+  @VisibleForTesting
+  static String getExtension(Path doc) {
+    Path name = doc.getFileName();
+    if (name == null) {
+      return null;
+    }
+    String fileName = name.toString();
+    int dot = fileName.lastIndexOf('.');
+    if (dot <= 0 || dot == fileName.length() - 1) {
+      return null;
+    }
+    return fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+  }
+
+  /** Returns a summary of how content types have been resolved. */
+  String getStatistics() {
+    return String.format("Extension table hits: %d, cache hits: %d, "
+        + "probes: %d, sniffed: %d, unresolved: %d", tableHits.get(),
+        cacheHits.get(), probes.get(), sniffs.get(), unresolved.get());
+  }
+
+  @VisibleForTesting
+  long getTableHits() {
+    return tableHits.get();
+  }
+
+  @VisibleForTesting
+  long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  @VisibleForTesting
+  long getProbes() {
+    return probes.get();
+  }
+
+  @VisibleForTesting
+  long getSniffs() {
+    return sniffs.get();
+  }
+
+  @VisibleForTesting
+  long getUnresolved() {
+    return unresolved.get();
+  }
+}
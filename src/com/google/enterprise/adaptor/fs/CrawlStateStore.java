@@ -0,0 +1,591 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent store of the crawl state of each document, keyed by DocId.
+ * The state survives restarts of the adaptor, and is kept in a
+ * memory-mapped file so that the heap holds only two {@code int} arrays
+ * indexing the records, rather than an object per document.
+ * <p>
+ * The file holds a small header followed by the records, which are
+ * appended as new DocIds are added. Each record is a flags byte, the
+ * length and UTF-8 bytes of the DocId, then four {@code long} values.
+ * The values of existing records are updated in place. Removed records
+ * are only flagged as such, and the space they occupy is reclaimed when
+ * the store is next opened. The file is limited to 2 GB.
+ * <p>
+ * All methods are thread safe.
+ */
+class CrawlStateStore implements Closeable {
+  private static final Logger log
+      = Logger.getLogger(CrawlStateStore.class.getName());
+
+  private static final int MAGIC = 0x46534353;  // "FSCS"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 12;
+  private static final int END_OFFSET = 8;
+  private static final int VALUES_SIZE = 4 * 8;
+  private static final byte FLAG_REMOVED = 1;
+  private static final int INITIAL_FILE_SIZE = 1024 * 1024;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** The crawl state of a single document. */
+  static class State {
+    private final String docId;
+    private final long lastModified;
+    private final long size;
+    private final long aclFingerprint;
+    private final long lastPushed;
+
+    State(String docId, long lastModified, long size, long aclFingerprint,
+        long lastPushed) {
+      Preconditions.checkNotNull(docId, "docId may not be null");
+      this.docId = docId;
+      this.lastModified = lastModified;
+      this.size = size;
+      this.aclFingerprint = aclFingerprint;
+      this.lastPushed = lastPushed;
+    }
+
+    String getDocId() {
+      return docId;
+    }
+
+    /** The last modified time of the document, in milliseconds. */
+    long getLastModified() {
+      return lastModified;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    /** A hash of the document's ACL, or 0 if unknown. */
+    long getAclFingerprint() {
+      return aclFingerprint;
+    }
+
+    /** When the DocId was last pushed, in milliseconds, or 0 if never. */
+    long getLastPushed() {
+      return lastPushed;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof State)) {
+        return false;
+      }
+      State other = (State) o;
+      return docId.equals(other.docId) && lastModified == other.lastModified
+          && size == other.size && aclFingerprint == other.aclFingerprint
+          && lastPushed == other.lastPushed;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(docId, lastModified, size, aclFingerprint,
+                              lastPushed);
+    }
+
+    @Override
+    public String toString() {
+      return "State(" + docId + "," + lastModified + "," + size + ","
+          + aclFingerprint + "," + lastPushed + ")";
+    }
+  }
+
+  private final Path file;
+  private final FileChannel channel;
+  private MappedByteBuffer buffer;
+  /** The offset just beyond the last record. */
+  private int end;
+
+  /**
+   * Open addressing hash table of record offsets, where 0 marks an empty
+   * slot. Removed records stay in the table, so probing is unaffected.
+   */
+  private int[] table;
+  private int records;
+  private int removed;
+
+  /** Record offsets sorted by DocId, for prefix scans. */
+  private int[] sorted = new int[0];
+  /** The offsets of records appended since {@code sorted} was built. */
+  private int[] unsorted = new int[16];
+  private int unsortedCount;
+
+  /**
+   * Opens the store in the given file, creating it if it does not exist.
+   * Removed records are compacted away when there are as many of them as
+   * there are live records.
+   */
+  CrawlStateStore(Path file) throws IOException {
+    this.file = file;
+    channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      if (channel.size() > 0) {
+        load();
+      } else {
+        map(INITIAL_FILE_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        setEnd(HEADER_SIZE);
+        table = new int[64];
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private void load() throws IOException {
+    if (channel.size() > Integer.MAX_VALUE || channel.size() < HEADER_SIZE) {
+      throw new IOException("Invalid crawl state store size "
+          + channel.size() + " in " + file);
+    }
+    map((int) channel.size());
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException("Invalid crawl state store " + file);
+    }
+    int version = buffer.getInt(4);
+    if (version != VERSION) {
+      throw new IOException("Unsupported crawl state store version "
+          + version + " in " + file);
+    }
+    end = buffer.getInt(END_OFFSET);
+    if (end < HEADER_SIZE || end > buffer.capacity()) {
+      throw new IOException("Corrupt crawl state store " + file);
+    }
+    int live = 0;
+    int dead = 0;
+    for (int offset = HEADER_SIZE; offset < end; offset = nextRecord(offset)) {
+      if (offset + 3 > end || nextRecord(offset) > end) {
+        throw new IOException("Corrupt crawl state store " + file);
+      }
+      if (isRemoved(offset)) {
+        dead++;
+      } else {
+        live++;
+      }
+    }
+    if (dead > 0 && dead >= live) {
+      log.log(Level.FINE, "Compacting crawl state store {0}", file);
+      compact();
+    }
+    table = new int[64];
+    for (int offset = HEADER_SIZE; offset < end; offset = nextRecord(offset)) {
+      addRecord(offset, hash(readKey(offset)));
+      if (isRemoved(offset)) {
+        removed++;
+      }
+    }
+  }
+
+  /**
+   * Slides the records that have not been removed down over those that
+   * have. Records only ever move towards the start of the file, so this
+   * is done in place.
+   */
+  private void compact() {
+    int to = HEADER_SIZE;
+    for (int from = HEADER_SIZE; from < end; ) {
+      int next = nextRecord(from);
+      if (!isRemoved(from)) {
+        for (int i = from; i < next; i++) {
+          buffer.put(to++, buffer.get(i));
+        }
+      }
+      from = next;
+    }
+    setEnd(to);
+  }
+
+  /** Returns the state of the document, or {@code null} if not present. */
+  synchronized State get(String docId) {
+    int offset = find(docId);
+    if (offset == 0 || isRemoved(offset)) {
+      return null;
+    }
+    return readState(offset);
+  }
+
+  /**
+   * Stores the state of a document, replacing any previous state.
+   *
+   * @throws IOException if the file could not be grown to hold the state
+   */
+  synchronized void put(State state) throws IOException {
+    int offset = find(state.docId);
+    if (offset == 0) {
+      byte[] key = state.docId.getBytes(UTF_8);
+      Preconditions.checkArgument(key.length <= Short.MAX_VALUE,
+          "docId too long: %s", state.docId);
+      offset = end;
+      int next = offset + 3 + key.length + VALUES_SIZE;
+      ensureCapacity(next);
+      buffer.put(offset, (byte) 0);
+      buffer.putShort(offset + 1, (short) key.length);
+      for (int i = 0; i < key.length; i++) {
+        buffer.put(offset + 3 + i, key[i]);
+      }
+      writeValues(offset, state);
+      setEnd(next);
+      addRecord(offset, hash(state.docId));
+    } else {
+      if (isRemoved(offset)) {
+        buffer.put(offset, (byte) 0);
+        removed--;
+      }
+      writeValues(offset, state);
+    }
+  }
+
+  /**
+   * Stores the state a document was served with, keeping the time it was
+   * last pushed.
+   *
+   * @throws IOException if the file could not be grown to hold the state
+   */
+  synchronized void putServed(String docId, long lastModified, long size,
+      long aclFingerprint) throws IOException {
+    State state = get(docId);
+    put(new State(docId, lastModified, size, aclFingerprint,
+        (state == null) ? 0L : state.lastPushed));
+  }
+
+  /**
+   * Stores the time a document was pushed, keeping the state it was last
+   * served with.
+   *
+   * @throws IOException if the file could not be grown to hold the state
+   */
+  synchronized void putPushed(String docId, long lastPushed)
+      throws IOException {
+    State state = get(docId);
+    put((state == null)
+        ? new State(docId, 0L, 0L, 0L, lastPushed)
+        : new State(docId, state.lastModified, state.size,
+            state.aclFingerprint, lastPushed));
+  }
+
+  /** Removes the state of the document, if present. */
+  synchronized void remove(String docId) {
+    int offset = find(docId);
+    if (offset != 0 && !isRemoved(offset)) {
+      buffer.put(offset, FLAG_REMOVED);
+      removed++;
+    }
+  }
+
+  /** Removes the states of the documents whose DocIds start with the prefix. */
+  synchronized void removeAll(String prefix) {
+    for (State state : scan(prefix)) {
+      remove(state.docId);
+    }
+  }
+
+  /** Returns the number of documents in the store. */
+  synchronized int size() {
+    return records - removed;
+  }
+
+  /**
+   * Returns the states of the documents whose DocIds start with the prefix,
+   * in DocId order. Documents added after the scan begins are not returned.
+   */
+  synchronized Iterable<State> scan(String prefix) {
+    sort();
+    final byte[] prefixBytes = prefix.getBytes(UTF_8);
+    final int[] scanned = sorted;
+    final int start = lowerBound(scanned, prefixBytes);
+    return new Iterable<State>() {
+      @Override
+      public Iterator<State> iterator() {
+        return new ScanIterator(scanned, start, prefixBytes);
+      }
+    };
+  }
+
+  /** Writes any changes to the file. */
+  synchronized void force() {
+    buffer.force();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    buffer.force();
+    channel.close();
+  }
+
+  private void map(int size) throws IOException {
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  private void ensureCapacity(int required) throws IOException {
+    if (required < 0) {
+      throw new IOException("Crawl state store " + file + " is full");
+    }
+    if (required > buffer.capacity()) {
+      long size = Math.max((long) buffer.capacity() * 2, required);
+      map((int) Math.min(size, Integer.MAX_VALUE));
+    }
+  }
+
+  private void setEnd(int end) {
+    this.end = end;
+    buffer.putInt(END_OFFSET, end);
+  }
+
+  private int nextRecord(int offset) {
+    return offset + 3 + (buffer.getShort(offset + 1) & 0xFFFF) + VALUES_SIZE;
+  }
+
+  private boolean isRemoved(int offset) {
+    return (buffer.get(offset) & FLAG_REMOVED) != 0;
+  }
+
+  private String readKey(int offset) {
+    byte[] key = new byte[buffer.getShort(offset + 1) & 0xFFFF];
+    for (int i = 0; i < key.length; i++) {
+      key[i] = buffer.get(offset + 3 + i);
+    }
+    return new String(key, UTF_8);
+  }
+
+  private State readState(int offset) {
+    int values = nextRecord(offset) - VALUES_SIZE;
+    return new State(readKey(offset), buffer.getLong(values),
+        buffer.getLong(values + 8), buffer.getLong(values + 16),
+        buffer.getLong(values + 24));
+  }
+
+  private void writeValues(int offset, State state) {
+    int values = nextRecord(offset) - VALUES_SIZE;
+    buffer.putLong(values, state.lastModified);
+    buffer.putLong(values + 8, state.size);
+    buffer.putLong(values + 16, state.aclFingerprint);
+    buffer.putLong(values + 24, state.lastPushed);
+  }
+
+  private static int hash(String docId) {
+    int h = docId.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /** Returns the offset of the record for the DocId, or 0 if none. */
+  private int find(String docId) {
+    byte[] key = docId.getBytes(UTF_8);
+    int mask = table.length - 1;
+    for (int slot = hash(docId) & mask; table[slot] != 0;
+         slot = (slot + 1) & mask) {
+      if (compareKey(table[slot], key, key.length) == 0
+          && keyLength(table[slot]) == key.length) {
+        return table[slot];
+      }
+    }
+    return 0;
+  }
+
+  private void addRecord(int offset, int hash) {
+    if ((records + 1) * 2 > table.length) {
+      int[] old = table;
+      table = new int[old.length * 2];
+      for (int existing : old) {
+        if (existing != 0) {
+          insert(existing, hash(readKey(existing)));
+        }
+      }
+    }
+    insert(offset, hash);
+    records++;
+    if (unsortedCount == unsorted.length) {
+      unsorted = Arrays.copyOf(unsorted, unsorted.length * 2);
+    }
+    unsorted[unsortedCount++] = offset;
+  }
+
+  private void insert(int offset, int hash) {
+    int mask = table.length - 1;
+    int slot = hash & mask;
+    while (table[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = offset;
+  }
+
+  private int keyLength(int offset) {
+    return buffer.getShort(offset + 1) & 0xFFFF;
+  }
+
+  /**
+   * Compares the first {@code length} bytes of the record's key with
+   * those of {@code key}, as unsigned bytes. A key shorter than
+   * {@code length} compares by its length.
+   */
+  private int compareKey(int offset, byte[] key, int length) {
+    int keyLength = keyLength(offset);
+    int n = Math.min(Math.min(keyLength, length), key.length);
+    for (int i = 0; i < n; i++) {
+      int diff = (buffer.get(offset + 3 + i) & 0xFF) - (key[i] & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return Math.min(keyLength, length) - Math.min(key.length, length);
+  }
+
+  private int compareRecords(int offset1, int offset2) {
+    int length1 = keyLength(offset1);
+    int length2 = keyLength(offset2);
+    int n = Math.min(length1, length2);
+    for (int i = 0; i < n; i++) {
+      int diff = (buffer.get(offset1 + 3 + i) & 0xFF)
+          - (buffer.get(offset2 + 3 + i) & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return length1 - length2;
+  }
+
+  /** Merges the records appended since the last sort into the index. */
+  private void sort() {
+    if (unsortedCount == 0) {
+      return;
+    }
+    int[] added = Arrays.copyOf(unsorted, unsortedCount);
+    mergeSort(added, new int[added.length], 0, added.length);
+    int[] merged = new int[sorted.length + added.length];
+    merge(sorted, added, merged);
+    sorted = merged;
+    unsortedCount = 0;
+  }
+
+  private void mergeSort(int[] a, int[] scratch, int from, int to) {
+    if (to - from < 2) {
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    mergeSort(a, scratch, from, mid);
+    mergeSort(a, scratch, mid, to);
+    System.arraycopy(a, from, scratch, from, to - from);
+    int i = from;
+    int j = mid;
+    for (int k = from; k < to; k++) {
+      if (j >= to || (i < mid && compareRecords(scratch[i], scratch[j]) <= 0)) {
+        a[k] = scratch[i++];
+      } else {
+        a[k] = scratch[j++];
+      }
+    }
+  }
+
+  private void merge(int[] a, int[] b, int[] into) {
+    int i = 0;
+    int j = 0;
+    for (int k = 0; k < into.length; k++) {
+      if (j >= b.length || (i < a.length && compareRecords(a[i], b[j]) <= 0)) {
+        into[k] = a[i++];
+      } else {
+        into[k] = b[j++];
+      }
+    }
+  }
+
+  /** Returns the index of the first record not less than the prefix. */
+  private int lowerBound(int[] index, byte[] prefix) {
+    int low = 0;
+    int high = index.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (compareKey(index[mid], prefix, prefix.length) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /** Iterates over the live records of a sorted index with a prefix. */
+  private class ScanIterator implements Iterator<State> {
+    private final int[] index;
+    private final byte[] prefix;
+    private int position;
+    private State next;
+
+    ScanIterator(int[] index, int start, byte[] prefix) {
+      this.index = index;
+      this.position = start;
+      this.prefix = prefix;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+      synchronized (CrawlStateStore.this) {
+        while (position < index.length) {
+          int offset = index[position];
+          if (keyLength(offset) < prefix.length
+              || compareKey(offset, prefix, prefix.length) != 0) {
+            position = index.length;
+            break;
+          }
+          position++;
+          if (!isRemoved(offset)) {
+            next = readState(offset);
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public State next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      State state = next;
+      next = null;
+      return state;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
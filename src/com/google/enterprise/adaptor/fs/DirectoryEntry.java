@@ -0,0 +1,68 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * An entry of a directory listing, consisting of the {@link Path} of the
+ * entry along with the attributes that were read while enumerating the
+ * directory. The attributes are not refreshed, so they reflect the state
+ * of the file system at the time of the enumeration.
+ */
+final class DirectoryEntry {
+  private final Path path;
+  private final BasicFileAttributes attributes;
+  private final boolean hidden;
+
+  DirectoryEntry(Path path, BasicFileAttributes attributes, boolean hidden) {
+    Preconditions.checkNotNull(path, "path may not be null");
+    Preconditions.checkNotNull(attributes, "attributes may not be null");
+    this.path = path;
+    this.attributes = attributes;
+    this.hidden = hidden;
+  }
+
+  /** Returns the {@link Path} of the entry. */
+  Path getPath() {
+    return path;
+  }
+
+  /** Returns the {@link BasicFileAttributes} of the entry. */
+  BasicFileAttributes getAttributes() {
+    return attributes;
+  }
+
+  /**
+   * Returns {@code true} if the entry is a directory, not following
+   * symbolic links.
+   */
+  boolean isDirectory() {
+    return attributes.isDirectory();
+  }
+
+  /** Returns {@code true} if the entry is a hidden file or directory. */
+  boolean isHidden() {
+    return hidden;
+  }
+
+  @Override
+  public String toString() {
+    return path.toString();
+  }
+}
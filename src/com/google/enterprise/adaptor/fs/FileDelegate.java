@@ -19,6 +19,8 @@ import com.google.enterprise.adaptor.DocId;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Path;
 import java.nio.file.attribute.AclFileAttributeView;
@@ -90,6 +92,17 @@ interface FileDelegate {
    */
   InputStream newInputStream(Path doc) throws IOException;
 
+  /**
+   * Returns a channel to read the file contents. Implementations should
+   * return a {@link FileChannel} if possible, which allows the contents to
+   * be transferred by the operating system.
+   *
+   * @param doc the file to read
+   * @return a channel to read the file contents
+   * @throws IOException
+   */
+  ReadableByteChannel newReadableByteChannel(Path doc) throws IOException;
+
   /**
    * Returns a {@link DirectoryStream} to read the directory entries.
    *
@@ -99,6 +112,20 @@ interface FileDelegate {
    */
   DirectoryStream<Path> newDirectoryStream(Path doc) throws IOException;
 
+  /**
+   * Returns a {@link DirectoryStream} to read the directory entries along
+   * with their attributes. Where the platform supports it, the attributes
+   * are gathered by the directory enumeration itself, avoiding a separate
+   * round trip to the file system for each entry. Entries that vanish
+   * during the enumeration are skipped.
+   *
+   * @param doc the directory to list
+   * @return a DirectoryStream to read the directory entries
+   * @throws IOException
+   */
+  DirectoryStream<DirectoryEntry> newDirectoryEntryStream(Path doc)
+      throws IOException;
+
   /**
    * Returns {@code true} if the supplied UNC path is a DFS
    * Namespace.  This would typically be a path like
@@ -146,6 +173,21 @@ interface FileDelegate {
    */
   List<Path> enumerateDfsLinks(Path doc) throws IOException;
 
+  /**
+   * Discards any cached DFS information, such as whether paths are DFS
+   * namespaces or links, the active storage of links, and the links of
+   * namespaces, so that it is read again when next needed.
+   */
+  void invalidateDfsCache();
+
+  /**
+   * Returns {@code true} if a start path that is not a root may be crawled
+   * when its ACL inherits nothing from its parent, such as the mount point
+   * of a network file system. Otherwise a start path must be a root, a DFS
+   * namespace or a DFS link.
+   */
+  boolean allowsNonRootStartPaths();
+
   /**
    * Returns an {@link AclFileAttributeViews} that contains the directly
    * applied and inherited {@link AclFileAttributeView} for the specified path.
@@ -181,6 +223,16 @@ interface FileDelegate {
    */
   DocId newDocId(Path doc) throws IOException;
 
+  /**
+   * Creates a new {@link DocId} for the supplied directory entry. This
+   * avoids file system access where possible, using the attributes of the
+   * entry and the canonical path of the directory containing it.
+   *
+   * @param entry The directory entry to get the {@link DocId} for.
+   * @throws IOException
+   */
+  DocId newDocId(DirectoryEntry entry) throws IOException;
+
   /**
    * Start monitoring the file system identified by {@code watchPath} for
    * changes. Changes include creating, deleting, modifying, renaming, or 
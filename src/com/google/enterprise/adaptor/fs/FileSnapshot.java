@@ -0,0 +1,293 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The files and folders found under the start paths by an incremental poll,
+ * recorded as the entries of each folder that was listed. Comparing the
+ * snapshot of one poll against that of the previous poll reveals which
+ * documents were added, modified or deleted in between.
+ * <p>
+ * Entries may be added concurrently from multiple threads.
+ */
+class FileSnapshot {
+  private static final int VERSION = 1;
+
+  /** The state of a single file or folder. */
+  static class Entry {
+    private final String docId;
+    private final long lastModified;
+    private final long size;
+    private final boolean isDirectory;
+
+    Entry(String docId, long lastModified, long size, boolean isDirectory) {
+      Preconditions.checkNotNull(docId, "docId may not be null");
+      this.docId = docId;
+      this.lastModified = lastModified;
+      this.size = size;
+      this.isDirectory = isDirectory;
+    }
+
+    Entry(String docId, BasicFileAttributes attrs) {
+      this(docId, attrs.lastModifiedTime().toMillis(),
+           attrs.isDirectory() ? 0L : attrs.size(), attrs.isDirectory());
+    }
+
+    String getDocId() {
+      return docId;
+    }
+
+    long getLastModified() {
+      return lastModified;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    boolean isDirectory() {
+      return isDirectory;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry other = (Entry) o;
+      return docId.equals(other.docId) && lastModified == other.lastModified
+          && size == other.size && isDirectory == other.isDirectory;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(docId, lastModified, size, isDirectory);
+    }
+
+    @Override
+    public String toString() {
+      return "Entry(" + docId + "," + lastModified + "," + size + ")";
+    }
+  }
+
+  private final ConcurrentMap<Path, ConcurrentMap<String, Entry>> directories
+      = new ConcurrentHashMap<Path, ConcurrentMap<String, Entry>>();
+
+  /**
+   * Reads a snapshot previously written by {@link #save}, returning an
+   * empty snapshot if the file does not exist.
+   *
+   * @param file the file containing the snapshot
+   * @param delegate used to construct the paths of the snapshot
+   */
+  static FileSnapshot load(Path file, FileDelegate delegate)
+      throws IOException {
+    FileSnapshot snapshot = new FileSnapshot();
+    DataInputStream in;
+    try {
+      in = new DataInputStream(
+          new BufferedInputStream(Files.newInputStream(file)));
+    } catch (NoSuchFileException e) {
+      return snapshot;
+    }
+    try {
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot version " + version
+            + " in " + file);
+      }
+      for (int dirs = in.readInt(); dirs > 0; dirs--) {
+        Path dir = delegate.getPath(in.readUTF());
+        ConcurrentMap<String, Entry> children = snapshot.addDirectory(dir);
+        for (int count = in.readInt(); count > 0; count--) {
+          String name = in.readUTF();
+          children.put(name, new Entry(in.readUTF(), in.readLong(),
+              in.readLong(), in.readBoolean()));
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return snapshot;
+  }
+
+  /**
+   * Writes the snapshot to a file. The snapshot is written to a temporary
+   * file that then replaces the original, so a failure part way through
+   * does not lose the previous snapshot.
+   */
+  void save(Path file) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(temp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(directories.size());
+      for (Map.Entry<Path, ConcurrentMap<String, Entry>> dir
+           : directories.entrySet()) {
+        out.writeUTF(dir.getKey().toString());
+        Map<String, Entry> children = dir.getValue();
+        out.writeInt(children.size());
+        for (Map.Entry<String, Entry> child : children.entrySet()) {
+          Entry entry = child.getValue();
+          out.writeUTF(child.getKey());
+          out.writeUTF(entry.docId);
+          out.writeLong(entry.lastModified);
+          out.writeLong(entry.size);
+          out.writeBoolean(entry.isDirectory);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /** Returns {@code true} if the snapshot has the entries of the folder. */
+  boolean containsDirectory(Path dir) {
+    return directories.containsKey(dir);
+  }
+
+  /**
+   * Returns the entries of the folder, keyed by name, or {@code null} if
+   * the snapshot does not have the entries of the folder.
+   */
+  Map<String, Entry> getChildren(Path dir) {
+    Map<String, Entry> children = directories.get(dir);
+    return (children == null) ? null : Collections.unmodifiableMap(children);
+  }
+
+  /**
+   * Returns the entry for the file or folder, or {@code null} if the
+   * snapshot does not have it.
+   */
+  Entry getEntry(Path path) {
+    Path parent = path.getParent();
+    Path name = path.getFileName();
+    if (parent == null || name == null) {
+      return null;
+    }
+    Map<String, Entry> siblings = directories.get(parent);
+    return (siblings == null) ? null : siblings.get(name.toString());
+  }
+
+  /**
+   * Records that the folder was listed, returning its entries. Its entries
+   * are initially empty, unless it was already added.
+   */
+  ConcurrentMap<String, Entry> addDirectory(Path dir) {
+    ConcurrentMap<String, Entry> children =
+        new ConcurrentHashMap<String, Entry>();
+    ConcurrentMap<String, Entry> existing =
+        directories.putIfAbsent(dir, children);
+    return (existing == null) ? children : existing;
+  }
+
+  /** Adds an entry to the entries of its parent folder. */
+  void put(Path path, Entry entry) {
+    addDirectory(path.getParent()).put(path.getFileName().toString(), entry);
+  }
+
+  /**
+   * Replaces the entries of the folder and of all the folders beneath it
+   * with those in another snapshot. This is used to carry forward the state
+   * of folders that could not be listed.
+   */
+  void copySubtree(FileSnapshot from, Path dir) {
+    removeSubtree(dir);
+    Map<String, Entry> children = from.directories.get(dir);
+    if (children == null) {
+      return;
+    }
+    addDirectory(dir).putAll(children);
+    for (Map.Entry<String, Entry> child : children.entrySet()) {
+      if (child.getValue().isDirectory) {
+        copySubtree(from, dir.resolve(child.getKey()));
+      }
+    }
+  }
+
+  private void removeSubtree(Path dir) {
+    Map<String, Entry> children = directories.remove(dir);
+    if (children == null) {
+      return;
+    }
+    for (Map.Entry<String, Entry> child : children.entrySet()) {
+      if (child.getValue().isDirectory) {
+        removeSubtree(dir.resolve(child.getKey()));
+      }
+    }
+  }
+
+  /**
+   * Returns the entries of the previous snapshot that are no longer
+   * present. Only folders listed in this snapshot are compared; for each
+   * folder that was deleted, all the entries beneath it in the previous
+   * snapshot are returned as well.
+   */
+  List<Entry> getDeletedEntries(FileSnapshot previous) {
+    List<Entry> deleted = new ArrayList<Entry>();
+    for (Map.Entry<Path, ConcurrentMap<String, Entry>> dir
+         : directories.entrySet()) {
+      Map<String, Entry> before = previous.directories.get(dir.getKey());
+      if (before == null) {
+        continue;
+      }
+      for (Map.Entry<String, Entry> child : before.entrySet()) {
+        if (!dir.getValue().containsKey(child.getKey())) {
+          deleted.add(child.getValue());
+          if (child.getValue().isDirectory) {
+            previous.addDescendants(dir.getKey().resolve(child.getKey()),
+                                    deleted);
+          }
+        }
+      }
+    }
+    return deleted;
+  }
+
+  private void addDescendants(Path dir, List<Entry> descendants) {
+    Map<String, Entry> children = directories.get(dir);
+    if (children == null) {
+      return;
+    }
+    for (Map.Entry<String, Entry> child : children.entrySet()) {
+      descendants.add(child.getValue());
+      if (child.getValue().isDirectory) {
+        addDescendants(dir.resolve(child.getKey()), descendants);
+      }
+    }
+  }
+}
@@ -0,0 +1,230 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Walks file trees in parallel using a work-stealing {@link ForkJoinPool}.
+ * Each directory is listed by its own task, and the tasks for its
+ * subdirectories are forked, so idle threads steal work from busy ones
+ * and a wide tree is listed at the speed of the file server rather than
+ * that of a single thread.
+ * <p>
+ * The order in which entries are visited is unspecified, and the
+ * {@link Visitor} is called concurrently from multiple threads.
+ */
+class FileTreeWalker {
+  private static final Logger log
+      = Logger.getLogger(FileTreeWalker.class.getName());
+
+  /** Receives the entries found while walking a file tree. */
+  interface Visitor {
+    /**
+     * Visits an entry of a directory being walked. May be called
+     * concurrently from multiple threads.
+     *
+     * @param entry a file or directory
+     * @return {@code true} if the walk should descend into the entry,
+     *     which is only meaningful for directories
+     * @throws IOException to abort the walk
+     * @throws InterruptedException to abort the walk
+     */
+    boolean visit(DirectoryEntry entry)
+        throws IOException, InterruptedException;
+
+    /**
+     * Called if a directory could not be listed. The walk continues with
+     * the remaining directories.
+     *
+     * @param dir the directory that could not be listed
+     * @param e the reason the directory could not be listed
+     */
+    void visitFailed(Path dir, IOException e);
+  }
+
+  /**
+   * A {@link Visitor} that may already know the entries of some
+   * directories, sparing the walker from listing them.
+   */
+  interface CachingVisitor extends Visitor {
+    /**
+     * Called before each directory is listed. May be called concurrently
+     * from multiple threads.
+     *
+     * @param dir the directory about to be listed
+     * @return the entries to visit in place of listing the directory, or
+     *     {@code null} if the directory should be listed
+     */
+    Iterable<DirectoryEntry> getCachedEntries(Path dir);
+  }
+
+  private final FileDelegate delegate;
+  private final ForkJoinPool pool;
+
+  /**
+   * Creates a walker that lists up to {@code parallelism} directories
+   * concurrently.
+   */
+  FileTreeWalker(FileDelegate delegate, int parallelism) {
+    Preconditions.checkNotNull(delegate, "delegate may not be null");
+    Preconditions.checkArgument(parallelism > 0,
+        "parallelism must be positive");
+    this.delegate = delegate;
+    this.pool = new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * Walks the file tree rooted at {@code start}, which is itself not
+   * visited. Returns once the entire tree has been walked.
+   *
+   * @param start the directory at the root of the tree
+   * @param visitor the visitor to call for each entry found
+   * @throws IOException if the visitor aborted the walk
+   * @throws InterruptedException if the walk was interrupted, in which
+   *     case the tasks still running are abandoned
+   */
+  void walk(Path start, Visitor visitor)
+      throws IOException, InterruptedException {
+    AtomicBoolean abandoned = new AtomicBoolean();
+    WalkTask task = new WalkTask(start, visitor, abandoned);
+    pool.execute(task);
+    try {
+      task.get();
+    } catch (InterruptedException e) {
+      abandoned.set(true);
+      throw e;
+    } catch (ExecutionException e) {
+      // Stop the tasks forked before the walk failed.
+      abandoned.set(true);
+      // The pool may wrap the exception thrown by another worker thread.
+      Throwable cause = e.getCause();
+      while (cause instanceof WalkAbortedException) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    }
+  }
+
+  /** Stops the worker threads. Walks in progress are abandoned. */
+  void shutdown() {
+    pool.shutdownNow();
+  }
+
+  /** Lists a single directory and forks tasks for its subdirectories. */
+  private class WalkTask extends RecursiveAction {
+    private final Path dir;
+    private final Visitor visitor;
+    private final AtomicBoolean abandoned;
+
+    WalkTask(Path dir, Visitor visitor, AtomicBoolean abandoned) {
+      this.dir = dir;
+      this.visitor = visitor;
+      this.abandoned = abandoned;
+    }
+
+    @Override
+    protected void compute() {
+      if (abandoned.get()) {
+        return;
+      }
+      List<WalkTask> subtasks = new ArrayList<WalkTask>();
+      Iterable<DirectoryEntry> cached = null;
+      if (visitor instanceof CachingVisitor) {
+        cached = ((CachingVisitor) visitor).getCachedEntries(dir);
+      }
+      if (cached != null) {
+        visitAll(cached, subtasks);
+      } else {
+        try (DirectoryStream<DirectoryEntry> entries =
+                 delegate.newDirectoryEntryStream(dir)) {
+          visitAll(entries, subtasks);
+        } catch (DirectoryIteratorException e) {
+          visitFailed(e.getCause());
+        } catch (IOException e) {
+          visitFailed(e);
+        }
+      }
+      for (WalkTask subtask : subtasks) {
+        subtask.join();
+      }
+    }
+
+    /** Visits the entries, forking a task for each directory to descend. */
+    private void visitAll(Iterable<DirectoryEntry> entries,
+        List<WalkTask> subtasks) {
+      for (DirectoryEntry entry : entries) {
+        if (abandoned.get()) {
+          break;
+        }
+        if (visit(entry) && entry.isDirectory()) {
+          WalkTask subtask = new WalkTask(entry.getPath(), visitor, abandoned);
+          subtask.fork();
+          subtasks.add(subtask);
+        }
+      }
+    }
+
+    /**
+     * Visits the entry, aborting the walk if the visitor fails. The other
+     * tasks of the walk stop at their next entry.
+     */
+    private boolean visit(DirectoryEntry entry) {
+      try {
+        return visitor.visit(entry);
+      } catch (IOException | InterruptedException e) {
+        abandoned.set(true);
+        throw new WalkAbortedException(e);
+      } catch (RuntimeException e) {
+        abandoned.set(true);
+        throw e;
+      }
+    }
+
+    private void visitFailed(IOException e) {
+      log.log(Level.FINE, "Unable to list directory " + dir, e);
+      visitor.visitFailed(dir, e);
+    }
+  }
+
+  /**
+   * Thrown out of the {@link ForkJoinPool} when the walk is aborted, with
+   * the {@link IOException} or {@link InterruptedException} as its cause.
+   */
+  private static class WalkAbortedException extends RuntimeException {
+    WalkAbortedException(Exception cause) {
+      super(cause);
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.enterprise.adaptor.fs;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.cache.Cache;
@@ -22,10 +23,12 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.adaptor.AbstractAdaptor;
 import com.google.enterprise.adaptor.Acl;
 import com.google.enterprise.adaptor.Acl.InheritanceType;
 import com.google.enterprise.adaptor.AdaptorContext;
+import com.google.enterprise.adaptor.AsyncDocIdPusher;
 import com.google.enterprise.adaptor.AuthnIdentity;
 import com.google.enterprise.adaptor.AuthzAuthority;
 import com.google.enterprise.adaptor.AuthzStatus;
@@ -34,6 +37,7 @@ import com.google.enterprise.adaptor.DocId;
 import com.google.enterprise.adaptor.DocIdPusher;
 import com.google.enterprise.adaptor.DocIdPusher.Record;
 import com.google.enterprise.adaptor.InvalidConfigurationException;
+import com.google.enterprise.adaptor.PollingIncrementalLister;
 import com.google.enterprise.adaptor.Principal;
 import com.google.enterprise.adaptor.Request;
 import com.google.enterprise.adaptor.Response;
@@ -44,28 +48,35 @@ import com.google.enterprise.adaptor.UserPrincipal;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.InvalidPathException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -76,7 +87,14 @@ import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -239,6 +257,14 @@ public class FsAdaptor extends AbstractAdaptor {
   private static final String CONFIG_MONITOR_UPDATES =
       "filesystemadaptor.monitorForUpdates";
 
+  /**
+   * The config parameter name for how long a document must go unchanged
+   * before the changes reported for it by the monitors are pushed, in
+   * milliseconds. Zero pushes each change as soon as it is reported.
+   */
+  private static final String CONFIG_MONITOR_DEBOUNCE_MILLIS =
+      "filesystemadaptor.monitorDebounceMillis";
+
   /** The config option that forces us to ignore the share ACL. */
   private static final String CONFIG_SKIP_SHARE_ACL = 
       "filesystemadaptor.skipShareAccessControl";
@@ -257,6 +283,99 @@ public class FsAdaptor extends AbstractAdaptor {
   /** The config parameter name for the adaptor namespace. */
   private static final String CONFIG_NAMESPACE = "adaptor.namespace";
 
+  /**
+   * The config parameter name for enabling full traversals of the start
+   * paths, pushing the DocIds of all the files and folders found.
+   */
+  private static final String CONFIG_FULL_TRAVERSAL =
+      "filesystemadaptor.fullTraversal";
+
+  /**
+   * The config parameter name for the number of threads used by full
+   * traversals and incremental polls.
+   */
+  private static final String CONFIG_FULL_TRAVERSAL_THREADS =
+      "filesystemadaptor.fullTraversalThreads";
+
+  /**
+   * The config parameter name for enabling incremental polls, which push
+   * the files and folders added, modified or deleted since the last poll.
+   */
+  private static final String CONFIG_INCREMENTAL_POLLING =
+      "filesystemadaptor.incrementalPolling";
+
+  /** The config parameter name for the file holding the poll snapshot. */
+  private static final String CONFIG_INCREMENTAL_SNAPSHOT_FILE =
+      "filesystemadaptor.incrementalSnapshotFile";
+
+  /**
+   * The config parameter name for skipping the listing of folders whose
+   * last modified time is unchanged during incremental polls. The files
+   * within such folders are assumed to be unchanged, which only holds for
+   * file systems where files are replaced, rather than modified in place.
+   */
+  private static final String CONFIG_INCREMENTAL_PRUNE_UNCHANGED_FOLDERS =
+      "filesystemadaptor.incrementalPruneUnchangedFolders";
+
+  /**
+   * The config parameter name for reading the attributes and ACLs of the
+   * children of a folder in the background while its listing is sent,
+   * anticipating the GSA's requests for them.
+   */
+  private static final String CONFIG_PREFETCH_CHILDREN =
+      "filesystemadaptor.prefetchChildren";
+
+  /** The config parameter name for the number of prefetch threads. */
+  private static final String CONFIG_PREFETCH_THREADS =
+      "filesystemadaptor.prefetchThreads";
+
+  /**
+   * The config parameter name for how long prefetched attributes are used,
+   * in seconds.
+   */
+  private static final String CONFIG_PREFETCH_TTL_SECS =
+      "filesystemadaptor.prefetchTtlSeconds";
+
+  /**
+   * The config parameter name for how long the share ACLs of a start path or
+   * DFS link are used before they are read again, in seconds. Zero disables
+   * caching of share ACLs.
+   */
+  private static final String CONFIG_SHARE_ACL_CACHE_TTL_SECS =
+      "filesystemadaptor.shareAclCacheTtlSeconds";
+
+  /**
+   * The config parameter name for the number of threads evaluating the ACLs
+   * of the documents of late-binding authorization requests.
+   */
+  private static final String CONFIG_AUTHZ_THREADS =
+      "filesystemadaptor.authzThreads";
+
+  /**
+   * The config parameter name for how long a late-binding authorization
+   * request may take, in seconds. Documents not evaluated in time are
+   * reported as indeterminate.
+   */
+  private static final String CONFIG_AUTHZ_TIMEOUT_SECS =
+      "filesystemadaptor.authzTimeoutSeconds";
+
+  /**
+   * The config parameter name for how long late-binding authorization
+   * decisions are cached, in seconds. Zero disables caching of decisions.
+   */
+  private static final String CONFIG_AUTHZ_CACHE_TTL_SECS =
+      "filesystemadaptor.authzCacheTtlSeconds";
+
+  /**
+   * The config parameter name for the file holding the crawl state of each
+   * document across restarts. If empty, no crawl state is kept.
+   */
+  private static final String CONFIG_CRAWL_STATE_FILE =
+      "filesystemadaptor.crawlStateFile";
+
+  /** The config parameter name for the maximum number of URLs in a feed. */
+  private static final String CONFIG_FEED_MAX_URLS = "feed.maxUrls";
+
   /** Config parameter that determins whether search results link to
    *  file system repository or instead to this adaptor. */
   private static final String CONFIG_SEARCH_RESULTS_GO_TO_REPO
@@ -277,6 +396,12 @@ public class FsAdaptor extends AbstractAdaptor {
   /** Charset used in generated HTML responses. */
   private static final Charset CHARSET = Charset.forName("UTF-8");
 
+  /**
+   * The maximum number of changed paths remembered for invalidating the
+   * cached visibility beneath them. Beyond that, all of it is invalidated.
+   */
+  private static final int VISIBILITY_INVALIDATIONS_SIZE = 10000;
+
   private static final ThreadLocal<SimpleDateFormat> dateFormatter =
       new ThreadLocal<SimpleDateFormat>() {
           @Override
@@ -311,9 +436,30 @@ public class FsAdaptor extends AbstractAdaptor {
   private enum PreserveLastAccessTime { NEVER, IF_ALLOWED, ALWAYS };
   private PreserveLastAccessTime preserveLastAccessTime;
 
-  /** Cache of hidden and visible directories. */
+  /**
+   * Cache of hidden and visible directories. Entries are invalidated when
+   * the directory or one of its ancestors is reported as changed.
+   */
   // TODO(bmj): Cache docIds too, for ACL inheritance purposes.
   private Cache<Path, Hidden> isVisibleCache;
+  /**
+   * The version of the last invalidation of each changed path, so that
+   * the cached visibility of the directories beneath it is forgotten even
+   * if its own was not cached.
+   */
+  private final Cache<Path, Long> visibilityInvalidations =
+      CacheBuilder.newBuilder().build();
+  private final AtomicLong visibilityVersion = new AtomicLong();
+  /** The version of the last invalidation of all visibility. */
+  private volatile long visibilityClearedVersion;
+  private final AtomicLong isVisibleCacheHits = new AtomicLong();
+  private final AtomicLong isVisibleCacheMisses = new AtomicLong();
+
+  /**
+   * Cache of the share ACLs of start paths and DFS links, shared by the
+   * crawl and late-binding authorization.
+   */
+  private Cache<Path, ShareAcls> shareAclCache;
 
   private AdaptorContext context;
   private FileDelegate delegate;
@@ -321,9 +467,15 @@ public class FsAdaptor extends AbstractAdaptor {
   private boolean skipShareAclOnRootIfError;
   private boolean monitorForUpdates;
 
+  /** Coalesces the changes reported by the monitors, if enabled. */
+  private ChangeCoalescer changeCoalescer;
+
   /** The set of file systems we will be traversing. */
   private Set<Path> startPaths;
 
+  /** Finds the start path and ACL root of a path without any I/O. */
+  private AclRootIndex aclRoots;
+
   /** The set of file systems currently blocked from traversing. */
   private Set<Path> blockedPaths =
       // TODO(bmj): Use Sets.newConcurrentHashSet() from guava r15.
@@ -336,17 +488,56 @@ public class FsAdaptor extends AbstractAdaptor {
   /** Status of file systems we are traversing */
   private Map<Path, FsStatus>fsStatus = new ConcurrentHashMap<Path, FsStatus>();
   private Timer statusUpdateService = new Timer("Dashboard Status Update");
+  private final ContentTransfer contentTransfer = new ContentTransfer();
+  private ContentTypeResolver contentTypes;
   private long statusUpdateIntervalMillis;
 
   private boolean resultLinksToShare;
+
+  /** If true, getDocIds pushes the DocIds of all files and folders. */
+  private boolean fullTraversal;
+  private FileTreeWalker treeWalker;
+  private int feedMaxUrls;
+
+  /** The file holding the snapshot of the last incremental poll. */
+  private Path snapshotFile;
+  private FileSnapshot snapshot;
+  private boolean pruneUnchangedFolders;
+
+  /** The crawl state of each document, or null if not kept. */
+  private CrawlStateStore crawlState;
+  /** Set once crawl state could not be recorded. */
+  private final AtomicBoolean crawlStateFailed = new AtomicBoolean();
+
+  /** Reads the attributes of documents, some of them ahead of time. */
+  private ChildPrefetcher prefetcher;
+
+  /** The ACLs built for each distinct file system ACL. */
+  private AclCache aclCache;
+
+  /** Answers late-binding authorization requests, if enabled. */
+  private AccessChecker accessChecker;
+
+  /** The late-binding authorization decisions, if enabled. */
+  private AuthzCache authzCache;
+
+  /**
+   * The share ACLs last read for each start path and DFS link, used to
+   * notice when they change.
+   */
+  private final ConcurrentHashMap<Path, ShareAcls> previousShareAcls =
+      new ConcurrentHashMap<Path, ShareAcls>();
   
   public FsAdaptor() {
-    // At the moment, we only support Windows.
-    if (System.getProperty("os.name").startsWith("Windows")) {
+    // At the moment, we only support Windows and Linux.
+    String osName = System.getProperty("os.name");
+    if (osName.startsWith("Windows")) {
       delegate = new WindowsFileDelegate();
+    } else if (osName.startsWith("Linux")) {
+      delegate = new LinuxFileDelegate();
     } else {
       throw new IllegalStateException(
-          "Windows is the only supported platform.");
+          "Windows and Linux are the only supported platforms.");
     }
   }
 
@@ -370,6 +561,26 @@ public class FsAdaptor extends AbstractAdaptor {
     return namespace;
   }
 
+  @VisibleForTesting
+  CrawlStateStore getCrawlState() {
+    return crawlState;
+  }
+
+  @VisibleForTesting
+  ContentTypeResolver getContentTypeResolver() {
+    return contentTypes;
+  }
+
+  @VisibleForTesting
+  AclCache getAclCache() {
+    return aclCache;
+  }
+
+  @VisibleForTesting
+  AuthzCache getAuthzCache() {
+    return authzCache;
+  }
+
   @Override
   public void initConfig(Config config) {
     config.addKey(CONFIG_SRC, null);
@@ -392,12 +603,27 @@ public class FsAdaptor extends AbstractAdaptor {
     config.addKey(CONFIG_LAST_MODIFIED_DAYS, "");
     config.addKey(CONFIG_LAST_MODIFIED_DATE, "");
     config.addKey(CONFIG_MONITOR_UPDATES, "true");
+    config.addKey(CONFIG_MONITOR_DEBOUNCE_MILLIS, "2000");
     config.addKey(CONFIG_STATUS_UPDATE_INTERVAL_MINS, "15");
     config.addKey(CONFIG_SEARCH_RESULTS_GO_TO_REPO, "true");
+    config.addKey(CONFIG_FULL_TRAVERSAL, "false");
+    config.addKey(CONFIG_FULL_TRAVERSAL_THREADS, "16");
+    config.addKey(CONFIG_INCREMENTAL_POLLING, "false");
+    config.addKey(CONFIG_INCREMENTAL_SNAPSHOT_FILE,
+        "filesystemadaptor-snapshot.dat");
+    config.addKey(CONFIG_INCREMENTAL_PRUNE_UNCHANGED_FOLDERS, "false");
+    config.addKey(CONFIG_CRAWL_STATE_FILE, "");
+    config.addKey(CONFIG_PREFETCH_CHILDREN, "false");
+    config.addKey(CONFIG_PREFETCH_THREADS, "8");
+    config.addKey(CONFIG_PREFETCH_TTL_SECS, "30");
+    config.addKey(CONFIG_SHARE_ACL_CACHE_TTL_SECS, "900");
+    config.addKey(CONFIG_AUTHZ_THREADS, "16");
+    config.addKey(CONFIG_AUTHZ_TIMEOUT_SECS, "10");
+    config.addKey(CONFIG_AUTHZ_CACHE_TTL_SECS, "300");
     // Increase the max feed size, which also increases the
     // asyncDocIdSenderQueueSize to 40,000 entries. This would
     // make a full queue about 10MB in size.
-    config.overrideKey("feed.maxUrls", "20000");
+    config.overrideKey(CONFIG_FEED_MAX_URLS, "20000");
   }
 
   @Override
@@ -411,6 +637,7 @@ public class FsAdaptor extends AbstractAdaptor {
           + CONFIG_SRC + " is empty. Please specify a valid root path.");
     }
     startPaths = getStartPaths(sources, config.getValue(CONFIG_SRC_SEPARATOR));
+    aclRoots = new AclRootIndex(startPaths);
 
     builtinPrefix = config.getValue(CONFIG_BUILTIN_PREFIX);
     log.log(Level.CONFIG, "builtinPrefix: {0}", builtinPrefix);
@@ -423,6 +650,7 @@ public class FsAdaptor extends AbstractAdaptor {
         Splitter.on(',').trimResults().omitEmptyStrings().split(accountsStr));
     log.log(Level.CONFIG, "supportedWindowsAccounts: {0}",
         supportedWindowsAccounts);
+    aclCache = new AclCache(supportedWindowsAccounts, builtinPrefix, namespace);
 
     crawlHiddenFiles = Boolean.parseBoolean(
         config.getValue(CONFIG_CRAWL_HIDDEN_FILES));
@@ -436,7 +664,29 @@ public class FsAdaptor extends AbstractAdaptor {
     log.log(Level.CONFIG, "searchResultsLinkToRepository: {0}",
         resultLinksToShare);
     if (!resultLinksToShare) {
-      context.setAuthzAuthority(new AccessChecker());
+      int authzThreads =
+          Integer.parseInt(config.getValue(CONFIG_AUTHZ_THREADS));
+      log.log(Level.CONFIG, "authzThreads: {0}", authzThreads);
+      long authzTimeoutSecs =
+          Long.parseLong(config.getValue(CONFIG_AUTHZ_TIMEOUT_SECS));
+      log.log(Level.CONFIG, "authzTimeoutSeconds: {0}", authzTimeoutSecs);
+      if (authzThreads <= 0 || authzTimeoutSecs <= 0) {
+        throw new InvalidConfigurationException("The values of "
+            + CONFIG_AUTHZ_THREADS + " and " + CONFIG_AUTHZ_TIMEOUT_SECS
+            + " must be greater than zero.");
+      }
+      long authzCacheTtlSecs =
+          Long.parseLong(config.getValue(CONFIG_AUTHZ_CACHE_TTL_SECS));
+      log.log(Level.CONFIG, "authzCacheTtlSeconds: {0}", authzCacheTtlSecs);
+      if (authzCacheTtlSecs < 0) {
+        throw new InvalidConfigurationException("The value of "
+            + CONFIG_AUTHZ_CACHE_TTL_SECS + " may not be negative.");
+      }
+      authzCache =
+          new AuthzCache(TimeUnit.SECONDS.toMillis(authzCacheTtlSecs));
+      accessChecker = new AccessChecker(authzThreads,
+          TimeUnit.SECONDS.toMillis(authzTimeoutSecs));
+      context.setAuthzAuthority(accessChecker);
     }
 
     try {
@@ -456,7 +706,18 @@ public class FsAdaptor extends AbstractAdaptor {
     isVisibleCache = CacheBuilder.newBuilder()
         .initialCapacity(directoryCacheSize / 4)
         .maximumSize(directoryCacheSize)
-        .expireAfterWrite(4, TimeUnit.HOURS) // Notice if someone hides a dir.
+        .build();
+
+    long shareAclCacheTtlSecs =
+        Long.parseLong(config.getValue(CONFIG_SHARE_ACL_CACHE_TTL_SECS));
+    log.log(Level.CONFIG, "shareAclCacheTtlSeconds: {0}",
+        shareAclCacheTtlSecs);
+    if (shareAclCacheTtlSecs < 0) {
+      throw new InvalidConfigurationException("The value of "
+          + CONFIG_SHARE_ACL_CACHE_TTL_SECS + " may not be negative.");
+    }
+    shareAclCache = CacheBuilder.newBuilder()
+        .expireAfterWrite(shareAclCacheTtlSecs, TimeUnit.SECONDS)
         .build();
 
     // The Administrator may bypass Share access control.
@@ -478,6 +739,88 @@ public class FsAdaptor extends AbstractAdaptor {
         config.getValue(CONFIG_MONITOR_UPDATES));
     log.log(Level.CONFIG, "monitorForUpdates: {0}", monitorForUpdates);
 
+    fullTraversal = Boolean.parseBoolean(
+        config.getValue(CONFIG_FULL_TRAVERSAL));
+    log.log(Level.CONFIG, "fullTraversal: {0}", fullTraversal);
+    boolean incrementalPolling = Boolean.parseBoolean(
+        config.getValue(CONFIG_INCREMENTAL_POLLING));
+    log.log(Level.CONFIG, "incrementalPolling: {0}", incrementalPolling);
+    if (fullTraversal || incrementalPolling) {
+      int threads =
+          Integer.parseInt(config.getValue(CONFIG_FULL_TRAVERSAL_THREADS));
+      log.log(Level.CONFIG, "fullTraversalThreads: {0}", threads);
+      if (threads <= 0) {
+        throw new InvalidConfigurationException("The value of "
+            + CONFIG_FULL_TRAVERSAL_THREADS + " must be greater than zero.");
+      }
+      treeWalker = new FileTreeWalker(delegate, threads);
+    }
+    feedMaxUrls = Integer.parseInt(config.getValue(CONFIG_FEED_MAX_URLS));
+
+    if (monitorForUpdates) {
+      long debounceMillis =
+          Long.parseLong(config.getValue(CONFIG_MONITOR_DEBOUNCE_MILLIS));
+      log.log(Level.CONFIG, "monitorDebounceMillis: {0}", debounceMillis);
+      if (debounceMillis < 0) {
+        throw new InvalidConfigurationException("The value of "
+            + CONFIG_MONITOR_DEBOUNCE_MILLIS + " may not be negative.");
+      }
+      if (debounceMillis > 0) {
+        // Started once nothing more can fail, so that a failed init does
+        // not leave its thread behind.
+        changeCoalescer = new ChangeCoalescer(context.getDocIdPusher(),
+            feedMaxUrls, debounceMillis);
+      }
+    }
+
+    if (incrementalPolling) {
+      snapshotFile =
+          Paths.get(config.getValue(CONFIG_INCREMENTAL_SNAPSHOT_FILE));
+      log.log(Level.CONFIG, "incrementalSnapshotFile: {0}", snapshotFile);
+      pruneUnchangedFolders = Boolean.parseBoolean(
+          config.getValue(CONFIG_INCREMENTAL_PRUNE_UNCHANGED_FOLDERS));
+      log.log(Level.CONFIG, "incrementalPruneUnchangedFolders: {0}",
+              pruneUnchangedFolders);
+      try {
+        snapshot = FileSnapshot.load(snapshotFile, delegate);
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Unable to read the incremental snapshot "
+            + snapshotFile + ". A new snapshot will be taken.", e);
+        snapshot = new FileSnapshot();
+      }
+      context.setPollingIncrementalLister(new SnapshotPoller());
+    }
+
+    String crawlStateFile = config.getValue(CONFIG_CRAWL_STATE_FILE);
+    if (!crawlStateFile.isEmpty()) {
+      log.log(Level.CONFIG, "crawlStateFile: {0}", crawlStateFile);
+      crawlState = new CrawlStateStore(Paths.get(crawlStateFile));
+      crawlStateFailed.set(false);
+      log.log(Level.CONFIG, "Crawl state holds {0} documents",
+              crawlState.size());
+    }
+
+    boolean prefetchChildren = Boolean.parseBoolean(
+        config.getValue(CONFIG_PREFETCH_CHILDREN));
+    log.log(Level.CONFIG, "prefetchChildren: {0}", prefetchChildren);
+    int prefetchThreads = 0;
+    long prefetchTtlSecs = 1;
+    if (prefetchChildren) {
+      prefetchThreads =
+          Integer.parseInt(config.getValue(CONFIG_PREFETCH_THREADS));
+      log.log(Level.CONFIG, "prefetchThreads: {0}", prefetchThreads);
+      prefetchTtlSecs =
+          Long.parseLong(config.getValue(CONFIG_PREFETCH_TTL_SECS));
+      log.log(Level.CONFIG, "prefetchTtlSeconds: {0}", prefetchTtlSecs);
+      if (prefetchThreads <= 0 || prefetchTtlSecs <= 0) {
+        throw new InvalidConfigurationException("The values of "
+            + CONFIG_PREFETCH_THREADS + " and " + CONFIG_PREFETCH_TTL_SECS
+            + " must be greater than zero.");
+      }
+    }
+    prefetcher = new ChildPrefetcher(delegate, prefetchThreads,
+        TimeUnit.SECONDS.toMillis(prefetchTtlSecs));
+
     // How often to update file systems Status for Dashboard, in minutes.
     long minutes =
         Integer.parseInt(config.getValue(CONFIG_STATUS_UPDATE_INTERVAL_MINS));
@@ -508,6 +851,10 @@ public class FsAdaptor extends AbstractAdaptor {
       context.addStatusSource(new FsStatusSource(source));
     }
 
+    contentTypes = new ContentTypeResolver(delegate);
+    context.addStatusSource(new ContentTypeStatusSource());
+    context.addStatusSource(new VisibilityCacheStatusSource());
+
     // Kick off a scheduled task to regularly update the statuses.
     statusUpdateService.schedule(new TimerTask() {
         @Override
@@ -519,12 +866,47 @@ public class FsAdaptor extends AbstractAdaptor {
           }
         }
       }, statusUpdateIntervalMillis, statusUpdateIntervalMillis);
+
+    if (changeCoalescer != null) {
+      changeCoalescer.start();
+    }
   }
 
   @Override
   public void destroy() {
     statusUpdateService.cancel();
+    if (treeWalker != null) {
+      treeWalker.shutdown();
+    }
+    if (prefetcher != null) {
+      prefetcher.shutdown();
+    }
+    if (accessChecker != null) {
+      accessChecker.shutdown();
+    }
+    if (crawlState != null) {
+      try {
+        crawlState.close();
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Unable to close the crawl state store", e);
+      }
+      crawlState = null;
+    }
     delegate.destroy();
+    if (changeCoalescer != null) {
+      changeCoalescer.shutdown();
+      changeCoalescer = null;
+    }
+  }
+
+  /**
+   * Returns the links of a DFS namespace, recording them as ACL roots in
+   * the {@link AclRootIndex}.
+   */
+  private List<Path> enumerateDfsLinks(Path namespace) throws IOException {
+    List<Path> links = delegate.enumerateDfsLinks(namespace);
+    aclRoots.setDfsLinks(namespace, links);
+    return links;
   }
 
   /** Parses the collection of startPaths from the supplied sources. */
@@ -578,7 +960,10 @@ public class FsAdaptor extends AbstractAdaptor {
       if (logging) {
         log.log(Level.INFO, "Using a DFS namespace {0}", startPath);
       }
-      for (Path link : delegate.enumerateDfsLinks(startPath)) {
+      // Even if its links cannot be enumerated now, nothing beneath the
+      // namespace inherits its ACL.
+      aclRoots.setDfsNamespace(startPath);
+      for (Path link : enumerateDfsLinks(startPath)) {
         // Postpone full validation until crawl time.
         try {
           Path dfsActiveStorage = delegate.resolveDfsLink(link);
@@ -596,16 +981,19 @@ public class FsAdaptor extends AbstractAdaptor {
           updateStatus(link, e);
         }
       }
-    } else if (startPath.equals(startPath.getRoot())) {
+    } else if (startPath.equals(startPath.getRoot())
+        || (delegate.allowsNonRootStartPaths() && !inheritsAcl(startPath))) {
       if (logging) {
         log.log(Level.INFO, "Using a non-DFS path {0}", startPath);
       }
       validateShare(startPath);
     } else {
-      // We currently only support a config path that is a root.
-      // Non-root paths will fail to produce Acls for all the folders up
-      // to the root from the configured path, so we limit configuration
-      // only to root paths.
+      // We currently only support a config path that is a root, or, where
+      // the delegate allows it, one that does not inherit any ACL from its
+      // parent (such as the mount point of a network file system on Linux).
+      // Other non-root paths will fail to produce Acls for all the folders
+      // up to the root from the configured path, so we limit configuration
+      // to those paths.
       throw new InvalidConfigurationException(
           "Invalid path " + startPath + ". Acceptable paths need to be"
           + " either \\\\host\\namespace or \\\\host\\namespace\\link"
@@ -613,6 +1001,20 @@ public class FsAdaptor extends AbstractAdaptor {
     }
   }
 
+  /**
+   * Returns true if the ACL of the path inherits entries from its parent,
+   * or if its ACL could not be read.
+   */
+  private boolean inheritsAcl(Path path) {
+    try {
+      return !delegate.getAclViews(path).getInheritedAclView().getAcl()
+          .isEmpty();
+    } catch (IOException e) {
+      log.log(Level.FINE, "Unable to read ACLs for " + path, e);
+      return true;
+    }
+  }
+
   /** Verify the path is available and we have access to it. */
   private void validateShare(Path sharePath) throws IOException {
     if (delegate.isDfsNamespace(sharePath)) {
@@ -646,7 +1048,7 @@ public class FsAdaptor extends AbstractAdaptor {
 
     // Verify that the adaptor has permission to read the Acl and share Acl.
     try {
-      readShareAcls(sharePath);
+      getShareAcls(sharePath);
       delegate.getAclViews(sharePath);
     } catch (IOException e) {
       final boolean isRoot = startPaths.contains(sharePath) || delegate.isDfsLink(sharePath);
@@ -700,6 +1102,32 @@ public class FsAdaptor extends AbstractAdaptor {
     }
   }
 
+  /**
+   * Returns the share ACLs of a start path or DFS link, reading them only if
+   * they are not cached. Failures to read them are not cached.
+   */
+  private ShareAcls getShareAcls(final Path share) throws IOException {
+    try {
+      return shareAclCache.get(share, new Callable<ShareAcls>() {
+          @Override
+          public ShareAcls call() throws IOException {
+            ShareAcls shareAcls = readShareAcls(share);
+            ShareAcls previous = previousShareAcls.put(share, shareAcls);
+            if (previous != null && !previous.equals(shareAcls)) {
+              log.log(Level.FINE, "The share ACLs of {0} changed", share);
+              invalidateAuthz(share);
+            }
+            return shareAcls;
+          }
+        });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
   private ShareAcls readShareAcls(Path share) throws IOException {
     Acl shareAcl;
     Acl dfsShareAcl;
@@ -758,9 +1186,322 @@ public class FsAdaptor extends AbstractAdaptor {
       builder.add(new Record.Builder(docid).setCrawlImmediately(true).build());
     }
     pusher.pushRecords(builder.build());
+    // Notice directories hidden or revealed while no change was reported
+    // for them, such as while a change monitor was down.
+    invalidateAllVisibility();
+    if (fullTraversal) {
+      traverseStartPaths(pusher);
+    }
     log.exiting("FsAdaptor", "getDocIds", pusher);
   }
 
+  /**
+   * Walks the file systems of all the start paths that are not blocked,
+   * pushing a Record for each file and folder found in feed-sized batches.
+   * This lets the GSA discover the documents at the speed of the file
+   * systems, rather than that of crawling each folder's listing.
+   */
+  private void traverseStartPaths(DocIdPusher pusher)
+      throws InterruptedException, IOException {
+    for (Path startPath : startPaths) {
+      if (blockedPaths.contains(startPath)) {
+        log.log(Level.INFO, "Skipping full traversal of blocked path {0}",
+                startPath);
+        continue;
+      }
+      RecordBatcher batcher = new RecordBatcher(pusher, feedMaxUrls);
+      TraversalVisitor visitor = new TraversalVisitor(batcher);
+      long started = System.currentTimeMillis();
+      log.log(Level.INFO, "Starting full traversal of {0}", startPath);
+      try {
+        if (delegate.isDfsNamespace(startPath)) {
+          for (Path link : enumerateDfsLinks(startPath)) {
+            treeWalker.walk(link, visitor);
+          }
+        } else {
+          treeWalker.walk(startPath, visitor);
+        }
+        batcher.flush();
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Full traversal of " + startPath + " failed",
+                e);
+        continue;
+      }
+      log.log(Level.INFO, "Completed full traversal of {0}, pushing {1} "
+          + "DocIds", new Object[] { startPath, batcher.getCount() });
+      pushDeletedDocIds(startPath, started, visitor.getFailedFolders(),
+          new RecordBatcher(pusher, feedMaxUrls));
+    }
+  }
+
+  /**
+   * Pushes deletes for the documents beneath a start path whose crawl state
+   * was recorded, but which a full traversal begun at {@code started} did
+   * not push, since they no longer exist. Documents beneath folders that
+   * could not be listed are left alone.
+   */
+  private void pushDeletedDocIds(Path startPath, long started,
+      Set<Path> failedFolders, RecordBatcher batcher)
+      throws InterruptedException, IOException {
+    // Once recording fails, the times documents were pushed are stale.
+    if (crawlState == null || crawlStateFailed.get()) {
+      return;
+    }
+    String prefix = delegate.newDocId(startPath).getUniqueId();
+    List<String> unlisted = new ArrayList<String>();
+    for (Path folder : failedFolders) {
+      unlisted.add(delegate.newDocId(folder).getUniqueId());
+    }
+    for (CrawlStateStore.State state : crawlState.scan(prefix)) {
+      String id = state.getDocId();
+      if (id.equals(prefix) || state.getLastPushed() >= started
+          || startsWithAny(id, unlisted)) {
+        continue;
+      }
+      log.log(Level.FINE, "Pushing deleted docid {0}", id);
+      DocId docid = new DocId(id);
+      batcher.add(new Record.Builder(docid)
+          .setDeleteFromIndex(true).build());
+      invalidateChanged(docid);
+      crawlState.remove(id);
+    }
+    batcher.flush();
+    if (batcher.getCount() > 0) {
+      log.log(Level.INFO, "Pushed {0} deleted DocIds beneath {1}",
+          new Object[] { batcher.getCount(), startPath });
+    }
+  }
+
+  private static boolean startsWithAny(String id, List<String> prefixes) {
+    for (String prefix : prefixes) {
+      if (id.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Pushes a Record for each file or folder that would be served by
+   * getDocContent.
+   */
+  private class TraversalVisitor implements FileTreeWalker.Visitor {
+    private final RecordBatcher batcher;
+    private final Set<Path> failedFolders =
+        Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    TraversalVisitor(RecordBatcher batcher) {
+      this.batcher = batcher;
+    }
+
+    /** Returns the folders whose contents could not be listed. */
+    Set<Path> getFailedFolders() {
+      return failedFolders;
+    }
+
+    @Override
+    public boolean visit(DirectoryEntry entry)
+        throws IOException, InterruptedException {
+      if (!isIncluded(entry)) {
+        return false;
+      }
+      DocId docid;
+      try {
+        docid = delegate.newDocId(entry);
+      } catch (IllegalArgumentException e) {
+        log.log(Level.WARNING, "Skipping {0} because {1}.",
+                new Object[] { entry, e.getMessage() });
+        return false;
+      }
+      batcher.add(new Record.Builder(docid).setLastModified(new Date(
+          entry.getAttributes().lastModifiedTime().toMillis())).build());
+      recordPushed(docid);
+      return true;
+    }
+
+    @Override
+    public void visitFailed(Path dir, IOException e) {
+      log.log(Level.WARNING, "Unable to list the contents of " + dir, e);
+      failedFolders.add(dir);
+    }
+  }
+
+  /**
+   * Returns {@code true} if the directory entry is a regular file or folder
+   * that passes the hidden file and file time filters.
+   */
+  private boolean isIncluded(DirectoryEntry entry) {
+    BasicFileAttributes attrs = entry.getAttributes();
+    if (!(attrs.isRegularFile() || attrs.isDirectory())) {
+      return false;
+    }
+    if (!crawlHiddenFiles && entry.isHidden()) {
+      return false;
+    }
+    if (!attrs.isDirectory()
+        && (lastAccessTimeFilter.excluded(attrs.lastAccessTime())
+            || lastModifiedTimeFilter.excluded(attrs.lastModifiedTime()))) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Walks the file systems of all the start paths, comparing the files and
+   * folders found against the snapshot taken by the previous poll, and
+   * pushes only those that were added, modified or deleted. This keeps the
+   * index fresh on file systems where change notifications are unavailable
+   * or unreliable, such as NFS mounts and some NAS filers.
+   */
+  private class SnapshotPoller implements PollingIncrementalLister {
+    @Override
+    public void getModifiedDocIds(DocIdPusher pusher)
+        throws InterruptedException, IOException {
+      log.entering("FsAdaptor", "getModifiedDocIds", new Object[] {pusher});
+      FileSnapshot previous = snapshot;
+      FileSnapshot current = new FileSnapshot();
+      RecordBatcher batcher = new RecordBatcher(pusher, feedMaxUrls);
+      for (Path startPath : startPaths) {
+        List<Path> roots;
+        if (blockedPaths.contains(startPath)) {
+          roots = Collections.emptyList();
+        } else if (delegate.isDfsNamespace(startPath)) {
+          roots = enumerateDfsLinks(startPath);
+        } else {
+          roots = Collections.singletonList(startPath);
+        }
+        if (roots.isEmpty()) {
+          current.copySubtree(previous, startPath);
+        }
+        for (Path root : roots) {
+          // Without a previous snapshot, everything would appear new, so
+          // just record the baseline. The full crawl covers the rest.
+          boolean baseline = !previous.containsDirectory(root);
+          try {
+            treeWalker.walk(root,
+                new SnapshotVisitor(previous, current, batcher, baseline));
+          } catch (IOException e) {
+            log.log(Level.WARNING, "Incremental poll of " + root + " failed",
+                    e);
+            current.copySubtree(previous, root);
+          }
+        }
+      }
+      for (FileSnapshot.Entry entry : current.getDeletedEntries(previous)) {
+        log.log(Level.FINE, "Pushing deleted docid {0}", entry.getDocId());
+        DocId docid = new DocId(entry.getDocId());
+        batcher.add(new Record.Builder(docid)
+            .setDeleteFromIndex(true).build());
+        invalidateChanged(docid);
+        if (crawlState != null) {
+          crawlState.remove(entry.getDocId());
+        }
+      }
+      batcher.flush();
+      snapshot = current;
+      try {
+        current.save(snapshotFile);
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Unable to save the incremental snapshot "
+            + snapshotFile, e);
+      }
+      log.log(Level.FINE, "Incremental poll pushed {0} records",
+              batcher.getCount());
+      log.exiting("FsAdaptor", "getModifiedDocIds", pusher);
+    }
+  }
+
+  /**
+   * Records each file or folder that would be served by getDocContent in
+   * the current snapshot, pushing those that differ from the previous
+   * snapshot. When pruning is enabled, folders whose last modified time is
+   * unchanged are not listed; their files are carried forward from the
+   * previous snapshot, and only their subfolders are visited.
+   */
+  private class SnapshotVisitor implements FileTreeWalker.CachingVisitor {
+    private final FileSnapshot previous;
+    private final FileSnapshot current;
+    private final RecordBatcher batcher;
+    private final boolean baseline;
+
+    SnapshotVisitor(FileSnapshot previous, FileSnapshot current,
+        RecordBatcher batcher, boolean baseline) {
+      this.previous = previous;
+      this.current = current;
+      this.batcher = batcher;
+      this.baseline = baseline;
+    }
+
+    @Override
+    public Iterable<DirectoryEntry> getCachedEntries(Path dir) {
+      current.addDirectory(dir);
+      if (!pruneUnchangedFolders) {
+        return null;
+      }
+      FileSnapshot.Entry before = previous.getEntry(dir);
+      Map<String, FileSnapshot.Entry> children = previous.getChildren(dir);
+      if (before == null || children == null
+          || !before.equals(current.getEntry(dir))) {
+        return null;
+      }
+      List<DirectoryEntry> subdirs = new ArrayList<DirectoryEntry>();
+      for (Map.Entry<String, FileSnapshot.Entry> child
+           : children.entrySet()) {
+        Path path = dir.resolve(child.getKey());
+        if (!child.getValue().isDirectory()) {
+          current.put(path, child.getValue());
+          continue;
+        }
+        try {
+          subdirs.add(new DirectoryEntry(path,
+              delegate.readBasicAttributes(path), delegate.isHidden(path)));
+        } catch (NoSuchFileException e) {
+          log.log(Level.FINEST, "Folder {0} was deleted", path);
+        } catch (IOException e) {
+          log.log(Level.WARNING, "Unable to read the attributes of " + path,
+                  e);
+          current.put(path, child.getValue());
+          current.copySubtree(previous, path);
+        }
+      }
+      log.log(Level.FINEST, "Skipped listing unchanged folder {0}", dir);
+      return subdirs;
+    }
+
+    @Override
+    public boolean visit(DirectoryEntry entry)
+        throws IOException, InterruptedException {
+      if (!isIncluded(entry)) {
+        return false;
+      }
+      DocId docid;
+      try {
+        docid = delegate.newDocId(entry);
+      } catch (IllegalArgumentException e) {
+        log.log(Level.WARNING, "Skipping {0} because {1}.",
+                new Object[] { entry, e.getMessage() });
+        return false;
+      }
+      FileSnapshot.Entry state =
+          new FileSnapshot.Entry(docid.getUniqueId(), entry.getAttributes());
+      current.put(entry.getPath(), state);
+      if (!baseline && !state.equals(previous.getEntry(entry.getPath()))) {
+        log.log(Level.FINE, "Pushing modified docid {0}", docid);
+        batcher.add(new Record.Builder(docid).setCrawlImmediately(true)
+            .setLastModified(new Date(state.getLastModified())).build());
+        recordPushed(docid);
+        invalidateChanged(entry.getPath());
+      }
+      return true;
+    }
+
+    @Override
+    public void visitFailed(Path dir, IOException e) {
+      log.log(Level.WARNING, "Unable to list the contents of " + dir, e);
+      current.copySubtree(previous, dir);
+    }
+  }
+
   @Override
   public void getDocContent(Request req, Response resp) throws IOException {
     log.entering("FsAdaptor", "getDocContent",
@@ -777,16 +1518,29 @@ public class FsAdaptor extends AbstractAdaptor {
       return;
     }
 
+    try {
+      getDocContent(req, resp, id, doc);
+    } finally {
+      // The GSA is done with the document, so its prefetched attributes,
+      // if any, are no longer needed.
+      prefetcher.invalidate(doc);
+    }
+    log.exiting("FsAdaptor", "getDocContent");
+  }
+
+  private void getDocContent(Request req, Response resp, DocId id, Path doc)
+      throws IOException {
     BasicFileAttributes attrs;
     try {
-      attrs = delegate.readBasicAttributes(doc);
+      attrs = prefetcher.readBasicAttributes(doc);
     } catch (FileNotFoundException | NoSuchFileException e) {
       log.log(Level.INFO, "Not found: {0}", doc);
+      forgetCrawlState(id);
       resp.respondNotFound();
       return;
     }      
 
-    if (!isFileOrFolder(doc)) {
+    if (!(attrs.isRegularFile() || attrs.isDirectory())) {
       log.log(Level.INFO, "The path {0} is not a regular file or directory.",
               doc);
       resp.respondNotFound();
@@ -826,7 +1580,8 @@ public class FsAdaptor extends AbstractAdaptor {
     if (resultLinksToShare) {
       resp.setDisplayUrl(doc.toUri());
     }
-    resp.setLastModified(new Date(attrs.lastModifiedTime().toMillis()));
+    final Date lastModified = new Date(attrs.lastModifiedTime().toMillis());
+    resp.setLastModified(lastModified);
     resp.addMetadata("Creation Time", dateFormatter.get().format(
         new Date(attrs.creationTime().toMillis())));
 
@@ -844,8 +1599,10 @@ public class FsAdaptor extends AbstractAdaptor {
     } else {
       // If we are at the root of a filesystem or share point, supply the
       // SHARE ACL. If it is a DFS Link, also include the DFS SHARE ACL.
-      if (startPaths.contains(doc) || delegate.isDfsLink(doc)) {
-        // TODO(bmj): Maybe have validateShare return the share ACLs it read.
+      if (startPaths.contains(doc) || prefetcher.isDfsLink(doc)) {
+        // Read the share ACLs anew when crawling the root. validateShare
+        // caches them, for use below and by late-binding authorization.
+        shareAclCache.invalidate(doc);
         try {
           validateShare(doc);
           updateStatus(doc, Status.Code.NORMAL);
@@ -853,19 +1610,21 @@ public class FsAdaptor extends AbstractAdaptor {
           updateStatus(doc, e);
           throw e;
         }
-        ShareAcls shareAcls = readShareAcls(doc);
+        ShareAcls shareAcls = getShareAcls(doc);
         if (shareAcls.dfsShareAcl != null) {
           resp.putNamedResource(DFS_SHARE_ACL, shareAcls.dfsShareAcl);
         }
         resp.putNamedResource(SHARE_ACL, shareAcls.shareAcl);
 
         if (monitorForUpdates) {
-          delegate.startMonitorPath(doc, context.getAsyncDocIdPusher());
+          delegate.startMonitorPath(doc, new InvalidatingPusher(
+              (changeCoalescer != null)
+              ? changeCoalescer : context.getAsyncDocIdPusher()));
         }
       }
 
       // Populate the document filesystem ACL.
-      getFileAcls(doc, resp);
+      long aclFingerprint = getFileAcls(doc, resp);
 
       // Populate the document content.
       // Some filesystem let us read the metadata and ACL, but throws
@@ -873,15 +1632,23 @@ public class FsAdaptor extends AbstractAdaptor {
       try {
         if (docIsDirectory) {
           getDirectoryContent(doc, id, lastAccessTime, resp);
+        } else if (req.canRespondWithNoContent(lastModified)) {
+          // The content is unchanged, so skip reading it. Unlike
+          // respondNotModified, this still sends the ACLs set above,
+          // since changing a file's ACL does not change its last
+          // modified time.
+          log.log(Level.FINE, "Content of {0} is unchanged.", doc);
+          resp.respondNoContent();
         } else {
-          getFileContent(doc, lastAccessTime, resp);
+          getFileContent(doc, attrs.size(), lastAccessTime, resp);
         }
+        recordServed(id, attrs, aclFingerprint);
       } catch (FileNotFoundException | NoSuchFileException e) {
         log.log(Level.INFO, "File or directory not found: {0}", doc);
+        forgetCrawlState(id);
         resp.respondNotFound();
       }
     }
-    log.exiting("FsAdaptor", "getDocContent");
   }
 
   /**
@@ -905,15 +1672,91 @@ public class FsAdaptor extends AbstractAdaptor {
     }
   }
 
-  /* Populate the document ACL in the response. */
-  private void getFileAcls(Path doc, Response resp) throws IOException {
+  /**
+   * Records the state of a document that was served, keeping the time it
+   * was last pushed.
+   */
+  private void recordServed(DocId docid, BasicFileAttributes attrs,
+      long aclFingerprint) {
+    if (crawlState == null || crawlStateFailed.get()) {
+      return;
+    }
+    try {
+      crawlState.putServed(docid.getUniqueId(),
+          attrs.lastModifiedTime().toMillis(),
+          attrs.isDirectory() ? 0L : attrs.size(), aclFingerprint);
+    } catch (IOException e) {
+      stopRecordingCrawlState(e);
+    }
+  }
+
+  /**
+   * Records the time a document was pushed, keeping the state it was last
+   * served with.
+   */
+  private void recordPushed(DocId docid) {
+    if (crawlState == null || crawlStateFailed.get()) {
+      return;
+    }
+    try {
+      crawlState.putPushed(docid.getUniqueId(), System.currentTimeMillis());
+    } catch (IOException e) {
+      stopRecordingCrawlState(e);
+    }
+  }
+
+  /**
+   * Stops recording crawl state after it could not be stored, such as when
+   * the store is full, rather than failing the document being served or
+   * pushed.
+   */
+  private void stopRecordingCrawlState(IOException e) {
+    if (crawlStateFailed.compareAndSet(false, true)) {
+      log.log(Level.WARNING, "Unable to record crawl state. No longer "
+          + "recording it.", e);
+    }
+  }
+
+  /**
+   * Forgets the crawl state of a document that no longer exists, along
+   * with that of everything beneath it if it was a folder.
+   */
+  private void forgetCrawlState(DocId docid) {
+    if (crawlState == null) {
+      return;
+    }
+    String id = docid.getUniqueId();
+    if (id.endsWith("/")) {
+      crawlState.removeAll(id);
+    } else {
+      crawlState.remove(id);
+    }
+  }
+
+  /**
+   * Returns a fingerprint of the file system ACLs of a document, which
+   * changes whenever the ACLs do.
+   */
+  private static long getAclFingerprint(AclFileAttributeViews aclViews)
+      throws IOException {
+    return 31L * aclViews.getDirectAclView().getAcl().hashCode()
+        + aclViews.getInheritedAclView().getAcl().hashCode();
+  }
+
+  /**
+   * Sets the ACL of the document, and the inheritable ACLs of a folder.
+   *
+   * @return the fingerprint of the document's file system ACLs
+   */
+  private long getFileAcls(Path doc, Response resp) throws IOException {
     if (delegate.isDfsNamespace(doc)) {
       throw new AssertionError("getFileAcls may not be called on "
           + "DFS namespace paths.");
       }
-    final boolean isRoot = startPaths.contains(doc) || delegate.isDfsLink(doc);
-    final boolean isDirectory = delegate.isDirectory(doc);
-    AclFileAttributeViews aclViews = delegate.getAclViews(doc);
+    final boolean isRoot =
+        startPaths.contains(doc) || prefetcher.isDfsLink(doc);
+    final boolean isDirectory = prefetcher.isDirectory(doc);
+    AclFileAttributeViews aclViews = prefetcher.getAclViews(doc);
     boolean hasNoInheritedAcl =
         aclViews.getInheritedAclView().getAcl().isEmpty();
 
@@ -923,11 +1766,17 @@ public class FsAdaptor extends AbstractAdaptor {
       inheritFrom = doc;
     } else if (hasNoInheritedAcl) {
       // Files and folders that do not inherit permissions from their parent
-      // inherit directly from the share ACL. Crawl up to node with share ACL.
-      for (inheritFrom = doc;
-          !startPaths.contains(inheritFrom) && !delegate.isDfsLink(inheritFrom);
-          inheritFrom = getParent(inheritFrom)) {
-        // Empty body.
+      // inherit directly from the share ACL.
+      inheritFrom = aclRoots.getAclRoot(doc);
+      if (inheritFrom == null) {
+        // The DFS links above the document are not known. Crawl up to node
+        // with share ACL.
+        for (inheritFrom = doc; inheritFrom != null
+            && !startPaths.contains(inheritFrom)
+            && !delegate.isDfsLink(inheritFrom);
+            inheritFrom = getParent(inheritFrom)) {
+          // Empty body.
+        }
       }
     } else {
       // All others inherit permissions from their parent.
@@ -938,20 +1787,18 @@ public class FsAdaptor extends AbstractAdaptor {
     }
     DocId inheritFromDocId = delegate.newDocId(inheritFrom);
 
-    AclBuilder builder;
+    AclCache.Acls acls;
     Acl acl;
     if (isRoot || hasNoInheritedAcl) {
-      builder = new AclBuilder(doc, aclViews.getCombinedAclView(),
-          supportedWindowsAccounts, builtinPrefix, namespace);
-      acl = builder.getAcl().setInheritFrom(inheritFromDocId, SHARE_ACL)
+      acls = aclCache.getAcls(doc, aclViews.getCombinedAclView());
+      acl = acls.getAcl().setInheritFrom(inheritFromDocId, SHARE_ACL)
           .setInheritanceType(isDirectory ? InheritanceType.CHILD_OVERRIDES
                               : InheritanceType.LEAF_NODE).build();
     } else {
-      builder = new AclBuilder(doc, aclViews.getDirectAclView(),
-          supportedWindowsAccounts, builtinPrefix, namespace);
+      acls = aclCache.getAcls(doc, aclViews.getDirectAclView());
       if (isDirectory) {
         if (indexFolders) {
-          acl = builder.getAcl()
+          acl = acls.getAcl()
               .setInheritFrom(inheritFromDocId, CHILD_FOLDER_INHERIT_ACL)
               .setInheritanceType(InheritanceType.CHILD_OVERRIDES).build();
         } else {
@@ -959,7 +1806,7 @@ public class FsAdaptor extends AbstractAdaptor {
           acl = null;
         }
       } else {
-        acl = builder.getAcl()
+        acl = acls.getAcl()
             .setInheritFrom(inheritFromDocId, CHILD_FILE_INHERIT_ACL)
             .setInheritanceType(InheritanceType.LEAF_NODE).build();
       }
@@ -972,40 +1819,41 @@ public class FsAdaptor extends AbstractAdaptor {
     if (isDirectory) {
       if (isRoot || hasNoInheritedAcl) {
         resp.putNamedResource(ALL_FOLDER_INHERIT_ACL, 
-            builder.getInheritableByAllDescendentFoldersAcl()
+            acls.getInheritableByAllDescendentFoldersAcl()
             .setInheritFrom(inheritFromDocId, SHARE_ACL)
             .setInheritanceType(InheritanceType.CHILD_OVERRIDES).build());
         resp.putNamedResource(ALL_FILE_INHERIT_ACL,
-            builder.getInheritableByAllDescendentFilesAcl()
+            acls.getInheritableByAllDescendentFilesAcl()
             .setInheritFrom(inheritFromDocId, SHARE_ACL)
             .setInheritanceType(InheritanceType.CHILD_OVERRIDES).build());
         resp.putNamedResource(CHILD_FOLDER_INHERIT_ACL,
-            builder.getInheritableByChildFoldersOnlyAcl()
+            acls.getInheritableByChildFoldersOnlyAcl()
             .setInheritFrom(inheritFromDocId, SHARE_ACL)
             .setInheritanceType(InheritanceType.CHILD_OVERRIDES).build());
         resp.putNamedResource(CHILD_FILE_INHERIT_ACL,
-            builder.getInheritableByChildFilesOnlyAcl()
+            acls.getInheritableByChildFilesOnlyAcl()
             .setInheritFrom(inheritFromDocId, SHARE_ACL)
             .setInheritanceType(InheritanceType.CHILD_OVERRIDES).build());
       } else {
         resp.putNamedResource(ALL_FOLDER_INHERIT_ACL, 
-            builder.getInheritableByAllDescendentFoldersAcl()
+            acls.getInheritableByAllDescendentFoldersAcl()
             .setInheritFrom(inheritFromDocId, ALL_FOLDER_INHERIT_ACL)
             .setInheritanceType(InheritanceType.CHILD_OVERRIDES).build());
         resp.putNamedResource(ALL_FILE_INHERIT_ACL,
-            builder.getInheritableByAllDescendentFilesAcl()
+            acls.getInheritableByAllDescendentFilesAcl()
             .setInheritFrom(inheritFromDocId, ALL_FILE_INHERIT_ACL)
             .setInheritanceType(InheritanceType.CHILD_OVERRIDES).build());
         resp.putNamedResource(CHILD_FOLDER_INHERIT_ACL,
-            builder.getInheritableByChildFoldersOnlyAcl()
+            acls.getInheritableByChildFoldersOnlyAcl()
             .setInheritFrom(inheritFromDocId, ALL_FOLDER_INHERIT_ACL)
             .setInheritanceType(InheritanceType.CHILD_OVERRIDES).build());
         resp.putNamedResource(CHILD_FILE_INHERIT_ACL,
-            builder.getInheritableByChildFilesOnlyAcl()
+            acls.getInheritableByChildFilesOnlyAcl()
             .setInheritFrom(inheritFromDocId, ALL_FILE_INHERIT_ACL)
             .setInheritanceType(InheritanceType.CHILD_OVERRIDES).build());
       }
     }
+    return getAclFingerprint(aclViews);
   }
 
   /* Makes HTML document with web links to namespace's DFS links. */
@@ -1014,7 +1862,7 @@ public class FsAdaptor extends AbstractAdaptor {
     resp.setNoIndex(!indexFolders);
     try (HtmlResponseWriter writer = createHtmlResponseWriter(resp)) {
       writer.start(docid, getFileName(doc));
-      for (Path link : delegate.enumerateDfsLinks(doc)) {
+      for (Path link : enumerateDfsLinks(doc)) {
         DocId docId;
         try {
           docId = delegate.newDocId(link);
@@ -1033,50 +1881,58 @@ public class FsAdaptor extends AbstractAdaptor {
   private void getDirectoryContent(Path doc, DocId docid,
       FileTime lastAccessTime, Response resp) throws IOException {
     resp.setNoIndex(!indexFolders);
-    try (DirectoryStream<Path> files = delegate.newDirectoryStream(doc);
+    try (DirectoryStream<DirectoryEntry> entries =
+             delegate.newDirectoryEntryStream(doc);
          HtmlResponseWriter writer = createHtmlResponseWriter(resp)) {
       writer.start(docid, getFileName(doc));
-      for (Path file : files) {
+      for (DirectoryEntry entry : entries) {
+        Path file = entry.getPath();
+        if (!crawlHiddenFiles && entry.isHidden()) {
+          // Hidden files would be rejected when fetched, so don't link them.
+          log.log(Level.FINEST, "Skipping hidden file {0}", file);
+          continue;
+        }
         DocId docId;
         try {
-          docId = delegate.newDocId(file);
+          docId = delegate.newDocId(entry);
         } catch (IllegalArgumentException e) {
           log.log(Level.WARNING, "Skipping {0} because {1}.",
                   new Object[] { file, e.getMessage() });
           continue;
         }
         writer.addLink(docId, file.getFileName().toString());
+        prefetcher.prefetch(entry);
       }
       writer.finish();
+    } catch (DirectoryIteratorException e) {
+      throw e.getCause();
     } finally {
       setLastAccessTime(doc, lastAccessTime);
     }
   }
 
   /* Adds the file's content to the response. */
-  private void getFileContent(Path doc, FileTime lastAccessTime, Response resp)
-      throws IOException {
-    resp.setContentType(delegate.probeContentType(doc));
-    try (InputStream input = delegate.newInputStream(doc)) {
-      copyStream(input, resp.getOutputStream());
+  private void getFileContent(Path doc, long size, FileTime lastAccessTime,
+      final Response resp) throws IOException {
+    final String contentType = contentTypes.getContentType(doc);
+    try (ReadableByteChannel input = delegate.newReadableByteChannel(doc)) {
+      contentTransfer.transfer(input, size,
+          new ContentTransfer.Destination() {
+            @Override
+            public OutputStream open(byte[] head, int length)
+                throws IOException {
+              // Content types not known from the file name are sniffed
+              // from the first buffer of content.
+              resp.setContentType((contentType != null) ? contentType
+                  : contentTypes.sniffContentType(head, length));
+              return resp.getOutputStream();
+            }
+          });
     } finally {
       setLastAccessTime(doc, lastAccessTime);      
     }
   }
 
-  /**
-   * Copy contents of {@code in} to {@code out}.
-   */
-  private static void copyStream(InputStream in, OutputStream out)
-      throws IOException {
-    byte[] buffer = new byte[32 * 1024];
-    int read;
-    while ((read = in.read(buffer)) != -1) {
-      out.write(buffer, 0, read);
-    }
-    out.flush();
-  }
-
   /**
    * Sets the last access time for the file to the supplied {@code FileTime}.
    * Failure to preserve last access times can fool backup and archive systems
@@ -1124,19 +1980,17 @@ public class FsAdaptor extends AbstractAdaptor {
     
   /** Returns the startPath that {@code doc} resides under. */
   private Path getStartPath(Path doc) throws IOException {
-    for (Path startPath : startPaths) {
-      if (doc.startsWith(startPath)) {
-        return startPath;
-      }
+    Path startPath = aclRoots.getStartPath(doc);
+    if (startPath == null) {
+      throw new IOException("Unable to determine the start path for " + doc);
     }
-    throw new IOException("Unable to determine the start path for " + doc);
+    return startPath;
   }
 
   private HtmlResponseWriter createHtmlResponseWriter(Response response)
       throws IOException {
     response.setContentType("text/html; charset=" + CHARSET.name());
-    Writer writer = new OutputStreamWriter(response.getOutputStream(),
-        CHARSET);
+    Writer writer = new Utf8Writer(response.getOutputStream());
     // TODO(ejona): Get locale from request.
     return new HtmlResponseWriter(writer, context.getDocIdEncoder(),
         Locale.ENGLISH);
@@ -1159,21 +2013,25 @@ public class FsAdaptor extends AbstractAdaptor {
   }
 
   /** These are the cached entities in the isVisibleCache. */
-  private static enum HiddenType {
-      VISIBLE, HIDDEN, HIDDEN_UNDER, NOT_UNDER_STARTPATH
-    };
+  private static enum HiddenType { VISIBLE, HIDDEN, NOT_UNDER_STARTPATH };
 
+  /**
+   * The visibility of a directory, derived from its own hidden attribute
+   * and the visibility of its parent. It is valid as long as neither the
+   * directory nor any of its ancestors has been invalidated since the
+   * version it was derived at.
+   */
   private static class Hidden {
-    public HiddenType type;
-    public Path hiddenBy;
+    public final HiddenType type;
+    /** The hidden directory, for the HIDDEN type. */
+    public final Path hiddenBy;
+    /** The visibility version read before this was derived. */
+    private final long version;
 
-    public Hidden(HiddenType type) {
-      this.type = type;
-    }
-
-    public Hidden(HiddenType type, Path hiddenBy) {
+    public Hidden(HiddenType type, Path hiddenBy, long version) {
       this.type = type;
       this.hiddenBy = hiddenBy;
+      this.version = version;
     }
   }
 
@@ -1186,8 +2044,8 @@ public class FsAdaptor extends AbstractAdaptor {
     final Path dir;
     // I only want to cache directories, not regular files; so check
     // for hidden files directly, but cache its parent.
-    if (delegate.isRegularFile(doc)) {
-      if (!crawlHiddenFiles && delegate.isHidden(doc)) {
+    if (prefetcher.isRegularFile(doc)) {
+      if (!crawlHiddenFiles && prefetcher.isHidden(doc)) {
         log.log(Level.WARNING, "Skipping file {0} because it is hidden.", doc);
         return false;
       }
@@ -1196,43 +2054,17 @@ public class FsAdaptor extends AbstractAdaptor {
       dir = doc;
     }
 
-    // Cache isVisibleDecendantOfRoot results for directories.
-    Hidden hidden;
-    try {
-      hidden = isVisibleCache.get(dir, new Callable<Hidden>() {
-          @Override
-          public Hidden call() throws IOException {
-            for (Path file = dir; file != null; file = getParent(file)) {
-              if (!crawlHiddenFiles && delegate.isHidden(file)) {
-                if (doc == file) {
-                  return new Hidden(HiddenType.HIDDEN);
-                } else {
-                  return new Hidden(HiddenType.HIDDEN_UNDER, file);
-                }
-              }
-              if (startPaths.contains(file)) {
-                return new Hidden(HiddenType.VISIBLE);
-              }
-            }
-            return new Hidden(HiddenType.NOT_UNDER_STARTPATH);
-          }
-        });
-    } catch (ExecutionException e) {
-      if (e.getCause() instanceof IOException) {
-        throw (IOException) (e.getCause());
-      } else {
-        throw new IOException(e);
-      }
-    }
-
+    Hidden hidden = getVisibility(dir);
     if (hidden.type == HiddenType.VISIBLE) {
       return true;
     } else if (hidden.type == HiddenType.HIDDEN) {
-      log.log(Level.WARNING, "Skipping {0} because it is hidden.", doc);
-    } else if (hidden.type == HiddenType.HIDDEN_UNDER) {
-      log.log(Level.WARNING,
-              "Skipping {0} because it is hidden under {1}.",
-              new Object[] { doc, hidden.hiddenBy });
+      if (hidden.hiddenBy.equals(doc)) {
+        log.log(Level.WARNING, "Skipping {0} because it is hidden.", doc);
+      } else {
+        log.log(Level.WARNING,
+                "Skipping {0} because it is hidden under {1}.",
+                new Object[] { doc, hidden.hiddenBy });
+      }
     } else if (hidden.type == HiddenType.NOT_UNDER_STARTPATH) {
       log.log(Level.WARNING,
               "Skipping {0} because it is not a descendant of a start path.",
@@ -1241,6 +2073,102 @@ public class FsAdaptor extends AbstractAdaptor {
     return false;
   }
 
+  /**
+   * Returns the visibility of a directory. Only the directories between it
+   * and its nearest ancestor with a cached visibility, or its start path,
+   * are checked for the hidden attribute, and their visibility is cached.
+   */
+  private Hidden getVisibility(Path dir) throws IOException {
+    // Read before anything is checked, so that a change reported while
+    // checking invalidates what is derived.
+    long version = visibilityVersion.get();
+    Hidden hidden = isVisibleCache.getIfPresent(dir);
+    if (hidden != null && isValid(dir, hidden)) {
+      isVisibleCacheHits.incrementAndGet();
+      return hidden;
+    }
+    isVisibleCacheMisses.incrementAndGet();
+
+    // Walk up to the nearest ancestor whose visibility is known.
+    Deque<Path> unknown = new ArrayDeque<Path>();
+    Hidden known = null;
+    for (Path file = dir; file != null; file = getParent(file)) {
+      hidden = isVisibleCache.getIfPresent(file);
+      if (hidden != null && isValid(file, hidden)) {
+        known = hidden;
+        break;
+      }
+      unknown.push(file);
+      if (startPaths.contains(file)) {
+        break;
+      }
+    }
+
+    // Then derive the visibility of each directory from that of its parent.
+    hidden = known;
+    for (Path file : unknown) {
+      if (hidden != null && hidden.type == HiddenType.HIDDEN) {
+        hidden = new Hidden(HiddenType.HIDDEN, hidden.hiddenBy, version);
+      } else if (!crawlHiddenFiles && delegate.isHidden(file)) {
+        hidden = new Hidden(HiddenType.HIDDEN, file, version);
+      } else if (startPaths.contains(file)) {
+        hidden = new Hidden(HiddenType.VISIBLE, null, version);
+      } else if (hidden == null) {
+        hidden = new Hidden(HiddenType.NOT_UNDER_STARTPATH, null, version);
+      } else {
+        hidden = new Hidden(hidden.type, null, version);
+      }
+      isVisibleCache.put(file, hidden);
+    }
+    return hidden;
+  }
+
+  /**
+   * Returns true if neither all visibility, nor the directory, nor any of
+   * its ancestors were invalidated after its visibility was derived.
+   */
+  private boolean isValid(Path dir, Hidden hidden) throws IOException {
+    if (hidden.version < visibilityClearedVersion) {
+      return false;
+    }
+    for (Path path = dir; path != null; path = getParent(path)) {
+      Long invalidated = visibilityInvalidations.getIfPresent(path);
+      if (invalidated != null && hidden.version < invalidated) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Forgets the visibility of a changed directory and of everything
+   * beneath it, whether or not its own visibility is still cached.
+   */
+  private void invalidateVisibility(Path path) {
+    if (visibilityInvalidations.size() >= VISIBILITY_INVALIDATIONS_SIZE) {
+      invalidateAllVisibility();
+      return;
+    }
+    visibilityInvalidations.put(path, visibilityVersion.incrementAndGet());
+    isVisibleCache.invalidate(path);
+  }
+
+  private void invalidateAllVisibility() {
+    visibilityClearedVersion = visibilityVersion.incrementAndGet();
+    isVisibleCache.invalidateAll();
+    visibilityInvalidations.invalidateAll();
+  }
+
+  @VisibleForTesting
+  long getVisibilityCacheHits() {
+    return isVisibleCacheHits.get();
+  }
+
+  @VisibleForTesting
+  long getVisibilityCacheMisses() {
+    return isVisibleCacheMisses.get();
+  }
+
   private class ShareAcls {
     private final Acl shareAcl;
     private final Acl dfsShareAcl;
@@ -1250,6 +2178,21 @@ public class FsAdaptor extends AbstractAdaptor {
       this.shareAcl = shareAcl;
       this.dfsShareAcl = dfsShareAcl;
     }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ShareAcls)) {
+        return false;
+      }
+      ShareAcls other = (ShareAcls) o;
+      return shareAcl.equals(other.shareAcl)
+          && Objects.equal(dfsShareAcl, other.dfsShareAcl);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(shareAcl, dfsShareAcl);
+    }
   }
 
   private static interface FileTimeFilter {
@@ -1366,6 +2309,38 @@ public class FsAdaptor extends AbstractAdaptor {
     }
   }
 
+  /** Reports how the content types of files have been determined. */
+  private class ContentTypeStatusSource implements StatusSource {
+    @Override
+    public String getName(Locale locale) {
+      return "Content type detection";
+    }
+
+    @Override
+    public Status retrieveStatus() {
+      return new FsStatus(Status.Code.NORMAL, contentTypes.getStatistics());
+    }
+  }
+
+  /** Reports how well the cache of directory visibility is working. */
+  private class VisibilityCacheStatusSource implements StatusSource {
+    @Override
+    public String getName(Locale locale) {
+      return "Directory visibility cache";
+    }
+
+    @Override
+    public Status retrieveStatus() {
+      long hits = isVisibleCacheHits.get();
+      long misses = isVisibleCacheMisses.get();
+      double hitRatio =
+          (hits + misses == 0) ? 0.0 : (double) hits / (hits + misses);
+      return new FsStatus(Status.Code.NORMAL, String.format(
+          "Hits: %d, misses: %d, hit ratio: %.1f%%, cached directories: %d",
+          hits, misses, 100 * hitRatio, isVisibleCache.size()));
+    }
+  }
+
   private void updateStatus(Path path, Status.Code code) {
     fsStatus.put(path, new FsStatus(code));
     log.log(Level.FINE, "Dashboard Status of {0} set to {1}",
@@ -1385,8 +2360,15 @@ public class FsAdaptor extends AbstractAdaptor {
         { path, status.getCode(), status.getMessage(Locale.ROOT) });
   }
 
-  private void updateAllStatus() {
+  @VisibleForTesting
+  void updateAllStatus() {
     log.log(Level.FINE, "Updating Dashboard Status");
+    // Notice DFS links that have been added, removed or moved to another
+    // storage since the last update.
+    delegate.invalidateDfsCache();
+    // Read the share ACLs again, so changes to them are noticed. Validating
+    // the start paths below caches the share ACLs of the start paths anew.
+    shareAclCache.invalidateAll();
     for (Path path : fsStatus.keySet()) {
       if (blockedPaths.contains(path)) {
         // Leave the current status as is.
@@ -1403,6 +2385,75 @@ public class FsAdaptor extends AbstractAdaptor {
     }
   }
 
+  /**
+   * Forgets the authorization decisions for a changed path and everything
+   * beneath it.
+   */
+  private void invalidateAuthz(Path path) {
+    if (authzCache != null) {
+      authzCache.invalidate(path);
+    }
+  }
+
+  /**
+   * Forgets the cached visibility and authorization decisions for a changed
+   * path and everything beneath it.
+   */
+  private void invalidateChanged(Path path) {
+    invalidateVisibility(path);
+    invalidateAuthz(path);
+  }
+
+  private void invalidateChanged(DocId id) {
+    try {
+      invalidateChanged(delegate.getPath(id.getUniqueId()));
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Unable to forget the cached decisions for "
+          + id, e);
+      invalidateAllChanged();
+    } catch (InvalidPathException e) {
+      log.log(Level.WARNING, "Unable to forget the cached decisions for "
+          + id, e);
+      invalidateAllChanged();
+    }
+  }
+
+  private void invalidateAllChanged() {
+    invalidateAllVisibility();
+    if (authzCache != null) {
+      authzCache.invalidateAll();
+    }
+  }
+
+  /**
+   * Passes on the records pushed by the change monitors, first forgetting
+   * the cached decisions for the changed paths.
+   */
+  private class InvalidatingPusher implements AsyncDocIdPusher {
+    private final AsyncDocIdPusher pusher;
+
+    InvalidatingPusher(AsyncDocIdPusher pusher) {
+      this.pusher = pusher;
+    }
+
+    @Override
+    public boolean pushDocId(DocId docId) {
+      invalidateChanged(docId);
+      return pusher.pushDocId(docId);
+    }
+
+    @Override
+    public boolean pushRecord(Record record) {
+      invalidateChanged(record.getDocId());
+      return pusher.pushRecord(record);
+    }
+
+    @Override
+    public boolean pushNamedResource(DocId docId, Acl acl) {
+      return pusher.pushNamedResource(docId, acl);
+    }
+  }
+
   private static Map<DocId, AuthzStatus> allDeny(Collection<DocId> ids) {
     ImmutableMap.Builder<DocId, AuthzStatus> result
         = ImmutableMap.<DocId, AuthzStatus>builder();
@@ -1416,9 +2467,46 @@ public class FsAdaptor extends AbstractAdaptor {
   // Used to get around pre-condition requiring all parts of chain other
   // than root to have inheritFrom be set.
 
+  /**
+   * Evaluates the documents of an authorization request concurrently.
+   * The ACL root of each document is found first, sharing the walk up
+   * the folders among documents in the same folders, and the share ACLs
+   * at the head of the ACL chain are read once for each ACL root. The
+   * ACLs of the documents themselves are then read and evaluated by a
+   * bounded pool of threads. Documents that are not evaluated before the
+   * deadline of the request are reported as indeterminate.
+   * <p>
+   * The ACLs are evaluated by an {@link AclEvaluator}, and the compiled ACL
+   * of a document is cached for each distinct file system ACL, so documents
+   * sharing an ACL are compiled once.
+   * <p>
+   * Decisions are kept in the {@link AuthzCache}, and documents with a
+   * cached decision are not evaluated again.
+   */
   private class AccessChecker implements AuthzAuthority {
-    public Map<DocId, AuthzStatus> isUserAuthorized(AuthnIdentity userIdentity,
-        Collection<DocId> ids) throws IOException {
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final AclEvaluator evaluator = new AclEvaluator();
+    private final Cache<List<AclEntry>, AclEvaluator.CompiledAcl> leafAcls =
+        CacheBuilder.newBuilder().maximumSize(10000)
+        .expireAfterWrite(1, TimeUnit.HOURS).build();
+
+    AccessChecker(int threads, long timeoutMillis) {
+      this.executor = new ThreadPoolExecutor(threads, threads,
+          60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setNameFormat("Authz-%d")
+              .setDaemon(true).build());
+      this.executor.allowCoreThreadTimeOut(true);
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    void shutdown() {
+      executor.shutdownNow();
+    }
+
+    public Map<DocId, AuthzStatus> isUserAuthorized(
+        final AuthnIdentity userIdentity, Collection<DocId> ids)
+        throws IOException {
       if (null == userIdentity) {
         log.info("The identity to authorize is null.");
         return allDeny(ids);  // TODO: consider way to permit public
@@ -1429,73 +2517,232 @@ public class FsAdaptor extends AbstractAdaptor {
         return allDeny(ids);  // TODO: consider way to permit public
       }
       log.log(Level.INFO, "About to authorize {0}.", user);
-      ImmutableMap.Builder<DocId, AuthzStatus> result
-          = ImmutableMap.<DocId, AuthzStatus>builder();
+      AuthzCache.Subject subject = new AuthzCache.Subject(userIdentity);
+      AclEvaluator.Subject principals = evaluator.newSubject(userIdentity);
+      long version = authzCache.getVersion();
+      long deadline =
+          System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      Map<DocId, AuthzStatus> result = new LinkedHashMap<DocId, AuthzStatus>();
+      Map<DocId, Future<AuthzStatus>> pending =
+          new LinkedHashMap<DocId, Future<AuthzStatus>>();
+      Map<DocId, Path> leaves = new HashMap<DocId, Path>();
+      Map<Path, Path> knownRoots = new HashMap<Path, Path>();
+      Map<Path, FutureTask<List<AclEvaluator.CompiledAcl>>> shareAcls =
+          new HashMap<Path, FutureTask<List<AclEvaluator.CompiledAcl>>>();
       for (DocId id : ids) {
         try {
           log.log(Level.FINE, "About to authorize {0} for {1}.",
               new Object[]{user, id});
-          List<Acl> aclChain = makeAclChain(delegate.getPath(id.getUniqueId()));
-          AuthzStatus decision = Acl.isAuthorized(userIdentity, aclChain);
-          log.log(Level.FINE,
-              "Authorization decision {0} for user {1} and doc {2}.",
-              new Object[]{decision, user, id});
-          result.put(id, decision);
+          Path leaf = delegate.getPath(id.getUniqueId());
+          AuthzStatus cached = authzCache.get(subject, id, leaf);
+          if (cached != null) {
+            log.log(Level.FINE,
+                "Cached authorization decision {0} for user {1} and doc {2}.",
+                new Object[]{cached, user, id});
+            result.put(id, cached);
+            continue;
+          }
+          if (delegate.isDfsNamespace(leaf)) {
+            throw new IOException(
+                "Late-binding for DFS Namespace is not supported: " + leaf);
+          }
+          Path aclRoot = getAclRoot(leaf, knownRoots);
+          log.log(Level.FINEST, "ACL root of {0} is {1}",
+              new Object[]{leaf, aclRoot});
+          FutureTask<List<AclEvaluator.CompiledAcl>> shareAclsTask =
+              shareAcls.get(aclRoot);
+          if (shareAclsTask == null) {
+            shareAclsTask = newShareAclsTask(aclRoot);
+            shareAcls.put(aclRoot, shareAclsTask);
+          }
+          leaves.put(id, leaf);
+          pending.put(id, executor.submit(
+              newCheck(principals, user, id, leaf, shareAclsTask)));
         } catch (IOException ioe) {
           log.log(Level.WARNING, "Could not get ACL.", ioe);
           result.put(id, AuthzStatus.INDETERMINATE);
         }
       }
+      for (Map.Entry<DocId, Future<AuthzStatus>> entry : pending.entrySet()) {
+        DocId id = entry.getKey();
+        AuthzStatus decision = getDecision(id, entry.getValue(), deadline);
+        if (decision != AuthzStatus.INDETERMINATE) {
+          authzCache.put(subject, id, leaves.get(id), decision, version);
+        }
+        result.put(id, decision);
+      }
       log.log(Level.FINEST, "Done with authorizing {0}.", user);
-      return result.build();
+      return ImmutableMap.copyOf(result);
+    }
+
+    /**
+     * Returns a task that decides whether the user may read the leaf,
+     * given the share ACLs of its ACL root.
+     */
+    private Callable<AuthzStatus> newCheck(
+        final AclEvaluator.Subject principals, final UserPrincipal user,
+        final DocId id, final Path leaf,
+        final FutureTask<List<AclEvaluator.CompiledAcl>> shareAclsTask) {
+      return new Callable<AuthzStatus>() {
+        @Override
+        public AuthzStatus call() throws IOException, InterruptedException {
+          List<AclEvaluator.CompiledAcl> aclChain =
+              makeAclChain(leaf, shareAclsTask);
+          AuthzStatus decision =
+              AclEvaluator.isAuthorized(principals, aclChain);
+          log.log(Level.FINE,
+              "Authorization decision {0} for user {1} and doc {2}.",
+              new Object[]{decision, user, id});
+          return decision;
+        }
+      };
+    }
+
+    /**
+     * Returns a task reading and compiling the share ACLs of an ACL root.
+     * The task is run by the first check that needs it, and the other
+     * checks under the same ACL root wait for it.
+     */
+    private FutureTask<List<AclEvaluator.CompiledAcl>> newShareAclsTask(
+        final Path aclRoot) {
+      return new FutureTask<List<AclEvaluator.CompiledAcl>>(
+          new Callable<List<AclEvaluator.CompiledAcl>>() {
+            @Override
+            public List<AclEvaluator.CompiledAcl> call() throws IOException {
+              ShareAcls shareAcls = getShareAcls(aclRoot);
+              List<AclEvaluator.CompiledAcl> compiled =
+                  new ArrayList<AclEvaluator.CompiledAcl>(2);
+              if (shareAcls.dfsShareAcl != null) {
+                compiled.add(evaluator.compile(shareAcls.dfsShareAcl));
+              }
+              compiled.add(evaluator.compile(shareAcls.shareAcl));
+              return compiled;
+            }
+          });
+    }
+
+    /**
+     * Waits for the decision of a check until the deadline, returning
+     * {@code INDETERMINATE} if the check failed or did not finish in time.
+     */
+    private AuthzStatus getDecision(DocId id, Future<AuthzStatus> decision,
+        long deadline) {
+      try {
+        return decision.get(deadline - System.nanoTime(),
+            TimeUnit.NANOSECONDS);
+      } catch (ExecutionException e) {
+        log.log(Level.WARNING, "Could not get ACL.", e.getCause());
+      } catch (TimeoutException e) {
+        log.log(Level.WARNING, "Authorization of {0} timed out.", id);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      decision.cancel(true);
+      return AuthzStatus.INDETERMINATE;
     }
 
     /** Our chain will consist of (1) DFS-link ACL, (2) active-storage ACL,
      *  and (3) combined ACL of entire file system folder hiearachy with leaf
      *  ACL. If there is no DFS-link in chain then we skip that ACL.
      */
-    private List<Acl> makeAclChain(final Path leaf) throws IOException {
-      if (delegate.isDfsNamespace(leaf)) {
-        String msg = "Late-binding for DFS Namespace is not supported: " + leaf;
-        throw new IOException(msg);
-      }
-      final Path aclRoot = getAclRoot(leaf);
-      log.log(Level.FINEST, "ACL root of {0} is {1}",
-          new Object[]{leaf, aclRoot});
+    private List<AclEvaluator.CompiledAcl> makeAclChain(final Path leaf,
+        FutureTask<List<AclEvaluator.CompiledAcl>> shareAclsTask)
+        throws IOException, InterruptedException {
       // Check exists after getAclRoot determines if leaf is under a startpath.
       if (!isFileOrFolder(leaf)) {
         throw new IOException("Not a file or folder: " + leaf);
       }
-      List<Acl> aclChain = new ArrayList<Acl>(3);
-      ShareAcls shareAcls = readShareAcls(aclRoot);
-      if (shareAcls.dfsShareAcl != null) {
-        aclChain.add(shareAcls.dfsShareAcl);
-      }
-      aclChain.add(shareAcls.shareAcl);
-      aclChain.add(makeLeafAcl(leaf));
-      log.log(Level.FINEST, "ACL chain for {0} is {1}",
-          new Object[]{leaf, aclChain});
+      List<AclEvaluator.CompiledAcl> aclChain =
+          new ArrayList<AclEvaluator.CompiledAcl>(3);
+      aclChain.addAll(awaitShareAcls(shareAclsTask));
+      aclChain.add(getLeafAcl(leaf));
       return aclChain;
     }
-  
-    private Path getAclRoot(final Path leaf) throws IOException {
+
+    private List<AclEvaluator.CompiledAcl> awaitShareAcls(
+        FutureTask<List<AclEvaluator.CompiledAcl>> shareAclsTask)
+        throws IOException, InterruptedException {
+      // Read the share ACLs here if no other check has started to.
+      shareAclsTask.run();
+      try {
+        return shareAclsTask.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+
+    /**
+     * Returns the ACL root of the leaf, from the {@link AclRootIndex} if it
+     * is known there. Otherwise, the ACL roots found for the leaf and its
+     * ancestors are remembered in {@code knownRoots}, so later leaves in
+     * the same folders need not check them again.
+     */
+    private Path getAclRoot(final Path leaf, Map<Path, Path> knownRoots)
+        throws IOException {
+      Path aclRoot = aclRoots.getAclRoot(leaf);
+      if (aclRoot != null) {
+        return aclRoot;
+      }
+      // The DFS links above the leaf are not known, so look for them.
+      List<Path> visited = new ArrayList<Path>();
       for (Path current = leaf; current != null; current = getParent(current)) {
+        aclRoot = knownRoots.get(current);
+        if (aclRoot != null) {
+          break;
+        }
+        visited.add(current);
         if (startPaths.contains(current) || delegate.isDfsLink(current)) {
-          return current;  // We found root of the access control chain.
-        } 
+          aclRoot = current;  // We found root of the access control chain.
+          break;
+        }
+      }
+      if (aclRoot == null) {
+        throw new IOException("Not under a start path: " + leaf);
       }
-      throw new IOException("Not under a start path: " + leaf);
+      for (Path path : visited) {
+        knownRoots.put(path, aclRoot);
+      }
+      return aclRoot;
     }
-  
-    private Acl makeLeafAcl(final Path leaf) throws IOException {
-      AclFileAttributeViews aclViews = delegate.getAclViews(leaf);
-      AclBuilder builder = new AclBuilder(leaf, aclViews.getCombinedAclView(),
+
+    /**
+     * Returns the compiled ACL of the leaf, compiling it only if no other
+     * document with the same file system ACL has been.
+     */
+    private AclEvaluator.CompiledAcl getLeafAcl(final Path leaf)
+        throws IOException {
+      final AclFileAttributeView aclView =
+          delegate.getAclViews(leaf).getCombinedAclView();
+      try {
+        return leafAcls.get(aclView.getAcl(),
+            new Callable<AclEvaluator.CompiledAcl>() {
+              @Override
+              public AclEvaluator.CompiledAcl call() throws IOException {
+                return evaluator.compile(makeLeafAcl(leaf, aclView));
+              }
+            });
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+
+    private Acl makeLeafAcl(Path leaf, AclFileAttributeView aclView)
+        throws IOException {
+      AclBuilder builder = new AclBuilder(leaf, aclView,
           supportedWindowsAccounts, builtinPrefix, namespace);
       Acl leafAcl = builder.getFlattenedAcl()
           .setInheritFrom(FOR_ACL_IS_AUTHORIZED)
           .setInheritanceType(InheritanceType.LEAF_NODE)
           .setEverythingCaseInsensitive()
           .build();
+      log.log(Level.FINEST, "Leaf ACL of {0} is {1}",
+          new Object[]{leaf, leafAcl});
       return leafAcl;
     }
   }
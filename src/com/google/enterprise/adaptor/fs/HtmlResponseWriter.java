@@ -51,6 +51,13 @@ class HtmlResponseWriter implements Closeable {
   private final Locale locale;
   private DocId docId;
   private URI docUri;
+  /**
+   * The raw path of {@link #docUri} up to and including its last slash, or
+   * {@code null} if links may not be relative to it.
+   */
+  private String baseDirectory;
+  /** Reused to build each link. */
+  private final StringBuilder href = new StringBuilder();
   private State state = State.INITIAL;
 
   public HtmlResponseWriter(Writer writer, DocIdEncoder docIdEncoder,
@@ -82,13 +89,18 @@ class HtmlResponseWriter implements Closeable {
     }
     this.docId = docId;
     this.docUri = docIdEncoder.encodeDocId(docId);
+    String basePath = docUri.getRawPath();
+    if (docUri.getScheme() != null && docUri.getAuthority() != null
+        && basePath != null) {
+      baseDirectory = basePath.substring(0, basePath.lastIndexOf('/') + 1);
+    }
     // TODO(ejona): Localize.
     String header = MessageFormat.format("{0} {1}",
         "Folder", computeLabel(label, docId));
     writer.write("<!DOCTYPE html>\n<html><head><title>");
-    writer.write(escapeContent(header));
+    escape(header, false);
     writer.write("</title></head><body><h1>");
-    writer.write(escapeContent(header));
+    escape(header, false);
     writer.write("</h1>");
     state = State.STARTED;
   }
@@ -105,9 +117,13 @@ class HtmlResponseWriter implements Closeable {
       throw new NullPointerException();
     }
     writer.write("<li><a href=\"");
-    writer.write(escapeAttributeValue(encodeDocId(doc)));
+    escape(encodeDocId(doc), true);
     writer.write("\">");
-    writer.write(escapeContent(computeLabel(label, doc)));
+    if (Strings.isNullOrEmpty(label)) {
+      escapeLastSegment(doc.getUniqueId());
+    } else {
+      escape(label, false);
+    }
     writer.write("</a></li>");
   }
 
@@ -138,15 +154,58 @@ class HtmlResponseWriter implements Closeable {
   }
 
   /**
-   * Encodes a DocId into a URI formatted as a string.
+   * Encodes a DocId into a URI relative to the document being written, if
+   * possible, returned in a reused buffer.
    */
-  private String encodeDocId(DocId doc) {
-    log.entering("HtmlResponseWriter", "encodeDocId", doc);
+  private CharSequence encodeDocId(DocId doc) {
     URI uri = docIdEncoder.encodeDocId(doc);
-    uri = relativize(docUri, uri);
-    String encoded = uri.toASCIIString();
-    log.exiting("HtmlResponseWriter", "encodeDocId", encoded);
-    return encoded;
+    href.setLength(0);
+    if (!appendChildPath(uri)) {
+      href.setLength(0);
+      href.append(relativize(docUri, uri).toASCIIString());
+    }
+    return href;
+  }
+
+  /**
+   * Appends the path of {@code uri} relative to the document being written
+   * when it lies within the document's folder, as the entries of a folder
+   * do. Returns false if the link must be relativized the long way.
+   */
+  private boolean appendChildPath(URI uri) {
+    if (baseDirectory == null || !docUri.getScheme().equals(uri.getScheme())
+        || !docUri.getAuthority().equals(uri.getAuthority())
+        || docUri.equals(uri)) {
+      return false;
+    }
+    String path = uri.getRawPath();
+    int start = baseDirectory.length();
+    if (path == null || path.length() == start
+        || !path.startsWith(baseDirectory)) {
+      return false;
+    }
+    int colon = path.indexOf(':', start);
+    if (colon != -1) {
+      int slash = path.indexOf('/', start);
+      if (slash == -1 || colon < slash) {
+        // Keep the path from being mistaken for a scheme, as relativize does.
+        href.append("./");
+      }
+    }
+    href.append(path, start, path.length());
+    if (uri.getRawQuery() != null) {
+      href.append('?').append(uri.getRawQuery());
+    }
+    if (uri.getRawFragment() != null) {
+      href.append('#').append(uri.getRawFragment());
+    }
+    // toASCIIString would have escaped any other characters.
+    for (int i = 0; i < href.length(); i++) {
+      if (href.charAt(i) >= 0x80) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
@@ -216,17 +275,51 @@ class HtmlResponseWriter implements Closeable {
     if (Strings.isNullOrEmpty(label)) {
       // Use the last part of the URL if an item doesn't have a title. The last
       // part of the URL will generally be a filename in this case.
-      String[] parts = doc.getUniqueId().split("/", 0);
-      label = parts[parts.length - 1];
+      String id = doc.getUniqueId();
+      int end = lastSegmentEnd(id);
+      label = id.substring(id.lastIndexOf('/', end - 1) + 1, end);
     }
     return label;
   }
 
-  private String escapeContent(String raw) {
-    return raw.replace("&", "&amp;").replace("<", "&lt;");
+  /** Writes the last part of a unique id, escaped as content. */
+  private void escapeLastSegment(String id) throws IOException {
+    int end = lastSegmentEnd(id);
+    escape(id, id.lastIndexOf('/', end - 1) + 1, end, false);
+  }
+
+  /** Returns the end of the last part of a unique id, ignoring slashes. */
+  private static int lastSegmentEnd(String id) {
+    int end = id.length();
+    while (end > 0 && id.charAt(end - 1) == '/') {
+      end--;
+    }
+    return end;
+  }
+
+  private void escape(CharSequence raw, boolean attribute) throws IOException {
+    escape(raw, 0, raw.length(), attribute);
   }
 
-  private String escapeAttributeValue(String raw) {
-    return escapeContent(raw).replace("\"", "&quot;").replace("'", "&apos;");
+  /**
+   * Writes characters escaped as HTML content, or as an attribute value
+   * as well.
+   */
+  private void escape(CharSequence raw, int start, int end, boolean attribute)
+      throws IOException {
+    for (int i = start; i < end; i++) {
+      char c = raw.charAt(i);
+      if (c == '&') {
+        writer.write("&amp;");
+      } else if (c == '<') {
+        writer.write("&lt;");
+      } else if (attribute && c == '"') {
+        writer.write("&quot;");
+      } else if (attribute && c == '\'') {
+        writer.write("&apos;");
+      } else {
+        writer.write(c);
+      }
+    }
   }
 }
@@ -0,0 +1,262 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.adaptor.AsyncDocIdPusher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link FileDelegate} for Linux hosts that crawl CIFS or NFS file systems
+ * mounted into the local file system.
+ * <p>
+ * Linux has no notion of DFS, so no path is ever considered a DFS namespace
+ * or DFS link. The ACL of a file or folder is taken from its
+ * {@link AclFileAttributeView}, if the file system supports one. Otherwise
+ * it is synthesized from the POSIX permissions of the file: the owner, the
+ * owning group, and {@code Everyone} (for other users) are permitted if they
+ * have read permission. Like a Windows ACL with inheritance disabled, that
+ * ACL is complete by itself, so every item inherits directly from the share
+ * ACL of its start path. Search permissions on ancestor folders are not
+ * considered.
+ * <p>
+ * The share-level permissions of a mounted file system are not visible
+ * from the client, so share ACLs are supplied by a
+ * {@link ShareAclViewSource}. By default, everyone is permitted.
+ * <p>
+ * Changes are monitored by a {@link WatchServiceMonitor}, which watches
+ * the most recently active directories and polls the rest.
+ */
+class LinuxFileDelegate extends NioFileDelegate {
+  private static final Logger log
+      = Logger.getLogger(LinuxFileDelegate.class.getName());
+
+  /** Name of the group used to represent all other users. */
+  private static final String EVERYONE = "Everyone";
+
+  /** Permissions granted by a POSIX read permission bit. */
+  private static final Set<AclEntryPermission> READ_PERMISSIONS =
+      Collections.unmodifiableSet(EnumSet.of(AclEntryPermission.READ_DATA,
+          AclEntryPermission.READ_ATTRIBUTES,
+          AclEntryPermission.READ_NAMED_ATTRS, AclEntryPermission.READ_ACL,
+          AclEntryPermission.SYNCHRONIZE));
+
+  /** Supplies the share ACL for the file system containing a path. */
+  interface ShareAclViewSource {
+    /**
+     * Returns an {@link AclFileAttributeView} that contains the share ACL
+     * for the specified path.
+     *
+     * @param share a start path or file within a mounted file system
+     * @throws IOException
+     */
+    AclFileAttributeView getShareAclView(Path share) throws IOException;
+  }
+
+  /** A {@link ShareAclViewSource} that permits everyone read access. */
+  static final ShareAclViewSource EVERYONE_SHARE_ACL =
+      new ShareAclViewSource() {
+        private final AclFileAttributeView aclView =
+            new SimpleAclFileAttributeView(ImmutableList.of(
+                newReadEntry(new Group(EVERYONE))));
+
+        @Override
+        public AclFileAttributeView getShareAclView(Path share) {
+          return aclView;
+        }
+      };
+
+  private final ShareAclViewSource shareAclViewSource;
+  private WatchServiceMonitor monitor;
+
+  public LinuxFileDelegate() {
+    this(EVERYONE_SHARE_ACL);
+  }
+
+  @VisibleForTesting
+  LinuxFileDelegate(ShareAclViewSource shareAclViewSource) {
+    Preconditions.checkNotNull(shareAclViewSource,
+        "shareAclViewSource may not be null");
+    this.shareAclViewSource = shareAclViewSource;
+  }
+
+  /**
+   * Returns the {@link PosixFileAttributes} for the file or directory, which
+   * includes the owner, group, and permissions along with the basic
+   * attributes, at the cost of a single {@code lstat}.
+   * <p>
+   * The {@code dos} attribute view is deliberately not used. On Linux it is
+   * backed by extended attributes that CIFS and NFS mounts do not carry.
+   */
+  @Override
+  public BasicFileAttributes readBasicAttributes(Path doc) throws IOException {
+    return readPosixAttributes(doc);
+  }
+
+  private PosixFileAttributes readPosixAttributes(Path doc)
+      throws IOException {
+    return Files.readAttributes(doc, PosixFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+  }
+
+  @Override
+  public AclFileAttributeViews getAclViews(Path doc) throws IOException {
+    AclFileAttributeView aclView = Files.getFileAttributeView(doc,
+        AclFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+    List<AclEntry> acl;
+    if (aclView != null) {
+      acl = aclView.getAcl();
+    } else {
+      acl = newPosixAcl(readPosixAttributes(doc));
+    }
+    log.log(Level.FINEST, "ACL for {0}: {1}", new Object[] { doc, acl });
+    // The NIO ACL model does not distinguish inherited entries, so treat the
+    // whole ACL as directly applied.
+    return new AclFileAttributeViews(new SimpleAclFileAttributeView(acl),
+        new SimpleAclFileAttributeView(Collections.<AclEntry>emptyList()));
+  }
+
+  /** Returns ACL entries granting read access as the POSIX permissions do. */
+  @VisibleForTesting
+  static List<AclEntry> newPosixAcl(PosixFileAttributes attrs) {
+    Set<PosixFilePermission> perms = attrs.permissions();
+    ImmutableList.Builder<AclEntry> builder = ImmutableList.builder();
+    if (perms.contains(PosixFilePermission.OWNER_READ)) {
+      builder.add(newReadEntry(attrs.owner()));
+    }
+    if (perms.contains(PosixFilePermission.GROUP_READ)) {
+      builder.add(newReadEntry(attrs.group()));
+    }
+    if (perms.contains(PosixFilePermission.OTHERS_READ)) {
+      builder.add(newReadEntry(new Group(EVERYONE)));
+    }
+    return builder.build();
+  }
+
+  private static AclEntry newReadEntry(UserPrincipal principal) {
+    return AclEntry.newBuilder()
+        .setType(AclEntryType.ALLOW)
+        .setPrincipal(principal)
+        .setPermissions(READ_PERMISSIONS)
+        .build();
+  }
+
+  @Override
+  public AclFileAttributeView getShareAclView(Path doc) throws IOException {
+    return shareAclViewSource.getShareAclView(doc);
+  }
+
+  @Override
+  public AclFileAttributeView getDfsShareAclView(Path doc) throws IOException {
+    throw new IOException("DFS is not supported on Linux: " + doc);
+  }
+
+  @Override
+  public boolean isDfsNamespace(Path doc) throws IOException {
+    return false;
+  }
+
+  @Override
+  public boolean isDfsLink(Path doc) throws IOException {
+    return false;
+  }
+
+  @Override
+  public Path resolveDfsLink(Path doc) throws IOException {
+    return null;
+  }
+
+  @Override
+  public List<Path> enumerateDfsLinks(Path doc) throws IOException {
+    throw new IOException("DFS is not supported on Linux: " + doc);
+  }
+
+  @Override
+  public boolean allowsNonRootStartPaths() {
+    // Shares are mounted beneath the local root, such as at /mnt/share.
+    return true;
+  }
+
+  @Override
+  public synchronized void startMonitorPath(Path watchPath,
+      AsyncDocIdPusher pusher) throws IOException {
+    if (!Files.isDirectory(watchPath, LinkOption.NOFOLLOW_LINKS)) {
+      throw new IOException("Could not monitor " + watchPath
+          + ". The path is not a valid directory.");
+    }
+    if (monitor == null) {
+      monitor = new WatchServiceMonitor(this);
+    }
+    monitor.startMonitorPath(watchPath, pusher);
+  }
+
+  @Override
+  public synchronized void destroy() {
+    if (monitor != null) {
+      monitor.shutdown();
+      monitor = null;
+    }
+  }
+
+  /** A group that has no counterpart in the local user database. */
+  private static class Group implements GroupPrincipal {
+    private final String name;
+
+    Group(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return (o instanceof Group) && name.equals(((Group) o).name);
+    }
+
+    @Override
+    public int hashCode() {
+      return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+}
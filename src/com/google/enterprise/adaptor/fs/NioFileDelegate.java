@@ -19,14 +19,24 @@ import com.google.enterprise.adaptor.DocId;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * A {@link FileDelegate} implementation on top of Java NIO.
@@ -34,6 +44,8 @@ import java.nio.file.attribute.FileTime;
  * such as {@link WindowsFileDelegate}.
  */
 abstract class NioFileDelegate implements FileDelegate {
+  /** Canonical paths of recently seen directories. */
+  final CanonicalPathResolver canonicalPaths = new CanonicalPathResolver();
 
   @Override
   public Path getPath(String pathname) throws IOException {
@@ -82,18 +94,137 @@ abstract class NioFileDelegate implements FileDelegate {
     return Files.newInputStream(doc);
   }
 
+  @Override
+  public ReadableByteChannel newReadableByteChannel(Path doc)
+      throws IOException {
+    return FileChannel.open(doc, StandardOpenOption.READ);
+  }
+
   @Override
   public DirectoryStream<Path> newDirectoryStream(Path doc) throws IOException {
     return Files.newDirectoryStream(doc);
   }
 
+  /**
+   * Returns a {@link DirectoryStream} of entries whose attributes are read
+   * relative to the open directory, if the platform supplies a
+   * {@link SecureDirectoryStream}, avoiding a full path lookup per entry.
+   */
+  @Override
+  public DirectoryStream<DirectoryEntry> newDirectoryEntryStream(Path doc)
+      throws IOException {
+    return new DirectoryEntryStream(Files.newDirectoryStream(doc));
+  }
+
+  /**
+   * Returns a {@link DirectoryEntry} for a file in the directory
+   * being listed by {@code stream}.
+   */
+  private DirectoryEntry newDirectoryEntry(DirectoryStream<Path> stream,
+      Path file) throws IOException {
+    BasicFileAttributes attrs;
+    if (stream instanceof SecureDirectoryStream) {
+      attrs = ((SecureDirectoryStream<Path>) stream).getFileAttributeView(
+          file.getFileName(), BasicFileAttributeView.class,
+          LinkOption.NOFOLLOW_LINKS).readAttributes();
+    } else {
+      attrs = Files.readAttributes(file, BasicFileAttributes.class,
+                                   LinkOption.NOFOLLOW_LINKS);
+    }
+    boolean hidden = (attrs instanceof DosFileAttributes)
+        ? ((DosFileAttributes) attrs).isHidden() : isHidden(file);
+    return new DirectoryEntry(file, attrs, hidden);
+  }
+
+  @Override
+  public void invalidateDfsCache() {
+    // No DFS information is cached.
+  }
+
+  /**
+   * A {@link DirectoryStream} of {@link DirectoryEntry DirectoryEntries}
+   * backed by a {@link DirectoryStream} of Paths.
+   */
+  private class DirectoryEntryStream
+      implements DirectoryStream<DirectoryEntry> {
+    private final DirectoryStream<Path> stream;
+
+    DirectoryEntryStream(DirectoryStream<Path> stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public Iterator<DirectoryEntry> iterator() {
+      final Iterator<Path> files = stream.iterator();
+      return new Iterator<DirectoryEntry>() {
+        private DirectoryEntry next;
+
+        @Override
+        public boolean hasNext() {
+          while (next == null && files.hasNext()) {
+            Path file = files.next();
+            try {
+              next = newDirectoryEntry(stream, file);
+            } catch (NoSuchFileException e) {
+              // The file was deleted after it was enumerated.
+            } catch (IOException e) {
+              throw new DirectoryIteratorException(e);
+            }
+          }
+          return next != null;
+        }
+
+        @Override
+        public DirectoryEntry next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          DirectoryEntry entry = next;
+          next = null;
+          return entry;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public void close() throws IOException {
+      stream.close();
+    }
+  }
+
   @Override
   public DocId newDocId(Path doc) throws IOException {
-    File file = doc.toFile().getCanonicalFile();
-    String id = file.getAbsolutePath();
-    if (file.isDirectory() && !id.endsWith("/")) {
-      id += "/";
+    BasicFileAttributes attrs;
+    try {
+      attrs = readBasicAttributes(doc);
+    } catch (NoSuchFileException e) {
+      attrs = null;
+    }
+    if (attrs == null || attrs.isSymbolicLink()) {
+      File file = doc.toFile().getCanonicalFile();
+      return newDocId(file.getAbsolutePath(), file.isDirectory());
+    }
+    return newDocId(canonicalPaths.getCanonicalPath(doc), attrs.isDirectory());
+  }
+
+  @Override
+  public DocId newDocId(DirectoryEntry entry) throws IOException {
+    if (entry.getAttributes().isSymbolicLink()) {
+      return newDocId(entry.getPath());
+    }
+    return newDocId(canonicalPaths.getCanonicalPath(entry.getPath()),
+                    entry.isDirectory());
+  }
+
+  private static DocId newDocId(String canonicalPath, boolean isDirectory) {
+    if (isDirectory && !canonicalPath.endsWith("/")) {
+      canonicalPath += "/";
     }
-    return new DocId(id);
+    return new DocId(canonicalPath);
   }
 }
@@ -0,0 +1,352 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recovers the changes lost when a file system monitor overflows.
+ * <p>
+ * The monitor reports each directory in which it sees changes. The most
+ * recently active directories are listed when they first become active,
+ * and that listing is kept as a snapshot. When notifications are lost,
+ * they were most likely lost for those same directories, so each of them
+ * is listed again and compared with its snapshot. Entries that were added,
+ * or whose attributes changed, are reported as modified, and entries that
+ * disappeared as deleted. Directories that were added are walked, as
+ * nothing was listed for them before.
+ * <p>
+ * Snapshots are taken by an {@link Executor}, so that the thread reading
+ * notifications never waits for a directory to be listed. A directory
+ * whose snapshot has not been taken yet, or that has too many entries to
+ * keep a snapshot of, is reported as modified itself, leaving it to be
+ * recrawled. So the executor may discard snapshots it has no room for, and
+ * a directory forgotten before its snapshot is taken is not listed.
+ * <p>
+ * The number of directories remembered, the number of entries kept for
+ * each, and the number of changes a rescan may report are all bounded. A
+ * rescan that finds too many changes gives up, leaving them for the next
+ * crawl.
+ * <p>
+ * All methods are thread safe.
+ */
+class OverflowRescanner {
+  private static final Logger log
+      = Logger.getLogger(OverflowRescanner.class.getName());
+
+  private final FileDelegate delegate;
+  private final Executor executor;
+  private final int maxEntries;
+  private final int maxChanges;
+
+  /** The snapshot of each active directory, least recently active first. */
+  private final LinkedHashMap<Path, Snapshot> snapshots;
+
+  /**
+   * Creates a rescanner.
+   *
+   * @param delegate the delegate used to list directories
+   * @param executor the executor that takes the snapshots
+   * @param maxDirectories the maximum number of active directories kept
+   * @param maxEntries the maximum number of entries in a snapshot
+   * @param maxChanges the maximum number of changes reported by a rescan
+   */
+  OverflowRescanner(FileDelegate delegate, Executor executor,
+      final int maxDirectories, int maxEntries, int maxChanges) {
+    Preconditions.checkNotNull(delegate, "delegate may not be null");
+    Preconditions.checkNotNull(executor, "executor may not be null");
+    Preconditions.checkArgument(maxDirectories > 0,
+        "maxDirectories must be positive");
+    Preconditions.checkArgument(maxEntries > 0,
+        "maxEntries must be positive");
+    Preconditions.checkArgument(maxChanges > 0,
+        "maxChanges must be positive");
+    this.delegate = delegate;
+    this.executor = executor;
+    this.maxEntries = maxEntries;
+    this.maxChanges = maxChanges;
+    this.snapshots = new LinkedHashMap<Path, Snapshot>(16, 0.75f,
+        /* accessOrder = */ true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Path, Snapshot> eldest) {
+        return size() > maxDirectories;
+      }
+    };
+  }
+
+  /**
+   * Records that changes were reported in a directory, having a snapshot of
+   * it taken if it was not already active.
+   */
+  void directoryChanged(final Path dir) {
+    final Snapshot snapshot;
+    synchronized (this) {
+      if (snapshots.get(dir) != null) {
+        return;
+      }
+      snapshot = new Snapshot();
+      snapshots.put(dir, snapshot);
+    }
+    executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (OverflowRescanner.this) {
+            if (snapshots.get(dir) != snapshot) {
+              // Forgotten while waiting, so no longer worth listing.
+              return;
+            }
+          }
+          Map<Path, State> listing;
+          try {
+            listing = list(dir);
+          } catch (IOException e) {
+            log.log(Level.FINE, "Unable to list active directory " + dir, e);
+            listing = null;
+          }
+          synchronized (OverflowRescanner.this) {
+            if (!snapshot.taken) {
+              snapshot.listing = listing;
+              snapshot.taken = true;
+            }
+          }
+        }
+      });
+  }
+
+  /** Forgets a deleted directory and any active directories beneath it. */
+  synchronized void directoryDeleted(Path dir) {
+    for (Iterator<Path> it = snapshots.keySet().iterator(); it.hasNext(); ) {
+      if (it.next().startsWith(dir)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Lists the active directories again, returning the changes since their
+   * snapshots, or {@code null} if there are more changes than a rescan may
+   * report.
+   *
+   * @throws IOException if the changes could not be turned into records
+   */
+  List<Record> rescan() throws IOException {
+    List<Record> changes = new ArrayList<Record>();
+    List<Path> dirs;
+    synchronized (this) {
+      dirs = new ArrayList<Path>(snapshots.keySet());
+    }
+    for (Path dir : dirs) {
+      Snapshot snapshot;
+      synchronized (this) {
+        snapshot = snapshots.get(dir);
+      }
+      if (snapshot == null) {
+        // Forgotten as a descendant of a directory found deleted.
+        continue;
+      }
+      Map<Path, State> current;
+      try {
+        current = list(dir);
+      } catch (FileNotFoundException | NoSuchFileException e) {
+        log.log(Level.FINE, "Active directory {0} was deleted", dir);
+        changes.add(newDeletedRecord(dir));
+        directoryDeleted(dir);
+        continue;
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Unable to rescan " + dir, e);
+        continue;
+      }
+      Map<Path, State> previous;
+      synchronized (this) {
+        previous = snapshot.listing;
+      }
+      if (previous == null || current == null) {
+        // There is no snapshot to compare with.
+        changes.add(newModifiedRecord(dir));
+      } else if (!compare(previous, current, changes)) {
+        return null;
+      }
+      if (changes.size() > maxChanges) {
+        return null;
+      }
+      synchronized (this) {
+        snapshot.listing = current;
+        snapshot.taken = true;
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Adds the differences between two listings of a directory, returning
+   * false if there are more changes than a rescan may report.
+   */
+  private boolean compare(Map<Path, State> previous,
+      Map<Path, State> current, List<Record> changes) throws IOException {
+    for (Map.Entry<Path, State> entry : current.entrySet()) {
+      Path path = entry.getKey();
+      State state = entry.getValue();
+      State old = previous.get(path);
+      if (old == null) {
+        changes.add(newModifiedRecord(path));
+        if (state.isDirectory && !addSubtree(path, changes)) {
+          return false;
+        }
+      } else if (!old.equals(state)) {
+        changes.add(newModifiedRecord(path));
+      }
+    }
+    for (Path path : previous.keySet()) {
+      if (!current.containsKey(path)) {
+        changes.add(newDeletedRecord(path));
+        if (previous.get(path).isDirectory) {
+          directoryDeleted(path);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the contents of a directory that was added, returning false if
+   * there are more changes than a rescan may report.
+   */
+  private boolean addSubtree(Path dir, List<Record> changes)
+      throws IOException {
+    Deque<Path> pending = new ArrayDeque<Path>();
+    pending.add(dir);
+    while (!pending.isEmpty()) {
+      Path next = pending.remove();
+      try (DirectoryStream<DirectoryEntry> stream =
+           delegate.newDirectoryEntryStream(next)) {
+        for (DirectoryEntry entry : stream) {
+          changes.add(newModifiedRecord(entry.getPath()));
+          if (changes.size() > maxChanges) {
+            return false;
+          }
+          if (entry.isDirectory()) {
+            pending.add(entry.getPath());
+          }
+        }
+      } catch (IOException | DirectoryIteratorException e) {
+        log.log(Level.WARNING, "Unable to rescan " + next, e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Lists a directory, or returns {@code null} if it has more entries than
+   * a snapshot may hold.
+   */
+  private Map<Path, State> list(Path dir) throws IOException {
+    Map<Path, State> listing = new HashMap<Path, State>();
+    try (DirectoryStream<DirectoryEntry> stream =
+         delegate.newDirectoryEntryStream(dir)) {
+      for (DirectoryEntry entry : stream) {
+        if (listing.size() == maxEntries) {
+          log.log(Level.FINE, "Not keeping a snapshot of {0}, which has "
+              + "more than {1} entries.", new Object[] { dir, maxEntries });
+          return null;
+        }
+        listing.put(entry.getPath(), new State(entry.getAttributes()));
+      }
+    } catch (DirectoryIteratorException e) {
+      throw e.getCause();
+    }
+    return listing;
+  }
+
+  private Record newModifiedRecord(Path path) throws IOException {
+    return new Record.Builder(delegate.newDocId(path))
+        .setCrawlImmediately(true).build();
+  }
+
+  private Record newDeletedRecord(Path path) throws IOException {
+    return new Record.Builder(delegate.newDocId(path))
+        .setDeleteFromIndex(true).build();
+  }
+
+  @VisibleForTesting
+  synchronized int getActiveDirectoryCount() {
+    return snapshots.size();
+  }
+
+  /** The listing of an active directory. */
+  private static class Snapshot {
+    /** True once the directory has been listed. */
+    private boolean taken;
+    /** The listing, or null if there is none to compare with. */
+    private Map<Path, State> listing;
+  }
+
+  /** The attributes of an entry that a change is noticed by. */
+  private static class State {
+    private final long lastModified;
+    private final long created;
+    private final long size;
+    private final boolean isDirectory;
+    private final boolean isHidden;
+
+    State(BasicFileAttributes attrs) {
+      lastModified = attrs.lastModifiedTime().toMillis();
+      created = attrs.creationTime().toMillis();
+      isDirectory = attrs.isDirectory();
+      size = isDirectory ? 0L : attrs.size();
+      isHidden = (attrs instanceof DosFileAttributes)
+          && ((DosFileAttributes) attrs).isHidden();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof State)) {
+        return false;
+      }
+      State other = (State) o;
+      return lastModified == other.lastModified && created == other.created
+          && size == other.size && isDirectory == other.isDirectory
+          && isHidden == other.isHidden;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(lastModified, created, size, isDirectory,
+          isHidden);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.adaptor.DocIdPusher;
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accumulates {@link Record Records} and pushes them to a
+ * {@link DocIdPusher} in batches, typically of feed size. Records may be
+ * added from multiple threads. Pushes are serialized, so threads adding
+ * records while a full batch is being pushed will block once they fill
+ * the next batch.
+ */
+class RecordBatcher {
+  private static final Logger log
+      = Logger.getLogger(RecordBatcher.class.getName());
+
+  private final DocIdPusher pusher;
+  private final int batchSize;
+  private final Object pushLock = new Object();
+  private List<Record> batch;
+  private long count;
+
+  RecordBatcher(DocIdPusher pusher, int batchSize) {
+    Preconditions.checkNotNull(pusher, "pusher may not be null");
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    this.pusher = pusher;
+    this.batchSize = batchSize;
+    this.batch = new ArrayList<Record>(batchSize);
+  }
+
+  /**
+   * Adds a record, pushing the current batch if it is full.
+   *
+   * @throws IOException if the records could not be pushed
+   * @throws InterruptedException if interrupted while pushing
+   */
+  void add(Record record) throws IOException, InterruptedException {
+    List<Record> full = null;
+    synchronized (this) {
+      batch.add(record);
+      count++;
+      if (batch.size() >= batchSize) {
+        full = batch;
+        batch = new ArrayList<Record>(batchSize);
+      }
+    }
+    if (full != null) {
+      push(full);
+    }
+  }
+
+  /**
+   * Pushes any records not yet pushed.
+   *
+   * @throws IOException if the records could not be pushed
+   * @throws InterruptedException if interrupted while pushing
+   */
+  void flush() throws IOException, InterruptedException {
+    List<Record> partial;
+    synchronized (this) {
+      partial = batch;
+      batch = new ArrayList<Record>(batchSize);
+    }
+    if (!partial.isEmpty()) {
+      push(partial);
+    }
+  }
+
+  /** Returns the number of records added so far. */
+  synchronized long getCount() {
+    return count;
+  }
+
+  private void push(List<Record> records)
+      throws IOException, InterruptedException {
+    log.log(Level.FINE, "Pushing batch of {0} records", records.size());
+    Record failed;
+    synchronized (pushLock) {
+      failed = pusher.pushRecords(records);
+    }
+    if (failed != null) {
+      throw new IOException("Failed to push records, starting with "
+          + failed.getDocId());
+    }
+  }
+}
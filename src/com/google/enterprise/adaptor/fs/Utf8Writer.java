@@ -0,0 +1,159 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes characters to a stream encoded as UTF-8.
+ * <p>
+ * Unlike an {@link java.io.OutputStreamWriter}, which allocates a buffer
+ * and a {@link java.nio.charset.CharsetEncoder} for every stream, and locks
+ * on every write, the characters are encoded directly into a buffer that
+ * is taken from a pool and returned to it when the writer is closed. Like
+ * an {@code OutputStreamWriter}, an unpaired surrogate is written as
+ * {@code ?}.
+ * <p>
+ * This class is not thread safe.
+ */
+class Utf8Writer extends Writer {
+  @VisibleForTesting
+  static final int BUFFER_SIZE = 8 * 1024;
+
+  /** The maximum number of idle buffers kept. */
+  private static final int POOL_SIZE = 16;
+
+  /** The most bytes written for a single character. */
+  private static final int MAX_BYTES_PER_CHAR = 5;
+
+  private static final BlockingQueue<byte[]> buffers =
+      new ArrayBlockingQueue<byte[]>(POOL_SIZE);
+
+  private final OutputStream out;
+  private byte[] buffer;
+  private int count;
+  /** A high surrogate waiting for its low surrogate, or zero. */
+  private char highSurrogate;
+
+  Utf8Writer(OutputStream out) {
+    Preconditions.checkNotNull(out, "out may not be null");
+    this.out = out;
+    byte[] pooled = buffers.poll();
+    this.buffer = (pooled == null) ? new byte[BUFFER_SIZE] : pooled;
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    ensureOpen();
+    encode((char) c);
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    ensureOpen();
+    Preconditions.checkPositionIndexes(off, off + len, cbuf.length);
+    for (int i = off; i < off + len; i++) {
+      encode(cbuf[i]);
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    ensureOpen();
+    Preconditions.checkPositionIndexes(off, off + len, str.length());
+    for (int i = off; i < off + len; i++) {
+      encode(str.charAt(i));
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    flushBuffer();
+    out.flush();
+  }
+
+  /** Writes out any buffered characters and closes the stream. */
+  @Override
+  public void close() throws IOException {
+    if (buffer == null) {
+      return;
+    }
+    try {
+      if (highSurrogate != 0) {
+        highSurrogate = 0;
+        encode('?');
+      }
+      flushBuffer();
+      out.close();
+    } finally {
+      buffers.offer(buffer);
+      buffer = null;
+    }
+  }
+
+  private void encode(char c) throws IOException {
+    if (count > BUFFER_SIZE - MAX_BYTES_PER_CHAR) {
+      flushBuffer();
+    }
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int codePoint = Character.toCodePoint(high, c);
+        buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+        return;
+      }
+      buffer[count++] = '?';
+    }
+    if (c < 0x80) {
+      buffer[count++] = (byte) c;
+    } else if (c < 0x800) {
+      buffer[count++] = (byte) (0xc0 | (c >> 6));
+      buffer[count++] = (byte) (0x80 | (c & 0x3f));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      buffer[count++] = '?';
+    } else {
+      buffer[count++] = (byte) (0xe0 | (c >> 12));
+      buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+      buffer[count++] = (byte) (0x80 | (c & 0x3f));
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (buffer == null) {
+      throw new IOException("Writer closed");
+    }
+  }
+}
@@ -0,0 +1,670 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.adaptor.AsyncDocIdPusher;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Monitors directory trees for changes using a {@link WatchService}.
+ * <p>
+ * Every directory beneath a monitored path is registered with the watch
+ * service, as a watch only reports changes to the entries of the directory
+ * itself. On Linux each registered directory uses one inotify watch, and
+ * the number of watches a user may hold is limited by
+ * {@code /proc/sys/fs/inotify/max_user_watches}, so only a bounded number
+ * of directories are watched at once. Those are the most recently active,
+ * or "hot", directories. The others are "cold": their modification time is
+ * polled periodically, and a cold directory whose modification time
+ * changed is pushed, along with any entries modified since, and becomes
+ * hot in place of the least recently active hot directory.
+ * <p>
+ * A directory's modification time only changes when entries are added,
+ * removed or renamed, so changes to the contents of files in cold
+ * directories are left for the next crawl. Entries removed from a cold
+ * directory are noticed when the directory itself is recrawled.
+ * <p>
+ * inotify only reports changes made through the local kernel, so on a
+ * network file system such as CIFS or NFS it never sees the changes made
+ * by other clients or on the server. The directories beneath a path on
+ * such a file system are therefore all polled, and none are watched.
+ * <p>
+ * Registering a path walks its directory tree, once, when monitoring
+ * starts. The number of directories polled is bounded too; once both the
+ * watches and the polled directories are used up, the walk stops, and the
+ * directories beyond it are left to the crawls. Setting
+ * {@code filesystemadaptor.monitorForUpdates} to {@code false} avoids the
+ * walk altogether.
+ * <p>
+ * All the directories are watched by a single thread, which also polls the
+ * cold directories.
+ */
+class WatchServiceMonitor {
+  private static final Logger log
+      = Logger.getLogger(WatchServiceMonitor.class.getName());
+
+  /** The file holding the per-user limit on inotify watches. */
+  private static final Path MAX_USER_WATCHES =
+      Paths.get("/proc/sys/fs/inotify/max_user_watches");
+
+  /**
+   * The largest number of directories watched at once, if the system
+   * limit is unknown or higher.
+   */
+  private static final int MAX_WATCHES = 500000;
+
+  /** The largest number of directories polled. */
+  private static final int MAX_POLLED = 100000;
+
+  /**
+   * The types of the network file systems, whose remote changes inotify
+   * does not see.
+   */
+  private static final Set<String> REMOTE_FILE_SYSTEM_TYPES = ImmutableSet.of(
+      "9p", "afs", "cifs", "ncpfs", "nfs", "nfs4", "smb3", "smbfs");
+
+  /** How often cold directories are polled for changes. */
+  private static final long POLL_INTERVAL_MILLIS = 5 * 60 * 1000L;
+
+  /** How long the monitor thread may take to notice a new path. */
+  private static final long MAX_WAIT_MILLIS = 500L;
+
+  /** How long changes are ignored after the pusher refuses one. */
+  private static final long PAUSE_MILLIS = 5 * 60 * 1000L;
+
+  private final FileDelegate delegate;
+  private final long pollIntervalMillis;
+  private final WatchService watcher;
+  private final int maxPolled;
+  private int maxWatches;
+
+  /** The monitored paths, and the pusher each one's changes are sent to. */
+  private final Map<Path, AsyncDocIdPusher> roots =
+      new LinkedHashMap<Path, AsyncDocIdPusher>();
+  /** Monitored paths whose directories are still to be registered. */
+  private final ConcurrentLinkedQueue<Root> pendingRoots =
+      new ConcurrentLinkedQueue<Root>();
+  private Thread monitorThread;
+  private volatile boolean stopped;
+
+  // The following are only used by the monitor thread, which holds
+  // stateLock while it uses them so that tests may inspect them.
+  private final Object stateLock = new Object();
+
+  /** The watch of each hot directory, least recently active first. */
+  private final LinkedHashMap<Path, WatchKey> hot =
+      new LinkedHashMap<Path, WatchKey>(16, 0.75f, /* accessOrder = */ true);
+  /** The last modification time of each cold directory, in milliseconds. */
+  private final Map<Path, Long> cold = new HashMap<Path, Long>();
+  /** The monitored paths on network file systems, which are only polled. */
+  private final List<Path> remoteRoots = new ArrayList<Path>();
+  private boolean warnedFull;
+  private long pauseExpires;
+
+  /**
+   * Creates a monitor that watches up to the number of directories the
+   * system permits, and polls the rest every few minutes.
+   *
+   * @param delegate the delegate used to list directories and create the
+   *     ids of changed documents
+   * @throws IOException if the watch service could not be created
+   */
+  WatchServiceMonitor(FileDelegate delegate) throws IOException {
+    this(delegate, defaultMaxWatches(), MAX_POLLED, POLL_INTERVAL_MILLIS);
+  }
+
+  @VisibleForTesting
+  WatchServiceMonitor(FileDelegate delegate, int maxWatches, int maxPolled,
+      long pollIntervalMillis) throws IOException {
+    Preconditions.checkNotNull(delegate, "delegate may not be null");
+    Preconditions.checkArgument(maxWatches >= 0,
+        "maxWatches may not be negative");
+    Preconditions.checkArgument(maxPolled >= 0,
+        "maxPolled may not be negative");
+    Preconditions.checkArgument(pollIntervalMillis > 0,
+        "pollIntervalMillis must be positive");
+    this.delegate = delegate;
+    this.maxWatches = maxWatches;
+    this.maxPolled = maxPolled;
+    this.pollIntervalMillis = pollIntervalMillis;
+    this.watcher = delegate.getPath("/").getFileSystem().newWatchService();
+  }
+
+  /**
+   * Returns the number of directories to watch: most of the inotify
+   * watches permitted, leaving the rest for other processes of the user.
+   */
+  private static int defaultMaxWatches() {
+    try {
+      String limit = new String(Files.readAllBytes(MAX_USER_WATCHES),
+          StandardCharsets.US_ASCII).trim();
+      return (int) Math.min(MAX_WATCHES, Long.parseLong(limit) * 9 / 10);
+    } catch (IOException | NumberFormatException e) {
+      log.log(Level.FINE, "Unable to read the inotify watch limit.", e);
+      return MAX_WATCHES;
+    }
+  }
+
+  /**
+   * Starts monitoring the directory tree beneath a path. Returns once the
+   * path itself is watched; its subdirectories are registered in the
+   * background.
+   *
+   * @param watchPath the root of the tree to monitor
+   * @param pusher the pusher that receives the changes
+   */
+  void startMonitorPath(Path watchPath, AsyncDocIdPusher pusher) {
+    Preconditions.checkNotNull(watchPath, "watchPath may not be null");
+    Preconditions.checkNotNull(pusher, "pusher may not be null");
+    Root root;
+    synchronized (this) {
+      Preconditions.checkState(!stopped, "monitor has been shut down");
+      if (roots.containsKey(watchPath)) {
+        log.log(Level.FINE, "Already monitoring {0}", watchPath);
+        return;
+      }
+      roots.put(watchPath, pusher);
+      root = new Root(watchPath);
+      pendingRoots.add(root);
+      if (monitorThread == null) {
+        monitorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              monitor();
+            }
+          }, "Monitor");
+        monitorThread.setDaemon(true);
+        monitorThread.start();
+      }
+    }
+    try {
+      log.log(Level.FINE, "Waiting for monitor start signal {0}", watchPath);
+      root.startSignal.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Stops monitoring and releases the watches. */
+  void shutdown() {
+    Thread thread;
+    synchronized (this) {
+      stopped = true;
+      thread = monitorThread;
+    }
+    try {
+      watcher.close();
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Unable to close the watch service.", e);
+    }
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (Root root; (root = pendingRoots.poll()) != null; ) {
+      root.startSignal.countDown();
+    }
+  }
+
+  private void monitor() {
+    long nextPoll = System.currentTimeMillis() + pollIntervalMillis;
+    try {
+      while (!stopped) {
+        synchronized (stateLock) {
+          for (Root root; (root = pendingRoots.poll()) != null; ) {
+            registerRoot(root);
+          }
+        }
+        long wait = Math.min(nextPoll - System.currentTimeMillis(),
+            MAX_WAIT_MILLIS);
+        WatchKey key = watcher.poll(Math.max(wait, 1L), TimeUnit.MILLISECONDS);
+        synchronized (stateLock) {
+          if (key != null) {
+            handleEvents(key);
+          }
+          if (System.currentTimeMillis() >= nextPoll) {
+            pollColdDirectories();
+            nextPoll = System.currentTimeMillis() + pollIntervalMillis;
+          }
+        }
+      }
+    } catch (ClosedWatchServiceException | InterruptedException e) {
+      log.log(Level.FINE, "Monitor stopped.");
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Monitor stopped unexpectedly.", e);
+    } finally {
+      // Refuse any more paths, and release those waiting to start.
+      synchronized (this) {
+        stopped = true;
+      }
+      for (Root root; (root = pendingRoots.poll()) != null; ) {
+        root.startSignal.countDown();
+      }
+    }
+  }
+
+  private void registerRoot(Root root) {
+    log.log(Level.FINE, "Registering directories beneath {0}", root.path);
+    try {
+      if (isRemoteFileSystem(root.path)) {
+        log.log(Level.INFO, "{0} is on a network file system, whose "
+            + "changes are not reported. Polling its directories instead.",
+            root.path);
+        remoteRoots.add(root.path);
+      }
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Unable to read the file system type of "
+          + root.path, e);
+    }
+    try {
+      register(root.path, /* evict = */ true);
+    } finally {
+      root.startSignal.countDown();
+    }
+    registerSubdirectories(root.path, /* push = */ false);
+    log.log(Level.FINE, "Registered directories beneath {0}. Watching {1} "
+        + "directories and polling {2}.",
+        new Object[] { root.path, hot.size(), cold.size() });
+  }
+
+  /**
+   * Registers the directories beneath a directory, pushing their entries
+   * as well if the directory was just added.
+   */
+  private void registerSubdirectories(Path dir, boolean push) {
+    Deque<Path> pending = new ArrayDeque<Path>();
+    pending.add(dir);
+    while (!pending.isEmpty() && !stopped) {
+      Path next = pending.remove();
+      try (DirectoryStream<DirectoryEntry> stream =
+           delegate.newDirectoryEntryStream(next)) {
+        for (DirectoryEntry entry : stream) {
+          if (push) {
+            pushChange(entry.getPath(), /* deleted = */ false);
+          }
+          if (entry.isDirectory() && !entry.getAttributes().isSymbolicLink()
+              && !isKnown(entry.getPath())) {
+            // Existing directories don't displace the active ones, but
+            // directories added since do.
+            register(entry.getPath(), /* evict = */ push);
+            // Added directories are walked to push their entries, but
+            // existing ones only while there is room to monitor them.
+            if (push || isKnown(entry.getPath())) {
+              pending.add(entry.getPath());
+            }
+          }
+        }
+      } catch (IOException | DirectoryIteratorException e) {
+        log.log(Level.WARNING, "Unable to register the directories beneath "
+            + next, e);
+      }
+    }
+  }
+
+  private boolean isKnown(Path dir) {
+    return hot.containsKey(dir) || cold.containsKey(dir);
+  }
+
+  /**
+   * Watches a directory, if there is room for another watch or
+   * {@code evict} is true. Otherwise, or if it cannot be watched, the
+   * directory is polled instead.
+   */
+  private void register(Path dir, boolean evict) {
+    if (isRemote(dir)) {
+      makeCold(dir);
+      return;
+    }
+    if (hot.size() >= maxWatches) {
+      if (!evict || hot.isEmpty()) {
+        makeCold(dir);
+        return;
+      }
+      Iterator<Map.Entry<Path, WatchKey>> it = hot.entrySet().iterator();
+      Map.Entry<Path, WatchKey> eldest = it.next();
+      it.remove();
+      eldest.getValue().cancel();
+      makeCold(eldest.getKey());
+    }
+    try {
+      hot.put(dir, dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE,
+          ENTRY_MODIFY));
+      cold.remove(dir);
+    } catch (NoSuchFileException e) {
+      log.log(Level.FINE, "Directory {0} was removed before it could be "
+          + "watched.", dir);
+    } catch (IOException e) {
+      // Most likely the inotify watch limit was reached by this and other
+      // processes of the user, so watch no more than are watched now.
+      log.log(Level.WARNING, "Unable to watch " + dir + ". Polling "
+          + "directories beyond the " + hot.size() + " already watched.", e);
+      maxWatches = hot.size();
+      makeCold(dir);
+    }
+  }
+
+  /** Returns true if the directory is on a network file system. */
+  private boolean isRemote(Path dir) {
+    for (Path root : remoteRoots) {
+      if (dir.startsWith(root)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the path is on a network file system, whose changes
+   * inotify does not see.
+   */
+  @VisibleForTesting
+  boolean isRemoteFileSystem(Path path) throws IOException {
+    return REMOTE_FILE_SYSTEM_TYPES.contains(
+        Files.getFileStore(path).type());
+  }
+
+  /**
+   * Polls a directory, unless as many are polled as permitted, in which
+   * case its changes are left to the crawls.
+   */
+  private void makeCold(Path dir) {
+    if (cold.size() >= maxPolled && !cold.containsKey(dir)) {
+      if (!warnedFull) {
+        log.log(Level.WARNING, "Not monitoring directories beyond the {0} "
+            + "watched and {1} polled. Their changes are found by crawls.",
+            new Object[] { hot.size(), cold.size() });
+        warnedFull = true;
+      }
+      return;
+    }
+    try {
+      cold.put(dir, delegate.readBasicAttributes(dir).lastModifiedTime()
+          .toMillis());
+    } catch (FileNotFoundException | NoSuchFileException e) {
+      cold.remove(dir);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Unable to poll " + dir, e);
+    }
+  }
+
+  private void handleEvents(WatchKey key) {
+    Path dir = (Path) key.watchable();
+    // Marks the directory as recently active.
+    hot.get(dir);
+    boolean logging = !paused();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == ENTRY_DELETE) {
+        // Forgotten even while paused, as its name may be reused.
+        forget(dir.resolve((Path) event.context()));
+      }
+      if (paused()) {
+        if (logging) {
+          log.log(Level.FINE, "Ignoring changes in {0} while paused.", dir);
+          logging = false;
+        }
+        continue;
+      }
+      WatchEvent.Kind<?> kind = event.kind();
+      if (kind == OVERFLOW) {
+        // Some of the changes were lost, so have the directory recrawled.
+        log.log(Level.FINE, "Changes lost in {0}", dir);
+        pushChange(dir, /* deleted = */ false);
+        continue;
+      }
+      Path changed = dir.resolve((Path) event.context());
+      log.log(Level.FINEST, "Change {0} of {1}",
+          new Object[] { kind.name(), changed });
+      if (kind == ENTRY_DELETE) {
+        pushChange(changed, /* deleted = */ true);
+        continue;
+      }
+      pushChange(changed, /* deleted = */ false);
+      if (kind == ENTRY_CREATE && isDirectory(changed)) {
+        // Entries added before the directory was watched are not reported.
+        // It may already be watched if it was created while its parent was
+        // being registered.
+        if (!isKnown(changed)) {
+          register(changed, /* evict = */ true);
+        }
+        registerSubdirectories(changed, /* push = */ true);
+      }
+    }
+    if (!key.reset()) {
+      // The directory was removed, or its watch cancelled.
+      if (hot.get(dir) == key) {
+        hot.remove(dir);
+      }
+    }
+  }
+
+  /**
+   * Stops monitoring a removed directory and the directories beneath it.
+   * A directory that was moved is reported as removed, and the watches of
+   * the moved tree must be cancelled before it is registered again under
+   * its new name: otherwise registering it returns the existing watch, which
+   * still reports changes under the old name.
+   */
+  private void forget(Path removed) {
+    if (!isKnown(removed)) {
+      // Not a monitored directory, so most likely a file.
+      return;
+    }
+    log.log(Level.FINE, "Forgetting removed directory {0}", removed);
+    for (Iterator<Map.Entry<Path, WatchKey>> it = hot.entrySet().iterator();
+         it.hasNext(); ) {
+      Map.Entry<Path, WatchKey> entry = it.next();
+      if (entry.getKey().startsWith(removed)) {
+        entry.getValue().cancel();
+        it.remove();
+      }
+    }
+    for (Iterator<Path> it = cold.keySet().iterator(); it.hasNext(); ) {
+      if (it.next().startsWith(removed)) {
+        it.remove();
+      }
+    }
+  }
+
+  private boolean isDirectory(Path path) {
+    try {
+      return delegate.isDirectory(path);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Pushes the cold directories whose modification time changed, along
+   * with their entries modified since, and makes them hot.
+   */
+  private void pollColdDirectories() {
+    long start = System.currentTimeMillis();
+    Map<Path, Long> changed = new LinkedHashMap<Path, Long>();
+    for (Iterator<Map.Entry<Path, Long>> it = cold.entrySet().iterator();
+         it.hasNext() && !stopped; ) {
+      Map.Entry<Path, Long> entry = it.next();
+      Path dir = entry.getKey();
+      long lastModified;
+      try {
+        lastModified =
+            delegate.readBasicAttributes(dir).lastModifiedTime().toMillis();
+      } catch (FileNotFoundException | NoSuchFileException e) {
+        // Its removal was reported by its parent, or will be noticed when
+        // the parent is polled.
+        it.remove();
+        continue;
+      } catch (IOException e) {
+        log.log(Level.FINE, "Unable to poll " + dir, e);
+        continue;
+      }
+      if (lastModified != entry.getValue()) {
+        changed.put(dir, entry.getValue());
+      }
+    }
+    log.log(Level.FINE, "Polled {0} directories in {1} ms. {2} changed.",
+        new Object[] { cold.size(), System.currentTimeMillis() - start,
+        changed.size() });
+    for (Map.Entry<Path, Long> entry : changed.entrySet()) {
+      if (paused()) {
+        // Leave them to be noticed by the next poll.
+        return;
+      }
+      Path dir = entry.getKey();
+      pushChange(dir, /* deleted = */ false);
+      pushModifiedSince(dir, entry.getValue());
+      register(dir, /* evict = */ true);
+    }
+  }
+
+  private void pushModifiedSince(Path dir, long since) {
+    List<Path> added = new ArrayList<Path>();
+    try (DirectoryStream<DirectoryEntry> stream =
+         delegate.newDirectoryEntryStream(dir)) {
+      for (DirectoryEntry entry : stream) {
+        Path path = entry.getPath();
+        if (entry.isDirectory() && !entry.getAttributes().isSymbolicLink()
+            && !isKnown(path)) {
+          added.add(path);
+        } else if (entry.getAttributes().lastModifiedTime().toMillis()
+            >= since) {
+          pushChange(path, /* deleted = */ false);
+        }
+      }
+    } catch (IOException | DirectoryIteratorException e) {
+      log.log(Level.WARNING, "Unable to list changed directory " + dir, e);
+    }
+    for (Path path : added) {
+      pushChange(path, /* deleted = */ false);
+      register(path, /* evict = */ true);
+      registerSubdirectories(path, /* push = */ true);
+    }
+  }
+
+  private void pushChange(Path path, boolean deleted) {
+    AsyncDocIdPusher pusher = getPusher(path);
+    if (pusher == null || paused()) {
+      return;
+    }
+    Record record = newChangeRecord(path, deleted);
+    if (record != null && !pusher.pushRecord(record)) {
+      log.log(Level.INFO, "Temporarily ignoring changes after the pusher "
+          + "refused {0}.", path);
+      pauseExpires = System.currentTimeMillis() + PAUSE_MILLIS;
+    }
+  }
+
+  private boolean paused() {
+    return System.currentTimeMillis() < pauseExpires;
+  }
+
+  private synchronized AsyncDocIdPusher getPusher(Path path) {
+    for (Map.Entry<Path, AsyncDocIdPusher> root : roots.entrySet()) {
+      if (path.startsWith(root.getKey())) {
+        return root.getValue();
+      }
+    }
+    return null;
+  }
+
+  private Record newChangeRecord(Path doc, boolean deleted) {
+    try {
+      DocId docid;
+      try {
+        docid = delegate.newDocId(doc);
+      } catch (IllegalArgumentException e) {
+        log.log(Level.WARNING, "Skipping changed {0} because {1}.",
+                new Object[] { doc, e.getMessage() });
+        return null;
+      }
+      if (deleted) {
+        return new Record.Builder(docid).setDeleteFromIndex(true).build();
+      } else if (delegate.isRegularFile(doc) || delegate.isDirectory(doc)) {
+        return new Record.Builder(docid).setCrawlImmediately(true).build();
+      } else {
+        log.log(Level.FINEST,
+            "Skipping {0}. It is not a regular file or directory.", doc);
+      }
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Unable to push the path " + doc
+          + " to the GSA.", e);
+    }
+    return null;
+  }
+
+  @VisibleForTesting
+  boolean isWatched(Path dir) {
+    synchronized (stateLock) {
+      return hot.containsKey(dir);
+    }
+  }
+
+  @VisibleForTesting
+  boolean isPolled(Path dir) {
+    synchronized (stateLock) {
+      return cold.containsKey(dir);
+    }
+  }
+
+  /** A monitored path waiting for its directories to be registered. */
+  private static class Root {
+    private final Path path;
+    private final CountDownLatch startSignal = new CountDownLatch(1);
+
+    Root(Path path) {
+      this.path = path;
+    }
+  }
+}
@@ -18,8 +18,10 @@ import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.WString;
+import com.sun.jna.platform.win32.Advapi32;
 import com.sun.jna.platform.win32.Kernel32;
 import com.sun.jna.platform.win32.Netapi32;
+import com.sun.jna.platform.win32.WinBase.FILETIME;
 import com.sun.jna.platform.win32.WinDef.DWORD;
 import com.sun.jna.platform.win32.WinDef.ULONG;
 import com.sun.jna.ptr.IntByReference;
@@ -35,6 +37,129 @@ class WinApi {
     // Prevent instantiation.
   }
 
+  public interface Advapi32Ex extends Advapi32 {
+    Advapi32Ex INSTANCE = (Advapi32Ex) Native.loadLibrary("Advapi32",
+        Advapi32Ex.class, W32APIOptions.UNICODE_OPTIONS);
+
+    public static final int POLICY_LOOKUP_NAMES = 0x00000800;
+    public static final int STATUS_SUCCESS = 0x00000000;
+    public static final int STATUS_SOME_NOT_MAPPED = 0x00000107;
+    public static final int STATUS_NONE_MAPPED = 0xC0000073;
+
+    int LsaOpenPolicy(LSA_UNICODE_STRING SystemName,
+        LSA_OBJECT_ATTRIBUTES ObjectAttributes, int DesiredAccess,
+        PointerByReference PolicyHandle);
+
+    int LsaLookupSids(Pointer PolicyHandle, int Count, Pointer[] Sids,
+        PointerByReference ReferencedDomains, PointerByReference Names);
+
+    int LsaFreeMemory(Pointer Buffer);
+
+    int LsaClose(Pointer ObjectHandle);
+
+    int LsaNtStatusToWinError(int Status);
+
+    /** Passed to LsaOpenPolicy, which requires it to be zeroed. */
+    public static class LSA_OBJECT_ATTRIBUTES extends Structure {
+      public int Length;
+      public Pointer RootDirectory;
+      public Pointer ObjectName;
+      public int Attributes;
+      public Pointer SecurityDescriptor;
+      public Pointer SecurityQualityOfService;
+
+      @Override
+      protected List<String> getFieldOrder() {
+        return Arrays.asList("Length", "RootDirectory", "ObjectName",
+            "Attributes", "SecurityDescriptor", "SecurityQualityOfService");
+      }
+    }
+
+    /** The domains of the accounts returned by LsaLookupSids. */
+    public static class LSA_REFERENCED_DOMAIN_LIST extends Structure {
+      public int Entries;
+      public Pointer Domains;
+
+      public LSA_REFERENCED_DOMAIN_LIST(Pointer m) {
+        useMemory(m);
+        read();
+      }
+
+      /** Returns the name of the domain at the index. */
+      public String getDomainName(int index) {
+        final int sizeOfInfo = new LSA_TRUST_INFORMATION().size();
+        return new LSA_TRUST_INFORMATION(Domains.share(index * sizeOfInfo))
+            .Name.getString();
+      }
+
+      @Override
+      protected List<String> getFieldOrder() {
+        return Arrays.asList("Entries", "Domains");
+      }
+    }
+
+    /** A domain in an LSA_REFERENCED_DOMAIN_LIST. */
+    public static class LSA_TRUST_INFORMATION extends Structure {
+      public LSA_UNICODE_STRING Name;
+      public Pointer Sid;
+
+      public LSA_TRUST_INFORMATION() {
+      }
+
+      public LSA_TRUST_INFORMATION(Pointer m) {
+        useMemory(m);
+        read();
+      }
+
+      @Override
+      protected List<String> getFieldOrder() {
+        return Arrays.asList("Name", "Sid");
+      }
+    }
+
+    /** The account of a SID returned by LsaLookupSids. */
+    public static class LSA_TRANSLATED_NAME extends Structure {
+      public int Use;
+      public LSA_UNICODE_STRING Name;
+      public int DomainIndex;
+
+      public LSA_TRANSLATED_NAME() {
+      }
+
+      public LSA_TRANSLATED_NAME(Pointer m) {
+        useMemory(m);
+        read();
+      }
+
+      @Override
+      protected List<String> getFieldOrder() {
+        return Arrays.asList("Use", "Name", "DomainIndex");
+      }
+    }
+
+    /** A counted UTF-16 string used by the LSA functions. */
+    public static class LSA_UNICODE_STRING extends Structure {
+      public short Length;
+      public short MaximumLength;
+      public Pointer Buffer;
+
+      /**
+       * Returns the string, which is counted rather than null terminated.
+       */
+      public String getString() {
+        if (Buffer == null) {
+          return null;
+        }
+        return new String(Buffer.getCharArray(0, (Length & 0xFFFF) / 2));
+      }
+
+      @Override
+      protected List<String> getFieldOrder() {
+        return Arrays.asList("Length", "MaximumLength", "Buffer");
+      }
+    }
+  }
+
   public interface Kernel32Ex extends Kernel32 {
     Kernel32Ex INSTANCE = (Kernel32Ex) Native.loadLibrary("Kernel32",
         Kernel32Ex.class, W32APIOptions.UNICODE_OPTIONS);
@@ -43,6 +168,45 @@ class WinApi {
 
     int WaitForSingleObjectEx(HANDLE hHandle, int dwMilliseconds,
         boolean bAlertable);
+
+    public static final int FindExInfoBasic = 1;
+    public static final int FindExSearchNameMatch = 0;
+    public static final int FIND_FIRST_EX_LARGE_FETCH = 2;
+    public static final int IO_REPARSE_TAG_SYMLINK = 0xA000000C;
+
+    HANDLE FindFirstFileEx(String lpFileName, int fInfoLevelId,
+        WIN32_FIND_DATA lpFindFileData, int fSearchOp,
+        Pointer lpSearchFilter, int dwAdditionalFlags);
+
+    boolean FindNextFile(HANDLE hFindFile, WIN32_FIND_DATA lpFindFileData);
+
+    boolean FindClose(HANDLE hFindFile);
+
+    /**
+     * Documentation on WIN32_FIND_DATA can be found at:
+     * http://msdn.microsoft.com/en-us/library/windows/desktop/aa365740(v=vs.85).aspx
+     */
+    public static class WIN32_FIND_DATA extends Structure {
+      public int dwFileAttributes;
+      public FILETIME ftCreationTime;
+      public FILETIME ftLastAccessTime;
+      public FILETIME ftLastWriteTime;
+      public int nFileSizeHigh;
+      public int nFileSizeLow;
+      public int dwReserved0;
+      public int dwReserved1;
+      public char[] cFileName = new char[MAX_PATH];
+      public char[] cAlternateFileName = new char[14];
+
+      @Override
+      protected List<String> getFieldOrder() {
+        return Arrays.asList(new String[] {
+            "dwFileAttributes", "ftCreationTime", "ftLastAccessTime",
+            "ftLastWriteTime", "nFileSizeHigh", "nFileSizeLow",
+            "dwReserved0", "dwReserved1", "cFileName", "cAlternateFileName"
+            });
+      }
+    }
   }
 
   public interface Shlwapi extends StdCallLibrary {
@@ -15,10 +15,13 @@
 package com.google.enterprise.adaptor.fs;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
+import com.google.enterprise.adaptor.fs.WinApi.Advapi32Ex;
 import com.google.enterprise.adaptor.fs.WinApi.Netapi32Ex;
 import com.google.enterprise.adaptor.fs.WinApi.Shlwapi;
 
@@ -28,7 +31,6 @@ import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.WString;
 import com.sun.jna.platform.win32.Advapi32;
-import com.sun.jna.platform.win32.Advapi32Util;
 import com.sun.jna.platform.win32.Advapi32Util.Account;
 import com.sun.jna.platform.win32.Kernel32;
 import com.sun.jna.platform.win32.LMErr;
@@ -52,14 +54,18 @@ import java.nio.file.attribute.AclEntryType;
 import java.nio.file.attribute.AclFileAttributeView;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -142,32 +148,133 @@ class WindowsAclFileAttributeViews {
           }
       });
 
+  /**
+   * The NT GENERIC permissions expanded to their NT FILE permissions,
+   * indexed by the four GENERIC bits at the top of an access mask.
+   */
+  private static final int[] GENERIC_PERMS_TABLE = new int[16];
+
+  /** The NT permissions mapped to AclEntryPermissions, in a fixed order. */
+  private static final int[] ACL_PERMS_BITS = new int[ACL_PERMS_MAP.size()];
+  private static final AclEntryPermission[] ACL_PERMS_VALUES =
+      new AclEntryPermission[ACL_PERMS_MAP.size()];
+
+  /**
+   * The shared AclEntryPermission sets, indexed by which of the
+   * {@link #ACL_PERMS_BITS} an access mask has, and created the first time
+   * an access mask with those bits is seen.
+   */
+  private static final AtomicReferenceArray<Set<AclEntryPermission>>
+      ACL_PERMS_TABLE = new AtomicReferenceArray<Set<AclEntryPermission>>(
+          1 << ACL_PERMS_MAP.size());
+
+  /** The shared AclEntryFlag sets, indexed by the NT ACE flags. */
+  private static final List<Set<AclEntryFlag>> ACL_FLAGS_TABLE;
+
+  static {
+    for (Map.Entry<Integer, Integer> e : GENERIC_PERMS_MAP.entrySet()) {
+      int bit = e.getKey() >>> 28;
+      Preconditions.checkState(e.getKey() == bit << 28);
+      for (int i = 0; i < GENERIC_PERMS_TABLE.length; i++) {
+        if ((i & bit) == bit) {
+          GENERIC_PERMS_TABLE[i] |= e.getValue();
+        }
+      }
+    }
+
+    int index = 0;
+    for (Map.Entry<Integer, AclEntryPermission> e
+         : ACL_PERMS_MAP.entrySet()) {
+      ACL_PERMS_BITS[index] = e.getKey();
+      ACL_PERMS_VALUES[index] = e.getValue();
+      index++;
+    }
+
+    // Flags that differ only in unmapped bits, such as INHERITED_ACE,
+    // share the same set.
+    Map<Set<AclEntryFlag>, Set<AclEntryFlag>> flagSets =
+        new HashMap<Set<AclEntryFlag>, Set<AclEntryFlag>>();
+    ImmutableList.Builder<Set<AclEntryFlag>> flagsTable =
+        ImmutableList.builder();
+    for (int aceFlags = 0; aceFlags < 256; aceFlags++) {
+      Set<AclEntryFlag> flags = EnumSet.noneOf(AclEntryFlag.class);
+      for (Map.Entry<Byte, AclEntryFlag> e : ACL_FLAGS_MAP.entrySet()) {
+        if ((aceFlags & e.getKey()) == e.getKey()) {
+          flags.add(e.getValue());
+        }
+      }
+      if (!flagSets.containsKey(flags)) {
+        flagSets.put(flags, Sets.immutableEnumSet(flags));
+      }
+      flagsTable.add(flagSets.get(flags));
+    }
+    ACL_FLAGS_TABLE = flagsTable.build();
+  }
+
+  /**
+   * Stands in for the principals of accounts that are neither users nor
+   * groups, which are not included in ACLs.
+   */
+  private static final UserPrincipal UNSUPPORTED_PRINCIPAL =
+      new User("", "Unknown");
+
   private final Advapi32 advapi32;
   private final Kernel32 kernel32;
   private final Mpr mpr;
   private final Netapi32Ex netapi32;
   private final Shlwapi shlwapi;
+  private final SidLookup sidLookup;
 
-  /** Cache of AccountsBySid should max out at about 10-12 MB. */
-  private Cache<SidKey, Account> accountCache = CacheBuilder
+  /**
+   * Cache of the principal of each SID, so that ACEs naming the same
+   * account share a single principal. Should max out at about 10-12 MB.
+   */
+  private Cache<BytesKey, UserPrincipal> principalCache = CacheBuilder
       .newBuilder().initialCapacity(10000).maximumSize(100000)
       .expireAfterWrite(24, TimeUnit.HOURS).build();
 
+  /**
+   * Cache of the SIDs that do not map to any account, such as those of
+   * deleted users, so that every file naming one does not ask the domain
+   * controller again. The entries expire sooner than the principals, in
+   * case the account appears later, as a replicated account might.
+   */
+  private Cache<BytesKey, Boolean> unmappedSidCache = CacheBuilder
+      .newBuilder().maximumSize(10000)
+      .expireAfterWrite(1, TimeUnit.HOURS).build();
+
+  private final AtomicLong sidCacheHits = new AtomicLong();
+  private final AtomicLong unmappedSidCacheHits = new AtomicLong();
+  private final AtomicLong sidsLookedUp = new AtomicLong();
+  private final AtomicLong sidLookups = new AtomicLong();
+  private final AtomicLong sidLookupNanos = new AtomicLong();
+
+  /**
+   * Cache of the ACL views parsed from each distinct security descriptor.
+   * Most files on a share carry one of a handful of security descriptors,
+   * so their ACEs need only be mapped once. The entries expire so that
+   * renamed accounts are eventually noticed.
+   */
+  private Cache<BytesKey, AclFileAttributeViews> aclViewsCache = CacheBuilder
+      .newBuilder().maximumSize(10000)
+      .expireAfterWrite(1, TimeUnit.HOURS).build();
+
   /** Constructor used for production. */
   public WindowsAclFileAttributeViews() {
     this(Advapi32.INSTANCE, Kernel32.INSTANCE, Mpr.INSTANCE,
-         Netapi32Ex.INSTANCE, Shlwapi.INSTANCE);
+         Netapi32Ex.INSTANCE, Shlwapi.INSTANCE, new LsaSidLookup());
   }
 
   /** Constructor used by the tests. */
   @VisibleForTesting
   WindowsAclFileAttributeViews(Advapi32 advapi32, Kernel32 kernel32,
-      Mpr mpr, Netapi32Ex netapi32, Shlwapi shlwapi) {
+      Mpr mpr, Netapi32Ex netapi32, Shlwapi shlwapi, SidLookup sidLookup) {
     this.advapi32 = advapi32;
     this.kernel32 = kernel32;
     this.mpr = mpr;
     this.netapi32 = netapi32;
     this.shlwapi = shlwapi;
+    this.sidLookup = sidLookup;
   }
 
   /**
@@ -179,13 +286,32 @@ class WindowsAclFileAttributeViews {
    */
   public AclFileAttributeViews getAclViews(Path path) throws IOException {
     String pathname = path.toRealPath(LinkOption.NOFOLLOW_LINKS).toString();
-    WinNT.ACCESS_ACEStructure[] aces = getFileSecurity(pathname,
+    Memory securityDescriptor = getFileSecurity(pathname,
         WinNT.DACL_SECURITY_INFORMATION 
         | WinNT.PROTECTED_DACL_SECURITY_INFORMATION 
         | WinNT.UNPROTECTED_DACL_SECURITY_INFORMATION);
+
+    // Files with identical security descriptors have identical ACL views.
+    BytesKey key = new BytesKey(
+        securityDescriptor.getByteArray(0, (int) securityDescriptor.size()));
+    AclFileAttributeViews aclViews = aclViewsCache.getIfPresent(key);
+    if (aclViews == null) {
+      aclViews = newAclViews(pathname, new WinNT.SECURITY_DESCRIPTOR_RELATIVE(
+          securityDescriptor).getDiscretionaryACL().getACEStructures());
+      aclViewsCache.put(key, aclViews);
+    } else {
+      log.log(Level.FINEST, "Reusing ACL views for {0}", pathname);
+    }
+    return aclViews;
+  }
+
+  /** Maps the ACEs of a file's DACL to its direct and inherited ACLs. */
+  private AclFileAttributeViews newAclViews(String pathname,
+      WinNT.ACCESS_ACEStructure[] aces) {
     ImmutableList.Builder<AclEntry> inherited = ImmutableList.builder();
     ImmutableList.Builder<AclEntry> direct = ImmutableList.builder();
 
+    resolveSids(aces);
     for (WinNT.ACCESS_ACEStructure ace : aces) {
       AclEntry aclEntry = newAclEntry(ace);
       if (aclEntry != null) {
@@ -301,7 +427,9 @@ class WindowsAclFileAttributeViews {
     WinNT.ACL dacl = sdr.getDiscretionaryACL();
 
     ImmutableList.Builder<AclEntry> builder = ImmutableList.builder();
-    for (WinNT.ACCESS_ACEStructure ace : dacl.getACEStructures()) {
+    WinNT.ACCESS_ACEStructure[] aces = dacl.getACEStructures();
+    resolveSids(aces);
+    for (WinNT.ACCESS_ACEStructure ace : aces) {
       AclEntry entry = newAclEntry(ace);
       if (entry != null) {
         builder.add(entry);
@@ -333,77 +461,77 @@ class WindowsAclFileAttributeViews {
     }
 
     // Map the user.
-    Account account;
-    try {
-      account = getAccountBySid(ace.getSID());
-    } catch (Win32Exception e) {
-      // Only the least significant 16-bits signifies the HR code.
-      if ((e.getHR().intValue() & 0xFFFF) == WinError.ERROR_NONE_MAPPED) {
+    UserPrincipal aclPrincipal = getPrincipalBySid(ace.getSID());
+    if (aclPrincipal == null) {
+      if (log.isLoggable(Level.FINEST)) {
         log.log(Level.FINEST, "Skipping ACE with unresolvable SID: {0}.",
             ace.getSidString());
-        return null;
-      } else {
-        throw e;
       }
-    }
-    String accountName = (account.domain == null)
-        ? account.name : account.domain + "\\" + account.name;
-    UserPrincipal aclPrincipal;
-    String accountType = getSidTypeString(account.accountType);
-    if (USER_SID_TYPES.contains(account.accountType)) {
-      aclPrincipal = new User(accountName, accountType);
-    } else if (GROUP_SID_TYPES.contains(account.accountType)) {
-      aclPrincipal = new Group(accountName, accountType);
-    } else {
-      log.log(Level.FINEST,
-          "Skipping ACE with unsupported account type {0} ({1}).",
-          new Object[] { accountName, accountType });
       return null;
-    }
-
-    // Expand NT GENERIC_* permissions to their FILE_GENERIC_* equivalents.
-    int aceMask = ace.Mask;
-    for (Map.Entry<Integer, Integer> e : GENERIC_PERMS_MAP.entrySet()) {
-      if ((ace.Mask & e.getKey()) == e.getKey()) {
-        aceMask |= e.getValue();
+    } else if (aclPrincipal == UNSUPPORTED_PRINCIPAL) {
+      if (log.isLoggable(Level.FINEST)) {
+        log.log(Level.FINEST,
+            "Skipping ACE with unsupported account type: {0}.",
+            ace.getSidString());
       }
+      return null;
     }
 
-    // Map the permissions.
-    Set<AclEntryPermission> aclPerms = EnumSet.noneOf(AclEntryPermission.class);
-    for (Map.Entry<Integer, AclEntryPermission> e : ACL_PERMS_MAP.entrySet()) {
-      if ((aceMask & e.getKey()) == e.getKey()) {
-        aclPerms.add(e.getValue());
+    return AclEntry.newBuilder()
+        .setType(aclType)
+        .setPrincipal(aclPrincipal)
+        .setPermissions(getAclPermissions(ace.Mask))
+        .setFlags(ACL_FLAGS_TABLE.get(ace.AceFlags & 0xFF))
+        .build();
+  }
+
+  /**
+   * Returns the shared set of AclEntryPermissions granted by an NT access
+   * mask, after expanding its GENERIC_* permissions to their FILE_GENERIC_*
+   * equivalents.
+   */
+  @VisibleForTesting
+  static Set<AclEntryPermission> getAclPermissions(int mask) {
+    int aceMask = mask | GENERIC_PERMS_TABLE[mask >>> 28];
+    int index = 0;
+    for (int i = 0; i < ACL_PERMS_BITS.length; i++) {
+      if ((aceMask & ACL_PERMS_BITS[i]) == ACL_PERMS_BITS[i]) {
+        index |= 1 << i;
       }
     }
-
-    // Map the flags.
-    Set<AclEntryFlag> aclFlags = EnumSet.noneOf(AclEntryFlag.class);
-    for (Map.Entry<Byte, AclEntryFlag> e : ACL_FLAGS_MAP.entrySet()) {
-      if ((ace.AceFlags & e.getKey()) == e.getKey()) {
-        aclFlags.add(e.getValue());
+    Set<AclEntryPermission> aclPerms = ACL_PERMS_TABLE.get(index);
+    if (aclPerms == null) {
+      Set<AclEntryPermission> perms = EnumSet.noneOf(AclEntryPermission.class);
+      for (int i = 0; i < ACL_PERMS_VALUES.length; i++) {
+        if ((index & (1 << i)) != 0) {
+          perms.add(ACL_PERMS_VALUES[i]);
+        }
       }
+      // Racing threads create equal sets, so either may be kept.
+      aclPerms = Sets.immutableEnumSet(perms);
+      ACL_PERMS_TABLE.compareAndSet(index, null, aclPerms);
     }
+    return aclPerms;
+  }
 
-    return AclEntry.newBuilder()
-        .setType(aclType)
-        .setPrincipal(aclPrincipal)
-        .setPermissions(aclPerms)
-        .setFlags(aclFlags)
-        .build();
+  /** Returns the shared set of AclEntryFlags for NT ACE flags. */
+  @VisibleForTesting
+  static Set<AclEntryFlag> getAclFlags(byte aceFlags) {
+    return ACL_FLAGS_TABLE.get(aceFlags & 0xFF);
   }
 
-  private static class SidKey {
-    private byte[] sidBytes;
+  /** A cache key made of raw bytes, such as those of a SID. */
+  private static class BytesKey {
+    private final byte[] bytes;
 
-    SidKey(byte[] sidBytes) {
-      this.sidBytes = sidBytes;
+    BytesKey(byte[] bytes) {
+      this.bytes = bytes;
     }
 
     @Override
     public boolean equals(Object other) {
-      if (other instanceof SidKey) {
-        return Arrays.equals(sidBytes, ((SidKey) other).sidBytes);
+      if (other instanceof BytesKey) {
+        return Arrays.equals(bytes, ((BytesKey) other).bytes);
       } else {
         return false;
       }
@@ -411,22 +539,135 @@ class WindowsAclFileAttributeViews {
 
     @Override
     public int hashCode() {
-      return Arrays.hashCode(sidBytes);
+      return Arrays.hashCode(bytes);
     }
   }
 
-  @VisibleForTesting
-  Account getAccountBySid(final WinNT.PSID sid) throws Win32Exception {
+  /**
+   * Returns the principal of the account of a SID, {@code null} if the SID
+   * does not map to an account, or {@link #UNSUPPORTED_PRINCIPAL} if the
+   * account is neither a user nor a group. The principal is created once
+   * per SID, and shared by every ACE that names it.
+   */
+  private UserPrincipal getPrincipalBySid(WinNT.PSID sid)
+      throws Win32Exception {
     // PSID made a poor cache key, but the raw bytes work much better.
-    Account account = accountCache.getIfPresent(new SidKey(sid.getBytes()));
-    if (account == null) {
-      account = Advapi32Util.getAccountBySid(sid);
-      SidKey key = new SidKey(Arrays.copyOf(account.sid, account.sid.length));
-      account.sid = null;       // Reduce cache memory usage by dropping the
-      account.sidString = null; // unused sid bytes and sidString.
-      accountCache.put(key, account);
-    }
-    return account;
+    BytesKey key = new BytesKey(getSidBytes(sid));
+    UserPrincipal principal = principalCache.getIfPresent(key);
+    if (principal != null) {
+      sidCacheHits.incrementAndGet();
+      return principal;
+    }
+    if (unmappedSidCache.getIfPresent(key) != null) {
+      unmappedSidCacheHits.incrementAndGet();
+      return null;
+    }
+    lookupSids(Collections.singletonMap(key, sid));
+    return principalCache.getIfPresent(key);
+  }
+
+  /**
+   * Resolves the SIDs of the supported ACEs that are not already cached,
+   * all in a single lookup, so that mapping the ACEs one by one finds them
+   * in the caches.
+   */
+  private void resolveSids(WinNT.ACCESS_ACEStructure[] aces)
+      throws Win32Exception {
+    Map<BytesKey, WinNT.PSID> unknown =
+        new LinkedHashMap<BytesKey, WinNT.PSID>();
+    for (WinNT.ACCESS_ACEStructure ace : aces) {
+      if (!ACL_TYPE_MAP.containsKey(ace.AceType)) {
+        continue;
+      }
+      WinNT.PSID sid = ace.getSID();
+      BytesKey key = new BytesKey(getSidBytes(sid));
+      if (principalCache.getIfPresent(key) == null
+          && unmappedSidCache.getIfPresent(key) == null) {
+        unknown.put(key, sid);
+      }
+    }
+    if (!unknown.isEmpty()) {
+      lookupSids(unknown);
+    }
+  }
+
+  /** Looks up the accounts of the SIDs, and caches what is found. */
+  private void lookupSids(Map<BytesKey, WinNT.PSID> sids)
+      throws Win32Exception {
+    long start = System.nanoTime();
+    List<Account> accounts =
+        sidLookup.lookupSids(new ArrayList<WinNT.PSID>(sids.values()));
+    long nanos = System.nanoTime() - start;
+    sidLookups.incrementAndGet();
+    sidsLookedUp.addAndGet(sids.size());
+    sidLookupNanos.addAndGet(nanos);
+
+    int i = 0;
+    for (BytesKey key : sids.keySet()) {
+      Account account = accounts.get(i++);
+      if (account == null) {
+        unmappedSidCache.put(key, Boolean.TRUE);
+      } else {
+        principalCache.put(key, newPrincipal(account));
+      }
+    }
+    if (log.isLoggable(Level.FINE)) {
+      log.log(Level.FINE, "Looked up {0} SIDs in {1} ms. {2}", new Object[] {
+          sids.size(), TimeUnit.NANOSECONDS.toMillis(nanos),
+          getSidStatistics() });
+    }
+  }
+
+  /** Returns a summary of how SIDs have been resolved. */
+  String getSidStatistics() {
+    long lookups = sidLookups.get();
+    long averageMillis = (lookups == 0) ? 0
+        : TimeUnit.NANOSECONDS.toMillis(sidLookupNanos.get()) / lookups;
+    return "SID cache hits: " + sidCacheHits.get()
+        + ", unmapped SID cache hits: " + unmappedSidCacheHits.get()
+        + ", SIDs looked up: " + sidsLookedUp.get()
+        + ", lookups: " + lookups
+        + ", average lookup time: " + averageMillis + " ms";
+  }
+
+  @VisibleForTesting
+  long getSidCacheHits() {
+    return sidCacheHits.get();
+  }
+
+  @VisibleForTesting
+  long getUnmappedSidCacheHits() {
+    return unmappedSidCacheHits.get();
+  }
+
+  @VisibleForTesting
+  long getSidsLookedUp() {
+    return sidsLookedUp.get();
+  }
+
+  @VisibleForTesting
+  long getSidLookups() {
+    return sidLookups.get();
+  }
+
+  private static UserPrincipal newPrincipal(Account account) {
+    String accountName = (account.domain == null)
+        ? account.name : account.domain + "\\" + account.name;
+    String accountType = getSidTypeString(account.accountType);
+    if (USER_SID_TYPES.contains(account.accountType)) {
+      return new User(accountName, accountType);
+    } else if (GROUP_SID_TYPES.contains(account.accountType)) {
+      return new Group(accountName, accountType);
+    } else {
+      log.log(Level.FINEST, "Unsupported account type {0} ({1}).",
+          new Object[] { accountName, accountType });
+      return UNSUPPORTED_PRINCIPAL;
+    }
+  }
+
+  @VisibleForTesting
+  byte[] getSidBytes(WinNT.PSID sid) {
+    return sid.getBytes();
   }
 
   // One-to-one corresponance to WinNT.SID_NAME_USE "enumeration".
@@ -468,6 +709,86 @@ class WindowsAclFileAttributeViews {
     }
   }
 
+  /**
+   * Looks up the accounts of a batch of SIDs with a single request, rather
+   * than one request per SID.
+   */
+  @VisibleForTesting
+  static interface SidLookup {
+    /**
+     * Returns the accounts of the SIDs, in the same order as the SIDs, with
+     * {@code null} for each SID that does not map to an account.
+     */
+    List<Account> lookupSids(List<WinNT.PSID> sids) throws Win32Exception;
+  }
+
+  /** Looks up the accounts of SIDs with {@code LsaLookupSids}. */
+  private static class LsaSidLookup implements SidLookup {
+    @Override
+    public List<Account> lookupSids(List<WinNT.PSID> sids)
+        throws Win32Exception {
+      Advapi32Ex advapi32 = Advapi32Ex.INSTANCE;
+      PointerByReference policy = new PointerByReference();
+      int status = advapi32.LsaOpenPolicy(null,
+          new Advapi32Ex.LSA_OBJECT_ATTRIBUTES(),
+          Advapi32Ex.POLICY_LOOKUP_NAMES, policy);
+      if (status != Advapi32Ex.STATUS_SUCCESS) {
+        throw new Win32Exception(advapi32.LsaNtStatusToWinError(status));
+      }
+      PointerByReference domains = new PointerByReference();
+      PointerByReference names = new PointerByReference();
+      try {
+        Pointer[] sidPointers = new Pointer[sids.size()];
+        for (int i = 0; i < sidPointers.length; i++) {
+          sidPointers[i] = sids.get(i).getPointer();
+        }
+        status = advapi32.LsaLookupSids(policy.getValue(), sidPointers.length,
+            sidPointers, domains, names);
+        if (status == Advapi32Ex.STATUS_NONE_MAPPED) {
+          return Collections.<Account>nCopies(sids.size(), null);
+        } else if (status != Advapi32Ex.STATUS_SUCCESS
+            && status != Advapi32Ex.STATUS_SOME_NOT_MAPPED) {
+          throw new Win32Exception(advapi32.LsaNtStatusToWinError(status));
+        }
+        return getAccounts(sids.size(),
+            new Advapi32Ex.LSA_REFERENCED_DOMAIN_LIST(domains.getValue()),
+            names.getValue());
+      } finally {
+        if (domains.getValue() != null) {
+          advapi32.LsaFreeMemory(domains.getValue());
+        }
+        if (names.getValue() != null) {
+          advapi32.LsaFreeMemory(names.getValue());
+        }
+        advapi32.LsaClose(policy.getValue());
+      }
+    }
+
+    private static List<Account> getAccounts(int count,
+        Advapi32Ex.LSA_REFERENCED_DOMAIN_LIST domains, Pointer names) {
+      final int sizeOfName = new Advapi32Ex.LSA_TRANSLATED_NAME().size();
+      List<Account> accounts = new ArrayList<Account>(count);
+      for (int i = 0; i < count; i++) {
+        Advapi32Ex.LSA_TRANSLATED_NAME name =
+            new Advapi32Ex.LSA_TRANSLATED_NAME(names.share(i * sizeOfName));
+        if (name.Use == SID_NAME_USE.SidTypeUnknown
+            || name.Use == SID_NAME_USE.SidTypeInvalid) {
+          accounts.add(null);
+          continue;
+        }
+        Account account = new Account();
+        account.accountType = name.Use;
+        account.name = name.Name.getString();
+        if (name.DomainIndex >= 0 && name.DomainIndex < domains.Entries) {
+          account.domain = Strings.emptyToNull(
+              domains.getDomainName(name.DomainIndex));
+        }
+        accounts.add(account);
+      }
+      return accounts;
+    }
+  }
+
   @VisibleForTesting
   public static interface Mpr extends StdCallLibrary {
     Mpr INSTANCE = (Mpr) Native.loadLibrary("Mpr", Mpr.class,
@@ -497,8 +818,11 @@ class WindowsAclFileAttributeViews {
     }
   }
 
-  /** Uses JNA to call native Windows {@code GetFileSecurity} function. */
-  private WinNT.ACCESS_ACEStructure[] getFileSecurity(String pathname,
+  /**
+   * Uses JNA to call native Windows {@code GetFileSecurity} function,
+   * returning the self-relative security descriptor.
+   */
+  private Memory getFileSecurity(String pathname,
       int daclType) throws IOException {
     WString wpath = new WString(pathname);
     IntByReference lengthNeeded = new IntByReference();
@@ -520,8 +844,6 @@ class WindowsAclFileAttributeViews {
           new Win32Exception(kernel32.GetLastError()));
     }
 
-    WinNT.SECURITY_DESCRIPTOR_RELATIVE securityDescriptor =
-        new WinNT.SECURITY_DESCRIPTOR_RELATIVE(memory);
-    return securityDescriptor.getDiscretionaryACL().getACEStructures();
+    return memory;
   }
 }
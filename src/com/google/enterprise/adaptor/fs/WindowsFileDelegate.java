@@ -16,7 +16,10 @@ package com.google.enterprise.adaptor.fs;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.adaptor.AsyncDocIdPusher;
 import com.google.enterprise.adaptor.DocId;
 import com.google.enterprise.adaptor.DocIdPusher;
@@ -25,14 +28,17 @@ import com.google.enterprise.adaptor.fs.WinApi.Kernel32Ex;
 import com.google.enterprise.adaptor.fs.WinApi.Netapi32Ex;
 
 import com.sun.jna.Memory;
+import com.sun.jna.Native;
 import com.sun.jna.Pointer;
 import com.sun.jna.WString;
 import com.sun.jna.platform.win32.Advapi32;
 import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.Kernel32Util;
 import com.sun.jna.platform.win32.LMErr;
 import com.sun.jna.platform.win32.W32Errors;
 import com.sun.jna.platform.win32.Win32Exception;
 import com.sun.jna.platform.win32.WinBase;
+import com.sun.jna.platform.win32.WinError;
 import com.sun.jna.platform.win32.WinNT;
 import com.sun.jna.platform.win32.WinNT.FILE_NOTIFY_INFORMATION;
 import com.sun.jna.platform.win32.WinNT.HANDLE;
@@ -40,16 +46,30 @@ import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
 
 import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.AclEntry;
 import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -58,12 +78,38 @@ class WindowsFileDelegate extends NioFileDelegate {
   private static final Logger log
       = Logger.getLogger(WindowsFileDelegate.class.getName());
 
+  /**
+   * The number of recently changed directories each monitor remembers, to
+   * rescan if notifications are lost.
+   */
+  private static final int MAX_ACTIVE_DIRECTORIES = 256;
+
+  /**
+   * The maximum number of entries in the snapshot of an active directory.
+   * Larger directories are recrawled after notifications are lost.
+   */
+  private static final int MAX_SNAPSHOT_ENTRIES = 1000;
+
+  /** The maximum number of changes a rescan may push. */
+  private static final int MAX_RESCAN_CHANGES = 10000;
+
   private final Advapi32 advapi32;
   private final Kernel32Ex kernel32;
   private final Netapi32Ex netapi32;
   private final WindowsAclFileAttributeViews aclViews;
   private final long notificationPauseMillis;
 
+  /**
+   * Cache of the DFS information of paths, including paths that are not
+   * DFS namespaces or links, so that repeatedly checking the same paths
+   * does not make a NetDfsGetInfo call each time. Only roots, and paths
+   * that could be links inside a DFS namespace, are looked up at all.
+   */
+  private final Cache<Path, DfsInfo> dfsInfoCache;
+
+  /** Cache of the links enumerated in each DFS namespace. */
+  private final Cache<Path, List<Path>> dfsLinksCache;
+
   private HashMap<Path, MonitorThread>monitors =
       new HashMap<Path, MonitorThread>();
 
@@ -76,13 +122,27 @@ class WindowsFileDelegate extends NioFileDelegate {
   WindowsFileDelegate(Advapi32 advapi32, Kernel32Ex kernel32,
       Netapi32Ex netapi32, WindowsAclFileAttributeViews aclViews,
       long notificationPauseMillis) {
+    this(advapi32, kernel32, netapi32, aclViews, notificationPauseMillis,
+         TimeUnit.MINUTES.toMillis(15));
+  }
+
+  @VisibleForTesting
+  WindowsFileDelegate(Advapi32 advapi32, Kernel32Ex kernel32,
+      Netapi32Ex netapi32, WindowsAclFileAttributeViews aclViews,
+      long notificationPauseMillis, long dfsCacheTtlMillis) {
     Preconditions.checkArgument((notificationPauseMillis >= 0),
         "notificationPauseMillis must not be negative");
+    Preconditions.checkArgument((dfsCacheTtlMillis >= 0),
+        "dfsCacheTtlMillis must not be negative");
     this.advapi32 = advapi32;
     this.kernel32 = kernel32;
     this.netapi32 = netapi32;
     this.aclViews = aclViews;
     this.notificationPauseMillis = notificationPauseMillis;
+    this.dfsInfoCache = CacheBuilder.newBuilder().maximumSize(10000)
+        .expireAfterWrite(dfsCacheTtlMillis, TimeUnit.MILLISECONDS).build();
+    this.dfsLinksCache = CacheBuilder.newBuilder().maximumSize(1000)
+        .expireAfterWrite(dfsCacheTtlMillis, TimeUnit.MILLISECONDS).build();
   }
 
   @Override
@@ -247,64 +307,135 @@ class WindowsFileDelegate extends NioFileDelegate {
     if (doc.getNameCount() > 0) {
       return false;
     }
-    Netapi32Ex.DFS_INFO_3 info = getDfsInfo(doc);
-    if (info == null) {
-      return false;
-    }
-    return (info.State.intValue() & Netapi32Ex.DFS_ROOT_FLAVOR_MASK) != 0;
+    return getDfsInfo(doc).isNamespace();
   }
 
   @Override
   public boolean isDfsLink(Path doc) throws IOException {
     // A DFS link has a namecount of at least 1, but so does a anything at
     // the top level of a shared folder or a filesystem root.
-    Netapi32Ex.DFS_INFO_3 info = getDfsInfo(doc);
-    if (info == null) {
+    return getDfsInfo(doc).isLink();
+  }
+
+  /**
+   * Returns true if the path could be a DFS link, without looking the path
+   * itself up. A link can only be found in a DFS namespace, and never
+   * beneath another link, so the files of a share, or the files of a link's
+   * target, never need a NetDfsGetInfo call of their own.
+   */
+  private boolean mayBeDfsLink(Path doc) throws IOException {
+    Path root = doc.getRoot();
+    if (root == null || !lookupDfsInfo(root).isNamespace()) {
       return false;
     }
-    return (info.State.intValue() & Netapi32Ex.DFS_ROOT_FLAVOR_MASK) == 0;
+    for (int i = 1; i < doc.getNameCount(); i++) {
+      if (lookupDfsInfo(root.resolve(doc.subpath(0, i))).isLink()) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public Path resolveDfsLink(Path doc) throws IOException {
-    Netapi32Ex.DFS_INFO_3 info = getDfsInfo(doc);
-    if (info == null
-        || (info.State.intValue() & Netapi32Ex.DFS_ROOT_FLAVOR_MASK) != 0) {
+    DfsInfo info = getDfsInfo(doc);
+    if (!info.isLink()) {
       return null;
     }
-
-    // Find the active storage.
-    String storageUnc = null;
-    for (int i = 0; i < info.StorageInfos.length; i++) {
-      Netapi32Ex.DFS_STORAGE_INFO storeInfo = info.StorageInfos[i];
-      if (storeInfo.State.intValue() == Netapi32Ex.DFS_STORAGE_STATE_ONLINE) {
-        storageUnc = String.format("\\\\%s\\%s", storeInfo.ServerName,
-            storeInfo.ShareName);
-        break;
-      }
-    }
-    if (storageUnc == null) {
+    if (info.activeStorage == null) {
       throw new IOException("The DFS path " + doc
           + " does not have an active storage.");
     }
+    return info.activeStorage;
+  }
+
+  /** Returns the DFS information of the path. */
+  private DfsInfo getDfsInfo(Path doc) throws IOException {
+    if (doc.getNameCount() > 0 && !mayBeDfsLink(doc)) {
+      return DfsInfo.NOT_DFS;
+    }
+    return lookupDfsInfo(doc);
+  }
 
-    return Paths.get(storageUnc);
+  /**
+   * Looks up the DFS information of the path, from the cache if possible.
+   * Information NetDfsGetInfo could not be sure of is not cached.
+   */
+  private DfsInfo lookupDfsInfo(Path doc) {
+    DfsInfo info = dfsInfoCache.getIfPresent(doc);
+    if (info == null) {
+      info = readDfsInfo(doc);
+      if (info != DfsInfo.UNKNOWN) {
+        dfsInfoCache.put(doc, info);
+      }
+    }
+    return info;
   }
 
-  private Netapi32Ex.DFS_INFO_3 getDfsInfo(Path doc) throws IOException {
+  private DfsInfo readDfsInfo(Path doc) {
     PointerByReference buf = new PointerByReference();
     int rc = netapi32.NetDfsGetInfo(doc.toString(), null, null, 3, buf);
     if (rc != LMErr.NERR_Success) {
-      return null;
+      if (isNotFound(rc)) {
+        return DfsInfo.NOT_DFS;
+      }
+      // Such as access being denied, or the server being unreachable,
+      // which may well not last.
+      log.log(Level.FINE, "Unable to get the DFS information of {0}. "
+          + "Code: {1}", new Object[] { doc, rc });
+      return DfsInfo.UNKNOWN;
     }
 
     Netapi32Ex.DFS_INFO_3 info = new Netapi32Ex.DFS_INFO_3(buf.getValue());
     netapi32.NetApiBufferFree(buf.getValue());
-    return info;
+    if ((info.State.intValue() & Netapi32Ex.DFS_ROOT_FLAVOR_MASK) != 0) {
+      return DfsInfo.NAMESPACE;
+    }
+
+    // Find the active storage.
+    for (int i = 0; i < info.StorageInfos.length; i++) {
+      Netapi32Ex.DFS_STORAGE_INFO storeInfo = info.StorageInfos[i];
+      if (storeInfo.State.intValue() == Netapi32Ex.DFS_STORAGE_STATE_ONLINE) {
+        return new DfsInfo(false, true, Paths.get(String.format(
+            "\\\\%s\\%s", storeInfo.ServerName, storeInfo.ShareName)));
+      }
+    }
+    return new DfsInfo(false, true, null);
+  }
+
+  /** Returns true if the NetDfsGetInfo code means the path is not DFS. */
+  private static boolean isNotFound(int rc) {
+    switch (rc) {
+      case LMErr.NERR_DfsNoSuchVolume:
+      case LMErr.NERR_DfsNoSuchShare:
+      case LMErr.NERR_DfsNoSuchServer:
+      case WinError.ERROR_NOT_FOUND:
+      case WinError.ERROR_FILE_NOT_FOUND:
+      case WinError.ERROR_PATH_NOT_FOUND:
+        return true;
+      default:
+        return false;
+    }
   }
 
   @Override
-  public List<Path> enumerateDfsLinks(Path doc) throws IOException {
+  public List<Path> enumerateDfsLinks(final Path doc) throws IOException {
+    try {
+      return dfsLinksCache.get(doc, new Callable<List<Path>>() {
+          @Override
+          public List<Path> call() throws IOException {
+            return readDfsLinks(doc);
+          }
+        });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private List<Path> readDfsLinks(Path doc) throws IOException {
     PointerByReference buf = new PointerByReference();
     IntByReference bufSize = new IntByReference();
 
@@ -335,6 +466,46 @@ class WindowsFileDelegate extends NioFileDelegate {
     }
   }
 
+  @Override
+  public void invalidateDfsCache() {
+    dfsInfoCache.invalidateAll();
+    dfsLinksCache.invalidateAll();
+  }
+
+  @Override
+  public boolean allowsNonRootStartPaths() {
+    // A folder of a share inherits ACLs that the adaptor cannot read from
+    // the share, even if its own ACL says it inherits nothing.
+    return false;
+  }
+
+  /** The parts of the DFS information of a path that the adaptor uses. */
+  private static class DfsInfo {
+    static final DfsInfo NOT_DFS = new DfsInfo(false, false, null);
+    /** Treated as not DFS, but not cached as such. */
+    static final DfsInfo UNKNOWN = new DfsInfo(false, false, null);
+    static final DfsInfo NAMESPACE = new DfsInfo(true, false, null);
+
+    private final boolean namespace;
+    private final boolean link;
+    /** The active storage of a link, or null if it has none. */
+    private final Path activeStorage;
+
+    DfsInfo(boolean namespace, boolean link, Path activeStorage) {
+      this.namespace = namespace;
+      this.link = link;
+      this.activeStorage = activeStorage;
+    }
+
+    boolean isNamespace() {
+      return namespace;
+    }
+
+    boolean isLink() {
+      return link;
+    }
+  }
+
   /*
    * Enumerated DFS links tend to have normalized server names
    * in the path, either all uppercase, or FQDN, or both.
@@ -345,16 +516,262 @@ class WindowsFileDelegate extends NioFileDelegate {
     return namespace.getRoot().resolve(link.getRoot().relativize(link));
   }
 
+  /**
+   * Returns a {@link DirectoryStream} backed by {@code FindFirstFileEx},
+   * which returns the attributes of each entry along with its name, so
+   * listing a directory costs a single enumeration rather than a round trip
+   * to the server for each entry.
+   */
+  @Override
+  public DirectoryStream<DirectoryEntry> newDirectoryEntryStream(Path doc)
+      throws IOException {
+    return new FindFileStream(doc);
+  }
+
+  /** A {@link DirectoryStream} over the results of a file search. */
+  private class FindFileStream implements DirectoryStream<DirectoryEntry> {
+    private final Path dir;
+    private final Kernel32Ex.WIN32_FIND_DATA findData =
+        new Kernel32Ex.WIN32_FIND_DATA();
+    private HANDLE handle;
+    private boolean iterated;
+
+    FindFileStream(Path dir) throws IOException {
+      this.dir = dir;
+      String pattern = dir.toString();
+      pattern += pattern.endsWith("\\") ? "*" : "\\*";
+      handle = kernel32.FindFirstFileEx(pattern, Kernel32Ex.FindExInfoBasic,
+          findData, Kernel32Ex.FindExSearchNameMatch, null,
+          Kernel32Ex.FIND_FIRST_EX_LARGE_FETCH);
+      if (WinBase.INVALID_HANDLE_VALUE.equals(handle)) {
+        handle = null;
+        int rc = kernel32.GetLastError();
+        if (rc != WinError.ERROR_FILE_NOT_FOUND) {
+          throw newIOException(dir, rc);
+        }
+        // The directory is empty (only possible for a drive root).
+      }
+    }
+
+    @Override
+    public synchronized Iterator<DirectoryEntry> iterator() {
+      if (handle == null && iterated) {
+        throw new IllegalStateException("Directory stream is closed");
+      }
+      Preconditions.checkState(!iterated, "Iterator already obtained");
+      iterated = true;
+      return new Iterator<DirectoryEntry>() {
+        private DirectoryEntry next = nextEntry(true);
+
+        @Override
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        @Override
+        public DirectoryEntry next() {
+          if (next == null) {
+            throw new NoSuchElementException();
+          }
+          DirectoryEntry entry = next;
+          next = nextEntry(false);
+          return entry;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    /**
+     * Returns the next entry, or {@code null} if there are no more entries.
+     * The first call consumes the result of {@code FindFirstFileEx}.
+     */
+    private synchronized DirectoryEntry nextEntry(boolean first) {
+      while (handle != null) {
+        if (!first && !kernel32.FindNextFile(handle, findData)) {
+          int rc = kernel32.GetLastError();
+          if (rc == WinError.ERROR_NO_MORE_FILES) {
+            return null;
+          }
+          throw new DirectoryIteratorException(newIOException(dir, rc));
+        }
+        first = false;
+        String name = Native.toString(findData.cFileName);
+        if (!".".equals(name) && !"..".equals(name)) {
+          FindDataAttributes attrs = new FindDataAttributes(findData);
+          return new DirectoryEntry(dir.resolve(name), attrs, attrs.isHidden());
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (handle != null) {
+        kernel32.FindClose(handle);
+        handle = null;
+      }
+      iterated = true;
+    }
+  }
+
+  /** Returns an appropriate IOException for a failed file search. */
+  private static IOException newIOException(Path dir, int rc) {
+    String reason = Kernel32Util.formatMessageFromLastErrorCode(rc);
+    switch (rc) {
+      case WinError.ERROR_PATH_NOT_FOUND:
+        return new NoSuchFileException(dir.toString(), null, reason);
+      case WinError.ERROR_ACCESS_DENIED:
+        return new AccessDeniedException(dir.toString(), null, reason);
+      default:
+        return new FileSystemException(dir.toString(), null, reason);
+    }
+  }
+
+  /**
+   * The {@link DosFileAttributes} of a file, as returned by a file search.
+   */
+  private static class FindDataAttributes implements DosFileAttributes {
+    private final int fileAttributes;
+    private final int reparseTag;
+    private final FileTime creationTime;
+    private final FileTime lastAccessTime;
+    private final FileTime lastWriteTime;
+    private final long size;
+
+    FindDataAttributes(Kernel32Ex.WIN32_FIND_DATA findData) {
+      fileAttributes = findData.dwFileAttributes;
+      // dwReserved0 holds the reparse tag only for reparse points.
+      reparseTag = ((fileAttributes & WinNT.FILE_ATTRIBUTE_REPARSE_POINT) != 0)
+          ? findData.dwReserved0 : 0;
+      creationTime = toFileTime(findData.ftCreationTime);
+      lastAccessTime = toFileTime(findData.ftLastAccessTime);
+      lastWriteTime = toFileTime(findData.ftLastWriteTime);
+      size = ((long) findData.nFileSizeHigh << 32)
+          | (findData.nFileSizeLow & 0xFFFFFFFFL);
+    }
+
+    /** Converts a FILETIME (100ns intervals since 1601) to a FileTime. */
+    private static FileTime toFileTime(WinBase.FILETIME time) {
+      long intervals = ((long) time.dwHighDateTime << 32)
+          | (time.dwLowDateTime & 0xFFFFFFFFL);
+      return FileTime.from((intervals - WINDOWS_EPOCH_OFFSET) / 10,
+                           TimeUnit.MICROSECONDS);
+    }
+
+    /** The number of 100ns intervals between 1601 and 1970. */
+    private static final long WINDOWS_EPOCH_OFFSET = 116444736000000000L;
+
+    @Override
+    public FileTime lastModifiedTime() {
+      return lastWriteTime;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+      return lastAccessTime;
+    }
+
+    @Override
+    public FileTime creationTime() {
+      return creationTime;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+      return reparseTag == Kernel32Ex.IO_REPARSE_TAG_SYMLINK;
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return !isSymbolicLink()
+          && (fileAttributes & WinNT.FILE_ATTRIBUTE_DIRECTORY) != 0;
+    }
+
+    @Override
+    public boolean isOther() {
+      return !isSymbolicLink() && (fileAttributes
+          & (WinNT.FILE_ATTRIBUTE_DEVICE | WinNT.FILE_ATTRIBUTE_REPARSE_POINT))
+          != 0;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+      return !isSymbolicLink() && !isDirectory() && !isOther();
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public Object fileKey() {
+      return null;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+      return (fileAttributes & WinNT.FILE_ATTRIBUTE_READONLY) != 0;
+    }
+
+    @Override
+    public boolean isHidden() {
+      return (fileAttributes & WinNT.FILE_ATTRIBUTE_HIDDEN) != 0;
+    }
+
+    @Override
+    public boolean isArchive() {
+      return (fileAttributes & WinNT.FILE_ATTRIBUTE_ARCHIVE) != 0;
+    }
+
+    @Override
+    public boolean isSystem() {
+      return (fileAttributes & WinNT.FILE_ATTRIBUTE_SYSTEM) != 0;
+    }
+  }
+
   @Override
   public DocId newDocId(Path doc) throws IOException {
-    String id = doc.toFile().getCanonicalPath().replace('\\', '/');
+    String id = getCanonicalPath(doc).replace('\\', '/');
+    return newDocId(id, !id.endsWith("/") && Files.isDirectory(doc));
+  }
+
+  @Override
+  public DocId newDocId(DirectoryEntry entry) throws IOException {
+    if (entry.getAttributes().isSymbolicLink()) {
+      return newDocId(entry.getPath());
+    }
+    // Names returned by directory enumeration are always long names.
+    String id = canonicalPaths.getCanonicalPath(entry.getPath())
+        .replace('\\', '/');
+    return newDocId(id, entry.isDirectory());
+  }
+
+  /**
+   * Returns the canonical path of the file. The canonical path of its
+   * parent directory is cached, so the canonical path of the file is simply
+   * derived from it, unless the file name may be an 8.3 short name.
+   */
+  private String getCanonicalPath(Path doc) throws IOException {
+    Path name = doc.getFileName();
+    if (name != null && name.toString().indexOf('~') >= 0) {
+      return canonicalPaths.canonicalize(doc);
+    }
+    return canonicalPaths.getCanonicalPath(doc);
+  }
+
+  private static DocId newDocId(String id, boolean isDirectory) {
     StringBuilder sb = new StringBuilder();
     if (id.startsWith("//")) {
       sb.append("\\\\").append(id.substring(2));
     } else {
       sb.append(id);
     }
-    if (!id.endsWith("/") && Files.isDirectory(doc)) {
+    if (isDirectory && !id.endsWith("/")) {
       sb.append("/");
     }
     id = sb.toString();
@@ -412,11 +829,36 @@ class WindowsFileDelegate extends NioFileDelegate {
     }
   }
 
+  /**
+   * Returns a single thread executor that queues at most {@code capacity}
+   * tasks, silently discarding any more.
+   */
+  private static ExecutorService newDiscardingExecutor(int capacity,
+      String nameFormat) {
+    return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(capacity),
+        new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat(nameFormat).build(),
+        new ThreadPoolExecutor.DiscardPolicy());
+  }
+
   private class MonitorThread extends Thread {
     private final Path watchPath;
     private final AsyncDocIdPusher pusher;
     private final CountDownLatch startSignal;
     private final HANDLE stopEvent;
+    /**
+     * Lists directories for the rescanner, so that this thread can keep
+     * reading notifications. Snapshots beyond what it can queue are
+     * discarded.
+     */
+    private final ExecutorService snapshotExecutor;
+    /**
+     * Rescans after notifications are lost. A rescan that is already queued
+     * covers any overflow that comes before it runs.
+     */
+    private final ExecutorService rescanExecutor;
+    private final OverflowRescanner rescanner;
 
     // We may temporarily stop accepting notifications if we receive a flood.
     private boolean paused = false;
@@ -432,6 +874,12 @@ class WindowsFileDelegate extends NioFileDelegate {
       this.pusher = pusher;
       this.startSignal = startSignal;
       stopEvent = Kernel32.INSTANCE.CreateEvent(null, false, false, null);
+      snapshotExecutor = newDiscardingExecutor(MAX_ACTIVE_DIRECTORIES,
+          "Overflow snapshot-%d");
+      rescanExecutor = newDiscardingExecutor(1, "Overflow rescan-%d");
+      rescanner = new OverflowRescanner(WindowsFileDelegate.this,
+          snapshotExecutor, MAX_ACTIVE_DIRECTORIES, MAX_SNAPSHOT_ENTRIES,
+          MAX_RESCAN_CHANGES);
     }
 
     public void shutdown() {
@@ -460,6 +908,8 @@ class WindowsFileDelegate extends NioFileDelegate {
       } catch (IOException e) {
         log.log(Level.WARNING, "Unable to monitor " + watchPath, e);
       } finally {
+        snapshotExecutor.shutdownNow();
+        rescanExecutor.shutdownNow();
         // Wake up caller, in case monitor fails to start up.
         startSignal.countDown();
       }
@@ -523,9 +973,14 @@ class WindowsFileDelegate extends NioFileDelegate {
                 // notifications to be lost.
                 log.log(Level.INFO,
                     "There was a buffer overflow during file monitoring for {0}"
-                    + ". Some file update notifications may have been lost.",
+                    + ". Rescanning recently changed directories.",
                     watchPath);
-                pauseNotifications();
+                rescanExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                      rescanChanges();
+                    }
+                  });
               } else {
                 log.log(Level.WARNING,
                     "Unable to read data notification data. errorCode: {0}",
@@ -593,16 +1048,21 @@ class WindowsFileDelegate extends NioFileDelegate {
           case Kernel32.FILE_ACTION_MODIFIED:
             log.log(Level.FINEST, "Modified: {0}", changePath);
             change = newChangeRecord(changePath, /* deleted = */ false);
+            rescanner.directoryChanged(changePath.getParent());
             break;
           case Kernel32.FILE_ACTION_ADDED:
           case Kernel32.FILE_ACTION_RENAMED_NEW_NAME:
             log.log(Level.FINEST, "Added: {0}", changePath);
             change = newChangeRecord(changePath, /* deleted = */ false);
+            rescanner.directoryChanged(changePath.getParent());
             break;
           case Kernel32.FILE_ACTION_REMOVED:
           case Kernel32.FILE_ACTION_RENAMED_OLD_NAME:
             log.log(Level.FINEST, "Removed: {0}", changePath);
+            canonicalPaths.invalidate(changePath);
             change = newChangeRecord(changePath, /* deleted = */ true);
+            rescanner.directoryDeleted(changePath);
+            rescanner.directoryChanged(changePath.getParent());
             break;
           default:
             // Nothing to do here.
@@ -627,6 +1087,36 @@ class WindowsFileDelegate extends NioFileDelegate {
           new Object[] { count, watchPath });
     }
 
+    /**
+     * Pushes the changes found by rescanning the recently changed
+     * directories, after notifications were lost. If there are too many,
+     * notifications are paused, as for a flood of notifications.
+     */
+    private void rescanChanges() {
+      List<Record> changes;
+      try {
+        changes = rescanner.rescan();
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Unable to rescan " + watchPath, e);
+        changes = null;
+      }
+      if (changes == null) {
+        log.log(Level.INFO, "Too many changes found rescanning {0}. Some "
+            + "file update notifications may have been lost.", watchPath);
+        pauseNotifications();
+        return;
+      }
+      for (Record change : changes) {
+        log.log(Level.FINE, "Pushing docid {0}", change.getDocId());
+        if (!pusher.pushRecord(change)) {
+          pauseNotifications();
+          break;
+        }
+      }
+      log.log(Level.FINE, "Rescan of {0} found {1} changes",
+          new Object[] { watchPath, changes.size() });
+    }
+
     private Record newChangeRecord(Path doc, boolean deleted) {
       try {
         DocId docid;
@@ -38,7 +38,9 @@ import java.nio.file.Paths;
 import java.nio.file.attribute.AclEntry;
 import java.nio.file.attribute.AclFileAttributeView;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Test cases for {@link AclBuilder}.
@@ -323,6 +325,73 @@ public class AclBuilderTest {
     assertEquals(expected, aclBuilder.getAcl().build());
   }
 
+  @Test
+  public void testEntriesReadOnce() throws Exception {
+    final AtomicInteger reads = new AtomicInteger();
+    AclFileAttributeView aclView = new AclView(
+        user("joe").type(ALLOW).perms(GENERIC_READ)
+            .flags(FILE_INHERIT, DIRECTORY_INHERIT),
+        user("mike").type(DENY).perms(GENERIC_READ)
+            .flags(DIRECTORY_INHERIT, INHERIT_ONLY)) {
+      @Override
+      public List<AclEntry> getAcl() {
+        reads.incrementAndGet();
+        return super.getAcl();
+      }
+    };
+    AclBuilder aclBuilder = newBuilder(aclView);
+
+    Acl expected = emptyExpectedBuilder()
+        .setPermitUsers(users("joe")).build();
+    assertEquals(expected, aclBuilder.getAcl().build());
+    assertEquals(expected,
+        aclBuilder.getInheritableByAllDescendentFilesAcl().build());
+    assertEquals(expected,
+        aclBuilder.getInheritableByChildFilesOnlyAcl().build());
+    expected = emptyExpectedBuilder().setPermitUsers(users("joe"))
+        .setDenyUsers(users("mike")).build();
+    assertEquals(expected,
+        aclBuilder.getInheritableByAllDescendentFoldersAcl().build());
+    assertEquals(expected,
+        aclBuilder.getInheritableByChildFoldersOnlyAcl().build());
+    // All five ACLs were built from a single pass over the entries.
+    assertEquals(1, reads.get());
+  }
+
+  @Test
+  public void testBuildersAreIndependent() throws Exception {
+    AclBuilder aclBuilder = newBuilder(aclView);
+    aclBuilder.getAcl().setPermitUsers(users("other")).build();
+    assertEquals(expectedAcl, aclBuilder.getAcl().build());
+  }
+
+  @Test
+  public void testEmptyAcl() throws Exception {
+    AclBuilder aclBuilder = newBuilder(new AclView());
+    Acl expected = emptyExpectedBuilder().build();
+    assertEquals(expected, aclBuilder.getAcl().build());
+    assertEquals(expected,
+        aclBuilder.getInheritableByAllDescendentFoldersAcl().build());
+    assertEquals(expected,
+        aclBuilder.getInheritableByAllDescendentFilesAcl().build());
+    assertEquals(expected,
+        aclBuilder.getInheritableByChildFoldersOnlyAcl().build());
+    assertEquals(expected,
+        aclBuilder.getInheritableByChildFilesOnlyAcl().build());
+  }
+
+  @Test
+  public void testWindowsBuiltinUsersIgnoreCase() throws Exception {
+    AclFileAttributeView aclView = new AclView(
+        user("joe").type(ALLOW).perms(GENERIC_READ)
+            .flags(FILE_INHERIT, DIRECTORY_INHERIT),
+        user("builtin\\Backup").type(ALLOW).perms(GENERIC_READ)
+            .flags(FILE_INHERIT, DIRECTORY_INHERIT));
+    Acl expected = emptyExpectedBuilder()
+        .setPermitUsers(users("joe")).build();
+    assertEquals(expected, newBuilder(aclView).getAcl().build());
+  }
+
   /** Returns an AclBuilder for the AclFileAttributeView. */
   private AclBuilder newBuilder(AclFileAttributeView aclView) {
     return new AclBuilder(doc, aclView, windowsAccounts, builtinPrefix,
@@ -0,0 +1,93 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static com.google.enterprise.adaptor.fs.AclView.GenericPermission.*;
+import static com.google.enterprise.adaptor.fs.AclView.group;
+import static com.google.enterprise.adaptor.fs.AclView.user;
+import static java.nio.file.attribute.AclEntryFlag.*;
+import static java.nio.file.attribute.AclEntryType.*;
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.adaptor.DocId;
+
+import org.junit.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.util.Set;
+
+/** Tests for {@link AclCache} */
+public class AclCacheTest {
+  private final Path doc = Paths.get("foo", "bar");
+  private final Set<String> windowsAccounts =
+      ImmutableSet.of("BUILTIN\\Administrators", "Everyone");
+  private final String builtinPrefix = "BUILTIN\\";
+  private final String namespace = "namespace";
+  private final AclCache cache =
+      new AclCache(windowsAccounts, builtinPrefix, namespace);
+
+  @Test
+  public void testSameAsAclBuilder() throws Exception {
+    AclFileAttributeView aclView = newAclView("joe");
+    AclCache.Acls acls = cache.getAcls(doc, aclView);
+    AclBuilder builder = new AclBuilder(doc, aclView, windowsAccounts,
+        builtinPrefix, namespace);
+    assertEquals(builder.getAcl().build(), acls.getAcl().build());
+    assertEquals(builder.getInheritableByAllDescendentFoldersAcl().build(),
+        acls.getInheritableByAllDescendentFoldersAcl().build());
+    assertEquals(builder.getInheritableByAllDescendentFilesAcl().build(),
+        acls.getInheritableByAllDescendentFilesAcl().build());
+    assertEquals(builder.getInheritableByChildFoldersOnlyAcl().build(),
+        acls.getInheritableByChildFoldersOnlyAcl().build());
+    assertEquals(builder.getInheritableByChildFilesOnlyAcl().build(),
+        acls.getInheritableByChildFilesOnlyAcl().build());
+  }
+
+  @Test
+  public void testEqualAclsAreBuiltOnce() throws Exception {
+    AclCache.Acls acls = cache.getAcls(doc, newAclView("joe"));
+    assertSame(acls, cache.getAcls(Paths.get("other"), newAclView("joe")));
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void testDifferentAcls() throws Exception {
+    AclCache.Acls acls = cache.getAcls(doc, newAclView("joe"));
+    assertNotSame(acls, cache.getAcls(doc, newAclView("mary")));
+    assertEquals(2, cache.getMisses());
+    assertEquals(0, cache.getHits());
+  }
+
+  @Test
+  public void testReturnedBuildersAreIndependent() throws Exception {
+    AclCache.Acls acls = cache.getAcls(doc, newAclView("joe"));
+    acls.getAcl().setInheritFrom(new DocId("parent")).build();
+    assertNull(acls.getAcl().build().getInheritFrom());
+  }
+
+  private static AclFileAttributeView newAclView(String userName) {
+    return new AclView(
+        user(userName).type(ALLOW).perms(GENERIC_READ)
+            .flags(FILE_INHERIT, DIRECTORY_INHERIT),
+        group("Everyone").type(ALLOW).perms(GENERIC_READ)
+            .flags(FILE_INHERIT, INHERIT_ONLY),
+        group("sales").type(DENY).perms(GENERIC_READ)
+            .flags(DIRECTORY_INHERIT, NO_PROPAGATE_INHERIT));
+  }
+}
@@ -0,0 +1,233 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.adaptor.Acl;
+import com.google.enterprise.adaptor.Acl.InheritanceType;
+import com.google.enterprise.adaptor.AuthnIdentity;
+import com.google.enterprise.adaptor.AuthzStatus;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/** Tests for {@link AclEvaluator} */
+public class AclEvaluatorTest {
+  private final AclEvaluator evaluator = new AclEvaluator();
+
+  @Test
+  public void testPermit() throws Exception {
+    Acl acl = newAcl(InheritanceType.LEAF_NODE)
+        .setPermitGroups(groups("sales")).build();
+    assertAuthorized(AuthzStatus.PERMIT, newIdentity("joe", "sales"), acl);
+    assertAuthorized(AuthzStatus.DENY, newIdentity("joe", "eng"), acl);
+  }
+
+  @Test
+  public void testDenyWins() throws Exception {
+    Acl acl = newAcl(InheritanceType.LEAF_NODE)
+        .setPermitGroups(groups("sales"))
+        .setDenyUsers(ImmutableSet.of(new UserPrincipal("joe"))).build();
+    assertAuthorized(AuthzStatus.DENY, newIdentity("joe", "sales"), acl);
+    assertAuthorized(AuthzStatus.PERMIT, newIdentity("mary", "sales"), acl);
+  }
+
+  @Test
+  public void testUsersAndGroupsAreDistinct() throws Exception {
+    Acl acl = newAcl(InheritanceType.LEAF_NODE)
+        .setPermitUsers(ImmutableSet.of(new UserPrincipal("sales"))).build();
+    assertAuthorized(AuthzStatus.DENY, newIdentity("joe", "sales"), acl);
+  }
+
+  @Test
+  public void testNamespaces() throws Exception {
+    Acl acl = newAcl(InheritanceType.LEAF_NODE)
+        .setPermitGroups(ImmutableSet.of(new GroupPrincipal("sales", "other")))
+        .build();
+    assertAuthorized(AuthzStatus.DENY, newIdentity("joe", "sales"), acl);
+  }
+
+  @Test
+  public void testCaseSensitivity() throws Exception {
+    Acl sensitive = newAcl(InheritanceType.LEAF_NODE)
+        .setPermitGroups(groups("Sales")).build();
+    Acl insensitive = new Acl.Builder(sensitive)
+        .setEverythingCaseInsensitive().build();
+    assertAuthorized(AuthzStatus.DENY, newIdentity("joe", "SALES"),
+        sensitive);
+    assertAuthorized(AuthzStatus.PERMIT, newIdentity("joe", "SALES"),
+        insensitive);
+    assertAuthorized(AuthzStatus.PERMIT, newIdentity("joe", "Sales"),
+        sensitive);
+  }
+
+  @Test
+  public void testEmptyChain() throws Exception {
+    try {
+      AclEvaluator.isAuthorized(evaluator.newSubject(newIdentity("joe")),
+          ImmutableList.<AclEvaluator.CompiledAcl>of());
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testLeafNodeAsParent() throws Exception {
+    Acl leaf = newAcl(InheritanceType.LEAF_NODE).build();
+    try {
+      AclEvaluator.isAuthorized(evaluator.newSubject(newIdentity("joe")),
+          ImmutableList.of(evaluator.compile(leaf), evaluator.compile(leaf)));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testPrincipalsAreInternedOnce() throws Exception {
+    Acl acl = newAcl(InheritanceType.LEAF_NODE)
+        .setPermitGroups(groups("sales", "eng")).build();
+    evaluator.compile(acl);
+    evaluator.compile(acl);
+    // Each group once, case sensitively.
+    assertEquals(2, evaluator.getPrincipalCount());
+    evaluator.newSubject(newIdentity("joe", "sales"));
+    // joe, and the case insensitive forms of joe and sales.
+    assertEquals(5, evaluator.getPrincipalCount());
+  }
+
+  @Test
+  public void testManyGroups() throws Exception {
+    String[] groups = new String[500];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = "group" + i;
+    }
+    AuthnIdentity identity = newIdentity("joe", groups);
+    Acl acl = newAcl(InheritanceType.LEAF_NODE)
+        .setPermitGroups(groups("other", "group499")).build();
+    assertAuthorized(AuthzStatus.PERMIT, identity, acl);
+  }
+
+  /** Compares the evaluator with Acl.isAuthorized on random ACL chains. */
+  @Test
+  public void testSameAsAclIsAuthorized() throws Exception {
+    Random random = new Random(42);
+    InheritanceType[] parentTypes = { InheritanceType.CHILD_OVERRIDES,
+        InheritanceType.PARENT_OVERRIDES, InheritanceType.AND_BOTH_PERMIT };
+    for (int i = 0; i < 2000; i++) {
+      int length = 1 + random.nextInt(4);
+      List<Acl> chain = new ArrayList<Acl>();
+      for (int j = 0; j < length; j++) {
+        InheritanceType type = (j == length - 1) ? InheritanceType.LEAF_NODE
+            : parentTypes[random.nextInt(parentTypes.length)];
+        Acl.Builder builder = newAcl(type)
+            .setPermitUsers(randomUsers(random))
+            .setDenyUsers(randomUsers(random))
+            .setPermitGroups(randomGroups(random))
+            .setDenyGroups(randomGroups(random));
+        if (j > 0) {
+          builder.setInheritFrom(new DocId("parent" + (j - 1)));
+        }
+        if (random.nextBoolean()) {
+          builder.setEverythingCaseInsensitive();
+        }
+        chain.add(builder.build());
+      }
+      List<String> groups = new ArrayList<String>();
+      for (GroupPrincipal group : randomGroups(random)) {
+        groups.add(group.getName());
+      }
+      AuthnIdentity identity = newIdentity(
+          randomName(random, "user"), groups.toArray(new String[0]));
+      assertAuthorized(Acl.isAuthorized(identity, chain), identity,
+          chain.toArray(new Acl[0]));
+    }
+  }
+
+  private void assertAuthorized(AuthzStatus expected, AuthnIdentity identity,
+      Acl... chain) {
+    List<AclEvaluator.CompiledAcl> compiled =
+        new ArrayList<AclEvaluator.CompiledAcl>();
+    for (Acl acl : chain) {
+      compiled.add(evaluator.compile(acl));
+    }
+    assertEquals(expected, AclEvaluator.isAuthorized(
+        evaluator.newSubject(identity), compiled));
+  }
+
+  private static Acl.Builder newAcl(InheritanceType type) {
+    return new Acl.Builder().setInheritanceType(type);
+  }
+
+  private static Set<GroupPrincipal> groups(String... names) {
+    Set<GroupPrincipal> groups = new HashSet<GroupPrincipal>();
+    for (String name : names) {
+      groups.add(new GroupPrincipal(name));
+    }
+    return groups;
+  }
+
+  private static Set<UserPrincipal> randomUsers(Random random) {
+    Set<UserPrincipal> users = new HashSet<UserPrincipal>();
+    for (int i = random.nextInt(3); i > 0; i--) {
+      users.add(new UserPrincipal(randomName(random, "user")));
+    }
+    return users;
+  }
+
+  private static Set<GroupPrincipal> randomGroups(Random random) {
+    Set<GroupPrincipal> groups = new HashSet<GroupPrincipal>();
+    for (int i = random.nextInt(4); i > 0; i--) {
+      groups.add(new GroupPrincipal(randomName(random, "group")));
+    }
+    return groups;
+  }
+
+  private static String randomName(Random random, String prefix) {
+    String name = prefix + random.nextInt(4);
+    return random.nextBoolean() ? name : name.toUpperCase();
+  }
+
+  private static AuthnIdentity newIdentity(final String user,
+      String... groupNames) {
+    final Set<GroupPrincipal> groups = groups(groupNames);
+    return new AuthnIdentity() {
+      @Override
+      public UserPrincipal getUser() {
+        return new UserPrincipal(user);
+      }
+
+      @Override
+      public String getPassword() {
+        return null;
+      }
+
+      @Override
+      public Set<GroupPrincipal> getGroups() {
+        return groups;
+      }
+    };
+  }
+}
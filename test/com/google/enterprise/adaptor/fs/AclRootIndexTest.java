@@ -0,0 +1,126 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Tests for {@link AclRootIndex} */
+public class AclRootIndexTest {
+  private final Path share = Paths.get("/share");
+  private final Path nested = share.resolve("dir/nested");
+  private final Path namespace = Paths.get("/namespace");
+  private final Path link1 = namespace.resolve("link1");
+  private final Path link2 = namespace.resolve("folder/link2");
+  private final AclRootIndex index =
+      new AclRootIndex(ImmutableList.of(share, nested, namespace));
+
+  @Test
+  public void testNullStartPaths() throws Exception {
+    try {
+      new AclRootIndex(null);
+      fail("expected NullPointerException");
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  @Test
+  public void testStartPath() throws Exception {
+    assertEquals(share, index.getStartPath(share));
+    assertEquals(share, index.getStartPath(share.resolve("dir/file")));
+    assertEquals(share, index.getAclRoot(share.resolve("dir/file")));
+  }
+
+  @Test
+  public void testNestedStartPath() throws Exception {
+    assertEquals(nested, index.getStartPath(nested.resolve("file")));
+    assertEquals(nested, index.getAclRoot(nested.resolve("file")));
+    assertEquals(share, index.getAclRoot(share.resolve("dir/other")));
+  }
+
+  @Test
+  public void testNotUnderStartPath() throws Exception {
+    assertNull(index.getStartPath(Paths.get("/other/file")));
+    assertNull(index.getAclRoot(Paths.get("/other/file")));
+    assertNull(index.getStartPath(Paths.get("/")));
+    assertNull(index.getStartPath(Paths.get("/sharex/file")));
+  }
+
+  @Test
+  public void testPartialNameIsNotAncestor() throws Exception {
+    assertNull(index.getAclRoot(Paths.get("/share2/file")));
+  }
+
+  @Test
+  public void testNamespaceNotYetEnumerated() throws Exception {
+    assertEquals(namespace, index.getStartPath(link1.resolve("file")));
+    assertEquals(namespace, index.getAclRoot(link1.resolve("file")));
+  }
+
+  @Test
+  public void testDfsNamespaceNotEnumerated() throws Exception {
+    index.setDfsNamespace(namespace);
+    assertEquals(namespace, index.getStartPath(link1.resolve("file")));
+    assertNull(index.getAclRoot(link1.resolve("file")));
+    assertNull(index.getAclRoot(namespace));
+    // Recording the namespace again keeps the links enumerated since.
+    index.setDfsLinks(namespace, ImmutableList.of(link1));
+    index.setDfsNamespace(namespace);
+    assertEquals(link1, index.getAclRoot(link1.resolve("file")));
+  }
+
+  @Test
+  public void testDfsLinks() throws Exception {
+    index.setDfsLinks(namespace, ImmutableList.of(link1, link2));
+    assertEquals(namespace, index.getStartPath(link2.resolve("file")));
+    assertEquals(link1, index.getAclRoot(link1));
+    assertEquals(link1, index.getAclRoot(link1.resolve("dir/file")));
+    assertEquals(link2, index.getAclRoot(link2.resolve("file")));
+    // Not beneath any known link.
+    assertNull(index.getAclRoot(namespace.resolve("folder/link3/file")));
+    assertNull(index.getAclRoot(namespace.resolve("folder")));
+    assertEquals(namespace, index.getStartPath(namespace.resolve("folder")));
+  }
+
+  @Test
+  public void testReplaceDfsLinks() throws Exception {
+    index.setDfsLinks(namespace, ImmutableList.of(link1, link2));
+    index.setDfsLinks(namespace, ImmutableList.of(link2));
+    assertNull(index.getAclRoot(link1.resolve("file")));
+    assertEquals(link2, index.getAclRoot(link2.resolve("file")));
+  }
+
+  @Test
+  public void testNoDfsLinks() throws Exception {
+    index.setDfsLinks(namespace, ImmutableList.<Path>of());
+    assertNull(index.getAclRoot(link1.resolve("file")));
+    assertEquals(namespace, index.getStartPath(link1.resolve("file")));
+  }
+
+  @Test
+  public void testStartPathIsAlsoDfsLink() throws Exception {
+    AclRootIndex index =
+        new AclRootIndex(ImmutableList.of(namespace, link1));
+    index.setDfsLinks(namespace, ImmutableList.of(link1));
+    assertEquals(link1, index.getStartPath(link1.resolve("file")));
+    assertEquals(link1, index.getAclRoot(link1.resolve("file")));
+  }
+}
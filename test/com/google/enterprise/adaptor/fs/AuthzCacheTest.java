@@ -0,0 +1,145 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.adaptor.AuthnIdentity;
+import com.google.enterprise.adaptor.AuthzStatus;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import org.junit.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+
+/** Tests for {@link AuthzCache} */
+public class AuthzCacheTest {
+  private final Path dir = Paths.get("/share/dir");
+  private final Path doc = dir.resolve("file");
+  private final DocId id = new DocId(doc.toString());
+  private final AuthzCache.Subject joe = newSubject("joe", "sales");
+  private final AuthzCache cache = new AuthzCache(60000L);
+
+  @Test
+  public void testNegativeTtl() throws Exception {
+    try {
+      new AuthzCache(-1L);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    assertNull(cache.get(joe, id, doc));
+    cache.put(joe, id, doc, AuthzStatus.PERMIT, cache.getVersion());
+    assertEquals(AuthzStatus.PERMIT,
+        cache.get(newSubject("joe", "sales"), id, doc));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testDifferentGroups() throws Exception {
+    cache.put(joe, id, doc, AuthzStatus.PERMIT, cache.getVersion());
+    assertNull(cache.get(newSubject("joe", "sales", "managers"), id, doc));
+    assertNull(cache.get(newSubject("joe"), id, doc));
+    assertNull(cache.get(newSubject("mary", "sales"), id, doc));
+  }
+
+  @Test
+  public void testInvalidateDocument() throws Exception {
+    cache.put(joe, id, doc, AuthzStatus.DENY, cache.getVersion());
+    cache.invalidate(doc);
+    assertNull(cache.get(joe, id, doc));
+  }
+
+  @Test
+  public void testInvalidateAncestor() throws Exception {
+    cache.put(joe, id, doc, AuthzStatus.PERMIT, cache.getVersion());
+    cache.invalidate(dir.getParent());
+    assertNull(cache.get(joe, id, doc));
+  }
+
+  @Test
+  public void testInvalidateOtherPath() throws Exception {
+    cache.put(joe, id, doc, AuthzStatus.PERMIT, cache.getVersion());
+    cache.invalidate(dir.resolve("other"));
+    assertEquals(AuthzStatus.PERMIT, cache.get(joe, id, doc));
+  }
+
+  @Test
+  public void testDecisionsAfterInvalidationAreCached() throws Exception {
+    cache.invalidate(dir);
+    cache.put(joe, id, doc, AuthzStatus.PERMIT, cache.getVersion());
+    assertEquals(AuthzStatus.PERMIT, cache.get(joe, id, doc));
+  }
+
+  @Test
+  public void testDecisionBegunBeforeInvalidationIsNotCached()
+      throws Exception {
+    long version = cache.getVersion();
+    cache.invalidate(dir);
+    cache.put(joe, id, doc, AuthzStatus.PERMIT, version);
+    assertNull(cache.get(joe, id, doc));
+  }
+
+  @Test
+  public void testInvalidateAll() throws Exception {
+    long version = cache.getVersion();
+    cache.put(joe, id, doc, AuthzStatus.PERMIT, version);
+    cache.invalidateAll();
+    assertNull(cache.get(joe, id, doc));
+    cache.put(joe, id, doc, AuthzStatus.PERMIT, version);
+    assertNull(cache.get(joe, id, doc));
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    AuthzCache cache = new AuthzCache(0L);
+    cache.put(joe, id, doc, AuthzStatus.PERMIT, cache.getVersion());
+    assertNull(cache.get(joe, id, doc));
+  }
+
+  private static AuthzCache.Subject newSubject(final String user,
+      String... groups) {
+    ImmutableSet.Builder<GroupPrincipal> builder = ImmutableSet.builder();
+    for (String group : groups) {
+      builder.add(new GroupPrincipal(group));
+    }
+    final Set<GroupPrincipal> groupSet = builder.build();
+    return new AuthzCache.Subject(new AuthnIdentity() {
+      @Override
+      public UserPrincipal getUser() {
+        return new UserPrincipal(user);
+      }
+
+      @Override
+      public String getPassword() {
+        return null;
+      }
+
+      @Override
+      public Set<GroupPrincipal> getGroups() {
+        return groupSet;
+      }
+    });
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link CanonicalPathResolver} */
+public class CanonicalPathResolverTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private CountingResolver resolver = new CountingResolver(10);
+
+  @Test
+  public void testIllegalMaximumSize() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new CanonicalPathResolver(0);
+  }
+
+  @Test
+  public void testChildrenDerivedFromParent() throws Exception {
+    Path dir = temp.newFolder("dir").toPath();
+    Path file1 = Files.createFile(dir.resolve("file1"));
+    Path file2 = Files.createFile(dir.resolve("file2"));
+
+    assertEquals(file1.toFile().getCanonicalPath(),
+                 resolver.getCanonicalPath(file1));
+    assertEquals(file2.toFile().getCanonicalPath(),
+                 resolver.getCanonicalPath(file2));
+    // Only the parent directory was actually canonicalized.
+    assertEquals(1, resolver.canonicalized.size());
+    assertEquals(dir, resolver.canonicalized.get(0));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    Path dir = temp.newFolder("dir").toPath();
+    Path file = dir.resolve("file");
+    resolver.getCanonicalPath(file);
+    resolver.getCanonicalPath(file);
+    assertEquals(1, resolver.canonicalized.size());
+    resolver.invalidate(dir);
+    resolver.getCanonicalPath(file);
+    assertEquals(2, resolver.canonicalized.size());
+    resolver.invalidateAll();
+    resolver.getCanonicalPath(file);
+    assertEquals(3, resolver.canonicalized.size());
+  }
+
+  @Test
+  public void testInvalidateDescendants() throws Exception {
+    Path dir = temp.newFolder("dir").toPath();
+    Path sub = Files.createDirectory(dir.resolve("sub"));
+    Path other = temp.newFolder("other").toPath();
+    resolver.getCanonicalDirectory(dir);
+    resolver.getCanonicalPath(sub.resolve("file"));
+    resolver.getCanonicalPath(other.resolve("file"));
+    assertEquals(3, resolver.canonicalized.size());
+    // Renaming dir changes the canonical path of sub, but not of other.
+    resolver.invalidate(dir);
+    resolver.getCanonicalPath(sub.resolve("file"));
+    resolver.getCanonicalPath(other.resolve("file"));
+    assertEquals(4, resolver.canonicalized.size());
+    assertEquals(sub, resolver.canonicalized.get(3));
+  }
+
+  @Test
+  public void testRootIsCanonicalized() throws Exception {
+    Path root = temp.getRoot().toPath().getRoot();
+    assertEquals(root.toFile().getCanonicalPath(),
+                 resolver.getCanonicalPath(root));
+    assertEquals(1, resolver.canonicalized.size());
+    assertEquals(root, resolver.canonicalized.get(0));
+  }
+
+  @Test
+  public void testRelativeNamesAreCanonicalized() throws Exception {
+    Path dir = temp.newFolder("dir").toPath();
+    Path parent = dir.resolve("..");
+    assertEquals(temp.getRoot().getCanonicalPath(),
+                 resolver.getCanonicalPath(parent));
+    assertEquals(parent, resolver.canonicalized.get(0));
+  }
+
+  @Test
+  public void testSymbolicLinkParentIsResolved() throws Exception {
+    TestHelper.assumeOsIsNotWindows();
+    Path dir = temp.newFolder("dir").toPath();
+    Path link = Files.createSymbolicLink(
+        temp.getRoot().toPath().resolve("link"), dir);
+    Path file = Files.createFile(dir.resolve("file"));
+    assertEquals(file.toFile().getCanonicalPath(),
+                 resolver.getCanonicalPath(link.resolve("file")));
+  }
+
+  /** A resolver that records each path that it actually canonicalizes. */
+  private static class CountingResolver extends CanonicalPathResolver {
+    final List<Path> canonicalized = new ArrayList<Path>();
+
+    CountingResolver(int maximumSize) {
+      super(maximumSize);
+    }
+
+    @Override
+    String canonicalize(Path doc) throws IOException {
+      canonicalized.add(doc);
+      return super.canonicalize(doc);
+    }
+  }
+}
@@ -0,0 +1,252 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+import com.google.enterprise.adaptor.ExceptionHandler;
+
+import org.junit.*;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Tests for {@link ChangeCoalescer} */
+public class ChangeCoalescerTest {
+  private final BatchCountingDocIdPusher pusher =
+      new BatchCountingDocIdPusher();
+  private final FakeTicker ticker = new FakeTicker();
+  private final ChangeCoalescer coalescer =
+      new ChangeCoalescer(pusher, 3, 1000L, 10, ticker);
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testConstructorNullPusher() throws Exception {
+    thrown.expect(NullPointerException.class);
+    new ChangeCoalescer(null, 10, 1000L);
+  }
+
+  @Test
+  public void testConstructorIllegalDebounce() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new ChangeCoalescer(pusher, 10, 0L);
+  }
+
+  @Test
+  public void testNothingPushedWithinWindow() throws Exception {
+    coalescer.pushRecord(modified("a"));
+    ticker.advance(999);
+    coalescer.pushQuietChanges();
+    assertTrue(pusher.getRecords().isEmpty());
+    ticker.advance(1);
+    coalescer.pushQuietChanges();
+    assertEquals(ImmutableList.of(modified("a")), pusher.getRecords());
+    assertEquals(0, coalescer.getPendingCount());
+  }
+
+  @Test
+  public void testRepeatedChangesCoalesced() throws Exception {
+    coalescer.pushRecord(modified("a"));
+    coalescer.pushDocId(new DocId("b"));
+    ticker.advance(600);
+    coalescer.pushRecord(modified("a"));
+    coalescer.pushRecord(modified("a"));
+    ticker.advance(600);
+    coalescer.pushQuietChanges();
+    // The change to a was reported again within the window.
+    assertEquals(ImmutableList.of(new Record.Builder(new DocId("b")).build()),
+        pusher.getRecords());
+    ticker.advance(600);
+    coalescer.pushQuietChanges();
+    assertEquals(2, pusher.getRecords().size());
+    assertEquals(modified("a"), pusher.getRecords().get(1));
+  }
+
+  @Test
+  public void testChangingDocumentPushedAfterMaxDelay() throws Exception {
+    coalescer.pushRecord(modified("a"));
+    for (int i = 0; i < 8; i++) {
+      ticker.advance(600);
+      coalescer.pushRecord(modified("a"));
+      coalescer.pushQuietChanges();
+    }
+    assertTrue(pusher.getRecords().isEmpty());
+    ticker.advance(600);
+    coalescer.pushRecord(modified("a"));
+    coalescer.pushQuietChanges();
+    // Never quiet for the window, but first changed five windows ago.
+    assertEquals(ImmutableList.of(modified("a")), pusher.getRecords());
+    assertEquals(0, coalescer.getPendingCount());
+  }
+
+  @Test
+  public void testFailedPushKept() throws Exception {
+    coalescer.pushRecord(modified("a"));
+    ticker.advance(1000);
+    pusher.failing = true;
+    try {
+      coalescer.pushQuietChanges();
+      fail("expected IOException");
+    } catch (IOException expected) {
+    }
+    assertEquals(1, coalescer.getPendingCount());
+    pusher.failing = false;
+    coalescer.pushQuietChanges();
+    assertEquals(ImmutableList.of(modified("a")), pusher.getRecords());
+    assertEquals(0, coalescer.getPendingCount());
+  }
+
+  @Test
+  public void testFailedPushDoesNotReplaceNewerChange() throws Exception {
+    coalescer.pushRecord(modified("a"));
+    ticker.advance(1000);
+    pusher.failing = true;
+    try {
+      coalescer.pushQuietChanges();
+      fail("expected IOException");
+    } catch (IOException expected) {
+    }
+    coalescer.pushRecord(deleted("a"));
+    pusher.failing = false;
+    ticker.advance(1000);
+    coalescer.pushQuietChanges();
+    assertEquals(ImmutableList.of(deleted("a")), pusher.getRecords());
+  }
+
+  @Test
+  public void testDeleteWins() throws Exception {
+    coalescer.pushRecord(modified("a"));
+    coalescer.pushRecord(deleted("a"));
+    ticker.advance(1000);
+    coalescer.pushQuietChanges();
+    assertEquals(ImmutableList.of(deleted("a")), pusher.getRecords());
+  }
+
+  @Test
+  public void testRecreatedAfterDelete() throws Exception {
+    coalescer.pushRecord(deleted("a"));
+    coalescer.pushRecord(modified("a"));
+    ticker.advance(1000);
+    coalescer.pushQuietChanges();
+    assertEquals(ImmutableList.of(modified("a")), pusher.getRecords());
+  }
+
+  @Test
+  public void testPushedInBatches() throws Exception {
+    for (int i = 0; i < 7; i++) {
+      coalescer.pushRecord(modified("doc" + i));
+    }
+    ticker.advance(1000);
+    coalescer.pushQuietChanges();
+    assertEquals(ImmutableList.of(3, 3, 1), pusher.batchSizes);
+    for (int i = 0; i < 7; i++) {
+      assertEquals(modified("doc" + i), pusher.getRecords().get(i));
+    }
+  }
+
+  @Test
+  public void testTooManyPending() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      assertTrue(coalescer.pushRecord(modified("doc" + i)));
+    }
+    assertFalse(coalescer.pushRecord(modified("other")));
+    // Changes to documents already pending are still accepted.
+    assertTrue(coalescer.pushRecord(deleted("doc0")));
+    assertEquals(10, coalescer.getPendingCount());
+  }
+
+  @Test
+  public void testShutdownDropsPending() throws Exception {
+    coalescer.pushRecord(modified("a"));
+    coalescer.shutdown();
+    assertEquals(0, coalescer.getPendingCount());
+  }
+
+  @Test
+  public void testStart() throws Exception {
+    ChangeCoalescer coalescer = new ChangeCoalescer(pusher, 10, 10L);
+    try {
+      coalescer.start();
+      coalescer.pushRecord(modified("a"));
+      // Changes leave the pending count before they are pushed, so wait
+      // for the push itself.
+      for (int i = 0; i < 500 && pusher.getRecords().isEmpty(); i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, coalescer.getPendingCount());
+    } finally {
+      coalescer.shutdown();
+    }
+    assertEquals(ImmutableList.of(modified("a")), pusher.getRecords());
+  }
+
+  private static Record modified(String id) {
+    return new Record.Builder(new DocId(id)).setCrawlImmediately(true)
+        .build();
+  }
+
+  private static Record deleted(String id) {
+    return new Record.Builder(new DocId(id)).setDeleteFromIndex(true)
+        .build();
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advance(long millis) {
+      nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+
+  private static class BatchCountingDocIdPusher
+      extends AccumulatingDocIdPusher {
+    private final List<Integer> batchSizes = new ArrayList<Integer>();
+    /** If true, every push fails. */
+    private volatile boolean failing;
+
+    @Override
+    public synchronized Record pushRecords(Iterable<Record> records,
+        ExceptionHandler handler) throws InterruptedException {
+      if (failing) {
+        return records.iterator().next();
+      }
+      int size = 0;
+      for (Record record : records) {
+        size++;
+      }
+      batchSizes.add(size);
+      return super.pushRecords(records, handler);
+    }
+
+    @Override
+    public synchronized List<Record> getRecords() {
+      return super.getRecords();
+    }
+  }
+}
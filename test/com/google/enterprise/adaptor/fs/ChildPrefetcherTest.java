@@ -0,0 +1,186 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link ChildPrefetcher} */
+public class ChildPrefetcherTest {
+  private static final Path ROOT = Paths.get("/");
+
+  private MockFile root = new MockFile("/", true);
+  private CountingFileDelegate delegate = new CountingFileDelegate(root);
+  private ChildPrefetcher prefetcher;
+
+  @After
+  public void tearDown() {
+    if (prefetcher != null) {
+      prefetcher.shutdown();
+    }
+  }
+
+  @Test
+  public void testNegativeThreads() throws Exception {
+    try {
+      new ChildPrefetcher(delegate, -1, 1000L);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    root.addChildren(new MockFile("file").setIsHidden(true));
+    prefetcher = new ChildPrefetcher(delegate, 0, 60000L);
+    prefetcher.prefetch(newEntry("file"));
+    int reads = delegate.reads.get();
+    assertTrue(prefetcher.isHidden(ROOT.resolve("file")));
+    assertEquals(reads + 1, delegate.reads.get());
+    assertEquals(0, delegate.aclReads.get());
+    assertEquals(0, prefetcher.getHits());
+    assertEquals(0, prefetcher.getMisses());
+  }
+
+  @Test
+  public void testPrefetchedAttributesAreUsed() throws Exception {
+    MockFile file = new MockFile("file").setIsHidden(true);
+    root.addChildren(file);
+    prefetcher = new ChildPrefetcher(delegate, 2, 60000L);
+    Path path = ROOT.resolve("file");
+    DirectoryEntry entry = newEntry("file");
+    int reads = delegate.reads.get();
+    prefetcher.prefetch(entry);
+
+    assertSame(entry.getAttributes(), prefetcher.readBasicAttributes(path));
+    assertTrue(prefetcher.isRegularFile(path));
+    assertFalse(prefetcher.isDirectory(path));
+    assertTrue(prefetcher.isHidden(path));
+    assertFalse(prefetcher.isDfsLink(path));
+    assertEquals(file.getAclView(),
+                 prefetcher.getAclViews(path).getDirectAclView());
+    // The ACL views and DFS link were read once, by the prefetch.
+    assertEquals(1, delegate.aclReads.get());
+    assertEquals(1, delegate.dfsReads.get());
+    assertEquals(reads, delegate.reads.get());
+    assertEquals(6, prefetcher.getHits());
+  }
+
+  @Test
+  public void testPrefetchedOnce() throws Exception {
+    root.addChildren(new MockFile("file"));
+    prefetcher = new ChildPrefetcher(delegate, 1, 60000L);
+    prefetcher.prefetch(newEntry("file"));
+    prefetcher.prefetch(newEntry("file"));
+    prefetcher.getAclViews(ROOT.resolve("file"));
+    assertEquals(1, delegate.aclReads.get());
+  }
+
+  @Test
+  public void testNotPrefetched() throws Exception {
+    root.addChildren(new MockFile("file"));
+    prefetcher = new ChildPrefetcher(delegate, 1, 60000L);
+    prefetcher.getAclViews(ROOT.resolve("file"));
+    prefetcher.getAclViews(ROOT.resolve("file"));
+    assertEquals(2, delegate.aclReads.get());
+    assertEquals(2, prefetcher.getMisses());
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    root.addChildren(new MockFile("file"));
+    prefetcher = new ChildPrefetcher(delegate, 1, 60000L);
+    prefetcher.prefetch(newEntry("file"));
+    prefetcher.getAclViews(ROOT.resolve("file"));
+    prefetcher.invalidate(ROOT.resolve("file"));
+    prefetcher.getAclViews(ROOT.resolve("file"));
+    assertEquals(2, delegate.aclReads.get());
+  }
+
+  @Test
+  public void testExpired() throws Exception {
+    root.addChildren(new MockFile("file"));
+    prefetcher = new ChildPrefetcher(delegate, 1, 1L);
+    prefetcher.prefetch(newEntry("file"));
+    Thread.sleep(20);
+    prefetcher.getAclViews(ROOT.resolve("file"));
+    assertEquals(1, prefetcher.getMisses());
+  }
+
+  @Test
+  public void testFailedPrefetchFallsBack() throws Exception {
+    root.addChildren(new MockFile("file"));
+    prefetcher = new ChildPrefetcher(delegate, 1, 60000L);
+    DirectoryEntry entry = newEntry("file");
+    root.removeChild("file");
+    prefetcher.prefetch(entry);
+    try {
+      prefetcher.getAclViews(ROOT.resolve("file"));
+      fail("expected FileNotFoundException");
+    } catch (FileNotFoundException expected) {
+      // Thrown by the delegate, once the failed prefetch was forgotten.
+    }
+    assertEquals(1, prefetcher.getMisses());
+  }
+
+  private DirectoryEntry newEntry(String name) throws IOException {
+    Path path = ROOT.resolve(name);
+    BasicFileAttributes attrs = delegate.readBasicAttributes(path);
+    return new DirectoryEntry(path, attrs, delegate.isHidden(path));
+  }
+
+  private static class CountingFileDelegate extends MockFileDelegate {
+    final AtomicInteger reads = new AtomicInteger();
+    final AtomicInteger aclReads = new AtomicInteger();
+    final AtomicInteger dfsReads = new AtomicInteger();
+
+    CountingFileDelegate(MockFile root) {
+      super(root);
+    }
+
+    @Override
+    public BasicFileAttributes readBasicAttributes(Path doc)
+        throws IOException {
+      reads.incrementAndGet();
+      return super.readBasicAttributes(doc);
+    }
+
+    @Override
+    public boolean isHidden(Path doc) throws IOException {
+      reads.incrementAndGet();
+      return super.isHidden(doc);
+    }
+
+    @Override
+    public AclFileAttributeViews getAclViews(Path doc) throws IOException {
+      aclReads.incrementAndGet();
+      return super.getAclViews(doc);
+    }
+
+    @Override
+    public boolean isDfsLink(Path doc) throws IOException {
+      dfsReads.incrementAndGet();
+      return super.isDfsLink(doc);
+    }
+  }
+}
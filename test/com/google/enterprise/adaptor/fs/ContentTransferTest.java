@@ -0,0 +1,225 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Tests for {@link ContentTransfer} */
+public class ContentTransferTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private ContentTransfer transfer = new ContentTransfer();
+
+  @Test
+  public void testGetSizeClass() throws Exception {
+    assertEquals(0, ContentTransfer.getSizeClass(0));
+    assertEquals(0, ContentTransfer.getSizeClass(8 * 1024));
+    assertEquals(1, ContentTransfer.getSizeClass(8 * 1024 + 1));
+    assertEquals(2, ContentTransfer.getSizeClass(512 * 1024));
+    assertEquals(2, ContentTransfer.getSizeClass(5L * 1024 * 1024 * 1024));
+  }
+
+  @Test
+  public void testCopyEmpty() throws Exception {
+    testCopy(new byte[0]);
+  }
+
+  @Test
+  public void testCopySmall() throws Exception {
+    testCopy(randomBytes(100));
+  }
+
+  @Test
+  public void testCopyLarge() throws Exception {
+    testCopy(randomBytes(1024 * 1024 + 17));
+  }
+
+  @Test
+  public void testBuffersArePooled() throws Exception {
+    byte[] content = randomBytes(100);
+    CountingOutputStream out = new CountingOutputStream();
+    transfer.transfer(Channels.newChannel(new ByteArrayInputStream(content)),
+        content.length, out);
+    // The buffer used for the copy is reused.
+    assertSame(out.lastBuffer, transfer.borrow(0));
+    // But not handed out twice.
+    assertNotSame(out.lastBuffer, transfer.borrow(0));
+  }
+
+  @Test
+  public void testTransferToChannel() throws Exception {
+    byte[] content = randomBytes(100000);
+    Path file = temp.newFile("file").toPath();
+    Files.write(file, content);
+    ChannelOutputStream out = new ChannelOutputStream();
+    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+      in.position(10);
+      assertEquals(content.length - 10,
+                   transfer.transfer(in, content.length, out));
+      assertEquals(content.length, in.position());
+    }
+    assertArrayEquals(Arrays.copyOfRange(content, 10, content.length),
+                      out.toByteArray());
+    // The contents went through the channel, not a pooled buffer.
+    assertEquals(0, out.streamWrites);
+    assertTrue(out.flushed);
+  }
+
+  @Test
+  public void testFileChannelToStream() throws Exception {
+    byte[] content = randomBytes(100000);
+    Path file = temp.newFile("file").toPath();
+    Files.write(file, content);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+      assertEquals(content.length, transfer.transfer(in, content.length, out));
+    }
+    assertArrayEquals(content, out.toByteArray());
+  }
+
+  @Test
+  public void testDestinationSeesFirstBuffer() throws Exception {
+    byte[] content = randomBytes(100000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RecordingDestination destination = new RecordingDestination(out);
+    assertEquals(content.length, transfer.transfer(
+        Channels.newChannel(new ByteArrayInputStream(content)),
+        content.length, destination));
+    assertArrayEquals(Arrays.copyOf(content, destination.head.length),
+                      destination.head);
+    assertTrue(destination.head.length > 0);
+    assertArrayEquals(content, out.toByteArray());
+  }
+
+  @Test
+  public void testDestinationEmptyContent() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    RecordingDestination destination = new RecordingDestination(out);
+    assertEquals(0, transfer.transfer(
+        Channels.newChannel(new ByteArrayInputStream(new byte[0])), 0,
+        destination));
+    assertEquals(0, destination.head.length);
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testDestinationTransferToChannel() throws Exception {
+    byte[] content = randomBytes(100000);
+    Path file = temp.newFile("file").toPath();
+    Files.write(file, content);
+    ChannelOutputStream out = new ChannelOutputStream();
+    RecordingDestination destination = new RecordingDestination(out);
+    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+      assertEquals(content.length,
+                   transfer.transfer(in, content.length, destination));
+    }
+    assertArrayEquals(content, out.toByteArray());
+    assertArrayEquals(Arrays.copyOf(content, destination.head.length),
+                      destination.head);
+    assertEquals(0, out.streamWrites);
+    assertTrue(out.flushed);
+  }
+
+  private void testCopy(byte[] content) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(content.length, transfer.transfer(
+        Channels.newChannel(new ByteArrayInputStream(content)),
+        content.length, out));
+    assertArrayEquals(content, out.toByteArray());
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static class RecordingDestination
+      implements ContentTransfer.Destination {
+    private final OutputStream out;
+    byte[] head;
+
+    RecordingDestination(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public OutputStream open(byte[] head, int length) {
+      this.head = Arrays.copyOf(head, length);
+      return out;
+    }
+  }
+
+  private static class CountingOutputStream extends ByteArrayOutputStream {
+    byte[] lastBuffer;
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      lastBuffer = b;
+      super.write(b, off, len);
+    }
+  }
+
+  /** An output stream that is also a channel, like a socket's. */
+  private static class ChannelOutputStream extends ByteArrayOutputStream
+      implements WritableByteChannel {
+    int streamWrites;
+    boolean flushed;
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      streamWrites++;
+      super.write(b, off, len);
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) {
+      int length = src.remaining();
+      byte[] bytes = new byte[length];
+      src.get(bytes);
+      super.write(bytes, 0, length);
+      return length;
+    }
+
+    @Override
+    public void flush() {
+      flushed = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Tests for {@link ContentTypeResolver} */
+public class ContentTypeResolverTest {
+
+  private CountingFileDelegate delegate = new CountingFileDelegate();
+  private ContentTypeResolver resolver = new ContentTypeResolver(delegate);
+
+  @Test
+  public void testGetExtension() throws Exception {
+    assertEquals("pdf", ContentTypeResolver.getExtension(Paths.get("a.pdf")));
+    assertEquals("pdf",
+        ContentTypeResolver.getExtension(Paths.get("/dir.x/a.b.PDF")));
+    assertNull(ContentTypeResolver.getExtension(Paths.get("/dir.x/noext")));
+    assertNull(ContentTypeResolver.getExtension(Paths.get(".profile")));
+    assertNull(ContentTypeResolver.getExtension(Paths.get("trailing.")));
+    assertNull(ContentTypeResolver.getExtension(Paths.get("/")));
+  }
+
+  @Test
+  public void testExtensionTable() throws Exception {
+    assertEquals("application/pdf",
+                 resolver.getContentType(Paths.get("/a.pdf")));
+    assertEquals("text/html", resolver.getContentType(Paths.get("/B.HTML")));
+    assertEquals(0, delegate.probes);
+    assertEquals(2, resolver.getTableHits());
+  }
+
+  @Test
+  public void testProbedTypeIsCached() throws Exception {
+    delegate.contentType = "application/x-foo";
+    assertEquals("application/x-foo",
+                 resolver.getContentType(Paths.get("/a.foo")));
+    delegate.contentType = "application/x-other";
+    assertEquals("application/x-foo",
+                 resolver.getContentType(Paths.get("/b.FOO")));
+    assertEquals(1, delegate.probes);
+    assertEquals(1, resolver.getProbes());
+    assertEquals(1, resolver.getCacheHits());
+  }
+
+  @Test
+  public void testUnknownTypeIsCached() throws Exception {
+    assertNull(resolver.getContentType(Paths.get("/a.foo")));
+    assertNull(resolver.getContentType(Paths.get("/b.foo")));
+    assertEquals(1, delegate.probes);
+  }
+
+  @Test
+  public void testNoExtension() throws Exception {
+    delegate.contentType = "application/x-foo";
+    assertNull(resolver.getContentType(Paths.get("/README")));
+    assertEquals(0, delegate.probes);
+  }
+
+  @Test
+  public void testProbeFailure() throws Exception {
+    delegate.failure = new IOException("probe failed");
+    try {
+      resolver.getContentType(Paths.get("/a.foo"));
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertSame(delegate.failure, e);
+    }
+  }
+
+  @Test
+  public void testSniff() throws Exception {
+    assertSniffed("application/pdf", bytes("%PDF-1.4\n"));
+    assertSniffed("application/zip", bytes(0x50, 0x4b, 0x03, 0x04, 0x14));
+    assertSniffed("application/vnd.ms-office",
+        bytes(0xd0, 0xcf, 0x11, 0xe0, 0xa1, 0xb1, 0x1a, 0xe1, 0x00));
+    assertSniffed("image/png", bytes(0x89, 'P', 'N', 'G', 0x0d, 0x0a));
+    assertSniffed("image/jpeg", bytes(0xff, 0xd8, 0xff, 0xe0));
+    assertSniffed("image/gif", bytes("GIF89a"));
+    assertSniffed("image/tiff", bytes('I', 'I', '*', 0));
+    assertSniffed("application/x-gzip", bytes(0x1f, 0x8b, 0x08));
+    assertSniffed("application/rtf", bytes("{\\rtf1\\ansi"));
+    assertSniffed("text/xml", bytes("  <?xml version=\"1.0\"?>"));
+    assertSniffed("text/html", bytes("\n<!DOCTYPE HTML><html>"));
+    assertSniffed("text/html", bytes("<HTML><title>Hi</title></HTML>"));
+    assertSniffed("text/plain", bytes("Hello World\r\n"));
+    assertSniffed("text/plain", bytes(0xef, 0xbb, 0xbf, 'H', 'i'));
+    assertSniffed(null, bytes(0x00, 0x01, 0x02, 0x03));
+    assertSniffed(null, new byte[0]);
+  }
+
+  @Test
+  public void testSniffHonorsLength() throws Exception {
+    byte[] head = bytes("%PDF-1.4");
+    assertEquals("text/plain", ContentTypeResolver.sniff(head, 3));
+    assertNull(ContentTypeResolver.sniff(head, 0));
+  }
+
+  @Test
+  public void testSniffStatistics() throws Exception {
+    byte[] pdf = bytes("%PDF-1.4");
+    resolver.sniffContentType(pdf, pdf.length);
+    resolver.sniffContentType(new byte[0], 0);
+    assertEquals(1, resolver.getSniffs());
+    assertEquals(1, resolver.getUnresolved());
+    assertEquals("Extension table hits: 0, cache hits: 0, probes: 0, "
+        + "sniffed: 1, unresolved: 1", resolver.getStatistics());
+  }
+
+  private static void assertSniffed(String expected, byte[] head) {
+    assertEquals(expected, ContentTypeResolver.sniff(head, head.length));
+  }
+
+  private static byte[] bytes(String s) throws IOException {
+    return s.getBytes("ISO-8859-1");
+  }
+
+  private static byte[] bytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return bytes;
+  }
+
+  private static class CountingFileDelegate extends MockFileDelegate {
+    String contentType;
+    IOException failure;
+    int probes;
+
+    CountingFileDelegate() {
+      super(new MockFile("/", true));
+    }
+
+    @Override
+    public String probeContentType(Path doc) throws IOException {
+      probes++;
+      if (failure != null) {
+        throw failure;
+      }
+      return contentType;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.*;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link CrawlStateStore} */
+public class CrawlStateStoreTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private Path file;
+  private CrawlStateStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    file = temp.getRoot().toPath().resolve("crawlstate");
+    store = new CrawlStateStore(file);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    store.close();
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertEquals(0, store.size());
+    assertNull(store.get("/file"));
+    assertFalse(store.scan("").iterator().hasNext());
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    CrawlStateStore.State state = newState("/file", 1);
+    store.put(state);
+    assertEquals(state, store.get("/file"));
+    assertNull(store.get("/fil"));
+    assertNull(store.get("/file2"));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void testPutReplaces() throws Exception {
+    store.put(newState("/file", 1));
+    CrawlStateStore.State state = newState("/file", 2);
+    store.put(state);
+    assertEquals(state, store.get("/file"));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void testPutServedKeepsLastPushed() throws Exception {
+    store.putPushed("/file", 5L);
+    store.putServed("/file", 1L, 2L, 3L);
+    assertEquals(new CrawlStateStore.State("/file", 1L, 2L, 3L, 5L),
+        store.get("/file"));
+  }
+
+  @Test
+  public void testPutPushedKeepsServedState() throws Exception {
+    store.putServed("/file", 1L, 2L, 3L);
+    assertEquals(new CrawlStateStore.State("/file", 1L, 2L, 3L, 0L),
+        store.get("/file"));
+    store.putPushed("/file", 5L);
+    assertEquals(new CrawlStateStore.State("/file", 1L, 2L, 3L, 5L),
+        store.get("/file"));
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    store.put(newState("/file", 1));
+    store.remove("/file");
+    store.remove("/missing");
+    assertNull(store.get("/file"));
+    assertEquals(0, store.size());
+    CrawlStateStore.State state = newState("/file", 2);
+    store.put(state);
+    assertEquals(state, store.get("/file"));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void testScan() throws Exception {
+    for (String id : new String[] { "/dir/", "/dir-2/file", "/dir/b",
+                                    "/dir/a/", "/dir/a/file", "/a", "/e" }) {
+      store.put(newState(id, 1));
+    }
+    store.remove("/dir/b");
+    assertEquals(ImmutableList.of("/dir/", "/dir/a/", "/dir/a/file"),
+                 scan("/dir/"));
+    assertEquals(ImmutableList.of("/a", "/dir-2/file", "/dir/", "/dir/a/",
+                                  "/dir/a/file", "/e"), scan(""));
+    assertEquals(ImmutableList.of(), scan("/f"));
+    // Records added after a sort are merged into the index.
+    store.put(newState("/dir/0", 1));
+    assertEquals(ImmutableList.of("/dir/", "/dir/0", "/dir/a/",
+                                  "/dir/a/file"), scan("/dir/"));
+  }
+
+  @Test
+  public void testRemoveAll() throws Exception {
+    for (String id : new String[] { "/dir/", "/dir/a", "/dir2" }) {
+      store.put(newState(id, 1));
+    }
+    store.removeAll("/dir/");
+    assertEquals(ImmutableList.of("/dir2"), scan(""));
+  }
+
+  @Test
+  public void testNonAsciiDocIds() throws Exception {
+    CrawlStateStore.State state =
+        newState("/d\u00e9j\u00e0 vu/\u65e5\u672c", 1);
+    store.put(state);
+    assertEquals(state, store.get(state.getDocId()));
+    assertEquals(ImmutableList.of(state.getDocId()), scan("/d\u00e9j"));
+  }
+
+  @Test
+  public void testPersisted() throws Exception {
+    store.put(newState("/file1", 1));
+    store.put(newState("/file2", 2));
+    store.remove("/file1");
+    store.close();
+    store = new CrawlStateStore(file);
+    assertNull(store.get("/file1"));
+    assertEquals(newState("/file2", 2), store.get("/file2"));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void testCompactedOnOpen() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      store.put(newState("/file" + i, i));
+    }
+    for (int i = 0; i < 8; i++) {
+      store.remove("/file" + i);
+    }
+    store.close();
+    store = new CrawlStateStore(file);
+    assertEquals(ImmutableList.of("/file8", "/file9"), scan(""));
+    // New records are appended after the compacted ones.
+    store.put(newState("/file10", 10));
+    store.close();
+    store = new CrawlStateStore(file);
+    assertEquals(ImmutableList.of("/file10", "/file8", "/file9"), scan(""));
+    assertEquals(newState("/file9", 9), store.get("/file9"));
+  }
+
+  @Test
+  public void testGrows() throws Exception {
+    StringBuilder padding = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      padding.append('x');
+    }
+    int count = 2000;
+    for (int i = 0; i < count; i++) {
+      store.put(newState("/" + padding + i, i));
+    }
+    assertTrue(Files.size(file) > 1024 * 1024);
+    for (int i = 0; i < count; i++) {
+      assertEquals(newState("/" + padding + i, i),
+                   store.get("/" + padding + i));
+    }
+    assertEquals(count, store.size());
+  }
+
+  @Test
+  public void testInvalidFile() throws Exception {
+    Path invalid = temp.newFile("invalid").toPath();
+    Files.write(invalid, "not a crawl state store".getBytes("UTF-8"));
+    thrown.expect(IOException.class);
+    new CrawlStateStore(invalid);
+  }
+
+  private List<String> scan(String prefix) {
+    List<String> ids = new ArrayList<String>();
+    for (CrawlStateStore.State state : store.scan(prefix)) {
+      ids.add(state.getDocId());
+    }
+    return ids;
+  }
+
+  private static CrawlStateStore.State newState(String docId, long n) {
+    return new CrawlStateStore.State(docId, 1000L * n, 10L * n, 100L * n,
+                                     10000L * n);
+  }
+}
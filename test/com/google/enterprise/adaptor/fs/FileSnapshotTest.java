@@ -0,0 +1,178 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.*;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Tests for {@link FileSnapshot} */
+public class FileSnapshotTest {
+  private static final Path ROOT = Paths.get("/");
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private MockFileDelegate delegate =
+      new MockFileDelegate(new MockFile("/", true));
+  private FileSnapshot snapshot = new FileSnapshot();
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertFalse(snapshot.containsDirectory(ROOT));
+    assertNull(snapshot.getChildren(ROOT));
+    assertNull(snapshot.getEntry(ROOT.resolve("file")));
+    assertNull(snapshot.getEntry(ROOT));
+  }
+
+  @Test
+  public void testPut() throws Exception {
+    FileSnapshot.Entry entry = newFile("/dir/file", 1000L, 10L);
+    snapshot.put(Paths.get("/dir/file"), entry);
+    assertTrue(snapshot.containsDirectory(Paths.get("/dir")));
+    assertEquals(entry, snapshot.getEntry(Paths.get("/dir/file")));
+    assertEquals(ImmutableMap.of("file", entry),
+                 snapshot.getChildren(Paths.get("/dir")));
+  }
+
+  @Test
+  public void testAddDirectoryKeepsEntries() throws Exception {
+    FileSnapshot.Entry entry = newFile("/file", 1000L, 10L);
+    snapshot.put(ROOT.resolve("file"), entry);
+    snapshot.addDirectory(ROOT);
+    assertEquals(ImmutableMap.of("file", entry), snapshot.getChildren(ROOT));
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    makeTree(snapshot);
+    Path file = temp.getRoot().toPath().resolve("snapshot");
+    snapshot.save(file);
+    assertFalse(Files.exists(file.resolveSibling("snapshot.tmp")));
+
+    FileSnapshot loaded = FileSnapshot.load(file, delegate);
+    for (Path dir : new Path[] { ROOT, Paths.get("/dir1"),
+                                 Paths.get("/dir1/dir2") }) {
+      assertEquals(snapshot.getChildren(dir), loaded.getChildren(dir));
+    }
+  }
+
+  @Test
+  public void testLoadMissingFile() throws Exception {
+    FileSnapshot loaded = FileSnapshot.load(
+        temp.getRoot().toPath().resolve("missing"), delegate);
+    assertFalse(loaded.containsDirectory(ROOT));
+  }
+
+  @Test
+  public void testLoadUnsupportedVersion() throws Exception {
+    Path file = temp.newFile("snapshot").toPath();
+    try (DataOutputStream out =
+             new DataOutputStream(Files.newOutputStream(file))) {
+      out.writeInt(99);
+    }
+    thrown.expect(IOException.class);
+    FileSnapshot.load(file, delegate);
+  }
+
+  @Test
+  public void testGetDeletedEntries() throws Exception {
+    FileSnapshot previous = new FileSnapshot();
+    makeTree(previous);
+    // The current snapshot is missing file1 and dir1.
+    snapshot.put(Paths.get("/dir3"), newDirectory("/dir3/", 1000L));
+    snapshot.addDirectory(Paths.get("/dir3"));
+
+    assertEquals(ImmutableSet.of(
+        newFile("/file1", 1000L, 10L),
+        newDirectory("/dir1/", 1000L),
+        newFile("/dir1/file2", 1000L, 20L),
+        newDirectory("/dir1/dir2/", 1000L),
+        newFile("/dir1/dir2/file3", 1000L, 30L)),
+        ImmutableSet.copyOf(snapshot.getDeletedEntries(previous)));
+  }
+
+  @Test
+  public void testGetDeletedEntriesUnlistedFolders() throws Exception {
+    FileSnapshot previous = new FileSnapshot();
+    makeTree(previous);
+    // Only folders listed in the current snapshot are compared.
+    assertTrue(snapshot.getDeletedEntries(previous).isEmpty());
+  }
+
+  @Test
+  public void testCopySubtree() throws Exception {
+    FileSnapshot previous = new FileSnapshot();
+    makeTree(previous);
+    Path dir1 = Paths.get("/dir1");
+    snapshot.put(dir1.resolve("other"), newFile("/dir1/other", 1L, 1L));
+    snapshot.copySubtree(previous, dir1);
+    assertEquals(previous.getChildren(dir1), snapshot.getChildren(dir1));
+    assertEquals(previous.getChildren(dir1.resolve("dir2")),
+                 snapshot.getChildren(dir1.resolve("dir2")));
+    assertFalse(snapshot.containsDirectory(ROOT));
+  }
+
+  @Test
+  public void testEntryEquals() throws Exception {
+    FileSnapshot.Entry entry = newFile("/file", 1000L, 10L);
+    assertEquals(entry, newFile("/file", 1000L, 10L));
+    assertEquals(entry.hashCode(), newFile("/file", 1000L, 10L).hashCode());
+    assertFalse(entry.equals(newFile("/file", 2000L, 10L)));
+    assertFalse(entry.equals(newFile("/file", 1000L, 20L)));
+    assertFalse(entry.equals(newFile("/other", 1000L, 10L)));
+    assertFalse(entry.equals(null));
+  }
+
+  /**
+   * Adds the following tree:
+   * /file1, /dir1/, /dir1/file2, /dir1/dir2/, /dir1/dir2/file3, /dir3/
+   */
+  private static void makeTree(FileSnapshot snapshot) {
+    snapshot.put(Paths.get("/file1"), newFile("/file1", 1000L, 10L));
+    snapshot.put(Paths.get("/dir1"), newDirectory("/dir1/", 1000L));
+    snapshot.put(Paths.get("/dir1/file2"),
+                 newFile("/dir1/file2", 1000L, 20L));
+    snapshot.put(Paths.get("/dir1/dir2"), newDirectory("/dir1/dir2/", 1000L));
+    snapshot.put(Paths.get("/dir1/dir2/file3"),
+                 newFile("/dir1/dir2/file3", 1000L, 30L));
+    snapshot.put(Paths.get("/dir3"), newDirectory("/dir3/", 1000L));
+    snapshot.addDirectory(Paths.get("/dir3"));
+  }
+
+  private static FileSnapshot.Entry newFile(String docId, long lastModified,
+      long size) {
+    return new FileSnapshot.Entry(docId, lastModified, size, false);
+  }
+
+  private static FileSnapshot.Entry newDirectory(String docId,
+      long lastModified) {
+    return new FileSnapshot.Entry(docId, lastModified, 0L, true);
+  }
+}
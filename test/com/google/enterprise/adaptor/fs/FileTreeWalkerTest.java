@@ -0,0 +1,259 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.*;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link FileTreeWalker} */
+public class FileTreeWalkerTest {
+  private static final String ROOT = "/";
+
+  private MockFile root = new MockFile(ROOT, true);
+  private FileTreeWalker walker =
+      new FileTreeWalker(new MockFileDelegate(root), 4);
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @After
+  public void tearDown() {
+    walker.shutdown();
+  }
+
+  @Test
+  public void testConstructorNullDelegate() throws Exception {
+    thrown.expect(NullPointerException.class);
+    new FileTreeWalker(null, 1);
+  }
+
+  @Test
+  public void testConstructorIllegalParallelism() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new FileTreeWalker(new MockFileDelegate(root), 0);
+  }
+
+  @Test
+  public void testWalkEmptyDirectory() throws Exception {
+    CollectingVisitor visitor = new CollectingVisitor();
+    walker.walk(Paths.get(ROOT), visitor);
+    assertTrue(visitor.visited.isEmpty());
+    assertTrue(visitor.failed.isEmpty());
+  }
+
+  @Test
+  public void testWalk() throws Exception {
+    makeTree();
+    CollectingVisitor visitor = new CollectingVisitor();
+    walker.walk(Paths.get(ROOT), visitor);
+    assertEquals(paths("/file1", "/dir1", "/dir1/file2", "/dir1/dir2",
+        "/dir1/dir2/file3", "/dir3", "/dir3/file4"), visitor.visited);
+    assertTrue(visitor.failed.isEmpty());
+  }
+
+  @Test
+  public void testWalkSubtree() throws Exception {
+    makeTree();
+    CollectingVisitor visitor = new CollectingVisitor();
+    walker.walk(Paths.get("/dir1"), visitor);
+    assertEquals(paths("/dir1/file2", "/dir1/dir2", "/dir1/dir2/file3"),
+        visitor.visited);
+  }
+
+  @Test
+  public void testWalkPruned() throws Exception {
+    makeTree();
+    CollectingVisitor visitor = new CollectingVisitor() {
+      @Override
+      public boolean visit(DirectoryEntry entry)
+          throws IOException, InterruptedException {
+        super.visit(entry);
+        return !entry.getPath().endsWith("dir1");
+      }
+    };
+    walker.walk(Paths.get(ROOT), visitor);
+    assertEquals(paths("/file1", "/dir1", "/dir3", "/dir3/file4"),
+        visitor.visited);
+  }
+
+  @Test
+  public void testWalkUnreadableDirectory() throws Exception {
+    root.addChildren(new MockFile("file1"),
+        new UnreadableMockFile("dir1").addChildren(new MockFile("file2")),
+        new MockFile("dir2", true).addChildren(new MockFile("file3")));
+    CollectingVisitor visitor = new CollectingVisitor();
+    walker.walk(Paths.get(ROOT), visitor);
+    assertEquals(paths("/file1", "/dir1", "/dir2", "/dir2/file3"),
+        visitor.visited);
+    assertEquals(paths("/dir1"), visitor.failed);
+  }
+
+  @Test
+  public void testWalkCachedEntries() throws Exception {
+    makeTree();
+    final Path dir1 = Paths.get("/dir1");
+    final DirectoryEntry cachedEntry = new DirectoryEntry(
+        dir1.resolve("cached"), root.readBasicAttributes(), false);
+    class CachingCollectingVisitor extends CollectingVisitor
+        implements FileTreeWalker.CachingVisitor {
+      final Set<Path> listed =
+          Collections.synchronizedSet(new HashSet<Path>());
+
+      @Override
+      public Iterable<DirectoryEntry> getCachedEntries(Path dir) {
+        listed.add(dir);
+        if (dir.equals(dir1)) {
+          return Collections.singletonList(cachedEntry);
+        }
+        return null;
+      }
+    }
+    CachingCollectingVisitor visitor = new CachingCollectingVisitor();
+    root.getChild("dir1").addChildren(new MockFile("cached", true)
+        .addChildren(new MockFile("file5")));
+    walker.walk(Paths.get(ROOT), visitor);
+    // The entries of /dir1 come from the visitor, rather than the listing.
+    assertEquals(paths("/file1", "/dir1", "/dir1/cached",
+        "/dir1/cached/file5", "/dir3", "/dir3/file4"), visitor.visited);
+    assertEquals(paths("/", "/dir1", "/dir1/cached", "/dir3"),
+                 visitor.listed);
+  }
+
+  @Test
+  public void testWalkVisitorThrowsIOException() throws Exception {
+    makeTree();
+    FileTreeWalker.Visitor visitor = new CollectingVisitor() {
+      @Override
+      public boolean visit(DirectoryEntry entry) throws IOException {
+        if (entry.getPath().endsWith("file3")) {
+          throw new IOException("Test Exception");
+        }
+        return true;
+      }
+    };
+    thrown.expect(IOException.class);
+    walker.walk(Paths.get(ROOT), visitor);
+  }
+
+  @Test
+  public void testWalkVisitorThrowsInterruptedException() throws Exception {
+    makeTree();
+    FileTreeWalker.Visitor visitor = new CollectingVisitor() {
+      @Override
+      public boolean visit(DirectoryEntry entry) throws InterruptedException {
+        throw new InterruptedException("Test Exception");
+      }
+    };
+    thrown.expect(InterruptedException.class);
+    walker.walk(Paths.get(ROOT), visitor);
+  }
+
+  @Test
+  public void testWalkVisitorFailureStopsOtherSubtrees() throws Exception {
+    MockFile slow = new MockFile("slow", true);
+    for (int i = 0; i < 10; i++) {
+      slow.addChildren(new MockFile("file" + i));
+    }
+    root.addChildren(
+        new MockFile("bad", true).addChildren(new MockFile("fail")), slow);
+    final CountDownLatch walkFailed = new CountDownLatch(1);
+    final AtomicInteger slowVisits = new AtomicInteger();
+    FileTreeWalker.Visitor visitor = new CollectingVisitor() {
+      @Override
+      public boolean visit(DirectoryEntry entry)
+          throws IOException, InterruptedException {
+        Path path = entry.getPath();
+        if (path.endsWith("fail")) {
+          throw new IOException("Test Exception");
+        } else if (path.startsWith("/slow")
+            && slowVisits.incrementAndGet() == 1) {
+          // Hold the other subtree until the walk has failed.
+          walkFailed.await(5, TimeUnit.SECONDS);
+        }
+        return true;
+      }
+    };
+    try {
+      walker.walk(Paths.get(ROOT), visitor);
+      fail("expected IOException");
+    } catch (IOException expected) {
+    }
+    walkFailed.countDown();
+    Thread.sleep(200);
+    // The other subtree stopped at its next entry, if it had started.
+    assertTrue(slowVisits.get() <= 1);
+  }
+
+  private void makeTree() {
+    root.addChildren(new MockFile("file1"),
+        new MockFile("dir1", true).addChildren(new MockFile("file2"),
+            new MockFile("dir2", true).addChildren(new MockFile("file3"))),
+        new MockFile("dir3", true).addChildren(new MockFile("file4")));
+  }
+
+  private static Set<Path> paths(String... names) {
+    ImmutableSet.Builder<Path> builder = ImmutableSet.builder();
+    for (String name : names) {
+      builder.add(Paths.get(name));
+    }
+    return builder.build();
+  }
+
+  private static class CollectingVisitor implements FileTreeWalker.Visitor {
+    final Set<Path> visited =
+        Collections.synchronizedSet(new HashSet<Path>());
+    final Set<Path> failed =
+        Collections.synchronizedSet(new HashSet<Path>());
+
+    @Override
+    public boolean visit(DirectoryEntry entry)
+        throws IOException, InterruptedException {
+      visited.add(entry.getPath());
+      return true;
+    }
+
+    @Override
+    public void visitFailed(Path dir, IOException e) {
+      failed.add(dir);
+    }
+  }
+
+  private static class UnreadableMockFile extends MockFile {
+    UnreadableMockFile(String name) {
+      super(name, true);
+    }
+
+    @Override
+    DirectoryStream<DirectoryEntry> newDirectoryEntryStream()
+        throws IOException {
+      throw new IOException("Access is denied.");
+    }
+  }
+}
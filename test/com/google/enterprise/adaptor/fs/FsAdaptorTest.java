@@ -22,20 +22,26 @@ import static java.nio.file.attribute.AclEntryPermission.*;
 import static java.nio.file.attribute.AclEntryType.*;
 import static org.junit.Assert.*;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.adaptor.Acl;
 import com.google.enterprise.adaptor.Acl.InheritanceType;
 import com.google.enterprise.adaptor.AdaptorContext;
+import com.google.enterprise.adaptor.AuthnIdentity;
+import com.google.enterprise.adaptor.AuthzAuthority;
+import com.google.enterprise.adaptor.AuthzStatus;
 import com.google.enterprise.adaptor.Config;
 import com.google.enterprise.adaptor.DocId;
 import com.google.enterprise.adaptor.DocIdPusher.Record;
 import com.google.enterprise.adaptor.GroupPrincipal;
 import com.google.enterprise.adaptor.InvalidConfigurationException;
+import com.google.enterprise.adaptor.PollingIncrementalLister;
 import com.google.enterprise.adaptor.UserPrincipal;
 
 import org.junit.*;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.FilterInputStream;
@@ -54,6 +60,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 /** Test cases for {@link FsAdaptor}. */
 public class FsAdaptorTest {
@@ -99,6 +106,9 @@ public class FsAdaptorTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
   private Path getPath(String path) {
     return rootPath.resolve(path);
   }
@@ -130,6 +140,27 @@ public class FsAdaptorTest {
     adaptor.init(context);
   }
 
+  @Test
+  public void testAdaptorInitNonRootSourcePathNoInheritedAcl()
+      throws Exception {
+    delegate.allowsNonRootStartPaths = true;
+    root.addChildren(new MockFile("subdir", true)
+        .setInheritedAclView(MockFile.EMPTY_ACLVIEW));
+    config.overrideKey("filesystemadaptor.src", getPath("subdir").toString());
+    adaptor.init(context);
+  }
+
+  @Test
+  public void testAdaptorInitNonRootSourcePathNoInheritedAclNotAllowed()
+      throws Exception {
+    // As on Windows, where only roots, namespaces and links are allowed.
+    root.addChildren(new MockFile("subdir", true)
+        .setInheritedAclView(MockFile.EMPTY_ACLVIEW));
+    config.overrideKey("filesystemadaptor.src", getPath("subdir").toString());
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(context);
+  }
+
   @Test
   public void testAdaptorInitDfsLink() throws Exception {
     root.setIsDfsLink(true);
@@ -138,6 +169,276 @@ public class FsAdaptorTest {
     adaptor.init(context);
   }
 
+  @Test
+  public void testUpdateAllStatusInvalidatesDfsCache() throws Exception {
+    adaptor.init(context);
+    assertEquals(0, delegate.dfsCacheInvalidations);
+    adaptor.updateAllStatus();
+    assertEquals(1, delegate.dfsCacheInvalidations);
+  }
+
+  @Test
+  public void testGetDocContentReadsShareAclsOnce() throws Exception {
+    adaptor.init(context);
+    // The share ACL was read once, by validating the start path.
+    assertEquals(1, delegate.shareAclReads);
+    adaptor.getDocContent(new MockRequest(rootDocId), new MockResponse());
+    assertEquals(2, delegate.shareAclReads);
+  }
+
+  @Test
+  public void testAuthzUsesCachedShareAcls() throws Exception {
+    root.addChildren(new MockFile("file1"), new MockFile("file2"));
+    config.overrideKey("filesystemadaptor.searchResultsLinkToRepository",
+        "false");
+    adaptor.init(context);
+    AuthzAuthority authz =
+        ((MockAdaptorContext) context).getAuthzAuthority();
+    List<DocId> ids = ImmutableList.of(getDocId("file1"), getDocId("file2"));
+    Map<DocId, AuthzStatus> expected = ImmutableMap.of(
+        getDocId("file1"), AuthzStatus.PERMIT,
+        getDocId("file2"), AuthzStatus.PERMIT);
+    assertEquals(expected, authz.isUserAuthorized(newIdentity("joe"), ids));
+    assertEquals(expected, authz.isUserAuthorized(newIdentity("mary"), ids));
+    assertEquals(1, delegate.shareAclReads);
+  }
+
+  @Test
+  public void testAuthzReadsShareAclsOncePerRoot() throws Exception {
+    root.addChildren(new MockFile("dir1", true).addChildren(
+        new MockFile("file1"), new MockFile("file2")));
+    config.overrideKey("filesystemadaptor.searchResultsLinkToRepository",
+        "false");
+    config.overrideKey("filesystemadaptor.shareAclCacheTtlSeconds", "0");
+    adaptor.init(context);
+    AuthzAuthority authz =
+        ((MockAdaptorContext) context).getAuthzAuthority();
+    List<DocId> ids = ImmutableList.of(getDocId("dir1"),
+        getDocId("dir1/file1"), getDocId("dir1/file2"));
+    Map<DocId, AuthzStatus> decisions =
+        authz.isUserAuthorized(newIdentity("joe"), ids);
+    assertEquals(ids, ImmutableList.copyOf(decisions.keySet()));
+    for (AuthzStatus decision : decisions.values()) {
+      assertEquals(AuthzStatus.PERMIT, decision);
+    }
+    // Once by validating the start path, and once for the request.
+    assertEquals(2, delegate.shareAclReads);
+  }
+
+  @Test
+  public void testAuthzNotUnderStartPath() throws Exception {
+    config.overrideKey("filesystemadaptor.searchResultsLinkToRepository",
+        "false");
+    adaptor.init(context);
+    AuthzAuthority authz =
+        ((MockAdaptorContext) context).getAuthzAuthority();
+    DocId id = new DocId("/elsewhere/file");
+    assertEquals(ImmutableMap.of(id, AuthzStatus.INDETERMINATE),
+        authz.isUserAuthorized(newIdentity("joe"), ImmutableList.of(id)));
+  }
+
+  @Test
+  public void testAuthzTimeout() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    MockFile slowFile = new MockFile("slow") {
+        @Override
+        AclFileAttributeView getAclView() throws IOException {
+          try {
+            latch.await();
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+          return super.getAclView();
+        }
+      };
+    root.addChildren(new MockFile("fast"), slowFile);
+    config.overrideKey("filesystemadaptor.searchResultsLinkToRepository",
+        "false");
+    config.overrideKey("filesystemadaptor.authzTimeoutSeconds", "1");
+    adaptor.init(context);
+    AuthzAuthority authz =
+        ((MockAdaptorContext) context).getAuthzAuthority();
+    try {
+      assertEquals(ImmutableMap.of(
+              getDocId("fast"), AuthzStatus.PERMIT,
+              getDocId("slow"), AuthzStatus.INDETERMINATE),
+          authz.isUserAuthorized(newIdentity("joe"),
+              ImmutableList.of(getDocId("fast"), getDocId("slow"))));
+    } finally {
+      latch.countDown();
+    }
+  }
+
+  @Test
+  public void testAuthzDecisionsAreCached() throws Exception {
+    root.addChildren(new MockFile("file1"));
+    config.overrideKey("filesystemadaptor.searchResultsLinkToRepository",
+        "false");
+    config.overrideKey("filesystemadaptor.shareAclCacheTtlSeconds", "0");
+    adaptor.init(context);
+    AuthzAuthority authz =
+        ((MockAdaptorContext) context).getAuthzAuthority();
+    List<DocId> ids = ImmutableList.of(getDocId("file1"));
+    Map<DocId, AuthzStatus> expected =
+        ImmutableMap.of(getDocId("file1"), AuthzStatus.PERMIT);
+    assertEquals(expected, authz.isUserAuthorized(newIdentity("joe"), ids));
+    assertEquals(expected, authz.isUserAuthorized(newIdentity("joe"), ids));
+    // Once by validating the start path, and once for the first request.
+    assertEquals(2, delegate.shareAclReads);
+    assertEquals(1, adaptor.getAuthzCache().getHits());
+
+    // Another user is evaluated anew.
+    assertEquals(expected, authz.isUserAuthorized(newIdentity("mary"), ids));
+    assertEquals(3, delegate.shareAclReads);
+  }
+
+  @Test
+  public void testMonitoredChangeInvalidatesAuthzDecisions()
+      throws Exception {
+    root.addChildren(new MockFile("dir1", true).addChildren(
+        new MockFile("file1")));
+    config.overrideKey("filesystemadaptor.searchResultsLinkToRepository",
+        "false");
+    adaptor.init(context);
+    adaptor.getDocContent(new MockRequest(rootDocId), new MockResponse());
+    AuthzAuthority authz =
+        ((MockAdaptorContext) context).getAuthzAuthority();
+    List<DocId> ids = ImmutableList.of(getDocId("dir1/file1"));
+    authz.isUserAuthorized(newIdentity("joe"), ids);
+    authz.isUserAuthorized(newIdentity("joe"), ids);
+    assertEquals(1, adaptor.getAuthzCache().getHits());
+
+    delegate.monitorPusher.pushDocId(getDocId("dir1"));
+    authz.isUserAuthorized(newIdentity("joe"), ids);
+    assertEquals(1, adaptor.getAuthzCache().getHits());
+    assertEquals(2, adaptor.getAuthzCache().getMisses());
+  }
+
+  @Test
+  public void testShareAclChangeInvalidatesAuthzDecisions()
+      throws Exception {
+    root.addChildren(new MockFile("file1"));
+    config.overrideKey("filesystemadaptor.searchResultsLinkToRepository",
+        "false");
+    adaptor.init(context);
+    AuthzAuthority authz =
+        ((MockAdaptorContext) context).getAuthzAuthority();
+    List<DocId> ids = ImmutableList.of(getDocId("file1"));
+    assertEquals(ImmutableMap.of(getDocId("file1"), AuthzStatus.PERMIT),
+        authz.isUserAuthorized(newIdentity("joe"), ids));
+
+    // Refreshing unchanged share ACLs keeps the decisions.
+    adaptor.updateAllStatus();
+    authz.isUserAuthorized(newIdentity("joe"), ids);
+    assertEquals(1, adaptor.getAuthzCache().getHits());
+
+    root.setShareAclView(MockFile.EMPTY_ACLVIEW);
+    adaptor.updateAllStatus();
+    assertEquals(ImmutableMap.of(getDocId("file1"), AuthzStatus.DENY),
+        authz.isUserAuthorized(newIdentity("joe"), ids));
+  }
+
+  @Test
+  public void testAdaptorInitInvalidAuthzThreads() throws Exception {
+    config.overrideKey("filesystemadaptor.searchResultsLinkToRepository",
+        "false");
+    config.overrideKey("filesystemadaptor.authzThreads", "0");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(context);
+  }
+
+  @Test
+  public void testAdaptorInitNegativeMonitorDebounce() throws Exception {
+    config.overrideKey("filesystemadaptor.monitorDebounceMillis", "-1");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(context);
+  }
+
+  @Test
+  public void testMonitoredChangesCoalesced() throws Exception {
+    config.overrideKey("filesystemadaptor.monitorDebounceMillis", "10");
+    root.addChildren(new MockFile("file1"));
+    adaptor.init(context);
+    adaptor.getDocContent(new MockRequest(rootDocId), new MockResponse());
+    DocId id = getDocId("file1");
+    delegate.monitorPusher.pushRecord(new Record.Builder(id).build());
+    delegate.monitorPusher.pushRecord(
+        new Record.Builder(id).setDeleteFromIndex(true).build());
+    AccumulatingDocIdPusher pusher =
+        (AccumulatingDocIdPusher) context.getDocIdPusher();
+    for (int i = 0; i < 500 && pusher.getRecords().isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    adaptor.destroy();
+    assertEquals(
+        ImmutableList.of(new Record.Builder(id).setDeleteFromIndex(true)
+            .build()), pusher.getRecords());
+    assertTrue(((AccumulatingAsyncDocIdPusher) context.getAsyncDocIdPusher())
+        .getRecords().isEmpty());
+  }
+
+  @Test
+  public void testChangeCoalescerNotStartedIfInitFails() throws Exception {
+    config.overrideKey("filesystemadaptor.monitorDebounceMillis", "10");
+    root.addChildren(new MockFile("subdir", true));
+    config.overrideKey("filesystemadaptor.src", getPath("subdir").toString());
+    int before = countThreads("Change coalescer");
+    try {
+      adaptor.init(context);
+      fail("expected InvalidConfigurationException");
+    } catch (InvalidConfigurationException expected) {
+    }
+    assertTrue(countThreads("Change coalescer") <= before);
+  }
+
+  private static int countThreads(String name) {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals(name) && thread.isAlive()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testMonitoredChangesNotCoalesced() throws Exception {
+    config.overrideKey("filesystemadaptor.monitorDebounceMillis", "0");
+    root.addChildren(new MockFile("file1"));
+    adaptor.init(context);
+    adaptor.getDocContent(new MockRequest(rootDocId), new MockResponse());
+    Record record = new Record.Builder(getDocId("file1")).build();
+    delegate.monitorPusher.pushRecord(record);
+    delegate.monitorPusher.pushRecord(record);
+    assertEquals(ImmutableList.of(record, record),
+        ((AccumulatingAsyncDocIdPusher) context.getAsyncDocIdPusher())
+        .getRecords());
+  }
+
+  @Test
+  public void testUpdateAllStatusRefreshesShareAcls() throws Exception {
+    adaptor.init(context);
+    adaptor.updateAllStatus();
+    assertEquals(2, delegate.shareAclReads);
+  }
+
+  @Test
+  public void testShareAclCacheDisabled() throws Exception {
+    config.overrideKey("filesystemadaptor.shareAclCacheTtlSeconds", "0");
+    adaptor.init(context);
+    adaptor.getDocContent(new MockRequest(rootDocId), new MockResponse());
+    // Read by validating the start path, then by validateShare and by
+    // getDocContent.
+    assertEquals(3, delegate.shareAclReads);
+  }
+
+  @Test
+  public void testAdaptorInitNegativeShareAclCacheTtl() throws Exception {
+    config.overrideKey("filesystemadaptor.shareAclCacheTtlSeconds", "-1");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(context);
+  }
+
   @Test
   public void testAdaptorInitDfsLinkNoActiveStorage() throws Exception {
     root.setIsDfsLink(true);
@@ -405,6 +706,77 @@ public class FsAdaptorTest {
     assertTrue(adaptor.isVisibleDescendantOfRoot(getPath("hidden.dir/baz")));
   }
 
+  @Test
+  public void testIsVisibleDescendantOfRootReusesAncestors()
+      throws Exception {
+    adaptor.init(context);
+    root.addChildren(new MockFile("dir1", true).addChildren(
+        new MockFile("dir2", true).addChildren(new MockFile("dir3", true)),
+        new MockFile("sibling", true)));
+    int checks = delegate.hiddenChecks;
+    assertTrue(adaptor.isVisibleDescendantOfRoot(getPath("dir1/dir2/dir3")));
+    // The directory, each of its ancestors, and the start path.
+    assertEquals(checks + 4, delegate.hiddenChecks);
+    assertTrue(adaptor.isVisibleDescendantOfRoot(getPath("dir1/sibling")));
+    assertEquals(checks + 5, delegate.hiddenChecks);
+    assertTrue(adaptor.isVisibleDescendantOfRoot(getPath("dir1/dir2")));
+    assertEquals(checks + 5, delegate.hiddenChecks);
+    assertEquals(1, adaptor.getVisibilityCacheHits());
+    assertEquals(2, adaptor.getVisibilityCacheMisses());
+  }
+
+  @Test
+  public void testIsVisibleDescendantOfRootUnderHiddenDir() throws Exception {
+    adaptor.init(context);
+    root.addChildren(new MockFile("hidden.dir", true).setIsHidden(true)
+        .addChildren(new MockFile("dir1", true).addChildren(
+            new MockFile("dir2", true))));
+    int checks = delegate.hiddenChecks;
+    assertFalse(adaptor.isVisibleDescendantOfRoot(
+        getPath("hidden.dir/dir1/dir2")));
+    // Nothing beneath the hidden directory is checked.
+    assertEquals(checks + 2, delegate.hiddenChecks);
+    assertFalse(adaptor.isVisibleDescendantOfRoot(getPath("hidden.dir/dir1")));
+    assertEquals(checks + 2, delegate.hiddenChecks);
+  }
+
+  @Test
+  public void testMonitoredChangeInvalidatesVisibility() throws Exception {
+    MockFile dir1 = new MockFile("dir1", true);
+    root.addChildren(dir1.addChildren(new MockFile("dir2", true)));
+    adaptor.init(context);
+    adaptor.getDocContent(new MockRequest(rootDocId), new MockResponse());
+    assertTrue(adaptor.isVisibleDescendantOfRoot(getPath("dir1/dir2")));
+
+    dir1.setIsHidden(true);
+    assertTrue(adaptor.isVisibleDescendantOfRoot(getPath("dir1/dir2")));
+    delegate.monitorPusher.pushDocId(getDocId("dir1"));
+    assertFalse(adaptor.isVisibleDescendantOfRoot(getPath("dir1/dir2")));
+    assertFalse(adaptor.isVisibleDescendantOfRoot(getPath("dir1")));
+
+    dir1.setIsHidden(false);
+    delegate.monitorPusher.pushDocId(getDocId("dir1"));
+    assertTrue(adaptor.isVisibleDescendantOfRoot(getPath("dir1/dir2")));
+  }
+
+  @Test
+  public void testInvalidateEvictedAncestor() throws Exception {
+    // Only the most recently derived directory stays cached.
+    config.overrideKey("filesystemadaptor.directoryCacheSize", "1");
+    MockFile dir1 = new MockFile("dir1", true);
+    root.addChildren(dir1.addChildren(new MockFile("dir2", true)));
+    adaptor.init(context);
+    adaptor.getDocContent(new MockRequest(rootDocId), new MockResponse());
+    long hits = adaptor.getVisibilityCacheHits();
+    assertTrue(adaptor.isVisibleDescendantOfRoot(getPath("dir1/dir2")));
+    assertTrue(adaptor.isVisibleDescendantOfRoot(getPath("dir1/dir2")));
+    assertEquals(hits + 1, adaptor.getVisibilityCacheHits());
+
+    dir1.setIsHidden(true);
+    delegate.monitorPusher.pushDocId(getDocId("dir1"));
+    assertFalse(adaptor.isVisibleDescendantOfRoot(getPath("dir1/dir2")));
+  }
+
   @Test
   public void testGetDocIds() throws Exception {
     adaptor.init(context);
@@ -483,6 +855,342 @@ public class FsAdaptorTest {
     assertEquals(0, namedResources.size());
   }
 
+  @Test
+  public void testGetDocIdsFullTraversal() throws Exception {
+    FileTime modified = FileTime.fromMillis(30000);
+    root.addChildren(new MockFile("file1").setLastModifiedTime(modified),
+        new MockFile("hidden.txt").setIsHidden(true),
+        new MockFile("dir1", true).addChildren(new MockFile("file2"),
+            new MockFile("dir2", true).addChildren(new MockFile("file3"))),
+        new MockFile("hidden.dir", true).setIsHidden(true)
+            .addChildren(new MockFile("file4")));
+    config.overrideKey("filesystemadaptor.fullTraversal", "true");
+    config.overrideKey("filesystemadaptor.fullTraversalThreads", "2");
+    config.overrideKey("feed.maxUrls", "2");
+    adaptor.init(context);
+    adaptor.getDocIds(pusher);
+
+    List<Record> records = pusher.getRecords();
+    // The start path is pushed first, to be crawled immediately.
+    assertEquals(new Record.Builder(rootDocId).setCrawlImmediately(true)
+        .build(), records.get(0));
+    Set<Record> expected = ImmutableSet.of(
+        newTraversalRecord("file1", modified),
+        newTraversalRecord("dir1", MockFile.DEFAULT_FILETIME),
+        newTraversalRecord("dir1/file2", MockFile.DEFAULT_FILETIME),
+        newTraversalRecord("dir1/dir2", MockFile.DEFAULT_FILETIME),
+        newTraversalRecord("dir1/dir2/file3", MockFile.DEFAULT_FILETIME));
+    assertEquals(expected,
+        ImmutableSet.copyOf(records.subList(1, records.size())));
+    assertEquals(expected.size() + 1, records.size());
+  }
+
+  @Test
+  public void testGetDocIdsFullTraversalFileTimeFilter() throws Exception {
+    root.addChildren(new MockFile("old.txt"),
+        new MockFile("new.txt").setLastModifiedTime(FileTime.fromMillis(
+            System.currentTimeMillis())));
+    config.overrideKey("filesystemadaptor.fullTraversal", "true");
+    config.overrideKey("filesystemadaptor.lastModifiedDays", "1");
+    adaptor.init(context);
+    adaptor.getDocIds(pusher);
+
+    List<Record> records = pusher.getRecords();
+    assertEquals(2, records.size());
+    assertEquals(getDocId("new.txt"), records.get(1).getDocId());
+  }
+
+  @Test
+  public void testGetDocIdsFullTraversalIllegalThreads() throws Exception {
+    config.overrideKey("filesystemadaptor.fullTraversal", "true");
+    config.overrideKey("filesystemadaptor.fullTraversalThreads", "0");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(context);
+  }
+
+  private Record newTraversalRecord(String path, FileTime lastModified)
+      throws IOException {
+    return new Record.Builder(getDocId(path))
+        .setLastModified(new Date(lastModified.toMillis())).build();
+  }
+
+  @Test
+  public void testIncrementalPollingDisabled() throws Exception {
+    adaptor.init(context);
+    assertNull(
+        ((MockAdaptorContext) context).getPollingIncrementalLister());
+  }
+
+  @Test
+  public void testGetModifiedDocIdsBaseline() throws Exception {
+    makeIncrementalTree();
+    PollingIncrementalLister lister = initIncrementalPolling();
+    lister.getModifiedDocIds(pusher);
+    // The first poll only records the snapshot.
+    assertTrue(pusher.getRecords().isEmpty());
+    lister.getModifiedDocIds(pusher);
+    assertTrue(pusher.getRecords().isEmpty());
+  }
+
+  @Test
+  public void testGetModifiedDocIds() throws Exception {
+    makeIncrementalTree();
+    PollingIncrementalLister lister = initIncrementalPolling();
+    lister.getModifiedDocIds(pusher);
+
+    FileTime modified = FileTime.fromMillis(30000);
+    root.getChild("file1").setLastModifiedTime(modified);
+    root.getChild("dir1").setLastModifiedTime(modified)
+        .addChildren(new MockFile("newfile").setLastModifiedTime(modified));
+    root.getChild("dir1").getChild("dir2").getChild("file3")
+        .setFileContents("Longer contents of file3");
+    DocId dir3DocId = getDocId("dir3");
+    root.removeChild("dir3");
+    lister.getModifiedDocIds(pusher);
+
+    assertEquals(ImmutableSet.of(
+        newModifiedRecord("file1", modified),
+        newModifiedRecord("dir1", modified),
+        newModifiedRecord("dir1/newfile", modified),
+        newModifiedRecord("dir1/dir2/file3", MockFile.DEFAULT_FILETIME),
+        new Record.Builder(dir3DocId).setDeleteFromIndex(true).build(),
+        newDeletedRecord("dir3/file4")),
+        ImmutableSet.copyOf(pusher.getRecords()));
+    assertEquals(6, pusher.getRecords().size());
+
+    // Nothing has changed since the last poll.
+    pusher.reset();
+    lister.getModifiedDocIds(pusher);
+    assertTrue(pusher.getRecords().isEmpty());
+  }
+
+  @Test
+  public void testGetModifiedDocIdsUnreadableFolder() throws Exception {
+    root.addChildren(new MockFile("dir1", true)
+        .addChildren(new MockFile("file1")));
+    PollingIncrementalLister lister = initIncrementalPolling();
+    lister.getModifiedDocIds(pusher);
+
+    // Failing to list a folder must not delete its contents.
+    root.removeChild("dir1");
+    root.addChildren(new MockFile("dir1", true) {
+        @Override
+        DirectoryStream<DirectoryEntry> newDirectoryEntryStream()
+            throws IOException {
+          throw new AccessDeniedException(getPath());
+        }
+      });
+    lister.getModifiedDocIds(pusher);
+    assertTrue(pusher.getRecords().isEmpty());
+  }
+
+  @Test
+  public void testGetModifiedDocIdsPruneUnchangedFolders() throws Exception {
+    makeIncrementalTree();
+    config.overrideKey("filesystemadaptor.incrementalPruneUnchangedFolders",
+                       "true");
+    PollingIncrementalLister lister = initIncrementalPolling();
+    lister.getModifiedDocIds(pusher);
+
+    FileTime modified = FileTime.fromMillis(30000);
+    // Modified in place, so the change goes unnoticed in the pruned folder.
+    root.getChild("dir1").getChild("file2").setLastModifiedTime(modified);
+    // But the subfolders of unchanged folders are still visited.
+    root.getChild("dir1").getChild("dir2").setLastModifiedTime(modified)
+        .addChildren(new MockFile("newfile"));
+    lister.getModifiedDocIds(pusher);
+
+    assertEquals(ImmutableSet.of(
+        newModifiedRecord("dir1/dir2", modified),
+        newModifiedRecord("dir1/dir2/newfile", MockFile.DEFAULT_FILETIME)),
+        ImmutableSet.copyOf(pusher.getRecords()));
+  }
+
+  @Test
+  public void testGetModifiedDocIdsSnapshotPersisted() throws Exception {
+    makeIncrementalTree();
+    PollingIncrementalLister lister = initIncrementalPolling();
+    lister.getModifiedDocIds(pusher);
+    adaptor.destroy();
+
+    root.getChild("dir1").removeChild("file2");
+    adaptor = new FsAdaptor(delegate);
+    context = new MockAdaptorContext();
+    config = context.getConfig();
+    adaptor.initConfig(config);
+    config.overrideKey("filesystemadaptor.src", root.getPath());
+    lister = initIncrementalPolling();
+    lister.getModifiedDocIds(pusher);
+    assertEquals(ImmutableList.of(newDeletedRecord("dir1/file2")),
+                 pusher.getRecords());
+  }
+
+  @Test
+  public void testCrawlStateDisabled() throws Exception {
+    adaptor.init(context);
+    assertNull(adaptor.getCrawlState());
+  }
+
+  @Test
+  public void testPrefetchChildren() throws Exception {
+    MockFile file1 = new MockFile("file1");
+    root.addChildren(new MockFile("dir1", true).addChildren(file1));
+    config.overrideKey("filesystemadaptor.prefetchChildren", "true");
+    adaptor.init(context);
+
+    // Listing the folder prefetches the attributes of its children, so
+    // hiding the file afterwards goes unnoticed until it has been served.
+    adaptor.getDocContent(new MockRequest(getDocId("dir1")),
+                          new MockResponse());
+    file1.setIsHidden(true);
+    MockResponse response = new MockResponse();
+    adaptor.getDocContent(new MockRequest(getDocId("dir1/file1")), response);
+    assertFalse(response.notFound);
+    assertNotNull(response.acl);
+
+    // Once served, the prefetched attributes are forgotten.
+    response = new MockResponse();
+    adaptor.getDocContent(new MockRequest(getDocId("dir1/file1")), response);
+    assertTrue(response.notFound);
+  }
+
+  @Test
+  public void testPrefetchChildrenDisabled() throws Exception {
+    MockFile file1 = new MockFile("file1");
+    root.addChildren(new MockFile("dir1", true).addChildren(file1));
+    adaptor.init(context);
+
+    adaptor.getDocContent(new MockRequest(getDocId("dir1")),
+                          new MockResponse());
+    file1.setIsHidden(true);
+    MockResponse response = new MockResponse();
+    adaptor.getDocContent(new MockRequest(getDocId("dir1/file1")), response);
+    assertTrue(response.notFound);
+  }
+
+  @Test
+  public void testIdenticalAclsBuiltOnce() throws Exception {
+    root.addChildren(new MockFile("file1"), new MockFile("file2"));
+    adaptor.init(context);
+    MockResponse response1 = new MockResponse();
+    adaptor.getDocContent(new MockRequest(getDocId("file1")), response1);
+    MockResponse response2 = new MockResponse();
+    adaptor.getDocContent(new MockRequest(getDocId("file2")), response2);
+    assertEquals(response1.acl, response2.acl);
+    assertEquals(1, adaptor.getAclCache().getMisses());
+    assertEquals(1, adaptor.getAclCache().getHits());
+  }
+
+  @Test
+  public void testPrefetchThreadsInvalid() throws Exception {
+    config.overrideKey("filesystemadaptor.prefetchChildren", "true");
+    config.overrideKey("filesystemadaptor.prefetchThreads", "0");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(context);
+  }
+
+  @Test
+  public void testCrawlStateRecorded() throws Exception {
+    FileTime modified = FileTime.fromMillis(30000);
+    root.addChildren(new MockFile("dir1", true).addChildren(
+        new MockFile("file1").setLastModifiedTime(modified)));
+    config.overrideKey("filesystemadaptor.crawlStateFile",
+        new File(temp.getRoot(), "crawlstate").getPath());
+    config.overrideKey("filesystemadaptor.fullTraversal", "true");
+    adaptor.init(context);
+    CrawlStateStore crawlState = adaptor.getCrawlState();
+
+    DocId docid = getDocId("dir1/file1");
+    adaptor.getDocContent(new MockRequest(docid), new MockResponse());
+    CrawlStateStore.State served = crawlState.get(docid.getUniqueId());
+    assertEquals(modified.toMillis(), served.getLastModified());
+    assertEquals("Contents of file1".length(), served.getSize());
+    assertEquals(0L, served.getLastPushed());
+
+    // Pushing keeps the state the document was last served with.
+    adaptor.getDocIds(pusher);
+    CrawlStateStore.State pushed = crawlState.get(docid.getUniqueId());
+    assertTrue(pushed.getLastPushed() > 0L);
+    assertEquals(served.getLastModified(), pushed.getLastModified());
+    assertEquals(served.getSize(), pushed.getSize());
+    assertEquals(served.getAclFingerprint(), pushed.getAclFingerprint());
+    assertNotNull(crawlState.get(getDocId("dir1").getUniqueId()));
+
+    // Documents that no longer exist are forgotten, along with their
+    // descendants.
+    DocId dir1 = getDocId("dir1");
+    root.removeChild("dir1");
+    MockResponse response = new MockResponse();
+    adaptor.getDocContent(new MockRequest(dir1), response);
+    assertTrue(response.notFound);
+    assertNull(crawlState.get(dir1.getUniqueId()));
+    assertNull(crawlState.get(docid.getUniqueId()));
+  }
+
+  @Test
+  public void testCrawlStateDeletesPushedAfterFullTraversal()
+      throws Exception {
+    MockFile dir1 = new MockFile("dir1", true).addChildren(
+        new MockFile("file2"));
+    root.addChildren(new MockFile("file1"), dir1);
+    config.overrideKey("filesystemadaptor.crawlStateFile",
+        new File(temp.getRoot(), "crawlstate").getPath());
+    config.overrideKey("filesystemadaptor.fullTraversal", "true");
+    adaptor.init(context);
+    CrawlStateStore crawlState = adaptor.getCrawlState();
+    adaptor.getDocIds(pusher);
+
+    // Documents removed while nobody asked for them are only noticed by
+    // the next full traversal.
+    root.removeChild("file1");
+    dir1.removeChild("file2");
+    // Push times are in milliseconds, so begin the traversal after them.
+    Thread.sleep(5);
+    pusher.reset();
+    adaptor.getDocIds(pusher);
+    List<Record> records = pusher.getRecords();
+    Set<Record> expected = ImmutableSet.of(
+        new Record.Builder(getDocId("file1")).setDeleteFromIndex(true)
+            .build(),
+        new Record.Builder(getDocId("dir1/file2")).setDeleteFromIndex(true)
+            .build());
+    assertEquals(expected,
+        ImmutableSet.copyOf(records.subList(2, records.size())));
+    assertNull(crawlState.get(getDocId("file1").getUniqueId()));
+    assertNotNull(crawlState.get(getDocId("dir1").getUniqueId()));
+
+    // Nothing else is deleted once they are forgotten.
+    pusher.reset();
+    adaptor.getDocIds(pusher);
+    assertEquals(2, pusher.getRecords().size());
+  }
+
+  private void makeIncrementalTree() {
+    root.addChildren(new MockFile("file1"),
+        new MockFile("dir1", true).addChildren(new MockFile("file2"),
+            new MockFile("dir2", true).addChildren(new MockFile("file3"))),
+        new MockFile("dir3", true).addChildren(new MockFile("file4")));
+  }
+
+  private PollingIncrementalLister initIncrementalPolling() throws Exception {
+    config.overrideKey("filesystemadaptor.incrementalPolling", "true");
+    config.overrideKey("filesystemadaptor.incrementalSnapshotFile",
+        new File(temp.getRoot(), "snapshot.dat").getPath());
+    adaptor.init(context);
+    return ((MockAdaptorContext) context).getPollingIncrementalLister();
+  }
+
+  private Record newModifiedRecord(String path, FileTime lastModified)
+      throws IOException {
+    return new Record.Builder(getDocId(path)).setCrawlImmediately(true)
+        .setLastModified(new Date(lastModified.toMillis())).build();
+  }
+
+  private Record newDeletedRecord(String path) throws IOException {
+    return new Record.Builder(getDocId(path)).setDeleteFromIndex(true)
+        .build();
+  }
+
   @Test
   public void testGetDocContentInvalidPath() throws Exception {
     adaptor.init(context);
@@ -600,6 +1308,87 @@ public class FsAdaptorTest {
     testGetDocContentRegularFile(false /* indexFolders */);
   }
 
+  @Test
+  public void testGetDocContentSniffedContentType() throws Exception {
+    String fname = "README";
+    // The delegate's content type is not consulted for files without an
+    // extension; the content is sniffed instead.
+    root.addChildren(new MockFile(fname).setContentType("text/html")
+        .setFileContents("%PDF-1.4"));
+    adaptor.init(context);
+
+    MockResponse response = new MockResponse();
+    adaptor.getDocContent(new MockRequest(getDocId(fname)), response);
+    assertEquals("application/pdf", response.contentType);
+    assertEquals("%PDF-1.4", response.content.toString("UTF-8"));
+    assertEquals(1, adaptor.getContentTypeResolver().getSniffs());
+  }
+
+  @Test
+  public void testGetDocContentProbedContentType() throws Exception {
+    root.addChildren(new MockFile("a.foo").setContentType("text/x-foo")
+        .setFileContents("foo"));
+    root.addChildren(new MockFile("b.foo").setContentType("text/x-bar")
+        .setFileContents("bar"));
+    adaptor.init(context);
+
+    MockResponse response = new MockResponse();
+    adaptor.getDocContent(new MockRequest(getDocId("a.foo")), response);
+    assertEquals("text/x-foo", response.contentType);
+    // The type probed for the extension is reused.
+    response = new MockResponse();
+    adaptor.getDocContent(new MockRequest(getDocId("b.foo")), response);
+    assertEquals("text/x-foo", response.contentType);
+    assertEquals(1, adaptor.getContentTypeResolver().getProbes());
+    assertEquals(1, adaptor.getContentTypeResolver().getCacheHits());
+  }
+
+  @Test
+  public void testGetDocContentUnchangedFile() throws Exception {
+    String fname = "test.html";
+    root.addChildren(new MockFile(fname).setLastModifiedTime(
+        FileTime.fromMillis(30000)));
+    adaptor.init(context);
+
+    MockResponse response = new MockResponse();
+    adaptor.getDocContent(
+        new MockRequest(getDocId(fname), new Date(40000)), response);
+    assertTrue(response.noContent);
+    assertNull(response.content);
+    assertNull(response.contentType);
+    // The ACL is still sent, as ACL changes do not change the modified time.
+    assertNotNull(response.acl);
+    assertEquals(new Date(30000), response.lastModified);
+  }
+
+  @Test
+  public void testGetDocContentChangedFile() throws Exception {
+    String fname = "test.html";
+    root.addChildren(new MockFile(fname).setLastModifiedTime(
+        FileTime.fromMillis(30000)));
+    adaptor.init(context);
+
+    MockResponse response = new MockResponse();
+    adaptor.getDocContent(
+        new MockRequest(getDocId(fname), new Date(20000)), response);
+    assertFalse(response.noContent);
+    assertEquals("Contents of " + fname, response.content.toString("UTF-8"));
+  }
+
+  @Test
+  public void testGetDocContentUnchangedDirectory() throws Exception {
+    root.addChildren(new MockFile("subdir", true)
+        .addChildren(new MockFile("file1")));
+    adaptor.init(context);
+
+    // Directory listings are always sent.
+    MockResponse response = new MockResponse();
+    adaptor.getDocContent(
+        new MockRequest(getDocId("subdir"), new Date(40000)), response);
+    assertFalse(response.noContent);
+    assertNotNull(response.content);
+  }
+
   private void testGetDocContentRegularFile(boolean indexFolders)
       throws Exception {
     String fname = "test.html";
@@ -939,6 +1728,42 @@ public class FsAdaptorTest {
     // ACLs checked in other tests.
   }
 
+  @Test
+  public void testGetDocContentDirectorySkipsHiddenChildren()
+      throws Exception {
+    testGetDocContentDirectoryHiddenChildren(false,
+        "<li><a href=\"test.txt\">test.txt</a></li>");
+  }
+
+  @Test
+  public void testGetDocContentDirectoryCrawlHiddenChildren()
+      throws Exception {
+    testGetDocContentDirectoryHiddenChildren(true,
+        "<li><a href=\"hidden.dir/\">hidden.dir</a></li>"
+        + "<li><a href=\"hidden.txt\">hidden.txt</a></li>"
+        + "<li><a href=\"test.txt\">test.txt</a></li>");
+  }
+
+  private void testGetDocContentDirectoryHiddenChildren(
+      boolean crawlHiddenFiles, String expectedLinks) throws Exception {
+    String fname = "test.dir";
+    root.addChildren(new MockFile(fname, true).addChildren(
+        new MockFile("test.txt"),
+        new MockFile("hidden.txt").setIsHidden(true),
+        new MockFile("hidden.dir", true).setIsHidden(true)));
+    config.overrideKey("filesystemadaptor.crawlHiddenFiles",
+                       Boolean.toString(crawlHiddenFiles));
+    adaptor.init(context);
+    MockRequest request = new MockRequest(getDocId(fname));
+    MockResponse response = new MockResponse();
+    adaptor.getDocContent(request, response);
+    assertFalse(response.notFound);
+    String expectedContent = "<!DOCTYPE html>\n<html><head><title>Folder "
+        + fname + "</title></head><body><h1>Folder " + fname + "</h1>"
+        + expectedLinks + "</body></html>";
+    assertEquals(expectedContent, response.content.toString("UTF-8"));
+  }
+
   private void testGetDocContentDirectory(Path path, String label,
       boolean indexFolders) throws Exception {
     MockFile dir = delegate.getFile(path);
@@ -1674,4 +2499,24 @@ public class FsAdaptorTest {
     return new AclBuilder(Paths.get("foo", "bar"),
         aclView, windowsAccounts, builtinPrefix, namespace);
   }
+
+  /** Returns the identity of a user who is a member of Everyone. */
+  private static AuthnIdentity newIdentity(final String userName) {
+    return new AuthnIdentity() {
+      @Override
+      public UserPrincipal getUser() {
+        return new UserPrincipal(userName);
+      }
+
+      @Override
+      public String getPassword() {
+        return null;
+      }
+
+      @Override
+      public Set<GroupPrincipal> getGroups() {
+        return Collections.singleton(new GroupPrincipal("Everyone"));
+      }
+    };
+  }
 }
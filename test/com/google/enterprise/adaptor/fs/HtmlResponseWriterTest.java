@@ -85,6 +85,60 @@ public class HtmlResponseWriterTest {
     assertEquals(golden, output.toString());
   }
 
+  @Test
+  public void testLinksInFolder() throws Exception {
+    final String golden = "<!DOCTYPE html>\n"
+        + "<html><head><title>Folder dir</title></head>"
+        + "<body><h1>Folder dir</h1>"
+        + "<li><a href=\"file\">file</a></li>"
+        + "<li><a href=\"sub/\">sub</a></li>"
+        + "<li><a href=\"./a:b\">a:b</a></li>"
+        + "<li><a href=\"sp%20ace\">sp ace</a></li>"
+        + "<li><a href=\"%C3%A9t%C3%A9\">\u00e9t\u00e9</a></li>"
+        + "<li><a href=\"../other\">other</a></li>"
+        + "<li><a href=\"#\">dir</a></li>"
+        + "</body></html>";
+    writer.start(new DocId("root/dir/"), null);
+    writer.addLink(new DocId("root/dir/file"), null);
+    writer.addLink(new DocId("root/dir/sub/"), null);
+    writer.addLink(new DocId("root/dir/a:b"), null);
+    writer.addLink(new DocId("root/dir/sp ace"), null);
+    writer.addLink(new DocId("root/dir/\u00e9t\u00e9"), null);
+    writer.addLink(new DocId("root/other"), null);
+    writer.addLink(new DocId("root/dir/"), null);
+    writer.finish();
+    assertEquals(golden, output.toString());
+  }
+
+  @Test
+  public void testEscaping() throws Exception {
+    final String golden = "<!DOCTYPE html>\n"
+        + "<html><head><title>Folder a&amp;b&lt;c\"d'e</title></head>"
+        + "<body><h1>Folder a&amp;b&lt;c\"d'e</h1>"
+        + "<li><a href=\"root/a&amp;b&apos;c\">a&amp;b'c&lt;</a></li>"
+        + "</body></html>";
+    writer.start(new DocId("root"), "a&b<c\"d'e");
+    writer.addLink(new DocId("root/a&b'c"), "a&b'c<");
+    writer.finish();
+    assertEquals(golden, output.toString());
+  }
+
+  @Test
+  public void testLinkToOtherAuthority() throws Exception {
+    HtmlResponseWriter writer = new HtmlResponseWriter(output,
+        new DocIdEncoder() {
+          @Override
+          public URI encodeDocId(DocId docId) {
+            return URI.create("http://" + docId.getUniqueId());
+          }
+        }, Locale.ENGLISH);
+    writer.start(new DocId("localhost/dir/"), "dir");
+    writer.addLink(new DocId("otherhost/dir/file"), "file");
+    writer.finish();
+    assertTrue(output.toString(), output.toString().contains(
+        "<li><a href=\"http://otherhost/dir/file\">file</a></li>"));
+  }
+
   @Test
   public void testStartTwice() throws Exception {
     writer.start(new DocId(""), null);
@@ -0,0 +1,216 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+import com.google.enterprise.adaptor.ExceptionHandler;
+
+import org.junit.*;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link LinuxFileDelegate} */
+public class LinuxFileDelegateTest {
+  private LinuxFileDelegate delegate;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @BeforeClass
+  public static void checkIfRunningOnLinux() {
+    TestHelper.assumeOsIsLinux();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    delegate = new LinuxFileDelegate();
+  }
+
+  @After
+  public void tearDown() {
+    delegate.destroy();
+  }
+
+  private Path newTempFile(String name, String perms) throws IOException {
+    Path file = temp.newFile(name).toPath().toRealPath();
+    Files.setPosixFilePermissions(file, PosixFilePermissions.fromString(perms));
+    return file;
+  }
+
+  @Test
+  public void testReadBasicAttributesIncludesPosixAttributes()
+      throws Exception {
+    Path file = newTempFile("test", "rw-r-----");
+    BasicFileAttributes attrs = delegate.readBasicAttributes(file);
+    assertTrue(attrs instanceof PosixFileAttributes);
+    assertTrue(attrs.isRegularFile());
+    assertEquals(PosixFilePermissions.fromString("rw-r-----"),
+        ((PosixFileAttributes) attrs).permissions());
+  }
+
+  @Test
+  public void testNewPosixAclAllReadable() throws Exception {
+    Path file = newTempFile("test", "r--r--r--");
+    PosixFileAttributes attrs = Files.readAttributes(file,
+        PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    List<AclEntry> acl = LinuxFileDelegate.newPosixAcl(attrs);
+    assertEquals(3, acl.size());
+    assertEquals(attrs.owner(), acl.get(0).principal());
+    assertEquals(attrs.group(), acl.get(1).principal());
+    assertEquals("Everyone", acl.get(2).principal().getName());
+    for (AclEntry entry : acl) {
+      assertTrue(entry.permissions().contains(AclEntryPermission.READ_DATA));
+      assertTrue(entry.permissions().contains(AclEntryPermission.READ_ACL));
+      assertTrue(entry.permissions().contains(
+          AclEntryPermission.READ_NAMED_ATTRS));
+    }
+  }
+
+  @Test
+  public void testNewPosixAclOwnerOnly() throws Exception {
+    Path file = newTempFile("test", "rw-------");
+    PosixFileAttributes attrs = Files.readAttributes(file,
+        PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    List<AclEntry> acl = LinuxFileDelegate.newPosixAcl(attrs);
+    assertEquals(1, acl.size());
+    assertEquals(attrs.owner(), acl.get(0).principal());
+  }
+
+  @Test
+  public void testNewPosixAclNoneReadable() throws Exception {
+    Path file = newTempFile("test", "-w--w--w-");
+    PosixFileAttributes attrs = Files.readAttributes(file,
+        PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    assertTrue(LinuxFileDelegate.newPosixAcl(attrs).isEmpty());
+  }
+
+  @Test
+  public void testNewPosixAclEqualForSamePermissions() throws Exception {
+    // Equal ACLs let the ACL caches share entries between files.
+    PosixFileAttributes attrs1 = Files.readAttributes(
+        newTempFile("test1", "rw-r--r--"), PosixFileAttributes.class,
+        LinkOption.NOFOLLOW_LINKS);
+    PosixFileAttributes attrs2 = Files.readAttributes(
+        newTempFile("test2", "rw-r--r--"), PosixFileAttributes.class,
+        LinkOption.NOFOLLOW_LINKS);
+    List<AclEntry> acl = LinuxFileDelegate.newPosixAcl(attrs1);
+    assertEquals(acl, LinuxFileDelegate.newPosixAcl(attrs2));
+    assertEquals(acl.hashCode(),
+        LinuxFileDelegate.newPosixAcl(attrs2).hashCode());
+  }
+
+  @Test
+  public void testGetAclViewsHasNoInheritedAcl() throws Exception {
+    Path file = newTempFile("test", "rw-r--r--");
+    AclFileAttributeViews aclViews = delegate.getAclViews(file);
+    assertFalse(aclViews.getDirectAclView().getAcl().isEmpty());
+    assertTrue(aclViews.getInheritedAclView().getAcl().isEmpty());
+  }
+
+  @Test
+  public void testGetShareAclViewDefaultsToEveryone() throws Exception {
+    List<AclEntry> acl =
+        delegate.getShareAclView(temp.getRoot().toPath()).getAcl();
+    assertEquals(1, acl.size());
+    assertEquals("Everyone", acl.get(0).principal().getName());
+  }
+
+  @Test
+  public void testGetShareAclViewFromSource() throws Exception {
+    final AclFileAttributeView shareAcl = new AclView(
+        AclView.user("joe").type(AclEntryType.ALLOW)
+        .perms(AclEntryPermission.READ_DATA));
+    LinuxFileDelegate.ShareAclViewSource source =
+        new LinuxFileDelegate.ShareAclViewSource() {
+          @Override
+          public AclFileAttributeView getShareAclView(Path share) {
+            return shareAcl;
+          }
+        };
+    delegate = new LinuxFileDelegate(source);
+    assertSame(shareAcl, delegate.getShareAclView(temp.getRoot().toPath()));
+  }
+
+  @Test
+  public void testIsNotDfs() throws Exception {
+    Path dir = temp.getRoot().toPath();
+    assertFalse(delegate.isDfsNamespace(dir));
+    assertFalse(delegate.isDfsLink(dir));
+    assertNull(delegate.resolveDfsLink(dir));
+  }
+
+  @Test
+  public void testEnumerateDfsLinksUnsupported() throws Exception {
+    thrown.expect(IOException.class);
+    delegate.enumerateDfsLinks(temp.getRoot().toPath());
+  }
+
+  @Test
+  public void testGetDfsShareAclViewUnsupported() throws Exception {
+    thrown.expect(IOException.class);
+    delegate.getDfsShareAclView(temp.getRoot().toPath());
+  }
+
+  @Test
+  public void testStartMonitorPathNotDirectory() throws Exception {
+    Path file = temp.newFile("file").toPath();
+    thrown.expect(IOException.class);
+    delegate.startMonitorPath(file, new AccumulatingAsyncDocIdPusher());
+  }
+
+  @Test
+  public void testStartMonitorPath() throws Exception {
+    AccumulatingAsyncDocIdPusher pusher = new AccumulatingAsyncDocIdPusher() {
+        @Override
+        public synchronized List<Record> getRecords() {
+          return new ArrayList<Record>(super.getRecords());
+        }
+
+        @Override
+        public synchronized Record pushRecords(Iterable<Record> records,
+            ExceptionHandler handler) throws InterruptedException {
+          return super.pushRecords(records, handler);
+        }
+      };
+    Path root = temp.getRoot().toPath();
+    delegate.startMonitorPath(root, pusher);
+    Path file = Files.createFile(root.resolve("file"));
+    Record expected = new Record.Builder(delegate.newDocId(file))
+        .setCrawlImmediately(true).build();
+    for (int i = 0; i < 500 && !pusher.getRecords().contains(expected); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(pusher.getRecords().contains(expected));
+  }
+}
@@ -45,6 +45,8 @@ class MockAdaptorContext implements AdaptorContext {
   private final DocIdEncoder docIdEncoder = new MockDocIdCodec();
   private final List<StatusSource> statusSources =
       new ArrayList<StatusSource>();
+  private PollingIncrementalLister pollingIncrementalLister;
+  private AuthzAuthority authzAuthority;
 
   @Override
   public Config getConfig() {
@@ -109,6 +111,11 @@ class MockAdaptorContext implements AdaptorContext {
 
   @Override
   public void setPollingIncrementalLister(PollingIncrementalLister lister) {
+    pollingIncrementalLister = lister;
+  }
+
+  PollingIncrementalLister getPollingIncrementalLister() {
+    return pollingIncrementalLister;
   }
 
   @Override
@@ -118,6 +125,10 @@ class MockAdaptorContext implements AdaptorContext {
 
   @Override
   public void setAuthzAuthority(AuthzAuthority authzAuthority) {
-    throw new UnsupportedOperationException();
+    this.authzAuthority = authzAuthority;
+  }
+
+  AuthzAuthority getAuthzAuthority() {
+    return authzAuthority;
   }
 }
@@ -35,6 +35,7 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
@@ -107,6 +108,16 @@ class MockFile {
     return this;
   }
 
+  /**
+   * Removes the child of the given name.
+   */
+  MockFile removeChild(String name) throws FileNotFoundException {
+    MockFile child = getChild(name);
+    directoryContents.remove(child);
+    child.parent = null;
+    return this;
+  }
+
   /**
    * Returns the child of the given name.
    */
@@ -334,6 +345,14 @@ class MockFile {
     return new MockDirectoryStream(directoryContents);
   }
 
+  DirectoryStream<DirectoryEntry> newDirectoryEntryStream()
+      throws IOException {
+    if (!isDirectory) {
+      throw new NotDirectoryException("not a directory " + getPath());
+    }
+    return new MockDirectoryEntryStream(directoryContents);
+  }
+
   @Override
   public String toString() {
     return getPath();
@@ -415,4 +434,41 @@ class MockFile {
     @Override
     public void close() {}
   }
+
+  private class MockDirectoryEntryStream
+      implements DirectoryStream<DirectoryEntry> {
+    private Iterator<DirectoryEntry> iterator;
+
+    MockDirectoryEntryStream(List<MockFile> files) throws IOException {
+      ArrayList<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+      for (MockFile file : sortedByPath(files)) {
+        entries.add(new DirectoryEntry(Paths.get(file.getPath()),
+            file.readBasicAttributes(), file.isHidden()));
+      }
+      iterator = entries.iterator();
+    }
+
+    private List<MockFile> sortedByPath(List<MockFile> files) {
+      ArrayList<MockFile> sorted = new ArrayList<MockFile>(files);
+      Collections.sort(sorted, new Comparator<MockFile>() {
+        @Override
+        public int compare(MockFile f1, MockFile f2) {
+          return Paths.get(f1.getPath()).compareTo(Paths.get(f2.getPath()));
+        }
+      });
+      return sorted;
+    }
+
+    @Override
+    public Iterator<DirectoryEntry> iterator() {
+      Preconditions.checkState(iterator != null,
+          "multiple attempts to get iterator");
+      Iterator<DirectoryEntry> rtn = iterator;
+      iterator = null;
+      return rtn;
+    }
+
+    @Override
+    public void close() {}
+  }
 }
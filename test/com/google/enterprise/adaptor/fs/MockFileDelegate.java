@@ -23,6 +23,8 @@ import com.google.enterprise.adaptor.DocId;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
@@ -37,6 +39,21 @@ class MockFileDelegate implements FileDelegate {
 
   private final MockFile root;
 
+  /** The number of times the DFS cache was invalidated. */
+  int dfsCacheInvalidations;
+
+  /** The number of times a share ACL was read. */
+  int shareAclReads;
+
+  /** The number of times a file was checked for being hidden. */
+  int hiddenChecks;
+
+  /** The pusher passed to the last call to startMonitorPath. */
+  AsyncDocIdPusher monitorPusher;
+
+  /** Returned by allowsNonRootStartPaths. */
+  boolean allowsNonRootStartPaths;
+
   // Required for subclasses.
   MockFileDelegate() {
     this.root = null;
@@ -117,6 +134,7 @@ class MockFileDelegate implements FileDelegate {
 
   @Override
   public boolean isHidden(Path doc) throws IOException {
+    hiddenChecks++;
     try {
       return getFile(doc).isHidden();
     } catch (FileNotFoundException e) {
@@ -144,11 +162,23 @@ class MockFileDelegate implements FileDelegate {
     return getFile(doc).newInputStream();
   }
 
+  @Override
+  public ReadableByteChannel newReadableByteChannel(Path doc)
+      throws IOException {
+    return Channels.newChannel(getFile(doc).newInputStream());
+  }
+
   @Override
   public DirectoryStream<Path> newDirectoryStream(Path doc) throws IOException {
     return getFile(doc).newDirectoryStream();
   }
 
+  @Override
+  public DirectoryStream<DirectoryEntry> newDirectoryEntryStream(Path doc)
+      throws IOException {
+    return getFile(doc).newDirectoryEntryStream();
+  }
+
   @Override
   public DocId newDocId(Path doc) throws IOException {
     String id = doc.toString().replace('\\', '/');
@@ -164,6 +194,11 @@ class MockFileDelegate implements FileDelegate {
     return new DocId(id);
   }
 
+  @Override
+  public DocId newDocId(DirectoryEntry entry) throws IOException {
+    return newDocId(entry.getPath());
+  }
+
   @Override
   public AclFileAttributeViews getAclViews(Path doc) throws IOException {
     MockFile file = getFile(doc);
@@ -173,6 +208,7 @@ class MockFileDelegate implements FileDelegate {
 
   @Override
   public AclFileAttributeView getShareAclView(Path doc) throws IOException {
+    shareAclReads++;
     return getFileOrRoot(doc).getShareAclView();
   }
 
@@ -206,10 +242,21 @@ class MockFileDelegate implements FileDelegate {
     }
   }
 
+  @Override
+  public void invalidateDfsCache() {
+    dfsCacheInvalidations++;
+  }
+
+  @Override
+  public boolean allowsNonRootStartPaths() {
+    return allowsNonRootStartPaths;
+  }
+
   @Override
   public void startMonitorPath(Path watchPath, AsyncDocIdPusher pusher)
     throws IOException {
     // TODO (bmj): implementation
+    monitorPusher = pusher;
   }
 
   @Override
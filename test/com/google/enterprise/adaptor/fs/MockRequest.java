@@ -35,7 +35,7 @@ class MockRequest implements Request {
 
   @Override
   public boolean hasChangedSinceLastAccess(Date lastModified) {
-    return lastModified.after(lastAccess);
+    return lastAccess == null || lastModified.after(lastAccess);
   }
 
   @Override
@@ -49,7 +49,7 @@ class MockRequest implements Request {
   }
 
   @Override
-  public boolean canRespondWithNoContent(Date d) {
-    throw new UnsupportedOperationException();
+  public boolean canRespondWithNoContent(Date lastModified) {
+    return !hasChangedSinceLastAccess(lastModified);
   }
 }
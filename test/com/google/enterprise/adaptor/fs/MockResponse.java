@@ -32,6 +32,7 @@ import java.util.Map;
 class MockResponse implements Response {
 
   boolean notModified = false;
+  boolean noContent = false;
   boolean notFound = false;
   boolean noIndex = false;
   String contentType;
@@ -124,7 +125,7 @@ class MockResponse implements Response {
   }
 
   @Override
-  public void respondNoContent() {
-    throw new UnsupportedOperationException();
+  public void respondNoContent() throws IOException {
+    noContent = true;
   }
 }
@@ -28,6 +28,9 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -36,7 +39,10 @@ import java.nio.file.Paths;
 import java.nio.file.attribute.AclFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /** Tests for {@link NioFileDelegate} */
@@ -159,6 +165,19 @@ public class NioFileDelegateTest {
         delegate.newInputStream(file), Charsets.UTF_8)));
   }
 
+  @Test
+  public void testNewReadableByteChannel() throws Exception {
+    String content = "<html><title>Foo</title><body>Bar</body></html>";
+    Path file = newTempFile("Foo.html");
+    Files.write(file, content.getBytes(Charsets.UTF_8));
+    try (ReadableByteChannel channel =
+             delegate.newReadableByteChannel(file)) {
+      assertTrue(channel instanceof FileChannel);
+      assertEquals(content, CharStreams.toString(new InputStreamReader(
+          Channels.newInputStream(channel), Charsets.UTF_8)));
+    }
+  }
+
   @Test
   public void testNewDirectoryStream() throws Exception {
     Path dir = newTempDir("testDir");
@@ -173,6 +192,85 @@ public class NioFileDelegateTest {
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void testNewDirectoryEntryStream() throws Exception {
+    Path dir = newTempDir("testDir");
+    Path file = newTempFile(dir, "test.txt");
+    Files.write(file, "Hello World".getBytes(Charsets.UTF_8));
+    Path subdir = Files.createDirectory(dir.resolve("subdir"));
+    Map<Path, DirectoryEntry> entries = new HashMap<Path, DirectoryEntry>();
+    try (DirectoryStream<DirectoryEntry> ds =
+         delegate.newDirectoryEntryStream(dir)) {
+      for (DirectoryEntry entry : ds) {
+        entries.put(entry.getPath(), entry);
+      }
+    }
+    assertEquals(Sets.newHashSet(file, subdir), entries.keySet());
+    DirectoryEntry entry = entries.get(file);
+    assertFalse(entry.isDirectory());
+    assertFalse(entry.isHidden());
+    assertTrue(entry.getAttributes().isRegularFile());
+    assertEquals(11L, entry.getAttributes().size());
+    assertEquals(Files.getLastModifiedTime(file),
+        entry.getAttributes().lastModifiedTime());
+    assertTrue(entries.get(subdir).isDirectory());
+  }
+
+  @Test
+  public void testNewDirectoryEntryStreamHiddenFile() throws Exception {
+    TestHelper.assumeOsIsNotWindows();
+    Path dir = newTempDir("testDir");
+    Path file = newTempFile(dir, ".hidden");
+    try (DirectoryStream<DirectoryEntry> ds =
+         delegate.newDirectoryEntryStream(dir)) {
+      Iterator<DirectoryEntry> iter = ds.iterator();
+      assertTrue(iter.hasNext());
+      DirectoryEntry entry = iter.next();
+      assertEquals(file, entry.getPath());
+      assertTrue(entry.isHidden());
+      assertFalse(iter.hasNext());
+    }
+  }
+
+  @Test
+  public void testNewDocIdDirectoryEntry() throws Exception {
+    Path dir = newTempDir("testDir");
+    Path file = newTempFile(dir, "test");
+    Path subdir = Files.createDirectory(dir.resolve("subdir"));
+    Map<Path, String> ids = new HashMap<Path, String>();
+    try (DirectoryStream<DirectoryEntry> ds =
+         delegate.newDirectoryEntryStream(dir)) {
+      for (DirectoryEntry entry : ds) {
+        ids.put(entry.getPath(), delegate.newDocId(entry).getUniqueId());
+      }
+    }
+    assertEquals(delegate.newDocId(file).getUniqueId(), ids.get(file));
+    assertEquals(file.toString(), ids.get(file));
+    assertEquals(delegate.newDocId(subdir).getUniqueId(), ids.get(subdir));
+    assertEquals(subdir.toString() + "/", ids.get(subdir));
+  }
+
+  @Test
+  public void testNewDocIdSymbolicLink() throws Exception {
+    TestHelper.assumeOsIsNotWindows();
+    Path dir = newTempDir("testDir");
+    Path file = newTempFile(dir, "test");
+    Path link = Files.createSymbolicLink(dir.resolve("link"), file);
+    assertEquals(file.toString(), delegate.newDocId(link).getUniqueId());
+    try (DirectoryStream<DirectoryEntry> ds =
+         delegate.newDirectoryEntryStream(dir)) {
+      for (DirectoryEntry entry : ds) {
+        assertEquals(file.toString(), delegate.newDocId(entry).getUniqueId());
+      }
+    }
+  }
+
+  @Test
+  public void testNewDirectoryEntryStreamNotFound() throws Exception {
+    thrown.expect(NoSuchFileException.class);
+    delegate.newDirectoryEntryStream(temp.getRoot().toPath().resolve("nx"));
+  }
+
   @Test
   public void testNewDocId() throws Exception {
     Path root = temp.getRoot().toPath().toRealPath();
@@ -249,5 +347,10 @@ public class NioFileDelegateTest {
     public List<Path> enumerateDfsLinks(Path doc) throws IOException {
       throw new UnsupportedOperationException();
     }
+
+    @Override
+    public boolean allowsNonRootStartPaths() {
+      return false;
+    }
   }
 }
@@ -0,0 +1,254 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/** Tests for {@link OverflowRescanner} */
+public class OverflowRescannerTest {
+  private static final Path ROOT = Paths.get("/");
+
+  private final MockFile root = new MockFile("/", true);
+  private final MockFile dir = new MockFile("dir", true);
+  private final MockFileDelegate delegate = new MockFileDelegate(root);
+  private final Executor directExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+  private final OverflowRescanner rescanner =
+      new OverflowRescanner(delegate, directExecutor, 2, 10, 5);
+
+  @Before
+  public void setUp() throws Exception {
+    root.addChildren(dir.addChildren(new MockFile("file1"),
+        new MockFile("file2")));
+  }
+
+  @Test
+  public void testNullDelegate() throws Exception {
+    try {
+      new OverflowRescanner(null, directExecutor, 1, 1, 1);
+      fail("expected NullPointerException");
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  @Test
+  public void testNullExecutor() throws Exception {
+    try {
+      new OverflowRescanner(delegate, null, 1, 1, 1);
+      fail("expected NullPointerException");
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  @Test
+  public void testNoActiveDirectories() throws Exception {
+    assertTrue(rescanner.rescan().isEmpty());
+  }
+
+  @Test
+  public void testUnchanged() throws Exception {
+    rescanner.directoryChanged(path("dir"));
+    assertTrue(rescanner.rescan().isEmpty());
+  }
+
+  @Test
+  public void testChanges() throws Exception {
+    rescanner.directoryChanged(path("dir"));
+    dir.getChild("file1").setLastModifiedTime(FileTime.fromMillis(20000));
+    dir.removeChild("file2");
+    dir.addChildren(new MockFile("file3"));
+    assertEquals(ImmutableSet.of(modified("dir/file1"),
+        deleted("dir/file2"), modified("dir/file3")),
+        toSet(rescanner.rescan()));
+    // The new listing is the baseline for the next rescan.
+    assertTrue(rescanner.rescan().isEmpty());
+  }
+
+  @Test
+  public void testAddedDirectoryIsWalked() throws Exception {
+    rescanner.directoryChanged(path("dir"));
+    dir.addChildren(new MockFile("sub", true).addChildren(
+        new MockFile("file3"),
+        new MockFile("subsub", true).addChildren(new MockFile("file4"))));
+    assertEquals(ImmutableSet.of(modified("dir/sub"), modified("dir/sub/file3"),
+        modified("dir/sub/subsub"), modified("dir/sub/subsub/file4")),
+        toSet(rescanner.rescan()));
+  }
+
+  @Test
+  public void testDeletedActiveDirectory() throws Exception {
+    dir.addChildren(new MockFile("sub", true));
+    rescanner.directoryChanged(path("dir/sub"));
+    root.removeChild("dir");
+    assertEquals(ImmutableSet.of(deleted("dir/sub")),
+        toSet(rescanner.rescan()));
+    assertEquals(0, rescanner.getActiveDirectoryCount());
+  }
+
+  @Test
+  public void testDirectoryDeleted() throws Exception {
+    dir.addChildren(new MockFile("sub", true));
+    rescanner.directoryChanged(path("dir"));
+    rescanner.directoryChanged(path("dir/sub"));
+    rescanner.directoryDeleted(path("dir"));
+    assertEquals(0, rescanner.getActiveDirectoryCount());
+  }
+
+  @Test
+  public void testLeastRecentlyActiveForgotten() throws Exception {
+    root.addChildren(new MockFile("other1", true),
+        new MockFile("other2", true));
+    rescanner.directoryChanged(path("dir"));
+    rescanner.directoryChanged(path("other1"));
+    rescanner.directoryChanged(path("dir"));
+    rescanner.directoryChanged(path("other2"));
+    assertEquals(2, rescanner.getActiveDirectoryCount());
+    dir.addChildren(new MockFile("file3"));
+    root.getChild("other1").addChildren(new MockFile("file4"));
+    assertEquals(ImmutableSet.of(modified("dir/file3")),
+        toSet(rescanner.rescan()));
+  }
+
+  @Test
+  public void testTooManyChanges() throws Exception {
+    rescanner.directoryChanged(path("dir"));
+    for (int i = 0; i < 6; i++) {
+      dir.addChildren(new MockFile("new" + i));
+    }
+    assertNull(rescanner.rescan());
+  }
+
+  @Test
+  public void testTooManyChangesInAddedDirectory() throws Exception {
+    rescanner.directoryChanged(path("dir"));
+    MockFile sub = new MockFile("sub", true);
+    for (int i = 0; i < 5; i++) {
+      sub.addChildren(new MockFile("new" + i));
+    }
+    dir.addChildren(sub);
+    assertNull(rescanner.rescan());
+  }
+
+  @Test
+  public void testSnapshotTakenByExecutor() throws Exception {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    OverflowRescanner rescanner = new OverflowRescanner(delegate,
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            tasks.add(command);
+          }
+        }, 2, 10, 5);
+    rescanner.directoryChanged(path("dir"));
+    rescanner.directoryChanged(path("dir"));
+    assertEquals(1, tasks.size());
+    // Without a snapshot, the directory itself is recrawled.
+    dir.addChildren(new MockFile("file3"));
+    assertEquals(ImmutableSet.of(modified("dir")),
+        toSet(rescanner.rescan()));
+    // The late snapshot does not replace the rescan's newer listing.
+    dir.addChildren(new MockFile("file4"));
+    tasks.get(0).run();
+    assertEquals(ImmutableSet.of(modified("dir/file4")),
+        toSet(rescanner.rescan()));
+  }
+
+  @Test
+  public void testForgottenDirectoryNotSnapshotted() throws Exception {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    final List<Path> listed = new ArrayList<Path>();
+    OverflowRescanner rescanner = new OverflowRescanner(
+        new MockFileDelegate(root) {
+          @Override
+          public DirectoryStream<DirectoryEntry> newDirectoryEntryStream(
+              Path doc) throws IOException {
+            listed.add(doc);
+            return super.newDirectoryEntryStream(doc);
+          }
+        },
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            tasks.add(command);
+          }
+        }, 2, 10, 5);
+    root.addChildren(new MockFile("other1", true),
+        new MockFile("other2", true));
+    rescanner.directoryChanged(path("dir"));
+    rescanner.directoryChanged(path("other1"));
+    rescanner.directoryDeleted(path("other1"));
+    rescanner.directoryChanged(path("other2"));
+    assertEquals(3, tasks.size());
+    for (Runnable task : tasks) {
+      task.run();
+    }
+    assertEquals(ImmutableList.of(path("dir"), path("other2")), listed);
+  }
+
+  @Test
+  public void testLargeDirectoryNotSnapshotted() throws Exception {
+    OverflowRescanner rescanner =
+        new OverflowRescanner(delegate, directExecutor, 2, 2, 5);
+    root.addChildren(new MockFile("other", true));
+    rescanner.directoryChanged(path("dir"));
+    rescanner.directoryChanged(path("other"));
+    dir.addChildren(new MockFile("file3"));
+    root.getChild("other").addChildren(new MockFile("file4"));
+    assertEquals(ImmutableSet.of(modified("dir"), modified("other/file4")),
+        toSet(rescanner.rescan()));
+  }
+
+  private static Path path(String name) {
+    return ROOT.resolve(name);
+  }
+
+  private Record modified(String name) throws Exception {
+    return new Record.Builder(delegate.newDocId(path(name)))
+        .setCrawlImmediately(true).build();
+  }
+
+  private static Record deleted(String name) throws Exception {
+    return new Record.Builder(new DocId(path(name).toString()))
+        .setDeleteFromIndex(true).build();
+  }
+
+  private static Set<Record> toSet(List<Record> records) {
+    Set<Record> set = new HashSet<Record>(records);
+    assertEquals(records.size(), set.size());
+    return set;
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+import com.google.enterprise.adaptor.ExceptionHandler;
+
+import org.junit.*;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link RecordBatcher} */
+public class RecordBatcherTest {
+  private BatchCountingDocIdPusher pusher = new BatchCountingDocIdPusher();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testConstructorNullPusher() throws Exception {
+    thrown.expect(NullPointerException.class);
+    new RecordBatcher(null, 10);
+  }
+
+  @Test
+  public void testConstructorIllegalBatchSize() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new RecordBatcher(pusher, 0);
+  }
+
+  @Test
+  public void testFlushEmpty() throws Exception {
+    RecordBatcher batcher = new RecordBatcher(pusher, 10);
+    batcher.flush();
+    assertTrue(pusher.batchSizes.isEmpty());
+    assertEquals(0, batcher.getCount());
+  }
+
+  @Test
+  public void testBatches() throws Exception {
+    RecordBatcher batcher = new RecordBatcher(pusher, 3);
+    for (int i = 0; i < 7; i++) {
+      batcher.add(newRecord(i));
+    }
+    assertEquals(ImmutableList.of(3, 3), pusher.batchSizes);
+    batcher.flush();
+    assertEquals(ImmutableList.of(3, 3, 1), pusher.batchSizes);
+    assertEquals(7, batcher.getCount());
+    assertEquals(7, pusher.getRecords().size());
+    for (int i = 0; i < 7; i++) {
+      assertEquals(newRecord(i), pusher.getRecords().get(i));
+    }
+  }
+
+  @Test
+  public void testPushFailed() throws Exception {
+    AccumulatingDocIdPusher failingPusher = new AccumulatingDocIdPusher() {
+      @Override
+      public Record pushRecords(Iterable<Record> records,
+          ExceptionHandler handler) {
+        return Iterables.getFirst(records, null);
+      }
+    };
+    RecordBatcher batcher = new RecordBatcher(failingPusher, 2);
+    batcher.add(newRecord(0));
+    thrown.expect(IOException.class);
+    batcher.add(newRecord(1));
+  }
+
+  private static Record newRecord(int i) {
+    return new Record.Builder(new DocId("doc" + i)).build();
+  }
+
+  private static class BatchCountingDocIdPusher
+      extends AccumulatingDocIdPusher {
+    final List<Integer> batchSizes = new ArrayList<Integer>();
+
+    @Override
+    public Record pushRecords(Iterable<Record> records,
+        ExceptionHandler handler) throws InterruptedException {
+      batchSizes.add(Iterables.size(records));
+      return super.pushRecords(records, handler);
+    }
+  }
+}
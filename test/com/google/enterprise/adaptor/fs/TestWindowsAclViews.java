@@ -20,6 +20,7 @@ import com.google.common.base.Preconditions;
 import com.google.enterprise.adaptor.fs.WinApi.Netapi32Ex;
 import com.google.enterprise.adaptor.fs.WinApi.Shlwapi;
 import com.google.enterprise.adaptor.fs.WindowsAclFileAttributeViews.Mpr;
+import com.google.enterprise.adaptor.fs.WindowsAclFileAttributeViews.SidLookup;
 
 import com.sun.jna.Memory;
 import com.sun.jna.Pointer;
@@ -36,8 +37,10 @@ import org.junit.*;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -250,17 +253,46 @@ public class TestWindowsAclViews {
       extends WindowsAclFileAttributeViews {
 
     public TestAclFileAttributeViews() {
-      super(null, null, null, null, null);
+      this(null, null, null, null, null);
     }
 
     public TestAclFileAttributeViews(Advapi32 advapi32, Kernel32 kernel32,
       Mpr mpr, Netapi32Ex netapi32, Shlwapi shlwapi) {
-      super(advapi32, kernel32, mpr, netapi32, shlwapi);
+      this(advapi32, kernel32, mpr, netapi32, shlwapi, new TestSidLookup());
+    }
+
+    public TestAclFileAttributeViews(Advapi32 advapi32, Kernel32 kernel32,
+      Mpr mpr, Netapi32Ex netapi32, Shlwapi shlwapi, SidLookup sidLookup) {
+      super(advapi32, kernel32, mpr, netapi32, shlwapi, sidLookup);
     }
 
     @Override
-    Account getAccountBySid(WinNT.PSID sid) throws Win32Exception {
-      return sidMap.get(Pointer.nativeValue(sid.sid)).getAccount();
+    byte[] getSidBytes(WinNT.PSID sid) {
+      return ByteBuffer.allocate(8).putLong(Pointer.nativeValue(sid.sid))
+          .array();
+    }
+  }
+
+  /**
+   * A {@link SidLookup} that looks up the accounts of AccountSid SIDs,
+   * and records the batches of SIDs looked up.
+   */
+  public static class TestSidLookup implements SidLookup {
+    public final List<Integer> batchSizes = new ArrayList<Integer>();
+
+    @Override
+    public List<Account> lookupSids(List<WinNT.PSID> sids) {
+      batchSizes.add(sids.size());
+      List<Account> accounts = new ArrayList<Account>();
+      for (WinNT.PSID sid : sids) {
+        AccountSid accountSid = sidMap.get(Pointer.nativeValue(sid.sid));
+        if (accountSid.name == null && accountSid.domain == null) {
+          accounts.add(null);
+        } else {
+          accounts.add(accountSid.getAccount());
+        }
+      }
+      return accounts;
     }
   }
 }
@@ -223,6 +223,24 @@ public class UnsupportedKernel32 implements Kernel32, Kernel32Ex {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public HANDLE FindFirstFileEx(String lpFileName, int fInfoLevelId,
+      WIN32_FIND_DATA lpFindFileData, int fSearchOp, Pointer lpSearchFilter,
+      int dwAdditionalFlags) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean FindNextFile(HANDLE hFindFile,
+      WIN32_FIND_DATA lpFindFileData) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean FindClose(HANDLE hFindFile) {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public int WaitForMultipleObjects(int nCount, HANDLE[] hHandle,
       boolean bWaitAll, int dwMilliseconds) {
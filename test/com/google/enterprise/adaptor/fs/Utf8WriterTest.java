@@ -0,0 +1,114 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/** Tests for {@link Utf8Writer} */
+public class Utf8WriterTest {
+  private final ClosingByteArrayOutputStream out =
+      new ClosingByteArrayOutputStream();
+  private final Utf8Writer writer = new Utf8Writer(out);
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void testNullStream() throws Exception {
+    thrown.expect(NullPointerException.class);
+    new Utf8Writer(null);
+  }
+
+  @Test
+  public void testEncoding() throws Exception {
+    // One, two, three and four byte characters.
+    String text = "a\u00e9\u20ac\ud83d\ude00z";
+    writer.write(text);
+    writer.flush();
+    assertArrayEquals(text.getBytes(StandardCharsets.UTF_8),
+        out.toByteArray());
+  }
+
+  @Test
+  public void testSurrogatePairSplitAcrossWrites() throws Exception {
+    writer.write('\ud83d');
+    writer.write(new char[] { '\ude00' });
+    writer.flush();
+    assertArrayEquals("\ud83d\ude00".getBytes(StandardCharsets.UTF_8),
+        out.toByteArray());
+  }
+
+  @Test
+  public void testUnpairedSurrogates() throws Exception {
+    writer.write("\ude00a\ud83db\ud83d");
+    writer.close();
+    assertEquals("?a?b?", new String(out.toByteArray(),
+        StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testLargerThanBuffer() throws Exception {
+    StringBuilder text = new StringBuilder();
+    while (text.length() < 3 * Utf8Writer.BUFFER_SIZE) {
+      text.append("x\u00e9\u20ac\ud83d\ude00");
+    }
+    writer.write(text.toString());
+    writer.close();
+    assertArrayEquals(text.toString().getBytes(StandardCharsets.UTF_8),
+        out.toByteArray());
+  }
+
+  @Test
+  public void testNothingWrittenUntilFlushed() throws Exception {
+    writer.write("abc");
+    assertEquals(0, out.size());
+    writer.flush();
+    assertEquals(3, out.size());
+  }
+
+  @Test
+  public void testCloseClosesStream() throws Exception {
+    writer.write("abc");
+    writer.close();
+    assertTrue(out.closed);
+    assertEquals("abc", out.toString("UTF-8"));
+    // Closing again has no effect.
+    writer.close();
+  }
+
+  @Test
+  public void testWriteAfterClose() throws Exception {
+    writer.close();
+    thrown.expect(IOException.class);
+    writer.write("abc");
+  }
+
+  private static class ClosingByteArrayOutputStream
+      extends ByteArrayOutputStream {
+    private boolean closed;
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
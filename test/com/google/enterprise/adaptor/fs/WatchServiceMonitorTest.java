@@ -0,0 +1,239 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.fs;
+
+import static org.junit.Assert.*;
+
+import com.google.enterprise.adaptor.Acl;
+import com.google.enterprise.adaptor.AsyncDocIdPusher;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+
+import org.junit.*;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Tests for {@link WatchServiceMonitor} */
+public class WatchServiceMonitorTest {
+  private final LinuxFileDelegate delegate = new LinuxFileDelegate();
+  private final RecordingPusher pusher = new RecordingPusher();
+  private WatchServiceMonitor monitor;
+  private Path root;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @BeforeClass
+  public static void checkIfRunningOnLinux() {
+    TestHelper.assumeOsIsLinux();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    root = temp.getRoot().toPath().toRealPath();
+  }
+
+  @After
+  public void tearDown() {
+    if (monitor != null) {
+      monitor.shutdown();
+    }
+  }
+
+  @Test
+  public void testNullDelegate() throws Exception {
+    thrown.expect(NullPointerException.class);
+    new WatchServiceMonitor(null);
+  }
+
+  @Test
+  public void testNegativeMaxWatches() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new WatchServiceMonitor(delegate, -1, 10, 1000L);
+  }
+
+  @Test
+  public void testNegativeMaxPolled() throws Exception {
+    thrown.expect(IllegalArgumentException.class);
+    new WatchServiceMonitor(delegate, 10, -1, 1000L);
+  }
+
+  @Test
+  public void testCreatedFile() throws Exception {
+    startMonitor(10);
+    Path file = Files.createFile(root.resolve("file"));
+    pusher.awaitRecord(modified(file));
+  }
+
+  @Test
+  public void testModifiedFileInSubdirectory() throws Exception {
+    Path file = Files.createFile(
+        Files.createDirectories(root.resolve("dir/sub")).resolve("file"));
+    startMonitor(10);
+    assertTrue(monitor.isWatched(root.resolve("dir/sub")));
+    Files.write(file, new byte[] { 1 });
+    pusher.awaitRecord(modified(file));
+  }
+
+  @Test
+  public void testDeletedFile() throws Exception {
+    Path file = Files.createFile(root.resolve("file"));
+    Record deleted = new Record.Builder(delegate.newDocId(file))
+        .setDeleteFromIndex(true).build();
+    startMonitor(10);
+    Files.delete(file);
+    pusher.awaitRecord(deleted);
+  }
+
+  @Test
+  public void testCreatedDirectoryIsWatched() throws Exception {
+    startMonitor(10);
+    Path dir = Files.createDirectory(root.resolve("dir"));
+    Path file = Files.createFile(dir.resolve("file"));
+    pusher.awaitRecord(modified(dir));
+    pusher.awaitRecord(modified(file));
+    assertTrue(monitor.isWatched(dir));
+  }
+
+  @Test
+  public void testMovedDirectoryIsWatchedUnderNewName() throws Exception {
+    Path dir = Files.createDirectories(root.resolve("dir/sub"));
+    Files.createFile(dir.resolve("file"));
+    startMonitor(10);
+    assertTrue(monitor.isWatched(dir));
+    Path moved = Files.move(root.resolve("dir"), root.resolve("moved"));
+    Path file = moved.resolve("sub/file");
+    // The moved tree is pushed as it is registered again.
+    pusher.awaitRecord(modified(file));
+    assertTrue(monitor.isWatched(moved.resolve("sub")));
+    assertFalse(monitor.isWatched(dir));
+    pusher.clear();
+    Files.write(file, new byte[] { 1 });
+    pusher.awaitRecord(modified(file));
+  }
+
+  @Test
+  public void testColdDirectoryPolled() throws Exception {
+    Path dir = Files.createDirectory(root.resolve("dir"));
+    monitor = new WatchServiceMonitor(delegate, 1, 10, 100L);
+    monitor.startMonitorPath(root, pusher);
+    assertTrue(monitor.isWatched(root));
+    assertTrue(monitor.isPolled(dir));
+    // Leave the modification time of the directory room to change.
+    Thread.sleep(20);
+    Path file = Files.createFile(dir.resolve("file"));
+    pusher.awaitRecord(modified(dir));
+    pusher.awaitRecord(modified(file));
+    // The directory that changed displaced the one that did not.
+    assertTrue(monitor.isWatched(dir));
+    assertTrue(monitor.isPolled(root));
+  }
+
+  @Test
+  public void testRemoteFileSystemPolled() throws Exception {
+    Path dir = Files.createDirectory(root.resolve("dir"));
+    monitor = new WatchServiceMonitor(delegate, 10, 10, 100L) {
+        @Override
+        boolean isRemoteFileSystem(Path path) {
+          return true;
+        }
+      };
+    monitor.startMonitorPath(root, pusher);
+    assertFalse(monitor.isWatched(root));
+    assertTrue(monitor.isPolled(root));
+    assertTrue(monitor.isPolled(dir));
+    Thread.sleep(20);
+    Path file = Files.createFile(dir.resolve("file"));
+    pusher.awaitRecord(modified(dir));
+    pusher.awaitRecord(modified(file));
+    // It is still only polled.
+    assertFalse(monitor.isWatched(dir));
+    assertTrue(monitor.isPolled(dir));
+  }
+
+  @Test
+  public void testRegistrationStopsWhenFull() throws Exception {
+    Files.createDirectories(root.resolve("dir1/sub1"));
+    Files.createDirectories(root.resolve("dir2/sub2"));
+    monitor = new WatchServiceMonitor(delegate, 1, 2, 60000L);
+    monitor.startMonitorPath(root, pusher);
+    assertTrue(monitor.isWatched(root));
+    assertTrue(monitor.isPolled(root.resolve("dir1")));
+    assertTrue(monitor.isPolled(root.resolve("dir2")));
+    // Beyond the directories that fit, the tree was not walked.
+    assertFalse(monitor.isPolled(root.resolve("dir1/sub1")));
+    assertFalse(monitor.isPolled(root.resolve("dir2/sub2")));
+  }
+
+  @Test
+  public void testStartAfterShutdown() throws Exception {
+    startMonitor(10);
+    monitor.shutdown();
+    thrown.expect(IllegalStateException.class);
+    monitor.startMonitorPath(temp.newFolder("other").toPath(), pusher);
+  }
+
+  private void startMonitor(int maxWatches) throws Exception {
+    monitor = new WatchServiceMonitor(delegate, maxWatches, 10, 60000L);
+    monitor.startMonitorPath(root, pusher);
+  }
+
+  private Record modified(Path path) throws Exception {
+    return new Record.Builder(delegate.newDocId(path))
+        .setCrawlImmediately(true).build();
+  }
+
+  private static class RecordingPusher implements AsyncDocIdPusher {
+    private final Set<Record> records = new HashSet<Record>();
+
+    @Override
+    public boolean pushDocId(DocId docId) {
+      return pushRecord(new Record.Builder(docId).build());
+    }
+
+    @Override
+    public synchronized boolean pushRecord(Record record) {
+      records.add(record);
+      notifyAll();
+      return true;
+    }
+
+    @Override
+    public boolean pushNamedResource(DocId docId, Acl acl) {
+      throw new UnsupportedOperationException();
+    }
+
+    synchronized void clear() {
+      records.clear();
+    }
+
+    synchronized void awaitRecord(Record record) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!records.contains(record)) {
+        long wait = deadline - System.currentTimeMillis();
+        assertTrue("timed out waiting for " + record, wait > 0);
+        wait(wait);
+      }
+    }
+  }
+}
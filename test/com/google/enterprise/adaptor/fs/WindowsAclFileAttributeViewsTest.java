@@ -26,6 +26,7 @@ import static org.junit.Assume.*;
 import com.google.enterprise.adaptor.fs.WinApi.Netapi32Ex;
 import com.google.enterprise.adaptor.fs.WinApi.Shlwapi;
 import com.google.enterprise.adaptor.fs.WindowsAclFileAttributeViews.Mpr;
+import com.google.enterprise.adaptor.fs.WindowsAclFileAttributeViews.SidLookup;
 
 import com.sun.jna.Memory;
 import com.sun.jna.Pointer;
@@ -52,6 +53,7 @@ import java.nio.file.attribute.AclEntryPermission;
 import java.nio.file.attribute.AclFileAttributeView;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Set;
 
@@ -216,6 +218,44 @@ public class WindowsAclFileAttributeViewsTest extends TestWindowsAclViews {
     assertEquals(expected, aclEntry.permissions());
   }
 
+  @Test
+  public void testGetAclPermissionsShared() throws Exception {
+    Set<AclEntryPermission> perms =
+        WindowsAclFileAttributeViews.getAclPermissions(WinNT.GENERIC_READ);
+    assertSame(perms, WindowsAclFileAttributeViews.getAclPermissions(
+        WinNT.FILE_GENERIC_READ));
+    assertSame(perms, WindowsAclFileAttributeViews.getAclPermissions(
+        WinNT.GENERIC_READ | WinNT.FILE_GENERIC_READ));
+    assertEquals(EnumSet.noneOf(AclEntryPermission.class),
+        WindowsAclFileAttributeViews.getAclPermissions(0));
+    try {
+      perms.clear();
+      fail("expected UnsupportedOperationException");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  @Test
+  public void testGetAclFlagsShared() throws Exception {
+    byte aceFlags =
+        (byte) (WinNT.OBJECT_INHERIT_ACE | WinNT.CONTAINER_INHERIT_ACE);
+    Set<AclEntryFlag> flags = WindowsAclFileAttributeViews.getAclFlags(
+        (byte) (aceFlags | WinNT.INHERITED_ACE));
+    assertEquals(EnumSet.of(AclEntryFlag.FILE_INHERIT,
+        AclEntryFlag.DIRECTORY_INHERIT), flags);
+    assertSame(flags, WindowsAclFileAttributeViews.getAclFlags(aceFlags));
+  }
+
+  @Test
+  public void testNewAclEntrySharesPrincipals() throws Exception {
+    AccountSid account = AccountSid.user("userName", "domain");
+    AclEntry first = wafav.newAclEntry(new AceBuilder().setSid(account)
+        .setPerms(WinNT.GENERIC_READ).build());
+    AclEntry second = wafav.newAclEntry(new AceBuilder().setSid(account)
+        .setType(WinNT.ACCESS_DENIED_ACE_TYPE).build());
+    assertSame(first.principal(), second.principal());
+  }
+
   @Test
   public void testNewAclEntryIndividualFlags() throws Exception {
     testNewAclEntryFlags(WinNT.OBJECT_INHERIT_ACE, AclEntryFlag.FILE_INHERIT);
@@ -331,8 +371,78 @@ public class WindowsAclFileAttributeViewsTest extends TestWindowsAclViews {
                  aclViews.getInheritedAclView().getAcl());
   }
 
+  @Test
+  public void testGetAclViewsReusesIdenticalSecurityDescriptors()
+      throws Exception {
+    WinNT.ACCESS_ACEStructure ace = new AceBuilder()
+        .setSid(AccountSid.user("user", "domain"))
+        .setPerms(WinNT.GENERIC_READ)
+        .build();
+    WindowsAclFileAttributeViews wafav = newAclViews(ace);
+    AclFileAttributeViews aclViews = wafav.getAclViews(newTempFile("file1"));
+    assertSame(aclViews, wafav.getAclViews(newTempFile("file2")));
+  }
+
+  @Test
+  public void testGetAclViewsResolvesSidsInOneLookup() throws Exception {
+    AccountSid fred = AccountSid.user("Fred", "BEDROCK");
+    TestSidLookup sidLookup = new TestSidLookup();
+    WindowsAclFileAttributeViews wafav = newAclViews(sidLookup,
+        new AceBuilder().setSid(fred).setPerms(WinNT.GENERIC_READ).build(),
+        new AceBuilder().setSid(AccountSid.group("Everyone", null))
+            .setPerms(WinNT.GENERIC_READ).build(),
+        new AceBuilder().setSid(fred).setType(WinNT.ACCESS_DENIED_ACE_TYPE)
+            .setPerms(WinNT.GENERIC_WRITE).build(),
+        new AceBuilder().setSid(new AccountSid())
+            .setPerms(WinNT.GENERIC_READ).build());
+    AclFileAttributeViews aclViews = wafav.getAclViews(newTempFile("test"));
+
+    assertEquals(3, aclViews.getDirectAclView().getAcl().size());
+    // Fred is looked up once, along with Everyone and the unmapped SID.
+    assertEquals(Arrays.asList(3), sidLookup.batchSizes);
+    assertEquals(1, wafav.getSidLookups());
+    assertEquals(3, wafav.getSidsLookedUp());
+    assertEquals(3, wafav.getSidCacheHits());
+    assertEquals(1, wafav.getUnmappedSidCacheHits());
+  }
+
+  @Test
+  public void testUnmappedSidIsCached() throws Exception {
+    TestSidLookup sidLookup = new TestSidLookup();
+    WindowsAclFileAttributeViews wafav = new TestAclFileAttributeViews(
+        null, null, null, null, null, sidLookup);
+    WinNT.ACCESS_ACEStructure ace = new AceBuilder()
+        .setSid(new AccountSid()).build();
+    assertNull(wafav.newAclEntry(ace));
+    assertNull(wafav.newAclEntry(ace));
+    assertEquals(Arrays.asList(1), sidLookup.batchSizes);
+    assertEquals(1, wafav.getUnmappedSidCacheHits());
+  }
+
+  @Test
+  public void testSidStatistics() throws Exception {
+    WinNT.ACCESS_ACEStructure ace = new AceBuilder()
+        .setSid(AccountSid.user("userName", null)).build();
+    wafav.newAclEntry(ace);
+    wafav.newAclEntry(ace);
+    assertTrue(wafav.getSidStatistics(), wafav.getSidStatistics().startsWith(
+        "SID cache hits: 1, unmapped SID cache hits: 0, SIDs looked up: 1, "
+        + "lookups: 1, average lookup time: "));
+  }
+
   private AclFileAttributeViews getAclViews(WinNT.ACCESS_ACEStructure... aces)
       throws Exception {
+    return newAclViews(aces).getAclViews(newTempFile("test"));
+  }
+
+  /** Returns views of files which all have a DACL with the given ACEs. */
+  private WindowsAclFileAttributeViews newAclViews(
+      WinNT.ACCESS_ACEStructure... aces) throws Exception {
+    return newAclViews(new TestSidLookup(), aces);
+  }
+
+  private WindowsAclFileAttributeViews newAclViews(SidLookup sidLookup,
+      WinNT.ACCESS_ACEStructure... aces) throws Exception {
     final byte[] dacl = buildDaclMemory(aces);
     Kernel32 kernel32 = new UnsupportedKernel32() {
         @Override
@@ -356,9 +466,8 @@ public class WindowsAclFileAttributeViewsTest extends TestWindowsAclViews {
         }
       };
 
-    WindowsAclFileAttributeViews wafav =
-        new TestAclFileAttributeViews(advapi32, kernel32, null, null, null);
-    return wafav.getAclViews(newTempFile("test"));
+    return new TestAclFileAttributeViews(advapi32, kernel32, null, null, null,
+        sidLookup);
   }
 
   /**
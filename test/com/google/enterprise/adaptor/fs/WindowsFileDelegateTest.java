@@ -48,14 +48,18 @@ import org.junit.rules.ExpectedException;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.AclFileAttributeView;
 import java.nio.file.attribute.FileTime;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /** Tests for {@link WindowsFileDelegate} */
@@ -471,7 +475,7 @@ public class WindowsFileDelegateTest extends TestWindowsAclViews {
 
   private static boolean isDfsLink(final Path dfsPath,
       final Netapi32Ex.DFS_INFO_3 info) throws Exception {
-    return isDfsLink(dfsPath, getNetapi(info));
+    return isDfsLink(dfsPath, getNetapi(dfsPath, info));
   }
 
   private static boolean isDfsLink(final Path dfsPath, final Netapi32Ex netapi)
@@ -481,6 +485,92 @@ public class WindowsFileDelegateTest extends TestWindowsAclViews {
     return delegate.isDfsLink(dfsPath);
   }
 
+  @Test
+  public void testDfsInfoIsCached() throws Exception {
+    final int[] calls = new int[1];
+    Path dfsPath = Paths.get("\\\\host\\namespace\\link");
+    Netapi32Ex netapi = new CountingNetapi(calls, getNetapi(dfsPath,
+        newDfsInfo3(new Storage(Netapi32Ex.DFS_STORAGE_STATE_ONLINE,
+            "server", "share"))));
+    WindowsFileDelegate delegate =
+        new WindowsFileDelegate(null, null, netapi, null, 0);
+    assertTrue(delegate.isDfsLink(dfsPath));
+    assertFalse(delegate.isDfsNamespace(dfsPath));
+    assertEquals(Paths.get("\\\\server\\share"),
+                 delegate.resolveDfsLink(dfsPath));
+    // One call for the namespace, and one for the link.
+    assertEquals(2, calls[0]);
+
+    delegate.invalidateDfsCache();
+    assertTrue(delegate.isDfsLink(dfsPath));
+    assertEquals(4, calls[0]);
+  }
+
+  @Test
+  public void testIsDfsLinkOutsideNamespaceNotLookedUp() throws Exception {
+    final int[] calls = new int[1];
+    Netapi32Ex netapi = new CountingNetapi(calls, getNetapi(null, null));
+    WindowsFileDelegate delegate =
+        new WindowsFileDelegate(null, null, netapi, null, 0);
+    assertFalse(delegate.isDfsLink(Paths.get("\\\\host\\share\\file1")));
+    assertFalse(delegate.isDfsLink(Paths.get("\\\\host\\share\\dir\\file2")));
+    // Only the share itself was looked up.
+    assertEquals(1, calls[0]);
+  }
+
+  @Test
+  public void testIsDfsLinkBeneathLinkNotLookedUp() throws Exception {
+    final int[] calls = new int[1];
+    Path dfsPath = Paths.get("\\\\host\\namespace\\link");
+    Netapi32Ex netapi = new CountingNetapi(calls,
+        getNetapi(dfsPath, newDfsInfo3(0x00000001)));
+    WindowsFileDelegate delegate =
+        new WindowsFileDelegate(null, null, netapi, null, 0);
+    assertTrue(delegate.isDfsLink(dfsPath));
+    assertEquals(2, calls[0]);
+    assertFalse(delegate.isDfsLink(dfsPath.resolve("file1")));
+    assertFalse(delegate.isDfsLink(dfsPath.resolve("dir\\file2")));
+    assertEquals(2, calls[0]);
+  }
+
+  @Test
+  public void testDfsInfoCacheExpires() throws Exception {
+    final int[] calls = new int[1];
+    Netapi32Ex netapi = new UnsupportedNetapi32() {
+        @Override
+        public int NetDfsGetInfo(String dfsPath, String server, String share,
+            int level, PointerByReference bufptr) {
+          calls[0]++;
+          return WinError.ERROR_NOT_FOUND;
+        }
+      };
+    WindowsFileDelegate delegate =
+        new WindowsFileDelegate(null, null, netapi, null, 0, 0);
+    Path dfsPath = Paths.get("\\\\host\\share\\folder");
+    assertFalse(delegate.isDfsLink(dfsPath));
+    assertFalse(delegate.isDfsLink(dfsPath));
+    assertEquals(2, calls[0]);
+  }
+
+  @Test
+  public void testDfsInfoErrorNotCached() throws Exception {
+    final int[] calls = new int[1];
+    Netapi32Ex netapi = new UnsupportedNetapi32() {
+        @Override
+        public int NetDfsGetInfo(String dfsPath, String server, String share,
+            int level, PointerByReference bufptr) {
+          calls[0]++;
+          return WinError.ERROR_ACCESS_DENIED;
+        }
+      };
+    WindowsFileDelegate delegate =
+        new WindowsFileDelegate(null, null, netapi, null, 0);
+    Path dfsPath = Paths.get("\\\\host\\namespace");
+    assertFalse(delegate.isDfsNamespace(dfsPath));
+    assertFalse(delegate.isDfsNamespace(dfsPath));
+    assertEquals(2, calls[0]);
+  }
+
   @Test
   public void testResolveDfsLinkError() throws Exception {
     Netapi32Ex netapi = new UnsupportedNetapi32() {
@@ -536,6 +626,60 @@ public class WindowsFileDelegateTest extends TestWindowsAclViews {
                  resolveDfsLink(info));
   }
 
+  /**
+   * Returns a Netapi32Ex for which the roots are namespaces, and the given
+   * path has the given DFS information. If {@code info} is {@code null},
+   * nothing is a DFS namespace or link.
+   */
+  private static Netapi32Ex getNetapi(final Path dfsPath,
+      final Netapi32Ex.DFS_INFO_3 info) {
+    final Netapi32Ex.DFS_INFO_3 namespaceInfo = newDfsInfo3(0x00000101);
+    return new UnsupportedNetapi32() {
+        @Override
+        public int NetDfsGetInfo(String path, String server, String share,
+            int level, PointerByReference bufptr) {
+          if (info == null) {
+            return WinError.ERROR_NOT_FOUND;
+          } else if (Paths.get(path).equals(dfsPath)) {
+            bufptr.setValue(info.getPointer());
+            return LMErr.NERR_Success;
+          } else if (Paths.get(path).getNameCount() == 0) {
+            bufptr.setValue(namespaceInfo.getPointer());
+            return LMErr.NERR_Success;
+          } else {
+            return WinError.ERROR_NOT_FOUND;
+          }
+        }
+        @Override
+        public int NetApiBufferFree(Pointer buf) {
+          return WinError.ERROR_SUCCESS;
+        }
+      };
+  }
+
+  /** Counts the NetDfsGetInfo calls made to another Netapi32Ex. */
+  private static class CountingNetapi extends UnsupportedNetapi32 {
+    private final int[] calls;
+    private final Netapi32Ex netapi;
+
+    CountingNetapi(int[] calls, Netapi32Ex netapi) {
+      this.calls = calls;
+      this.netapi = netapi;
+    }
+
+    @Override
+    public int NetDfsGetInfo(String path, String server, String share,
+        int level, PointerByReference bufptr) {
+      calls[0]++;
+      return netapi.NetDfsGetInfo(path, server, share, level, bufptr);
+    }
+
+    @Override
+    public int NetApiBufferFree(Pointer buf) {
+      return netapi.NetApiBufferFree(buf);
+    }
+  }
+
   private static Netapi32Ex getNetapi(final Netapi32Ex.DFS_INFO_3 info) {
     return new UnsupportedNetapi32() {
         @Override
@@ -557,7 +701,8 @@ public class WindowsFileDelegateTest extends TestWindowsAclViews {
     
   private static Path resolveDfsLink(
       final Netapi32Ex.DFS_INFO_3 info) throws Exception {
-    return resolveDfsLink(getNetapi(info));
+    return resolveDfsLink(
+        getNetapi(Paths.get("\\\\host\\namespace\\link"), info));
   }
 
   private static Path resolveDfsLink(Netapi32Ex netapi)
@@ -635,6 +780,39 @@ public class WindowsFileDelegateTest extends TestWindowsAclViews {
     return delegate.enumerateDfsLinks(Paths.get("\\\\host\\namespace"));
   }
 
+  @Test
+  public void testEnumerateDfsLinksIsCached() throws Exception {
+    final int[] calls = new int[1];
+    final Memory infos = newDfsInfo1("\\\\host\\namespace",
+                                     "\\\\host\\namespace\\link");
+    Netapi32Ex netapi = new UnsupportedNetapi32() {
+        @Override
+        public int NetDfsEnum(String dfsPath, int level, int prefMaxLen,
+            PointerByReference bufptr, IntByReference entriesRead,
+            IntByReference resumeHandle) {
+          calls[0]++;
+          int sizeofInfo = new Netapi32Ex.DFS_INFO_1().size();
+          bufptr.setValue(infos.share(0));
+          entriesRead.setValue((int) (infos.size() / sizeofInfo));
+          return LMErr.NERR_Success;
+        }
+        @Override
+        public int NetApiBufferFree(Pointer buf) {
+          return WinError.ERROR_SUCCESS;
+        }
+      };
+    WindowsFileDelegate delegate =
+        new WindowsFileDelegate(null, null, netapi, null, 0);
+    Path namespace = Paths.get("\\\\host\\namespace");
+    List<Path> links = delegate.enumerateDfsLinks(namespace);
+    assertEquals(links, delegate.enumerateDfsLinks(namespace));
+    assertEquals(1, calls[0]);
+
+    delegate.invalidateDfsCache();
+    assertEquals(links, delegate.enumerateDfsLinks(namespace));
+    assertEquals(2, calls[0]);
+  }
+
   @Test
   public void testPreserveOriginalNamespace() throws Exception {
     Path original = Paths.get("\\\\server\\namespace");
@@ -670,6 +848,41 @@ public class WindowsFileDelegateTest extends TestWindowsAclViews {
     delegate.newDocId(path);
   }
 
+  @Test
+  public void testNewDirectoryEntryStream() throws Exception {
+    Path dir = newTempDir("testDir");
+    Path file = newTempFile(dir, "test.txt");
+    Files.write(file, "Hello World".getBytes("UTF-8"));
+    Path hidden = newTempFile(dir, "hidden.txt");
+    Files.setAttribute(hidden, "dos:hidden", Boolean.TRUE);
+    Path subdir = Files.createDirectory(dir.resolve("subdir"));
+
+    Map<Path, DirectoryEntry> entries = new HashMap<Path, DirectoryEntry>();
+    try (DirectoryStream<DirectoryEntry> ds =
+         delegate.newDirectoryEntryStream(dir)) {
+      for (DirectoryEntry entry : ds) {
+        entries.put(entry.getPath(), entry);
+      }
+    }
+    assertEquals(Sets.newHashSet(file, hidden, subdir), entries.keySet());
+
+    DirectoryEntry entry = entries.get(file);
+    assertFalse(entry.isDirectory());
+    assertFalse(entry.isHidden());
+    assertTrue(entry.getAttributes().isRegularFile());
+    assertEquals(11L, entry.getAttributes().size());
+    assertEquals(Files.getLastModifiedTime(file).toMillis(),
+        entry.getAttributes().lastModifiedTime().toMillis());
+    assertTrue(entries.get(hidden).isHidden());
+    assertTrue(entries.get(subdir).isDirectory());
+  }
+
+  @Test
+  public void testNewDirectoryEntryStreamNotFound() throws Exception {
+    thrown.expect(NoSuchFileException.class);
+    delegate.newDirectoryEntryStream(tempRoot.resolve("nonExistent"));
+  }
+
   @Test
   public void testNewDocIdLocalFiles() throws Exception {
     Path dir = newTempDir("testDir");